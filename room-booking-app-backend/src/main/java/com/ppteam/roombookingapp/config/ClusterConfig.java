@@ -0,0 +1,44 @@
+package com.ppteam.roombookingapp.config;
+
+import com.corundumstudio.socketio.store.MemoryStoreFactory;
+import com.corundumstudio.socketio.store.RedissonStoreFactory;
+import com.corundumstudio.socketio.store.StoreFactory;
+import org.redisson.Redisson;
+import org.redisson.api.RedissonClient;
+import org.redisson.config.Config;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Хранилище состояния socket сервера. В режиме memory состояние хранится в памяти одного узла, а в режиме redisson
+ * socket события комнат и общее состояние узлов передаются через Redis, поэтому приложение можно запускать на
+ * нескольких узлах.
+ */
+@Configuration
+public class ClusterConfig {
+
+    @Value("${cluster.redis-address}")
+    private String redisAddress;
+
+    @Bean
+    @ConditionalOnProperty(name = "cluster.mode", havingValue = "memory", matchIfMissing = true)
+    public StoreFactory memoryStoreFactory() {
+        return new MemoryStoreFactory();
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "cluster.mode", havingValue = "redisson")
+    public RedissonClient redissonClient() {
+        Config config = new Config();
+        config.useSingleServer().setAddress(redisAddress);
+        return Redisson.create(config);
+    }
+
+    @Bean(destroyMethod = "")
+    @ConditionalOnProperty(name = "cluster.mode", havingValue = "redisson")
+    public StoreFactory redissonStoreFactory(RedissonClient redissonClient) {
+        return new RedissonStoreFactory(redissonClient);
+    }
+}
@@ -0,0 +1,167 @@
+package com.ppteam.roombookingapp.config;
+
+import com.ppteam.roombookingapp.controllers.KeyedExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Пулы потоков трех этапов обработки: завершение запросов к Microsoft Graph, изменение хранилищ подписок и расписаний
+ * и рассылка socket событий. Запросы к Microsoft Graph завершаются в потоках OkHttp, поэтому обработка их результатов
+ * сразу передается в отдельный пул, и медленная рассылка не задерживает HTTP клиент. Если очередь пула заполнена, то
+ * задача выполняется в вызывающем потоке, что замедляет предыдущий этап.
+ * <p>
+ * При включенном executors.virtual-threads.enabled завершение запросов и рассылка выполняются в виртуальных потоках,
+ * если JDK их поддерживает. Для каждой задачи создается новый виртуальный поток, а количество одновременно выполняемых
+ * задач ограничивается executors.virtual-threads.max-concurrency, остальные задачи ждут в своих потоках. Состояние пулов (активные потоки, очередь, отклоненные задачи) доступно в метриках
+ * executor.* и roombooking.executor.rejected с тегом name.
+ */
+@Configuration
+public class ExecutorsConfig {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${executors.graph-callback.threads}")
+    private int graphCallbackThreads;
+    @Value("${executors.store-update.threads}")
+    private int storeUpdateThreads;
+    @Value("${executors.socket-fanout.threads}")
+    private int socketFanoutThreads;
+    @Value("${executors.queue-capacity}")
+    private int queueCapacity;
+    @Value("${executors.virtual-threads.enabled}")
+    private boolean virtualThreadsEnabled;
+    @Value("${executors.virtual-threads.max-concurrency}")
+    private int virtualThreadsMaxConcurrency;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService graphCallbackExecutor(MeterRegistry meterRegistry) {
+        return createExecutor("graph-callback", graphCallbackThreads, true, meterRegistry);
+    }
+
+    @Bean
+    public KeyedExecutor storeUpdateExecutor(MeterRegistry meterRegistry) {
+        return createKeyedExecutor("store-update", storeUpdateThreads, false, meterRegistry);
+    }
+
+    @Bean
+    public KeyedExecutor socketFanoutExecutor(MeterRegistry meterRegistry) {
+        return createKeyedExecutor("socket-fanout", socketFanoutThreads, true, meterRegistry);
+    }
+
+    private KeyedExecutor createKeyedExecutor(String name, int threads, boolean blocking, MeterRegistry meterRegistry) {
+        KeyedExecutor keyedExecutor = new KeyedExecutor(createExecutor(name, threads, blocking, meterRegistry));
+        Gauge.builder("roombooking.executor.pending.keys", keyedExecutor, KeyedExecutor::getPendingKeys)
+                .description("Ключи с невыполненными задачами")
+                .tag("name", name)
+                .register(meterRegistry);
+        return keyedExecutor;
+    }
+
+    /**
+     * Создает пул потоков с ограниченной очередью и регистрирует его метрики. Если задачи могут блокироваться и
+     * включены виртуальные потоки, то вместо пула создается исполнитель, запускающий каждую задачу в новом виртуальном
+     * потоке.
+     *
+     * @param name Название пула
+     * @param threads Количество потоков
+     * @param blocking true, если задачи пула могут блокироваться и пул может использовать виртуальные потоки
+     * @param meterRegistry Реестр метрик
+     * @return Пул потоков
+     */
+    private ExecutorService createExecutor(String name, int threads, boolean blocking, MeterRegistry meterRegistry) {
+        ExecutorService executor = blocking && virtualThreadsEnabled ? createVirtualThreadExecutor(name) : null;
+        if (executor == null) {
+            executor = createThreadPool(name, threads, meterRegistry);
+        }
+        new ExecutorServiceMetrics(executor, name, Tags.empty()).bindTo(meterRegistry);
+        return executor;
+    }
+
+    private ThreadPoolExecutor createThreadPool(String name, int threads, MeterRegistry meterRegistry) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        Counter rejectedTasks = Counter.builder("roombooking.executor.rejected")
+                .description("Задачи, выполненные в вызывающем потоке из-за заполненной очереди пула")
+                .tag("name", name)
+                .register(meterRegistry);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(queueCapacity), threadFactory, (task, pool) -> {
+                    rejectedTasks.increment();
+                    if (!pool.isShutdown()) {
+                        task.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Создает исполнитель, запускающий каждую задачу в новом виртуальном потоке. Виртуальные потоки не
+     * переиспользуются, поэтому одновременное выполнение задач ограничивается семафором на
+     * executors.virtual-threads.max-concurrency разрешений.
+     *
+     * @param name Название пула
+     * @return Исполнитель или null, если JDK не поддерживает виртуальные потоки
+     */
+    private ExecutorService createVirtualThreadExecutor(String name) {
+        ThreadFactory virtualThreadFactory = createVirtualThreadFactory(name);
+        if (virtualThreadFactory == null) {
+            return null;
+        }
+        Semaphore permits = new Semaphore(virtualThreadsMaxConcurrency, true);
+        ThreadFactory threadFactory = runnable -> virtualThreadFactory.newThread(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                runnable.run();
+            } finally {
+                permits.release();
+            }
+        });
+        try {
+            Method newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor",
+                    ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            log.warn("JDK {} не поддерживает виртуальные потоки, пул {} использует обычные потоки",
+                    Runtime.version(), name);
+            return null;
+        }
+    }
+
+    /**
+     * Создает фабрику виртуальных потоков. Виртуальные потоки доступны начиная с JDK 21, а приложение собирается для
+     * более ранней версии, поэтому фабрика создается через reflection.
+     *
+     * @param name Название пула
+     * @return Фабрика виртуальных потоков или null, если JDK их не поддерживает
+     */
+    private ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.warn("JDK {} не поддерживает виртуальные потоки, пул {} использует обычные потоки",
+                    Runtime.version(), name);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.ppteam.roombookingapp.config;
+
+import com.ppteam.roombookingapp.controllers.NotificationQueueService;
+import com.ppteam.roombookingapp.controllers.SubscriptionRecord;
+import com.ppteam.roombookingapp.controllers.SubscriptionStoreService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Lazy;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Метрики состояния очереди уведомлений и хранилища подписок. Значения считываются из сервисов при каждом запросе
+ * метрик, поэтому обработка уведомлений не выполняет дополнительной работы.
+ * <p>
+ * Сервисы внедряются лениво: реестр метрик создается вместе с клиентами Microsoft Graph и привязывает метрики сразу, а
+ * сами сервисы через цепочку зависимостей требуют те же клиенты.
+ */
+@Configuration
+public class MetricsConfig {
+
+    @Bean
+    public MeterBinder notificationQueueMetrics(@Lazy NotificationQueueService notificationQueueService) {
+        return registry -> {
+            Gauge.builder("roombooking.notifications.queue.depth", notificationQueueService,
+                            NotificationQueueService::getQueueDepth)
+                    .description("Уведомления в очереди обработки")
+                    .register(registry);
+            Gauge.builder("roombooking.notifications.queue.lag", notificationQueueService,
+                            NotificationQueueService::getProcessingLagMillis)
+                    .description("Время ожидания последнего обработанного уведомления в очереди")
+                    .baseUnit("milliseconds")
+                    .register(registry);
+            FunctionCounter.builder("roombooking.notifications.dropped", notificationQueueService,
+                            NotificationQueueService::getDroppedNotifications)
+                    .description("Уведомления, отброшенные из-за переполнения очереди")
+                    .register(registry);
+            FunctionCounter.builder("roombooking.notifications.rejected", notificationQueueService,
+                            NotificationQueueService::getRejectedNotifications)
+                    .description("Уведомления, отклоненные из-за переполнения очереди")
+                    .register(registry);
+        };
+    }
+
+    @Bean
+    public MeterBinder subscriptionMetrics(@Lazy SubscriptionStoreService subscriptionStoreService) {
+        return registry -> {
+            Gauge.builder("roombooking.subscriptions.active", subscriptionStoreService,
+                            SubscriptionStoreService::getSubscriptionCount)
+                    .description("Подписки данного узла")
+                    .register(registry);
+            Gauge.builder("roombooking.subscriptions.earliest.expiry", subscriptionStoreService,
+                            MetricsConfig::getSecondsToEarliestExpiry)
+                    .description("Время до окончания срока действия ближайшей к истечению подписки")
+                    .baseUnit("seconds")
+                    .register(registry);
+        };
+    }
+
+    private static double getSecondsToEarliestExpiry(SubscriptionStoreService subscriptionStoreService) {
+        SubscriptionRecord subscription = subscriptionStoreService.getEarliestExpiringSubscription();
+        if (subscription == null) {
+            return Double.NaN;
+        }
+        return Duration.between(OffsetDateTime.now(ZoneOffset.UTC), subscription.expirationDateTime).getSeconds();
+    }
+}
@@ -1,23 +1,103 @@
 package com.ppteam.roombookingapp.config;
 
+import com.corundumstudio.socketio.SocketConfig;
 import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.Transport;
+import com.corundumstudio.socketio.store.StoreFactory;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+/**
+ * Настройки socket сервера. Кроме адреса задаются количество потоков Netty, транспорт (NIO или native epoll на Linux),
+ * распределитель буферов, параметры TCP, сжатие и интервалы ping. Значения по умолчанию рассчитаны на десятки
+ * клиентов, а профиль high-connections (application-high-connections.properties) - на тысячи экранов переговорных.
+ */
 @Configuration
 public class SocketIOConfig {
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
     @Value("${socket-server.host}")
     private String host;
     @Value("${socket-server.port}")
     private int port;
+    @Value("${socket-server.boss-threads}")
+    private int bossThreads;
+    @Value("${socket-server.worker-threads}")
+    private int workerThreads;
+    @Value("${socket-server.native-epoll}")
+    private boolean nativeEpoll;
+    @Value("${socket-server.pooled-allocator}")
+    private boolean pooledAllocator;
+    @Value("${socket-server.prefer-direct-buffer}")
+    private boolean preferDirectBuffer;
+    @Value("${socket-server.tcp-no-delay}")
+    private boolean tcpNoDelay;
+    @Value("${socket-server.tcp-keep-alive}")
+    private boolean tcpKeepAlive;
+    @Value("${socket-server.accept-backlog}")
+    private int acceptBacklog;
+    @Value("${socket-server.write-buffer-low-water-mark}")
+    private int writeBufferLowWaterMark;
+    @Value("${socket-server.write-buffer-high-water-mark}")
+    private int writeBufferHighWaterMark;
+    @Value("${socket-server.websocket-compression}")
+    private boolean websocketCompression;
+    @Value("${socket-server.http-compression}")
+    private boolean httpCompression;
+    @Value("${socket-server.ping-interval-ms}")
+    private int pingIntervalInMillis;
+    @Value("${socket-server.ping-timeout-ms}")
+    private int pingTimeoutInMillis;
+    @Value("${socket-server.max-frame-payload-length}")
+    private int maxFramePayloadLength;
+    @Value("${socket-server.transports}")
+    private Transport[] transports;
 
     @Bean
-    public SocketIOServer socketIOServer() {
+    public SocketIOServer socketIOServer(StoreFactory storeFactory) {
         com.corundumstudio.socketio.Configuration config = new com.corundumstudio.socketio.Configuration();
         config.setHostname(host);
         config.setPort(port);
-        return new SocketIOServer(config);
+        config.setStoreFactory(storeFactory);
+        config.setBossThreads(bossThreads);
+        config.setWorkerThreads(workerThreads);
+        config.setUseLinuxNativeEpoll(nativeEpoll && isEpollAvailable());
+        config.setPreferDirectBuffer(preferDirectBuffer);
+        config.setWebsocketCompression(websocketCompression);
+        config.setHttpCompression(httpCompression);
+        config.setPingInterval(pingIntervalInMillis);
+        config.setPingTimeout(pingTimeoutInMillis);
+        config.setMaxFramePayloadLength(maxFramePayloadLength);
+        config.setTransports(transports);
+        SocketConfig socketConfig = new SocketConfig();
+        socketConfig.setTcpNoDelay(tcpNoDelay);
+        socketConfig.setTcpKeepAlive(tcpKeepAlive);
+        socketConfig.setAcceptBackLog(acceptBacklog);
+        socketConfig.setReuseAddress(true);
+        config.setSocketConfig(socketConfig);
+        // Общий распределитель Netty используется, чтобы не держать вторую копию арен пула. Прямые или heap буферы
+        // для socket пакетов выбирает сам netty-socketio по setPreferDirectBuffer
+        ByteBufAllocator allocator = pooledAllocator
+                ? PooledByteBufAllocator.DEFAULT
+                : new UnpooledByteBufAllocator(preferDirectBuffer);
+        return new TunedSocketIOServer(config, allocator,
+                new WriteBufferWaterMark(writeBufferLowWaterMark, writeBufferHighWaterMark));
+    }
+
+    private boolean isEpollAvailable() {
+        if (!Epoll.isAvailable()) {
+            log.warn("Native epoll недоступен, socket сервер использует NIO: {}", Epoll.unavailabilityCause().toString());
+            return false;
+        }
+        return true;
     }
 }
@@ -0,0 +1,36 @@
+package com.ppteam.roombookingapp.config;
+
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.WriteBufferWaterMark;
+
+/**
+ * Socket сервер с настройками Netty, которые не задаются через {@link Configuration}: распределитель буферов и границы
+ * буфера записи соединений. Границы только переключают {@link io.netty.channel.Channel#isWritable()}: канал, буфер
+ * записи которого превысил верхнюю границу, считается недоступным для записи, пока буфер не опустится ниже нижней
+ * границы. Сама запись при этом не ограничивается, и netty-socketio продолжает ставить socket события медленного
+ * клиента в очередь.
+ */
+public class TunedSocketIOServer extends SocketIOServer {
+
+    private final ByteBufAllocator allocator;
+    private final WriteBufferWaterMark writeBufferWaterMark;
+
+    public TunedSocketIOServer(Configuration configuration, ByteBufAllocator allocator,
+                               WriteBufferWaterMark writeBufferWaterMark) {
+        super(configuration);
+        this.allocator = allocator;
+        this.writeBufferWaterMark = writeBufferWaterMark;
+    }
+
+    @Override
+    protected void applyConnectionOptions(ServerBootstrap bootstrap) {
+        super.applyConnectionOptions(bootstrap);
+        bootstrap.option(ChannelOption.ALLOCATOR, allocator);
+        bootstrap.childOption(ChannelOption.ALLOCATOR, allocator);
+        bootstrap.childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
+    }
+}
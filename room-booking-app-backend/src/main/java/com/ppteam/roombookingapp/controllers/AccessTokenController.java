@@ -1,7 +1,6 @@
 package com.ppteam.roombookingapp.controllers;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
@@ -9,6 +8,9 @@ import org.springframework.web.bind.annotation.CrossOrigin;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 
+import java.io.IOException;
+import java.io.StringReader;
+
 @Controller
 @CrossOrigin(origins = "http://localhost:4200")
 public class AccessTokenController {
@@ -20,14 +22,40 @@ public class AccessTokenController {
      * Сохраняет переданный токен доступа для дальнейшего использования.
      *
      * @param request ID пользователя и его токен доступа
-     * @return 200 OK ответ сервера
+     * @return 200 OK ответ сервера или 400 Bad Request, если в запросе нет ID пользователя или токена доступа или ID
+     * пользователя указан неверно
      */
     @PostMapping("/token")
     public ResponseEntity<String> saveToken(@RequestBody String request) {
-        JsonObject requestJson = JsonParser.parseString(request).getAsJsonObject();
-        String userId = requestJson.get("userId").getAsString().substring(19, 36)
-                        .replace("-", "");
-        String accessToken = requestJson.get("accessToken").getAsString();
+        String accountId = null;
+        String accessToken = null;
+        try (JsonReader reader = new JsonReader(new StringReader(request))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "userId":
+                        accountId = reader.nextString();
+                        break;
+                    case "accessToken":
+                        accessToken = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+        } catch (IOException | IllegalStateException e) {
+            return ResponseEntity.badRequest().body("");
+        }
+        if (accountId == null || accessToken == null) {
+            return ResponseEntity.badRequest().body("");
+        }
+        String userId;
+        try {
+            userId = AccessTokenStoreService.getUserIdFromAccountId(accountId);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("");
+        }
         accessTokenStoreService.setAccessTokenByUserId(userId, accessToken);
         return ResponseEntity.ok().body("");
     }
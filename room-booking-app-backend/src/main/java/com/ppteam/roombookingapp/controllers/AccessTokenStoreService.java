@@ -1,43 +1,306 @@
 package com.ppteam.roombookingapp.controllers;
 
+import com.corundumstudio.socketio.store.StoreFactory;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
-import java.util.HashMap;
-import java.util.Map;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
 
+/**
+ * Хранилище токенов доступа пользователей. Токены хранятся в общем хранилище socket сервера, а каждый узел держит
+ * ограниченный кэш последних использованных токенов вместе со сроком их действия, который читается из поля exp токена
+ * один раз при сохранении. Истекшие токены не возвращаются и периодически удаляются, а при переполнении кэша из него
+ * вытесняются токены, которые дольше всего не использовались. Вытесненные токены остаются в общем хранилище и журнале и
+ * снова попадают в кэш при следующем обращении.
+ */
 @Service
 public class AccessTokenStoreService {
-    private final Map<String, String> accessTokenByUser = new HashMap<>();
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     /**
-     * Возвращает токен доступа для указанного ID пользователя.
+     * Запас времени до окончания срока действия токена, после которого токен уже не используется для запросов.
+     */
+    static final long expirySkewInMillis = 30_000;
+
+    private static final Pattern accountIdPattern = Pattern.compile(
+            "[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}(\\..+)?");
+
+    private Map<String, String> accessTokenByUser = new ConcurrentHashMap<>();
+    private final Map<String, CachedToken> cachedTokenByUser = new LinkedHashMap<>(16, 0.75f, true);
+    private final List<Consumer<String>> removalListeners = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    private StoreFactory storeFactory;
+    @Value("${persistence.enabled}")
+    private boolean persistenceEnabled;
+    @Value("${persistence.store-tokens}")
+    private boolean storeTokens;
+    @Value("${persistence.directory}")
+    private String persistenceDirectory;
+    @Value("${persistence.compaction-threshold}")
+    private int compactionThreshold;
+    @Value("${tokens.max-size}")
+    private int maxTokens;
+    @Value("${tokens.opaque-lifetime-minutes}")
+    private long opaqueTokenLifetimeInMinutes;
+    private AppendOnlyJournal journal;
+
+    /**
+     * Размещает токены доступа в общем хранилище socket сервера, чтобы токен, переданный на любой узел кластера, был
+     * доступен всем узлам. Загружает токены доступа из журнала, если включено сохранение токенов, чтобы после
+     * перезапуска приложения подписки можно было продлевать до повторного подключения пользователей. Токены из журнала
+     * не заменяют токены, уже сохраненные в общем хранилище другими узлами кластера, так как те новее.
+     */
+    @PostConstruct
+    private void init() throws IOException {
+        accessTokenByUser = storeFactory.createMap("access-tokens");
+        if (persistenceEnabled && storeTokens) {
+            journal = new AppendOnlyJournal(Path.of(persistenceDirectory, "tokens.journal"), compactionThreshold);
+            journal.load().forEach(accessTokenByUser::putIfAbsent);
+            evictExpiredTokens();
+        }
+    }
+
+    @PreDestroy
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+
+    /**
+     * Возвращает действующий токен доступа для указанного ID пользователя. Токены, срок действия которых истек или
+     * скоро истечет, не возвращаются.
      *
      * @param userId ID пользователя
-     * @return Токен доступа
+     * @return Токен доступа или null, если для пользователя нет действующего токена
      */
     public String getAccessTokenByUserId(String userId) {
-        return this.accessTokenByUser.get(userId);
+        long now = System.currentTimeMillis();
+        CachedToken cachedToken;
+        synchronized (cachedTokenByUser) {
+            cachedToken = cachedTokenByUser.get(userId);
+        }
+        if (cachedToken != null && cachedToken.isValid(now)) {
+            return cachedToken.accessToken;
+        }
+        String sharedToken = accessTokenByUser.get(userId);
+        if (sharedToken == null) {
+            return null;
+        }
+        CachedToken token = cachedToken != null && cachedToken.accessToken.equals(sharedToken)
+                ? cachedToken
+                : new CachedToken(sharedToken, getExpirationInMillis(sharedToken, now));
+        if (!token.isValid(now)) {
+            removeToken(userId, sharedToken);
+            return null;
+        }
+        cacheToken(userId, token);
+        return sharedToken;
     }
 
     /**
-     * Сохраняет токен доступа для указанного ID пользователя.
+     * Сохраняет токен доступа для указанного ID пользователя. Истекший токен не сохраняется.
      *
      * @param userId ID пользователя
      * @param accessToken Токен доступа
      */
     public void setAccessTokenByUserId(String userId, String accessToken) {
-        this.accessTokenByUser.put(userId, accessToken);
+        long now = System.currentTimeMillis();
+        CachedToken token = new CachedToken(accessToken, getExpirationInMillis(accessToken, now));
+        if (!token.isValid(now)) {
+            log.warn("Токен доступа пользователя {} не сохранен, так как срок его действия истек", userId);
+            return;
+        }
+        cacheToken(userId, token);
+        this.accessTokenByUser.compute(userId, (id, currentToken) -> {
+            if (journal != null && !accessToken.equals(currentToken)) {
+                journal.put(id, accessToken);
+            }
+            return accessToken;
+        });
     }
 
     /**
-     * Возвращает true, если для данного ID пользователя имеется токен доступа, иначе false.
+     * Возвращает true, если для данного ID пользователя имеется действующий токен доступа, иначе false.
      *
      * @param userId ID пользователя
-     * @return true, если для данного ID пользователя имеется токен доступа, иначе false
+     * @return true, если для данного ID пользователя имеется действующий токен доступа, иначе false
      */
     public boolean hasAccessTokenForUserId(String userId) {
-        return accessTokenByUser.containsKey(userId);
+        return getAccessTokenByUserId(userId) != null;
     }
 
+    /**
+     * Удаляет истекшие токены доступа из кэша, общего хранилища и журнала. Срок действия токенов, которых нет в кэше
+     * данного узла, например сохраненных другими узлами кластера, определяется по самому токену.
+     */
+    @Scheduled(fixedDelayString = "${tokens.cleanup-interval-ms}")
+    public void evictExpiredTokens() {
+        long now = System.currentTimeMillis();
+        Map<String, CachedToken> cachedTokens;
+        synchronized (cachedTokenByUser) {
+            cachedTokens = new HashMap<>(cachedTokenByUser);
+        }
+        int evictedTokens = 0;
+        for (Map.Entry<String, String> entry : accessTokenByUser.entrySet()) {
+            CachedToken cachedToken = cachedTokens.get(entry.getKey());
+            long expiresAtInMillis = cachedToken != null && cachedToken.accessToken.equals(entry.getValue())
+                    ? cachedToken.expiresAtInMillis
+                    : getExpirationInMillis(entry.getValue(), now);
+            if (expiresAtInMillis - expirySkewInMillis <= now) {
+                removeToken(entry.getKey(), entry.getValue());
+                evictedTokens++;
+            }
+        }
+        synchronized (cachedTokenByUser) {
+            cachedTokenByUser.values().removeIf(token -> !token.isValid(now));
+        }
+        if (evictedTokens > 0) {
+            log.info("Удалено истекших токенов доступа: {}", evictedTokens);
+        }
+    }
+
+    /**
+     * Добавляет обработчик удаления токена доступа пользователя из общего хранилища, например из-за истечения срока
+     * действия.
+     *
+     * @param listener Обработчик, получающий ID пользователя, токен которого удален
+     */
+    public void addRemovalListener(Consumer<String> listener) {
+        removalListeners.add(listener);
+    }
+
+    /**
+     * Возвращает ID пользователя Outlook по ID учетной записи Microsoft, переданному клиентом.
+     *
+     * @param accountId ID учетной записи Microsoft: GUID, за которым может следовать точка и ID клиента
+     * @return ID пользователя Outlook
+     * @throws IllegalArgumentException если ID учетной записи не начинается с GUID
+     */
+    public static String getUserIdFromAccountId(String accountId) {
+        if (accountId == null || !accountIdPattern.matcher(accountId).matches()) {
+            throw new IllegalArgumentException("Неверный ID учетной записи: " + accountId);
+        }
+        return accountId.substring(19, 36).replace("-", "");
+    }
+
+    /**
+     * Возвращает срок действия токена доступа из поля exp токена в формате JWT. Токены личных учетных записей Microsoft
+     * не являются JWT, поэтому для них срок действия отсчитывается от момента сохранения.
+     *
+     * @param accessToken Токен доступа
+     * @param now Текущее время в миллисекундах
+     * @return Время окончания срока действия токена в миллисекундах
+     */
+    private long getExpirationInMillis(String accessToken, long now) {
+        long expiresAtInMillis = getJwtExpirationInMillis(accessToken);
+        return expiresAtInMillis >= 0
+                ? expiresAtInMillis
+                : now + TimeUnit.MINUTES.toMillis(opaqueTokenLifetimeInMinutes);
+    }
+
+    /**
+     * Читает поле exp из полезной нагрузки токена в формате JWT.
+     *
+     * @param accessToken Токен доступа
+     * @return Время окончания срока действия токена в миллисекундах или -1, если токен не является JWT или не содержит
+     * поле exp
+     */
+    static long getJwtExpirationInMillis(String accessToken) {
+        int payloadStart = accessToken.indexOf('.') + 1;
+        int payloadEnd = accessToken.indexOf('.', payloadStart);
+        if (payloadStart == 0 || payloadEnd < 0) {
+            return -1;
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(accessToken.substring(payloadStart, payloadEnd));
+            try (JsonReader reader = new JsonReader(new StringReader(new String(payload, StandardCharsets.UTF_8)))) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("exp") && reader.peek() == JsonToken.NUMBER) {
+                        return TimeUnit.SECONDS.toMillis(reader.nextLong());
+                    }
+                    reader.skipValue();
+                }
+            }
+        } catch (IllegalArgumentException | IllegalStateException | IOException e) {
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Добавляет токен в кэш и вытесняет из кэша токены, которые дольше всего не использовались, если кэш переполнен.
+     * Вытесненные токены не удаляются из общего хранилища и журнала: их по-прежнему используют другие узлы кластера, а
+     * удаляются они только по истечении срока действия.
+     */
+    private void cacheToken(String userId, CachedToken token) {
+        synchronized (cachedTokenByUser) {
+            cachedTokenByUser.put(userId, token);
+            Iterator<CachedToken> iterator = cachedTokenByUser.values().iterator();
+            while (cachedTokenByUser.size() > maxTokens && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Удаляет токен пользователя, если он не был заменен новым токеном.
+     */
+    private void removeToken(String userId, String accessToken) {
+        synchronized (cachedTokenByUser) {
+            CachedToken cachedToken = cachedTokenByUser.get(userId);
+            if (cachedToken != null && cachedToken.accessToken.equals(accessToken)) {
+                cachedTokenByUser.remove(userId);
+            }
+        }
+        accessTokenByUser.computeIfPresent(userId, (id, currentToken) -> {
+            if (!currentToken.equals(accessToken)) {
+                return currentToken;
+            }
+            if (journal != null) {
+                journal.remove(id);
+            }
+            return null;
+        });
+        if (!accessTokenByUser.containsKey(userId)) {
+            removalListeners.forEach(listener -> listener.accept(userId));
+        }
+    }
+
+    private static class CachedToken {
+
+        private final String accessToken;
+        private final long expiresAtInMillis;
+
+        private CachedToken(String accessToken, long expiresAtInMillis) {
+            this.accessToken = accessToken;
+            this.expiresAtInMillis = expiresAtInMillis;
+        }
+
+        private boolean isValid(long now) {
+            return expiresAtInMillis - expirySkewInMillis > now;
+        }
+    }
 }
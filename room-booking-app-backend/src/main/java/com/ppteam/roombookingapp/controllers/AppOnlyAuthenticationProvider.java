@@ -0,0 +1,83 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import com.azure.core.credential.TokenRequestContext;
+import com.microsoft.graph.authentication.IAuthenticationProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URL;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Провайдер токена доступа приложения (app-only) для всех запросов к Microsoft Graph. Токен запрашивается у Azure AD
+ * один раз и хранится до тех пор, пока до окончания срока его действия не останется меньше заданного времени, после
+ * чего заранее обновляется. Запросы к Microsoft Graph получают токен из памяти и ждут Azure AD только при первом
+ * запросе и если токен успел истечь.
+ */
+public class AppOnlyAuthenticationProvider implements IAuthenticationProvider {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    static final String graphScope = "https://graph.microsoft.com/.default";
+
+    private final TokenCredential credential;
+    private final Duration refreshBefore;
+    private volatile AccessToken accessToken;
+    private CompletableFuture<AccessToken> pendingRefresh;
+
+    public AppOnlyAuthenticationProvider(TokenCredential credential, Duration refreshBefore) {
+        this.credential = credential;
+        this.refreshBefore = refreshBefore;
+    }
+
+    @Override
+    public CompletableFuture<String> getAuthorizationTokenAsync(URL requestUrl) {
+        AccessToken currentToken = accessToken;
+        if (currentToken != null && !currentToken.isExpired()) {
+            return CompletableFuture.completedFuture(currentToken.getToken());
+        }
+        return refresh().thenApply(AccessToken::getToken);
+    }
+
+    /**
+     * Обновляет токен, если до окончания срока его действия осталось меньше заданного времени.
+     */
+    public void refreshIfExpiring() {
+        AccessToken currentToken = accessToken;
+        if (currentToken == null
+                || currentToken.getExpiresAt().minus(refreshBefore).isBefore(OffsetDateTime.now())) {
+            refresh();
+        }
+    }
+
+    /**
+     * Запрашивает новый токен у Azure AD. Если токен уже запрашивается, то возвращает текущий запрос.
+     *
+     * @return Новый токен
+     */
+    private synchronized CompletableFuture<AccessToken> refresh() {
+        if (pendingRefresh != null) {
+            return pendingRefresh;
+        }
+        CompletableFuture<AccessToken> refresh = new CompletableFuture<>();
+        pendingRefresh = refresh;
+        credential.getToken(new TokenRequestContext().addScopes(graphScope)).toFuture().whenComplete((token, exception) -> {
+            synchronized (this) {
+                pendingRefresh = null;
+            }
+            if (exception != null) {
+                log.warn("Не удалось получить токен доступа приложения", exception);
+                refresh.completeExceptionally(exception);
+                return;
+            }
+            accessToken = token;
+            log.info("Получен токен доступа приложения, действует до {}", token.getExpiresAt());
+            refresh.complete(token);
+        });
+        return refresh;
+    }
+}
@@ -0,0 +1,193 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал пар ключ-значение, в который изменения только дописываются. Каждая запись занимает одну строку и содержит
+ * контрольную сумму, поэтому поврежденные и недописанные при аварийной остановке записи пропускаются при загрузке.
+ * Когда устаревших записей становится больше, чем актуальных, журнал сжимается: актуальное состояние записывается во
+ * временный файл, который атомарно заменяет журнал.
+ * Ключи и значения не должны содержать символов перевода строки, а ключи - символов табуляции.
+ */
+public class AppendOnlyJournal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AppendOnlyJournal.class);
+
+    private static final String putOperation = "P";
+    private static final String removeOperation = "D";
+
+    private final Path path;
+    private final int compactionThreshold;
+    private final Map<String, String> entries = new LinkedHashMap<>();
+    private BufferedWriter writer;
+    private int recordCount;
+
+    /**
+     * Создает журнал в указанном файле.
+     *
+     * @param path Путь к файлу журнала
+     * @param compactionThreshold Минимальное количество устаревших записей, при котором журнал сжимается
+     */
+    public AppendOnlyJournal(Path path, int compactionThreshold) {
+        this.path = path;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Загружает состояние из файла журнала и открывает журнал для записи. Загруженное состояние сразу сжимается, чтобы
+     * отбросить устаревшие и поврежденные записи.
+     *
+     * @return Актуальные пары ключ-значение
+     * @throws IOException если файл журнала не удалось прочитать или записать
+     */
+    public synchronized Map<String, String> load() throws IOException {
+        entries.clear();
+        if (Files.exists(path)) {
+            int skippedRecords = 0;
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!applyRecord(line)) {
+                        skippedRecords++;
+                    }
+                }
+            }
+            if (skippedRecords > 0) {
+                log.warn("Пропущено поврежденных записей журнала {}: {}", path, skippedRecords);
+            }
+        } else if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        compact();
+        return new HashMap<>(entries);
+    }
+
+    /**
+     * Записывает значение для указанного ключа.
+     *
+     * @param key Ключ
+     * @param value Значение
+     */
+    public synchronized void put(String key, String value) {
+        entries.put(key, value);
+        append(putOperation + "\t" + key + "\t" + value);
+    }
+
+    /**
+     * Удаляет значение для указанного ключа.
+     *
+     * @param key Ключ
+     */
+    public synchronized void remove(String key) {
+        if (entries.remove(key) != null) {
+            append(removeOperation + "\t" + key);
+        }
+    }
+
+    /**
+     * Переписывает журнал так, чтобы он содержал только актуальные пары ключ-значение.
+     *
+     * @throws IOException если журнал не удалось записать
+     */
+    public synchronized void compact() throws IOException {
+        closeWriter();
+        Path compactedPath = path.resolveSibling(path.getFileName() + ".compact");
+        try (BufferedWriter compactedWriter = Files.newBufferedWriter(compactedPath, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writeRecord(compactedWriter, putOperation + "\t" + entry.getKey() + "\t" + entry.getValue());
+            }
+        }
+        Files.move(compactedPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        recordCount = entries.size();
+        writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Возвращает количество записей в файле журнала.
+     *
+     * @return Количество записей в файле журнала
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeWriter();
+    }
+
+    private void append(String record) {
+        try {
+            writeRecord(writer, record);
+            writer.flush();
+            recordCount++;
+            if (recordCount - entries.size() >= Math.max(compactionThreshold, entries.size())) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void closeWriter() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    /**
+     * Применяет запись журнала к состоянию.
+     *
+     * @param line Строка журнала
+     * @return true, если запись применена, или false, если запись повреждена
+     */
+    private boolean applyRecord(String line) {
+        int checksumSeparator = line.lastIndexOf('\t');
+        if (checksumSeparator < 0) {
+            return false;
+        }
+        String record = line.substring(0, checksumSeparator);
+        if (!line.substring(checksumSeparator + 1).equals(checksum(record))) {
+            return false;
+        }
+        String[] parts = record.split("\t", 3);
+        if (parts[0].equals(putOperation) && parts.length == 3) {
+            entries.put(parts[1], parts[2]);
+            return true;
+        }
+        if (parts[0].equals(removeOperation) && parts.length == 2) {
+            entries.remove(parts[1]);
+            return true;
+        }
+        return false;
+    }
+
+    private static void writeRecord(BufferedWriter writer, String record) throws IOException {
+        writer.write(record);
+        writer.write('\t');
+        writer.write(checksum(record));
+        writer.write('\n');
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+}
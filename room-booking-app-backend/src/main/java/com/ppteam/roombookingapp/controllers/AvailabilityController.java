@@ -0,0 +1,163 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Запросы занятости переговорных по кэшированным расписаниям без обращения к Microsoft Graph. Пользователь
+ * определяется по токену доступа Microsoft Graph из заголовка Authorization. В ответы включаются только календари из
+ * списка календарей пользователя, расписания которых загружены в кэш сервера.
+ */
+@RestController
+@CrossOrigin(origins = "http://localhost:4200")
+public class AvailabilityController {
+
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private CalendarDirectoryService calendarDirectoryService;
+    @Autowired
+    private CallerIdentityService callerIdentityService;
+
+    /**
+     * Возвращает занятость календарей Outlook в период [start, end).
+     *
+     * @param start Начало периода
+     * @param end Окончание периода
+     * @param calApiIds ID календарей Outlook. Если не указаны, то возвращается занятость всех загруженных календарей
+     *                  пользователя
+     * @param authorization Заголовок Authorization с токеном доступа пользователя
+     * @return 200 OK ответ сервера с занятостью календарей, 400 Bad Request, если окончание периода не позже начала,
+     * 401 Unauthorized, если токен доступа не передан или не принят, или 404 Not Found, если список календарей
+     * пользователя не удалось загрузить
+     */
+    @GetMapping("/availability")
+    public CompletableFuture<ResponseEntity<List<RoomAvailability>>> getAvailability(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime start,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end,
+            @RequestParam(value = "calApiId", required = false) List<String> calApiIds,
+            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        if (!end.isAfter(start)) {
+            return completedStatus(HttpStatus.BAD_REQUEST);
+        }
+        long from = start.toInstant().toEpochMilli();
+        long to = end.toInstant().toEpochMilli();
+        return withCallerSchedules(authorization, calApiIds, schedules -> {
+            List<RoomAvailability> availability = new ArrayList<>();
+            for (ScheduleCacheService.RoomSchedule schedule : schedules) {
+                List<EventIntervalIndex.Interval> busy = schedule.getIntervals().getBusyIntervals(from, to);
+                availability.add(new RoomAvailability(schedule.getCalendarApiId(), busy.isEmpty(), busy));
+            }
+            return availability;
+        });
+    }
+
+    /**
+     * Возвращает календари Outlook, в которых нет событий в период [start, end).
+     *
+     * @param start Начало периода
+     * @param end Окончание периода
+     * @param calApiIds ID календарей Outlook, среди которых выполняется поиск. Если не указаны, то поиск выполняется
+     *                  среди всех загруженных календарей пользователя
+     * @param authorization Заголовок Authorization с токеном доступа пользователя
+     * @return 200 OK ответ сервера с ID свободных календарей, 400 Bad Request, если окончание периода не позже начала,
+     * 401 Unauthorized, если токен доступа не передан или не принят, или 404 Not Found, если список календарей
+     * пользователя не удалось загрузить
+     */
+    @GetMapping("/availability/free")
+    public CompletableFuture<ResponseEntity<List<String>>> findFreeCalendars(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime start,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime end,
+            @RequestParam(value = "calApiId", required = false) List<String> calApiIds,
+            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization) {
+        if (!end.isAfter(start)) {
+            return completedStatus(HttpStatus.BAD_REQUEST);
+        }
+        long from = start.toInstant().toEpochMilli();
+        long to = end.toInstant().toEpochMilli();
+        return withCallerSchedules(authorization, calApiIds, schedules -> {
+            List<String> freeCalendars = new ArrayList<>();
+            for (ScheduleCacheService.RoomSchedule schedule : schedules) {
+                if (!schedule.getIntervals().isBusy(from, to)) {
+                    freeCalendars.add(schedule.getCalendarApiId());
+                }
+            }
+            return freeCalendars;
+        });
+    }
+
+    /**
+     * Определяет пользователя по токену доступа и строит ответ по загруженным расписаниям его календарей.
+     *
+     * @param authorization Заголовок Authorization с токеном доступа пользователя
+     * @param calApiIds Запрошенные ID календарей Outlook или null
+     * @param responseBody Строит тело ответа по расписаниям
+     * @return Ответ сервера
+     */
+    private <T> CompletableFuture<ResponseEntity<T>> withCallerSchedules(
+            String authorization, List<String> calApiIds,
+            Function<List<ScheduleCacheService.RoomSchedule>, T> responseBody) {
+        return callerIdentityService.getCallerId(authorization).thenCompose(userId -> {
+            if (userId == null) {
+                return completedStatus(HttpStatus.UNAUTHORIZED);
+            }
+            return calendarDirectoryService.getDirectory(userId).thenApply(directory -> {
+                if (directory == null) {
+                    return ResponseEntity.notFound().build();
+                }
+                return ResponseEntity.ok(responseBody.apply(getSchedules(directory, calApiIds)));
+            });
+        });
+    }
+
+    private List<ScheduleCacheService.RoomSchedule> getSchedules(CalendarDirectoryService.CalendarDirectory directory,
+                                                                 List<String> calApiIds) {
+        List<ScheduleCacheService.RoomSchedule> schedules = new ArrayList<>();
+        if (calApiIds == null || calApiIds.isEmpty()) {
+            for (ScheduleCacheService.RoomSchedule schedule : scheduleCacheService.getCachedSchedules()) {
+                if (directory.contains(schedule.getCalendarApiId())) {
+                    schedules.add(schedule);
+                }
+            }
+            return schedules;
+        }
+        for (String calApiId : calApiIds) {
+            ScheduleCacheService.RoomSchedule schedule = directory.contains(calApiId)
+                    ? scheduleCacheService.getCachedSchedule(calApiId) : null;
+            if (schedule != null) {
+                schedules.add(schedule);
+            }
+        }
+        return schedules;
+    }
+
+    private static <T> CompletableFuture<ResponseEntity<T>> completedStatus(HttpStatus status) {
+        return CompletableFuture.completedFuture(ResponseEntity.status(status).build());
+    }
+
+    /**
+     * Занятость календаря Outlook в запрошенный период.
+     */
+    public static class RoomAvailability {
+
+        public final String calApiId;
+        public final boolean free;
+        public final List<EventIntervalIndex.Interval> busy;
+
+        public RoomAvailability(String calApiId, boolean free, List<EventIntervalIndex.Interval> busy) {
+            this.calApiId = calApiId;
+            this.free = free;
+            this.busy = busy;
+        }
+    }
+}
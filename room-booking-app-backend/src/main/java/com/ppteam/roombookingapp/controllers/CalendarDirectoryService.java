@@ -0,0 +1,362 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.core.CustomRequestBuilder;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graph.options.QueryOption;
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Кэш списков календарей Outlook (переговорных) пользователей. Список календаря пользователя загружается из Microsoft
+ * Graph при первом запросе и затем обновляется в фоне, поэтому повторные запросы, например при одновременном входе
+ * многих пользователей, не обращаются к Microsoft Graph. Списки, которые давно не запрашивались, удаляются из кэша.
+ * <p>
+ * Для каждого календаря из загруженных списков заранее строится путь ресурса подписки, чтобы при создании подписки
+ * не собирать и не разбирать его заново.
+ */
+@Service
+public class CalendarDirectoryService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    static final String resourceDataProperties = "subject,start,end,organizer";
+    private static final String calendarProperties = "id,name,isDefaultCalendar";
+
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    private NotificationEncryptionService notificationEncryptionService;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Value("${calendar-directory.idle-minutes}")
+    private long idleMinutes;
+
+    private final Map<String, CalendarDirectory> directoryByUser = new ConcurrentHashMap<>();
+    private final Map<String, ResourcePath> resourcePathByCalendar = new ConcurrentHashMap<>();
+
+    /**
+     * Возвращает список календарей пользователя, при необходимости загружая его из Microsoft Graph.
+     *
+     * @param userId ID пользователя Outlook
+     * @return Список календарей или null, если список не удалось загрузить
+     */
+    public CompletableFuture<CalendarDirectory> getDirectory(String userId) {
+        CalendarDirectory directory = directoryByUser.computeIfAbsent(userId, CalendarDirectory::new);
+        directory.lastRequestedAtInMillis = System.currentTimeMillis();
+        if (directory.isLoaded()) {
+            return CompletableFuture.completedFuture(directory);
+        }
+        return refresh(directory).thenApply(refreshed -> directory.isLoaded() ? directory : null);
+    }
+
+    /**
+     * Проверяет, есть ли календарь в списке календарей пользователя. Если календаря нет в уже загруженном списке, то
+     * список один раз загружается заново, так как календарь мог быть добавлен после загрузки.
+     *
+     * @param userId ID пользователя Outlook
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если пользователю доступен календарь
+     */
+    public CompletableFuture<Boolean> hasCalendar(String userId, String calendarApiId) {
+        boolean wasLoaded = getCachedDirectory(userId) != null;
+        return getDirectory(userId).thenCompose(directory -> {
+            if (directory == null) {
+                return CompletableFuture.completedFuture(false);
+            }
+            if (directory.contains(calendarApiId) || !wasLoaded) {
+                return CompletableFuture.completedFuture(directory.contains(calendarApiId));
+            }
+            return refresh(directory).handle((result, exception) -> directory.contains(calendarApiId));
+        });
+    }
+
+    /**
+     * Возвращает путь ресурса подписки на события календаря. Для календарей из загруженных списков путь построен
+     * заранее, для остальных строится при первом обращении. Если включено получение данных ресурса, путь ограничивает
+     * свойства событий в уведомлениях.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook, от имени которого создается подписка
+     * @return Путь ресурса подписки
+     */
+    public ResourcePath getSubscriptionResource(String calendarApiId, String userId) {
+        ResourcePath resourcePath = resourcePathByCalendar.get(calendarApiId);
+        if (resourcePath != null && resourcePath.userId.equals(userId)) {
+            return resourcePath;
+        }
+        resourcePath = buildSubscriptionResource(calendarApiId, userId);
+        resourcePathByCalendar.put(calendarApiId, resourcePath);
+        return resourcePath;
+    }
+
+    /**
+     * Обновляет в фоне запрошенные списки календарей и удаляет из кэша списки, которые не запрашивались дольше
+     * calendar-directory.idle-minutes, вместе с заранее построенными путями ресурсов подписок на их календари.
+     */
+    @Scheduled(fixedDelayString = "${calendar-directory.refresh-interval-ms}")
+    public void refreshDirectories() {
+        long idleSince = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(idleMinutes);
+        for (CalendarDirectory directory : directoryByUser.values()) {
+            if (directory.lastRequestedAtInMillis < idleSince) {
+                if (directoryByUser.remove(directory.userId, directory)) {
+                    removeSubscriptionResources(directory);
+                }
+            } else {
+                refresh(directory);
+            }
+        }
+    }
+
+    private void removeSubscriptionResources(CalendarDirectory directory) {
+        List<CalendarEntry> calendars = directory.calendars;
+        if (calendars == null) {
+            return;
+        }
+        for (CalendarEntry calendar : calendars) {
+            resourcePathByCalendar.computeIfPresent(calendar.id,
+                    (id, resourcePath) -> resourcePath.userId.equals(directory.userId) ? null : resourcePath);
+        }
+    }
+
+    /**
+     * Запускает загрузку списка календарей. Если загрузка этого списка уже выполняется, то возвращает ее.
+     *
+     * @param directory Список календарей пользователя
+     * @return Результат загрузки
+     */
+    private CompletableFuture<Void> refresh(CalendarDirectory directory) {
+        synchronized (directory) {
+            if (directory.pendingRefresh != null) {
+                return directory.pendingRefresh;
+            }
+            GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient(directory.userId);
+            if (graphClient == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            String url = graphClient.getServiceRoot() + "/users/" + directory.userId + "/calendars";
+            List<Option> options = new ArrayList<>();
+            options.add(new QueryOption("$select", calendarProperties));
+            directory.pendingRefresh = fetchPage(graphClient, directory, url, options, new ArrayList<>())
+                    .whenComplete((result, exception) -> {
+                        synchronized (directory) {
+                            directory.pendingRefresh = null;
+                        }
+                        if (exception != null) {
+                            log.warn("Не удалось загрузить список календарей пользователя {}", directory.userId, exception);
+                        }
+                    });
+            return directory.pendingRefresh;
+        }
+    }
+
+    /**
+     * Загружает страницу списка календарей и все следующие за ней страницы, после чего применяет полученный список.
+     */
+    private CompletableFuture<Void> fetchPage(GraphServiceClient<Request> graphClient, CalendarDirectory directory,
+                                              String url, List<Option> options, List<JsonObject> calendars) {
+        return graphRequestScheduler.submit(directory.userId, GraphRequestPriority.SYNC,
+                        () -> new CustomRequestBuilder<>(url, graphClient, options, JsonObject.class).buildRequest().getAsync())
+                .thenComposeAsync(page -> {
+                    for (JsonElement item : page.getAsJsonArray("value")) {
+                        calendars.add(item.getAsJsonObject());
+                    }
+                    if (page.has("@odata.nextLink")) {
+                        return fetchPage(graphClient, directory, page.get("@odata.nextLink").getAsString(),
+                                new ArrayList<>(), calendars);
+                    }
+                    applyCalendars(directory.userId, calendars);
+                    return CompletableFuture.completedFuture(null);
+                }, graphCallbackExecutor);
+    }
+
+    /**
+     * Применяет загруженный список календарей пользователя. Версия и время изменения списка меняются, только если
+     * список отличается от предыдущего.
+     *
+     * @param userId ID пользователя Outlook
+     * @param items Календари из ответа Microsoft Graph
+     */
+    void applyCalendars(String userId, List<JsonObject> items) {
+        List<CalendarEntry> calendars = new ArrayList<>(items.size());
+        for (JsonObject item : items) {
+            CalendarEntry calendar = new CalendarEntry(item.get("id").getAsString(),
+                    item.has("name") && !item.get("name").isJsonNull() ? item.get("name").getAsString() : null,
+                    item.has("isDefaultCalendar") && item.get("isDefaultCalendar").getAsBoolean());
+            calendars.add(calendar);
+            getSubscriptionResource(calendar.id, userId);
+        }
+        CalendarDirectory directory = directoryByUser.computeIfAbsent(userId, CalendarDirectory::new);
+        if (!calendars.equals(directory.calendars)) {
+            // Время изменения передается в заголовке Last-Modified с точностью до секунды, поэтому оно округляется и
+            // всегда увеличивается хотя бы на секунду, чтобы клиент с If-Modified-Since получил новый список
+            long lastModifiedInMillis = TimeUnit.SECONDS.toMillis(
+                    TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+            directory.lastModifiedInMillis = Math.max(lastModifiedInMillis, directory.lastModifiedInMillis + 1000);
+            directory.calendars = Collections.unmodifiableList(calendars);
+            directory.version = hash(calendars);
+        }
+        log.debug("Список календарей пользователя {} обновлен, календарей: {}", userId, calendars.size());
+    }
+
+    /**
+     * Вычисляет версию списка календарей по его содержимому, чтобы версия одного и того же списка совпадала на всех
+     * узлах кластера и после перезапуска приложения.
+     */
+    private static String hash(List<CalendarEntry> calendars) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (CalendarEntry calendar : calendars) {
+                digest.update((calendar.id + '\0' + calendar.name + '\0' + calendar.isDefaultCalendar + '\n')
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Возвращает загруженный список календарей пользователя без обращения к Microsoft Graph.
+     *
+     * @param userId ID пользователя Outlook
+     * @return Список календарей или null, если список еще не загружен
+     */
+    CalendarDirectory getCachedDirectory(String userId) {
+        CalendarDirectory directory = directoryByUser.get(userId);
+        return directory != null && directory.isLoaded() ? directory : null;
+    }
+
+    private ResourcePath buildSubscriptionResource(String calendarApiId, String userId) {
+        String resource = "Users/" + userId + "/calendars/" + calendarApiId + "/events";
+        if (notificationEncryptionService.isEnabled()) {
+            resource += "?$select=" + resourceDataProperties;
+        }
+        return ResourcePath.parse(resource);
+    }
+
+    /**
+     * Кэшированный список календарей пользователя.
+     */
+    public static class CalendarDirectory {
+
+        private final String userId;
+        private volatile List<CalendarEntry> calendars;
+        private volatile String version;
+        private volatile long lastModifiedInMillis;
+        private volatile long lastRequestedAtInMillis;
+        private CompletableFuture<Void> pendingRefresh;
+
+        private CalendarDirectory(String userId) {
+            this.userId = userId;
+        }
+
+        private boolean isLoaded() {
+            return calendars != null;
+        }
+
+        /**
+         * Проверяет, есть ли календарь в списке.
+         *
+         * @param calendarApiId ID календаря Outlook
+         * @return true, если календарь есть в списке
+         */
+        public boolean contains(String calendarApiId) {
+            List<CalendarEntry> currentCalendars = calendars;
+            if (currentCalendars == null) {
+                return false;
+            }
+            for (CalendarEntry calendar : currentCalendars) {
+                if (calendar.id.equals(calendarApiId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Возвращает календари пользователя.
+         *
+         * @return Календари пользователя
+         */
+        public List<CalendarEntry> getCalendars() {
+            return calendars;
+        }
+
+        /**
+         * Возвращает версию списка, которая меняется при каждом изменении списка и совпадает для одинаковых списков.
+         *
+         * @return Версия списка
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Возвращает время последнего изменения списка в миллисекундах, округленное до секунды.
+         *
+         * @return Время последнего изменения списка
+         */
+        public long getLastModifiedInMillis() {
+            return lastModifiedInMillis;
+        }
+    }
+
+    /**
+     * Календарь Outlook из списка календарей пользователя.
+     */
+    public static class CalendarEntry {
+
+        public final String id;
+        public final String name;
+        public final boolean isDefaultCalendar;
+
+        public CalendarEntry(String id, String name, boolean isDefaultCalendar) {
+            this.id = id;
+            this.name = name;
+            this.isDefaultCalendar = isDefaultCalendar;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            CalendarEntry that = (CalendarEntry) o;
+            return isDefaultCalendar == that.isDefaultCalendar && id.equals(that.id) && Objects.equals(name, that.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, isDefaultCalendar);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Определяет пользователя, выполняющего HTTP запрос, по токену доступа Microsoft Graph из заголовка Authorization.
+ * Токен проверяется запросом /me к Microsoft Graph с этим же токеном, поэтому ID пользователя нельзя подставить.
+ * Результат проверки кэшируется по хешу токена на caller-identity.cache-minutes, но не дольше срока действия токена, а
+ * при переполнении кэша удаляются проверки, которые дольше всего не использовались.
+ * <p>
+ * Проверенный токен сохраняется в {@link AccessTokenStoreService}, как если бы клиент передал его в /token.
+ */
+@Service
+public class CallerIdentityService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private static final String bearerPrefix = "Bearer ";
+
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private AccessTokenStoreService accessTokenStoreService;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Value("${caller-identity.cache-minutes}")
+    private long cacheMinutes;
+    @Value("${caller-identity.max-entries}")
+    private int maxEntries;
+
+    private final Map<String, CallerIdentity> identityByTokenHash = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Возвращает ID пользователя Outlook, которому принадлежит токен доступа из заголовка Authorization.
+     *
+     * @param authorization Значение заголовка Authorization или null
+     * @return ID пользователя Outlook или null, если заголовка нет или токен не принят Microsoft Graph
+     */
+    public CompletableFuture<String> getCallerId(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, bearerPrefix, 0, bearerPrefix.length())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return getCallerIdByToken(authorization.substring(bearerPrefix.length()).trim());
+    }
+
+    /**
+     * Возвращает ID пользователя Outlook, которому принадлежит токен доступа, например переданный socket клиентом при
+     * подключении.
+     *
+     * @param accessToken Токен доступа или null
+     * @return ID пользователя Outlook или null, если токена нет или токен не принят Microsoft Graph
+     */
+    public CompletableFuture<String> getCallerIdByToken(String accessToken) {
+        if (accessToken == null || accessToken.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        String tokenHash = hash(accessToken);
+        long now = System.currentTimeMillis();
+        CallerIdentity identity;
+        synchronized (identityByTokenHash) {
+            identity = identityByTokenHash.get(tokenHash);
+            if (identity == null || identity.expiresAtInMillis <= now) {
+                identity = new CallerIdentity(getExpirationInMillis(accessToken, now));
+                identityByTokenHash.put(tokenHash, identity);
+                Iterator<CallerIdentity> iterator = identityByTokenHash.values().iterator();
+                while (identityByTokenHash.size() > maxEntries && iterator.hasNext()) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            } else {
+                return identity.userId;
+            }
+        }
+        CallerIdentity verifiedIdentity = identity;
+        verifyToken(accessToken).whenCompleteAsync((userId, exception) -> {
+            if (exception != null || userId == null) {
+                log.warn("Токен доступа из запроса не принят Microsoft Graph", exception);
+                synchronized (identityByTokenHash) {
+                    identityByTokenHash.remove(tokenHash, verifiedIdentity);
+                }
+                verifiedIdentity.userId.complete(null);
+                return;
+            }
+            accessTokenStoreService.setAccessTokenByUserId(userId, accessToken);
+            verifiedIdentity.userId.complete(userId);
+        }, graphCallbackExecutor);
+        return verifiedIdentity.userId;
+    }
+
+    /**
+     * Запрашивает у Microsoft Graph ID пользователя, которому принадлежит токен доступа. Запрос выполняется через
+     * {@link GraphRequestScheduler} с приоритетом {@link GraphRequestPriority#INTERACTIVE} в очереди токена, так как
+     * владелец токена еще не известен.
+     *
+     * @param accessToken Токен доступа
+     * @return ID пользователя Outlook
+     */
+    CompletableFuture<String> verifyToken(String accessToken) {
+        String queueKey = "token:" + hash(accessToken);
+        GraphServiceClient<Request> graphClient = graphClientHelper.createGraphClient(accessToken, queueKey);
+        return graphRequestScheduler.submit(queueKey, GraphRequestPriority.INTERACTIVE,
+                () -> graphClient.me().buildRequest().select("id").getAsync())
+                .thenApply(user -> user.id);
+    }
+
+    private long getExpirationInMillis(String accessToken, long now) {
+        long expiresAtInMillis = now + TimeUnit.MINUTES.toMillis(cacheMinutes);
+        long tokenExpiresAtInMillis = AccessTokenStoreService.getJwtExpirationInMillis(accessToken);
+        return tokenExpiresAtInMillis >= 0 ? Math.min(expiresAtInMillis, tokenExpiresAtInMillis) : expiresAtInMillis;
+    }
+
+    private static String hash(String accessToken) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(accessToken.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class CallerIdentity {
+
+        private final long expiresAtInMillis;
+        private final CompletableFuture<String> userId = new CompletableFuture<>();
+
+        private CallerIdentity(long expiresAtInMillis) {
+            this.expiresAtInMillis = expiresAtInMillis;
+        }
+    }
+}
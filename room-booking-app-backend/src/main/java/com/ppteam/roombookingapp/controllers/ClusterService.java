@@ -0,0 +1,290 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.protocol.Packet;
+import com.corundumstudio.socketio.protocol.PacketType;
+import com.corundumstudio.socketio.store.StoreFactory;
+import com.corundumstudio.socketio.store.pubsub.DispatchMessage;
+import com.corundumstudio.socketio.store.pubsub.PubSubListener;
+import com.corundumstudio.socketio.store.pubsub.PubSubType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Координирует узлы кластера через общее хранилище socket сервера. Узлы регулярно отмечаются в общем хранилище, а
+ * календари распределяются между живыми узлами консистентным хешированием ID календаря. Только узел-владелец календаря
+ * создает, продлевает и удаляет его подписку, поэтому каждая подписка продлевается ровно одним узлом кластера.
+ * Узлы также публикуют календари, которые просматривают их клиенты, чтобы владелец знал, какие подписки нужны, а
+ * уведомления о жизненном цикле подписок, полученные не владельцем календаря, пересылают владельцу.
+ */
+@Service
+public class ClusterService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private static final String keySeparator = "|";
+    /**
+     * Служебная комната без клиентов, через которую узлы пересылают уведомления о жизненном цикле подписок.
+     */
+    private static final String lifecycleRoom = "cluster-lifecycle";
+
+    @Autowired
+    private SubscriptionStoreService subscriptionStoreService;
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private RoomBroadcastService roomBroadcastService;
+    @Autowired
+    private RoomMembershipService roomMembershipService;
+    @Autowired
+    private EventFingerprintService eventFingerprintService;
+    @Autowired
+    @Qualifier("storeUpdateExecutor")
+    private KeyedExecutor storeUpdateExecutor;
+    @Value("${cluster.node-id}")
+    private String nodeId;
+    @Value("${cluster.node-timeout-ms}")
+    private long nodeTimeoutInMillis;
+    @Value("${cluster.virtual-nodes}")
+    private int virtualNodes;
+    private final StoreFactory storeFactory;
+
+    private final Set<String> publishedLocalWatchers = ConcurrentHashMap.newKeySet();
+    private Map<String, Long> heartbeatByNode;
+    private Map<String, String> watchers;
+    private Map<String, String> sharedSubscriptions;
+    private volatile ConsistentHashRing ring;
+    private volatile Map<String, String> watcherByCalendar = Collections.emptyMap();
+    private volatile BiConsumer<String, String> lifecycleNotificationHandler = (subscriptionId, lifecycleEvent) -> {
+    };
+
+    @Autowired
+    public ClusterService(StoreFactory storeFactory) {
+        this.storeFactory = storeFactory;
+    }
+
+    @PostConstruct
+    private void init() {
+        if (nodeId.isBlank()) {
+            nodeId = UUID.randomUUID().toString();
+        }
+        ring = new ConsistentHashRing(List.of(nodeId), virtualNodes);
+        heartbeatByNode = storeFactory.createMap("cluster-nodes");
+        watchers = storeFactory.createMap("cluster-watchers");
+        sharedSubscriptions = storeFactory.createMap("cluster-subscriptions");
+        subscriptionStoreService.shareSubscriptions(sharedSubscriptions);
+        storeFactory.pubSubStore().subscribe(PubSubType.DISPATCH, new PubSubListener<DispatchMessage>() {
+            @Override
+            public void onMessage(DispatchMessage message) {
+                applyDispatchedEvent(message);
+            }
+        }, DispatchMessage.class);
+        heartbeat();
+        log.info("Узел кластера {} запущен", nodeId);
+    }
+
+    /**
+     * Возвращает true, если календарь принадлежит данному узлу кластера, иначе false.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если данный узел отвечает за подписку календаря, иначе false
+     */
+    public boolean isOwner(String calendarApiId) {
+        return nodeId.equals(ring.getNode(calendarApiId));
+    }
+
+    /**
+     * Задает обработчик уведомлений о жизненном цикле подписок, пересланных данному узлу как владельцу календаря.
+     *
+     * @param handler Обработчик, получающий ID подписки и тип уведомления
+     */
+    public void setLifecycleNotificationHandler(BiConsumer<String, String> handler) {
+        lifecycleNotificationHandler = handler;
+    }
+
+    /**
+     * Пересылает уведомление о жизненном цикле подписки узлам кластера. Уведомление применяет узел, хранящий подписку.
+     *
+     * @param subscriptionId ID подписки
+     * @param lifecycleEvent Тип уведомления о жизненном цикле подписки
+     */
+    public void forwardLifecycleNotification(String subscriptionId, String lifecycleEvent) {
+        Packet packet = new Packet(PacketType.MESSAGE);
+        packet.setSubType(PacketType.EVENT);
+        packet.setName("lifecycle");
+        packet.setData(Arrays.asList(subscriptionId, lifecycleEvent));
+        storeFactory.pubSubStore().publish(PubSubType.DISPATCH, new DispatchMessage(lifecycleRoom, packet, ""));
+    }
+
+    /**
+     * Отмечает, что клиент данного узла просматривает календарь.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook, от имени которого можно создать подписку
+     */
+    public void addLocalWatcher(String calendarApiId, String userId) {
+        publishedLocalWatchers.add(calendarApiId);
+        watchers.put(calendarApiId + keySeparator + nodeId, userId + keySeparator + System.currentTimeMillis());
+    }
+
+    /**
+     * Возвращает true, если календарь просматривает клиент какого-либо узла кластера, иначе false. Календарь, из комнаты
+     * которого недавно вышел последний клиент данного узла, также считается просматриваемым.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если календарь просматривается, иначе false
+     */
+    public boolean isWatched(String calendarApiId) {
+        return roomMembershipService.isWatched(calendarApiId) || watcherByCalendar.containsKey(calendarApiId);
+    }
+
+    /**
+     * Возвращает календари, которые просматривают клиенты узлов кластера, по состоянию на последнюю отметку узла.
+     *
+     * @return ID пользователя Outlook для каждого просматриваемого календаря
+     */
+    public Map<String, String> getWatchedCalendars() {
+        return watcherByCalendar;
+    }
+
+    /**
+     * Отмечает узел в общем хранилище, обновляет кольцо живых узлов и просматриваемые календари, после чего передает
+     * подписки календарей, сменивших владельца.
+     */
+    @Scheduled(fixedDelayString = "${cluster.heartbeat-interval-ms}")
+    public void heartbeat() {
+        long now = System.currentTimeMillis();
+        heartbeatByNode.put(nodeId, now);
+        updateRing(now);
+        publishLocalWatchers(now);
+        collectWatchers(now);
+        rebalanceSubscriptions();
+    }
+
+    private void updateRing(long now) {
+        Set<String> liveNodes = new HashSet<>();
+        for (Map.Entry<String, Long> node : heartbeatByNode.entrySet()) {
+            if (node.getValue() >= now - nodeTimeoutInMillis) {
+                liveNodes.add(node.getKey());
+            } else {
+                heartbeatByNode.remove(node.getKey(), node.getValue());
+            }
+        }
+        liveNodes.add(nodeId);
+        if (!liveNodes.equals(ring.getNodes())) {
+            ring = new ConsistentHashRing(liveNodes, virtualNodes);
+            log.info("Узлы кластера: {}", liveNodes);
+        }
+    }
+
+    private void publishLocalWatchers(long now) {
+        Map<String, String> localWatchers = roomMembershipService.getWatchedCalendars();
+        for (String calendarApiId : publishedLocalWatchers) {
+            if (!localWatchers.containsKey(calendarApiId)) {
+                publishedLocalWatchers.remove(calendarApiId);
+                watchers.remove(calendarApiId + keySeparator + nodeId);
+            }
+        }
+        for (Map.Entry<String, String> watcher : localWatchers.entrySet()) {
+            publishedLocalWatchers.add(watcher.getKey());
+            watchers.put(watcher.getKey() + keySeparator + nodeId, watcher.getValue() + keySeparator + now);
+        }
+    }
+
+    private void collectWatchers(long now) {
+        Map<String, String> currentWatchers = new HashMap<>();
+        for (Map.Entry<String, String> watcher : watchers.entrySet()) {
+            String value = watcher.getValue();
+            int separatorIndex = value.lastIndexOf(keySeparator);
+            if (Long.parseLong(value.substring(separatorIndex + 1)) >= now - nodeTimeoutInMillis) {
+                String key = watcher.getKey();
+                currentWatchers.put(key.substring(0, key.lastIndexOf(keySeparator)), value.substring(0, separatorIndex));
+            } else {
+                watchers.remove(watcher.getKey(), value);
+            }
+        }
+        watcherByCalendar = currentWatchers;
+    }
+
+    /**
+     * Передает другим узлам подписки календарей, которые больше не принадлежат данному узлу, и принимает из общего
+     * хранилища подписки календарей, перешедших к данному узлу. Истекшие подписки удаляются из общего хранилища.
+     */
+    private void rebalanceSubscriptions() {
+        for (SubscriptionRecord subscription : subscriptionStoreService.getAllSubscriptions()) {
+            if (!isOwner(subscription.calendarApiId)) {
+                subscriptionStoreService.releaseSubscription(subscription.subscriptionId);
+                log.info("Подписка {} передана узлу {}", subscription.subscriptionId,
+                        ring.getNode(subscription.calendarApiId));
+            }
+        }
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        for (Map.Entry<String, String> entry : sharedSubscriptions.entrySet()) {
+            SubscriptionRecord subscription = SubscriptionStoreService.decodeRecord(entry.getKey(), entry.getValue());
+            if (!subscription.expirationDateTime.isAfter(now)) {
+                sharedSubscriptions.remove(entry.getKey(), entry.getValue());
+            } else if (isOwner(subscription.calendarApiId)
+                    && !subscriptionStoreService.hasActiveSubscriptionForCalendarId(subscription.calendarApiId)) {
+                subscriptionStoreService.addSubscription(subscription.subscriptionId, subscription.resource,
+                        subscription.expirationDateTime, subscription.userId, subscription.clientState);
+                log.info("Подписка {} принята узлом {}", subscription.subscriptionId, nodeId);
+            }
+        }
+    }
+
+    /**
+     * Применяет к кэшу расписаний изменения событий, разосланные другими узлами кластера, и сохраняет их в буфер
+     * комнаты для повторной отправки переподключившимся клиентам.
+     *
+     * @param message Socket событие, разосланное в комнату другим узлом
+     */
+    private void applyDispatchedEvent(DispatchMessage message) {
+        Packet packet = message.getPacket();
+        List<Object> data = packet.getData();
+        if (data == null || data.isEmpty()) {
+            return;
+        }
+        if (lifecycleRoom.equals(message.getRoom())) {
+            lifecycleNotificationHandler.accept((String) data.get(0), (String) data.get(1));
+            return;
+        }
+        String calendarApiId = message.getRoom();
+        if (!RoomBroadcastService.getCalendarApiId(calendarApiId).equals(calendarApiId)) {
+            // Изменение также разослано в комнату календаря, поэтому копии из комнат дней пропускаются
+            return;
+        }
+        if (data.size() > 2 && data.get(2) instanceof Number) {
+            roomBroadcastService.record(calendarApiId, packet.getName(), data.get(0), ((Number) data.get(2)).longValue());
+        }
+        switch (packet.getName()) {
+            case "add_event":
+            case "update_event":
+                NewEventNotification event = (NewEventNotification) data.get(0);
+                storeUpdateExecutor.execute(calendarApiId, () -> {
+                    eventFingerprintService.update(calendarApiId, event);
+                    scheduleCacheService.putEvent(calendarApiId, event);
+                });
+                break;
+            case "delete_event":
+                String eventId = (String) data.get(0);
+                storeUpdateExecutor.execute(calendarApiId, () -> {
+                    eventFingerprintService.remove(calendarApiId, eventId);
+                    scheduleCacheService.removeEvent(calendarApiId, eventId);
+                });
+                break;
+            default:
+                break;
+        }
+    }
+}
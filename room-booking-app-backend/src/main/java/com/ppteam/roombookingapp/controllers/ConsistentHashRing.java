@@ -0,0 +1,68 @@
+package com.ppteam.roombookingapp.controllers;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Кольцо консистентного хеширования узлов кластера. Каждый узел занимает на кольце несколько виртуальных точек,
+ * поэтому ключи распределяются между узлами равномерно, а при добавлении или удалении узла меняют владельца только
+ * ключи этого узла.
+ */
+public class ConsistentHashRing {
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes;
+
+    /**
+     * Создает кольцо из указанных узлов.
+     *
+     * @param nodes ID узлов кластера
+     * @param virtualNodes Количество виртуальных точек каждого узла на кольце
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * Возвращает узел, которому принадлежит ключ.
+     *
+     * @param key Ключ
+     * @return ID узла или null, если кольцо пустое
+     */
+    public String getNode(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Возвращает узлы кольца.
+     *
+     * @return ID узлов кольца
+     */
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < Long.BYTES; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.ppteam.roombookingapp.controllers;
+
+/**
+ * Итоговое изменение события календаря, полученное объединением уведомлений Microsoft Graph об этом событии.
+ */
+public class EventChange {
+
+    public final String calendarApiId;
+    public final String userId;
+    public final String resource;
+    public final String eventId;
+    public final boolean created;
+    public final boolean deleted;
+    public final int attempt;
+    /**
+     * Состояние события из данных ресурса уведомления или null, если событие нужно запросить у Microsoft Graph.
+     */
+    public final NewEventNotification resourceData;
+    /**
+     * Время получения самого раннего из объединенных уведомлений по {@link System#nanoTime()}.
+     */
+    public final long receivedAtNanos;
+
+    public EventChange(String calendarApiId, String userId, String resource, String eventId, boolean created,
+                       boolean deleted) {
+        this(calendarApiId, userId, resource, eventId, created, deleted, null, System.nanoTime());
+    }
+
+    public EventChange(String calendarApiId, String userId, String resource, String eventId, boolean created,
+                       boolean deleted, NewEventNotification resourceData, long receivedAtNanos) {
+        this(calendarApiId, userId, resource, eventId, created, deleted, 1, resourceData, receivedAtNanos);
+    }
+
+    private EventChange(String calendarApiId, String userId, String resource, String eventId, boolean created,
+                        boolean deleted, int attempt, NewEventNotification resourceData, long receivedAtNanos) {
+        this.calendarApiId = calendarApiId;
+        this.userId = userId;
+        this.resource = resource;
+        this.eventId = eventId;
+        this.created = created;
+        this.deleted = deleted;
+        this.attempt = attempt;
+        this.resourceData = resourceData;
+        this.receivedAtNanos = receivedAtNanos;
+    }
+
+    /**
+     * Объединяет данное изменение с более поздним изменением того же события. Удаление события имеет приоритет над
+     * остальными изменениями, а создание события, за которым следуют обновления, остается созданием. Из данных ресурса
+     * сохраняются только данные более позднего изменения, так как более раннее состояние события уже устарело, а время
+     * получения остается временем более раннего уведомления.
+     *
+     * @param next Более позднее изменение события
+     * @return Объединенное изменение события
+     */
+    public EventChange merge(EventChange next) {
+        return new EventChange(calendarApiId, userId, resource, eventId, created || next.created,
+                deleted || next.deleted, Math.max(attempt, next.attempt), next.resourceData,
+                next.receivedAtNanos - receivedAtNanos < 0 ? next.receivedAtNanos : receivedAtNanos);
+    }
+
+    /**
+     * Возвращает это же изменение для следующей попытки обработки.
+     *
+     * @return Изменение события с увеличенным номером попытки
+     */
+    public EventChange nextAttempt() {
+        return new EventChange(calendarApiId, userId, resource, eventId, created, deleted, attempt + 1, resourceData,
+                receivedAtNanos);
+    }
+}
@@ -0,0 +1,255 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.content.BatchRequestContent;
+import com.microsoft.graph.content.BatchResponseContent;
+import com.microsoft.graph.content.BatchResponseStep;
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Применяет изменения событий календаря: получает актуальное состояние событий из Microsoft Graph batch запросами,
+ * обновляет кэш расписаний и рассылает изменения в socket комнаты календарей. Изменения, обнаруженные delta
+ * синхронизацией кэша расписаний, например после пропущенных уведомлений, рассылаются так же.
+ */
+@Service
+public class EventChangeService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private RoomBroadcastService roomBroadcastService;
+    @Autowired
+    private EventFingerprintService eventFingerprintService;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Autowired
+    @Qualifier("storeUpdateExecutor")
+    private KeyedExecutor storeUpdateExecutor;
+    @Autowired
+    @Qualifier("socketFanoutExecutor")
+    private KeyedExecutor socketFanoutExecutor;
+
+    @PostConstruct
+    private void init() {
+        scheduleCacheService.addChangeListener(this::broadcastSyncedChange);
+    }
+
+    /**
+     * Применяет итоговые изменения событий. Удаления и изменения с данными ресурса из уведомления рассылаются сразу,
+     * а остальные созданные и обновленные события запрашиваются batch запросами Microsoft Graph, по одному на каждые
+     * {@link GraphBatchHelper#maxBatchSize} событий пользователя.
+     *
+     * @param changes Изменения событий
+     * @return Изменения, которые не удалось применить из-за временной ошибки Microsoft Graph. Результат становится
+     * доступен после рассылки всех примененных изменений
+     */
+    public CompletableFuture<List<EventChange>> applyChanges(List<EventChange> changes) {
+        Map<String, List<EventChange>> fetchesByUser = new HashMap<>();
+        List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+        for (EventChange change : changes) {
+            if (change.deleted) {
+                deliveries.add(broadcastDeletion(change));
+            } else if (change.resourceData != null) {
+                deliveries.add(broadcastEvent(change, change.resourceData));
+            } else {
+                fetchesByUser.computeIfAbsent(change.userId, userId -> new ArrayList<>()).add(change);
+            }
+        }
+        List<CompletableFuture<List<EventChange>>> batches = new ArrayList<>();
+        for (Map.Entry<String, List<EventChange>> userFetches : fetchesByUser.entrySet()) {
+            GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient(userFetches.getKey());
+            if (graphClient == null) {
+                log.warn("Нет токена доступа пользователя {}, изменения событий не получены: {}", userFetches.getKey(),
+                        userFetches.getValue().size());
+                userFetches.getValue().forEach(change -> pipelineMetrics.recordDroppedChange("no_token"));
+                continue;
+            }
+            for (List<EventChange> batch : GraphBatchHelper.partition(userFetches.getValue())) {
+                batches.add(fetchBatch(userFetches.getKey(), graphClient, batch));
+            }
+        }
+        CompletableFuture<Void> delivered = CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0]));
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenCombine(delivered, (done, d) -> {
+            List<EventChange> failedChanges = new ArrayList<>();
+            batches.forEach(batch -> failedChanges.addAll(batch.join()));
+            return failedChanges;
+        });
+    }
+
+    /**
+     * Запрашивает события одним batch запросом Microsoft Graph и применяет полученные изменения. Ответ обрабатывается в
+     * пуле завершения запросов к Microsoft Graph, а не в потоке HTTP клиента.
+     *
+     * @param userId ID пользователя Outlook
+     * @param graphClient Клиент Microsoft Graph
+     * @param changes Изменения событий, не более {@link GraphBatchHelper#maxBatchSize}
+     * @return Изменения, которые не удалось применить из-за временной ошибки Microsoft Graph
+     */
+    private CompletableFuture<List<EventChange>> fetchBatch(String userId, GraphServiceClient<Request> graphClient,
+                                                            List<EventChange> changes) {
+        BatchRequestContent batchRequestContent = new BatchRequestContent();
+        Map<String, EventChange> changeByStepId = new HashMap<>();
+        for (EventChange change : changes) {
+            String stepId = batchRequestContent.addBatchRequestStep(
+                    graphClient.customRequest("/" + change.resource, JsonObject.class).buildRequest());
+            changeByStepId.put(stepId, change);
+        }
+        CompletableFuture<BatchResponseContent> batchResponse = graphRequestScheduler.submit(userId,
+                GraphRequestPriority.EVENT_FETCH, () -> graphClient.batch().buildRequest().postAsync(batchRequestContent));
+        return batchResponse.handleAsync((response, exception) -> {
+            if (exception != null) {
+                log.warn("Не удалось выполнить batch запрос событий", exception);
+                return CompletableFuture.completedFuture(changes);
+            }
+            List<EventChange> failedChanges = new ArrayList<>();
+            List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+            changeByStepId.forEach((stepId, change) -> {
+                CompletableFuture<Void> delivery = applyFetchedEvent(change, response, stepId);
+                if (delivery == null) {
+                    failedChanges.add(change);
+                } else {
+                    deliveries.add(delivery);
+                }
+            });
+            return CompletableFuture.allOf(deliveries.toArray(new CompletableFuture[0])).thenApply(done -> failedChanges);
+        }, graphCallbackExecutor).thenCompose(failedChanges -> failedChanges);
+    }
+
+    /**
+     * Применяет ответ на запрос события из batch запроса.
+     *
+     * @param change Изменение события
+     * @param response Ответ на batch запрос
+     * @param stepId ID запроса события в batch запросе
+     * @return Результат рассылки изменения или null, если запрос события стоит повторить
+     */
+    private CompletableFuture<Void> applyFetchedEvent(EventChange change, BatchResponseContent response, String stepId) {
+        BatchResponseStep<JsonElement> step = response.getResponseById(stepId);
+        if (GraphBatchHelper.isSuccessful(step)) {
+            return broadcastEvent(change, NewEventNotification.fromJson(step.body.getAsJsonObject()));
+        }
+        if (step != null && (step.status == 404
+                || Objects.equals(GraphBatchHelper.getErrorCode(step), "ErrorItemNotFound"))) {
+            return broadcastDeletion(change);
+        }
+        pipelineMetrics.recordGraphError("events.get", step != null ? step.status : -1);
+        if (GraphBatchHelper.isRetryable(step)) {
+            long retryAfterInSeconds = GraphBatchHelper.getRetryAfterSeconds(step);
+            if (retryAfterInSeconds > 0) {
+                graphRequestScheduler.pause(change.userId, TimeUnit.SECONDS.toMillis(retryAfterInSeconds));
+            }
+            return null;
+        }
+        log.warn("Не удалось получить событие {}: {} {}", change.eventId, step.status, GraphBatchHelper.getErrorCode(step));
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Рассылает созданное или обновленное событие. Если отображаемые свойства события не изменились с последней
+     * рассылки, например изменились только ответы участников, то событие не рассылается.
+     */
+    private CompletableFuture<Void> broadcastEvent(EventChange change, NewEventNotification eventNotification) {
+        return deliver(change, change.created ? "add_event" : "update_event", eventNotification, () -> {
+            if (!eventFingerprintService.update(change.calendarApiId, eventNotification)) {
+                return null;
+            }
+            ScheduleCacheService.RoomSchedule schedule = scheduleCacheService.getCachedSchedule(change.calendarApiId);
+            NewEventNotification previousEvent = schedule != null ? schedule.getEvent(change.eventId) : null;
+            scheduleCacheService.putEvent(change.calendarApiId, eventNotification);
+            return roomBroadcastService.getRooms(change.calendarApiId, eventNotification, previousEvent,
+                    schedule != null || change.created);
+        });
+    }
+
+    private CompletableFuture<Void> broadcastDeletion(EventChange change) {
+        return deliver(change, "delete_event", change.eventId, () -> {
+            eventFingerprintService.remove(change.calendarApiId, change.eventId);
+            ScheduleCacheService.RoomSchedule schedule = scheduleCacheService.getCachedSchedule(change.calendarApiId);
+            NewEventNotification previousEvent = schedule != null ? schedule.getEvent(change.eventId) : null;
+            scheduleCacheService.removeEvent(change.calendarApiId, change.eventId);
+            return roomBroadcastService.getRooms(change.calendarApiId, null, previousEvent, schedule != null);
+        });
+    }
+
+    /**
+     * Рассылает изменение события, обнаруженное delta синхронизацией расписания. Вызывается в пуле изменения хранилищ
+     * после применения изменения к кэшу расписаний. Если событие с такими же отображаемыми свойствами уже было разослано,
+     * например по уведомлению, то оно не рассылается повторно.
+     */
+    private void broadcastSyncedChange(String calendarApiId, String eventId, NewEventNotification event,
+                                       NewEventNotification previousEvent) {
+        String eventName;
+        Object payload;
+        if (event == null) {
+            eventFingerprintService.remove(calendarApiId, eventId);
+            eventName = "delete_event";
+            payload = eventId;
+        } else {
+            eventName = previousEvent == null ? "add_event" : "update_event";
+            payload = event;
+            if (!eventFingerprintService.update(calendarApiId, event)) {
+                pipelineMetrics.recordSuppressedBroadcast(eventName);
+                return;
+            }
+        }
+        Set<String> rooms = roomBroadcastService.getRooms(calendarApiId, event, previousEvent, true);
+        socketFanoutExecutor.execute(calendarApiId,
+                        () -> roomBroadcastService.broadcast(calendarApiId, rooms, eventName, payload))
+                .exceptionally(exception -> {
+                    log.warn("Не удалось разослать изменение события {}", eventId, exception);
+                    return null;
+                });
+    }
+
+    /**
+     * Применяет изменение к кэшу расписаний в пуле изменения хранилищ, после чего рассылает socket событие в пуле
+     * рассылки. Изменения одного календаря проходят оба этапа в порядке поступления.
+     *
+     * @param change Изменение события
+     * @param eventName Название socket события
+     * @param payload Данные socket события
+     * @param storeUpdate Изменение кэша расписаний, возвращающее комнаты для рассылки или null, если изменение не нужно
+     * рассылать
+     * @return Результат рассылки изменения
+     */
+    private CompletableFuture<Void> deliver(EventChange change, String eventName, Object payload,
+                                            Supplier<Set<String>> storeUpdate) {
+        return storeUpdateExecutor.submit(change.calendarApiId, () -> {
+            Set<String> rooms = storeUpdate.get();
+            if (rooms == null) {
+                pipelineMetrics.recordSuppressedBroadcast(eventName);
+                return CompletableFuture.<Void>completedFuture(null);
+            }
+            return socketFanoutExecutor.execute(change.calendarApiId, () -> {
+                roomBroadcastService.broadcast(change.calendarApiId, rooms, eventName, payload);
+                pipelineMetrics.recordDelivery(change.receivedAtNanos, eventName);
+            });
+        }).thenCompose(delivery -> delivery).exceptionally(exception -> {
+            log.warn("Не удалось разослать изменение события {}", change.eventId, exception);
+            return null;
+        });
+    }
+}
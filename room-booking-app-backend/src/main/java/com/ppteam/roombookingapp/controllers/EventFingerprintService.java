@@ -0,0 +1,81 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Хранит отпечатки последних разосланных состояний событий. Отпечаток - 64-битный хеш только тех свойств события,
+ * которые отображаются клиентами (тема, начало, окончание, организатор), поэтому изменения других свойств, например
+ * ответов участников или категорий, не меняют отпечаток, и такие обновления можно не рассылать.
+ */
+@Service
+public class EventFingerprintService {
+
+    private static final long fnvOffsetBasis = 0xcbf29ce484222325L;
+    private static final long fnvPrime = 0x100000001b3L;
+
+    private final Map<String, Map<String, Long>> fingerprintsByCalendar = new ConcurrentHashMap<>();
+
+    /**
+     * Сохраняет отпечаток события.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param event Событие
+     * @return true, если отпечаток события изменился или событие еще не встречалось, иначе false
+     */
+    public boolean update(String calendarApiId, NewEventNotification event) {
+        Long fingerprint = getFingerprint(event);
+        Long previousFingerprint = fingerprintsByCalendar.computeIfAbsent(calendarApiId, id -> new ConcurrentHashMap<>())
+                .put(event.id, fingerprint);
+        return !fingerprint.equals(previousFingerprint);
+    }
+
+    /**
+     * Удаляет отпечаток события.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param eventId ID события
+     */
+    public void remove(String calendarApiId, String eventId) {
+        Map<String, Long> fingerprints = fingerprintsByCalendar.get(calendarApiId);
+        if (fingerprints != null) {
+            fingerprints.remove(eventId);
+        }
+    }
+
+    /**
+     * Удаляет отпечатки всех событий календаря, например после удаления подписки календаря.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void clear(String calendarApiId) {
+        fingerprintsByCalendar.remove(calendarApiId);
+    }
+
+    /**
+     * Вычисляет отпечаток отображаемых свойств события хешем FNV-1a.
+     *
+     * @param event Событие
+     * @return Отпечаток события
+     */
+    static long getFingerprint(NewEventNotification event) {
+        long hash = fnvOffsetBasis;
+        hash = hash(hash, event.subject);
+        hash = hash(hash, event.start);
+        hash = hash(hash, event.end);
+        return hash(hash, event.organizer);
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xff)) * fnvPrime;
+            }
+        }
+        // Разделитель отличает null от пустой строки и не дает значениям соседних свойств смешиваться
+        return (hash ^ (value == null ? 0x100 : 0x101)) * fnvPrime;
+    }
+}
@@ -0,0 +1,245 @@
+package com.ppteam.roombookingapp.controllers;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+/**
+ * Индекс интервалов событий одного календаря для запросов занятости. Интервалы хранятся в массивах, упорядоченных по
+ * началу, вместе с наибольшим окончанием среди интервалов с меньшим или равным началом. Запрос находит бинарным поиском
+ * последний интервал, начинающийся до конца запрошенного периода, и просматривает интервалы назад, пока наибольшее
+ * окончание больше начала периода, поэтому проверка занятости выполняется за O(log n).
+ * <p>
+ * Изменения создают новый снимок массивов, поэтому запросы читают согласованный снимок без блокировок.
+ */
+public class EventIntervalIndex {
+
+    private volatile Snapshot snapshot = Snapshot.empty;
+    private final Map<String, Long> startByEventId = new HashMap<>();
+
+    /**
+     * Добавляет или обновляет интервал события. Событие с некорректным началом или окончанием удаляется из индекса.
+     *
+     * @param event Событие
+     */
+    public synchronized void put(NewEventNotification event) {
+        Snapshot current = removeFrom(snapshot, event.id);
+        Interval interval = toInterval(event);
+        if (interval == null) {
+            snapshot = current;
+            return;
+        }
+        startByEventId.put(interval.eventId, interval.start);
+        int position = upperBound(current.starts, current.size, interval.start);
+        Snapshot next = new Snapshot(current.size + 1);
+        copy(current, 0, next, 0, position);
+        next.starts[position] = interval.start;
+        next.ends[position] = interval.end;
+        next.eventIds[position] = interval.eventId;
+        copy(current, position, next, position + 1, current.size - position);
+        next.updateMaxEnds(position);
+        snapshot = next;
+    }
+
+    /**
+     * Удаляет интервал события.
+     *
+     * @param eventId ID события
+     */
+    public synchronized void remove(String eventId) {
+        snapshot = removeFrom(snapshot, eventId);
+    }
+
+    /**
+     * Заменяет все интервалы индекса интервалами переданных событий. Используется после delta синхронизации, когда
+     * изменений может быть много и построение индекса заново быстрее, чем изменение по одному событию.
+     *
+     * @param events События
+     */
+    public synchronized void rebuild(Collection<NewEventNotification> events) {
+        List<Interval> intervals = new ArrayList<>(events.size());
+        for (NewEventNotification event : events) {
+            Interval interval = toInterval(event);
+            if (interval != null) {
+                intervals.add(interval);
+            }
+        }
+        intervals.sort(Comparator.comparingLong(interval -> interval.start));
+        startByEventId.clear();
+        Snapshot next = new Snapshot(intervals.size());
+        for (int i = 0; i < intervals.size(); i++) {
+            Interval interval = intervals.get(i);
+            next.starts[i] = interval.start;
+            next.ends[i] = interval.end;
+            next.eventIds[i] = interval.eventId;
+            startByEventId.put(interval.eventId, interval.start);
+        }
+        next.updateMaxEnds(0);
+        snapshot = next;
+    }
+
+    /**
+     * Проверяет, пересекается ли какое-либо событие с периодом [from, to).
+     *
+     * @param from Начало периода в миллисекундах
+     * @param to Окончание периода в миллисекундах
+     * @return true, если в период есть событие
+     */
+    public boolean isBusy(long from, long to) {
+        Snapshot current = snapshot;
+        int last = lowerBound(current.starts, current.size, to) - 1;
+        return last >= 0 && current.maxEnds[last] > from;
+    }
+
+    /**
+     * Возвращает события, пересекающиеся с периодом [from, to), упорядоченные по началу.
+     *
+     * @param from Начало периода в миллисекундах
+     * @param to Окончание периода в миллисекундах
+     * @return Интервалы событий
+     */
+    public List<Interval> getBusyIntervals(long from, long to) {
+        Snapshot current = snapshot;
+        List<Interval> intervals = new ArrayList<>();
+        for (int i = lowerBound(current.starts, current.size, to) - 1; i >= 0 && current.maxEnds[i] > from; i--) {
+            if (current.ends[i] > from) {
+                intervals.add(new Interval(current.eventIds[i], current.starts[i], current.ends[i]));
+            }
+        }
+        Collections.reverse(intervals);
+        return intervals;
+    }
+
+    /**
+     * Возвращает количество событий в индексе.
+     *
+     * @return Количество событий
+     */
+    public int size() {
+        return snapshot.size;
+    }
+
+    /**
+     * Переводит дату и время события Microsoft Graph в миллисекунды. Microsoft Graph возвращает время событий в UTC,
+     * если в запросе не указан другой часовой пояс.
+     *
+     * @param dateTime Дата и время без часового пояса, например 2022-11-01T10:00:00.0000000
+     * @return Миллисекунды с начала эпохи
+     * @throws DateTimeParseException если дата и время некорректны
+     */
+    public static long toEpochMillis(String dateTime) {
+        return LocalDateTime.parse(dateTime).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    private static Interval toInterval(NewEventNotification event) {
+        if (event.start == null || event.end == null) {
+            return null;
+        }
+        try {
+            return new Interval(event.id, toEpochMillis(event.start), toEpochMillis(event.end));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    private Snapshot removeFrom(Snapshot current, String eventId) {
+        Long start = startByEventId.remove(eventId);
+        if (start == null) {
+            return current;
+        }
+        int position = lowerBound(current.starts, current.size, start);
+        while (!current.eventIds[position].equals(eventId)) {
+            position++;
+        }
+        Snapshot next = new Snapshot(current.size - 1);
+        copy(current, 0, next, 0, position);
+        copy(current, position + 1, next, position, current.size - position - 1);
+        next.updateMaxEnds(position);
+        return next;
+    }
+
+    private static void copy(Snapshot source, int sourcePosition, Snapshot target, int targetPosition, int length) {
+        System.arraycopy(source.starts, sourcePosition, target.starts, targetPosition, length);
+        System.arraycopy(source.ends, sourcePosition, target.ends, targetPosition, length);
+        System.arraycopy(source.eventIds, sourcePosition, target.eventIds, targetPosition, length);
+        System.arraycopy(source.maxEnds, sourcePosition, target.maxEnds, targetPosition, length);
+    }
+
+    /**
+     * Возвращает позицию первого элемента, не меньшего value.
+     */
+    private static int lowerBound(long[] values, int size, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Возвращает позицию первого элемента, большего value.
+     */
+    private static int upperBound(long[] values, int size, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Интервал события.
+     */
+    public static class Interval {
+
+        public final String eventId;
+        public final long start;
+        public final long end;
+
+        public Interval(String eventId, long start, long end) {
+            this.eventId = eventId;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Snapshot {
+
+        private static final Snapshot empty = new Snapshot(0);
+
+        private final int size;
+        private final long[] starts;
+        private final long[] ends;
+        private final long[] maxEnds;
+        private final String[] eventIds;
+
+        private Snapshot(int size) {
+            this.size = size;
+            this.starts = new long[size];
+            this.ends = new long[size];
+            this.maxEnds = new long[size];
+            this.eventIds = new String[size];
+        }
+
+        private void updateMaxEnds(int from) {
+            long maxEnd = from > 0 ? maxEnds[from - 1] : Long.MIN_VALUE;
+            for (int i = from; i < size; i++) {
+                maxEnd = Math.max(maxEnd, ends[i]);
+                maxEnds[i] = maxEnd;
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.content.BatchResponseStep;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Вспомогательные методы для JSON batch запросов Microsoft Graph.
+ */
+public class GraphBatchHelper {
+
+    /**
+     * Максимальное количество запросов в одном batch запросе Microsoft Graph.
+     */
+    public static final int maxBatchSize = 20;
+
+    private GraphBatchHelper() {
+        throw new IllegalStateException("Static class");
+    }
+
+    /**
+     * Разбивает список на части, каждая из которых помещается в один batch запрос.
+     *
+     * @param items Список элементов
+     * @return Части списка размером не более {@link #maxBatchSize}
+     */
+    public static <T> List<List<T>> partition(List<T> items) {
+        List<List<T>> batches = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += maxBatchSize) {
+            batches.add(new ArrayList<>(items.subList(i, Math.min(i + maxBatchSize, items.size()))));
+        }
+        return batches;
+    }
+
+    /**
+     * Возвращает true, если запрос из batch запроса выполнен успешно, иначе false.
+     *
+     * @param step Ответ на запрос из batch запроса
+     * @return true, если запрос выполнен успешно, иначе false
+     */
+    public static boolean isSuccessful(BatchResponseStep<JsonElement> step) {
+        return step != null && step.status >= 200 && step.status < 300;
+    }
+
+    /**
+     * Возвращает true, если запрос из batch запроса стоит повторить: Microsoft Graph ограничил количество запросов или
+     * временно недоступен.
+     *
+     * @param step Ответ на запрос из batch запроса
+     * @return true, если запрос стоит повторить, иначе false
+     */
+    public static boolean isRetryable(BatchResponseStep<JsonElement> step) {
+        return step == null || step.status == 429 || step.status >= 500;
+    }
+
+    /**
+     * Возвращает код ошибки Microsoft Graph из ответа на запрос из batch запроса.
+     *
+     * @param step Ответ на запрос из batch запроса
+     * @return Код ошибки или null, если ответ не содержит ошибки
+     */
+    public static String getErrorCode(BatchResponseStep<JsonElement> step) {
+        if (step == null || step.body == null || !step.body.isJsonObject()) {
+            return null;
+        }
+        JsonObject body = step.body.getAsJsonObject();
+        if (!body.has("error") || !body.get("error").isJsonObject()) {
+            return null;
+        }
+        JsonElement code = body.getAsJsonObject("error").get("code");
+        return code == null || code.isJsonNull() ? null : code.getAsString();
+    }
+
+    /**
+     * Возвращает значение заголовка Retry-After из ответа на запрос из batch запроса.
+     *
+     * @param step Ответ на запрос из batch запроса
+     * @return Время ожидания в секундах или -1, если заголовок отсутствует
+     */
+    public static long getRetryAfterSeconds(BatchResponseStep<JsonElement> step) {
+        if (step == null || step.headers == null) {
+            return -1;
+        }
+        for (String header : step.headers.keySet()) {
+            if ("Retry-After".equalsIgnoreCase(header)) {
+                try {
+                    return Long.parseLong(step.headers.get(header).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
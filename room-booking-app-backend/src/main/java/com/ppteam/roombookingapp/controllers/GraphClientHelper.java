@@ -1,30 +1,79 @@
 package com.ppteam.roombookingapp.controllers;
 
-import com.azure.identity.AuthorizationCodeCredential;
-import com.azure.identity.AuthorizationCodeCredentialBuilder;
 import com.azure.identity.ClientSecretCredential;
 import com.azure.identity.ClientSecretCredentialBuilder;
 import com.microsoft.graph.authentication.IAuthenticationProvider;
-import com.microsoft.graph.authentication.TokenCredentialAuthProvider;
+import com.microsoft.graph.httpcore.AuthenticationHandler;
+import com.microsoft.graph.httpcore.HttpClients;
+import com.microsoft.graph.httpcore.RedirectHandler;
 import com.microsoft.graph.requests.GraphServiceClient;
 import com.ppteam.roombookingapp.RoomBookingAppApplication;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.net.URL;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Реестр клиентов Microsoft Graph. Все клиенты используют общий пул соединений и общий диспетчер OkHttp, а сами
+ * клиенты кэшируются для каждого пользователя, пересоздаются только при обновлении его токена доступа и удаляются вместе
+ * с истекшим токеном. Время каждого HTTP запроса к Microsoft Graph записывается в метрики.
+ * <p>
+ * В режиме app-only ({@code graph-client.auth-mode=APP}) все запросы выполняются одним клиентом с токеном доступа
+ * приложения, который заранее обновляется по расписанию. Токены пользователей в этом режиме не используются, поэтому
+ * подписки продлеваются и после того, как создавший их пользователь перестал пользоваться приложением.
+ * <p>
+ * Клиенты создаются без RetryHandler Microsoft Graph SDK: повтор запросов и ожидание по заголовку Retry-After
+ * выполняет {@link GraphRequestScheduler}, не занимая потоки диспетчера.
+ */
+@Component
 public class GraphClientHelper {
 
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
     private static final Properties properties = new Properties();
     private static String clientId;
     private static String tenantId;
     private static String clientSecret;
 
+    /**
+     * Способ авторизации запросов к Microsoft Graph.
+     */
+    public enum AuthMode {
+        /**
+         * Токенами доступа пользователей, переданными клиентами.
+         */
+        DELEGATED,
+        /**
+         * Токеном доступа приложения для всей организации.
+         */
+        APP
+    }
+
     static {
-        try {
-            properties.load(RoomBookingAppApplication.class.getClassLoader().getResourceAsStream("oAuth.properties"));
+        try (InputStream oAuthProperties = RoomBookingAppApplication.class.getClassLoader()
+                .getResourceAsStream("oAuth.properties")) {
+            if (oAuthProperties != null) {
+                properties.load(oAuthProperties);
+            }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -33,29 +82,166 @@ public class GraphClientHelper {
         clientSecret = properties.getProperty("app.clientSecret");
     }
 
-    private GraphClientHelper() {
-        throw new IllegalStateException("Static class");
+    @Autowired
+    private AccessTokenStoreService accessTokenStoreService;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Value("${graph-client.service-root}")
+    private String serviceRoot;
+    @Value("${graph-client.max-idle-connections}")
+    private int maxIdleConnections;
+    @Value("${graph-client.keep-alive-minutes}")
+    private long keepAliveMinutes;
+    @Value("${graph-client.max-requests}")
+    private int maxRequests;
+    @Value("${graph-client.max-requests-per-host}")
+    private int maxRequestsPerHost;
+    @Value("${graph-client.auth-mode}")
+    private AuthMode authMode;
+    @Value("${graph-client.app-token-refresh-before-seconds}")
+    private long appTokenRefreshBeforeInSeconds;
+
+    private final Map<String, CachedGraphClient> graphClientByUser = new ConcurrentHashMap<>();
+    private ConnectionPool connectionPool;
+    private Dispatcher dispatcher;
+    private AppOnlyAuthenticationProvider appAuthenticationProvider;
+    private GraphServiceClient<Request> appGraphClient;
+
+    @PostConstruct
+    private void init() {
+        accessTokenStoreService.addRemovalListener(this::evictGraphClient);
+        connectionPool = new ConnectionPool(maxIdleConnections, keepAliveMinutes, TimeUnit.MINUTES);
+        dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequestsPerHost);
+        if (authMode == AuthMode.APP) {
+            if (clientId == null || tenantId == null || clientSecret == null) {
+                throw new IllegalStateException(
+                        "Для режима app-only в oAuth.properties должны быть указаны app.clientId, app.tenantId и app.clientSecret");
+            }
+            ClientSecretCredential credential = new ClientSecretCredentialBuilder()
+                    .clientId(clientId)
+                    .tenantId(tenantId)
+                    .clientSecret(clientSecret)
+                    .build();
+            appAuthenticationProvider = new AppOnlyAuthenticationProvider(credential,
+                    Duration.ofSeconds(appTokenRefreshBeforeInSeconds));
+            appAuthenticationProvider.refreshIfExpiring();
+            appGraphClient = buildGraphClient(appAuthenticationProvider,
+                    graphRequestScheduler.getThrottlingInterceptor(GraphRequestScheduler::getUserIdFromRequest));
+            log.info("Запросы к Microsoft Graph выполняются с токеном доступа приложения");
+        }
+    }
+
+    /**
+     * Заранее обновляет токен доступа приложения в режиме app-only.
+     */
+    @Scheduled(fixedDelayString = "${graph-client.app-token-check-interval-ms}")
+    public void refreshAppToken() {
+        if (appAuthenticationProvider != null) {
+            appAuthenticationProvider.refreshIfExpiring();
+        }
     }
 
-    public static GraphServiceClient<Request> getGraphClient(String accessToken) {
-//        Пример использования app-only авторизации
-//        ClientSecretCredential clientSecretCredential = new ClientSecretCredentialBuilder()
-//                .clientId(clientId)
-//                .tenantId(tenantId)
-//                .clientSecret(clientSecret)
-//                .build();
-        IAuthenticationProvider authProvider = new IAuthenticationProvider() {
-            @Override
-            public CompletableFuture<String> getAuthorizationTokenAsync(URL requestUrl) {
-                CompletableFuture<String> future = new CompletableFuture<>();
-                future.complete(accessToken);
-                return future;
+    /**
+     * Возвращает клиент Microsoft Graph для указанного ID пользователя. Клиент создается при первом обращении и
+     * пересоздается, если токен доступа пользователя был обновлен. В режиме app-only возвращает общий клиент
+     * приложения.
+     *
+     * @param userId ID пользователя
+     * @return Клиент Microsoft Graph или null, если для пользователя нет токена доступа
+     */
+    public GraphServiceClient<Request> getGraphClient(String userId) {
+        if (appGraphClient != null) {
+            return appGraphClient;
+        }
+        String accessToken = accessTokenStoreService.getAccessTokenByUserId(userId);
+        if (accessToken == null) {
+            graphClientByUser.remove(userId);
+            return null;
+        }
+        CachedGraphClient cachedClient = graphClientByUser.get(userId);
+        if (cachedClient != null && Objects.equals(cachedClient.accessToken, accessToken)) {
+            return cachedClient.graphClient;
+        }
+        return graphClientByUser.compute(userId, (id, current) -> {
+            if (current != null && Objects.equals(current.accessToken, accessToken)) {
+                return current;
             }
-        };
-        //TokenCredentialAuthProvider authProvider = new TokenCredentialAuthProvider(List.of("https://graph.microsoft.com/.default"), authCodeCredential);
-        GraphServiceClient graphServiceClient = GraphServiceClient.builder()
+            IAuthenticationProvider authProvider = requestUrl -> CompletableFuture.completedFuture(accessToken);
+            return new CachedGraphClient(accessToken,
+                    buildGraphClient(authProvider, graphRequestScheduler.getThrottlingInterceptor(userId)));
+        }).graphClient;
+    }
+
+    /**
+     * Создает клиент Microsoft Graph с указанным токеном доступа. Клиент не кэшируется и используется для проверки
+     * токена, владелец которого еще не известен.
+     *
+     * @param accessToken Токен доступа
+     * @param queueKey Ключ очереди {@link GraphRequestScheduler}, в которой выполняются запросы клиента
+     * @return Клиент Microsoft Graph
+     */
+    public GraphServiceClient<Request> createGraphClient(String accessToken, String queueKey) {
+        IAuthenticationProvider authProvider = requestUrl -> CompletableFuture.completedFuture(accessToken);
+        return buildGraphClient(authProvider, graphRequestScheduler.getThrottlingInterceptor(queueKey));
+    }
+
+    /**
+     * Удаляет клиент Microsoft Graph указанного пользователя из кэша.
+     *
+     * @param userId ID пользователя
+     */
+    public void evictGraphClient(String userId) {
+        graphClientByUser.remove(userId);
+    }
+
+    /**
+     * Создает клиент Microsoft Graph, использующий общий пул соединений и диспетчер.
+     *
+     * @param authProvider Провайдер токена доступа
+     * @param throttlingInterceptor Interceptor планировщика запросов, приостанавливающий запросы при ограничении
+     * @return Клиент Microsoft Graph
+     */
+    private GraphServiceClient<Request> buildGraphClient(IAuthenticationProvider authProvider,
+                                                         Interceptor throttlingInterceptor) {
+        OkHttpClient httpClient = HttpClients.createFromInterceptors(new Interceptor[]{
+                        new AuthenticationHandler(authProvider), new RedirectHandler()}).newBuilder()
+                .connectionPool(connectionPool)
+                .dispatcher(dispatcher)
+                .addInterceptor(throttlingInterceptor)
+                .addInterceptor(pipelineMetrics.getGraphRequestInterceptor())
+                .build();
+        GraphServiceClient<Request> graphServiceClient = GraphServiceClient.builder()
                 .authenticationProvider(authProvider)
+                .httpClient(httpClient)
                 .buildClient();
+        graphServiceClient.setServiceRoot(serviceRoot);
         return graphServiceClient;
     }
+
+    /**
+     * Закрывает общий пул соединений и останавливает потоки диспетчера при остановке приложения.
+     */
+    @PreDestroy
+    private void shutdown() {
+        log.info("Остановка клиентов Microsoft Graph");
+        graphClientByUser.clear();
+        dispatcher.cancelAll();
+        dispatcher.executorService().shutdown();
+        connectionPool.evictAll();
+    }
+
+    private static class CachedGraphClient {
+
+        private final String accessToken;
+        private final GraphServiceClient<Request> graphClient;
+
+        private CachedGraphClient(String accessToken, GraphServiceClient<Request> graphClient) {
+            this.accessToken = accessToken;
+            this.graphClient = graphClient;
+        }
+    }
 }
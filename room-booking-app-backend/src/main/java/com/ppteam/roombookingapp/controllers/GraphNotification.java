@@ -0,0 +1,41 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Уведомление Microsoft Graph, содержащее только используемые приложением свойства.
+ */
+public class GraphNotification {
+
+    public final String subscriptionId;
+    /**
+     * Тип изменения или null для уведомлений о жизненном цикле подписки.
+     */
+    public final String changeType;
+    /**
+     * Путь измененного ресурса или null для уведомлений о жизненном цикле подписки.
+     */
+    public final ResourcePath resource;
+    /**
+     * Тип уведомления о жизненном цикле подписки или null для уведомлений об изменении ресурса.
+     */
+    public final String lifecycleEvent;
+    /**
+     * Зашифрованные данные ресурса или null, если уведомление их не содержит.
+     */
+    public final JsonObject encryptedContent;
+    /**
+     * Секрет подписки, переданный Microsoft Graph, или null, если уведомление его не содержит.
+     */
+    public final String clientState;
+
+    public GraphNotification(String subscriptionId, String changeType, ResourcePath resource, String lifecycleEvent,
+                             JsonObject encryptedContent, String clientState) {
+        this.subscriptionId = subscriptionId;
+        this.changeType = changeType;
+        this.resource = resource;
+        this.lifecycleEvent = lifecycleEvent;
+        this.encryptedContent = encryptedContent;
+        this.clientState = clientState;
+    }
+}
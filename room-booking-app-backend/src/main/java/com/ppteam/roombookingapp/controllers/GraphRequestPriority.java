@@ -0,0 +1,28 @@
+package com.ppteam.roombookingapp.controllers;
+
+/**
+ * Приоритет запроса к Microsoft Graph в {@link GraphRequestScheduler}. Запросы с более высоким приоритетом
+ * отправляются раньше, когда запросы пользователя ограничены.
+ */
+public enum GraphRequestPriority {
+
+    /**
+     * Запросы, которых ожидает клиент, например проверка токена доступа вызывающего пользователя.
+     */
+    INTERACTIVE,
+
+    /**
+     * Создание, продление и удаление подписок: задержка этих запросов приводит к потере уведомлений.
+     */
+    SUBSCRIPTION,
+
+    /**
+     * Получение измененных событий для рассылки клиентам.
+     */
+    EVENT_FETCH,
+
+    /**
+     * Фоновая синхронизация расписаний.
+     */
+    SYNC
+}
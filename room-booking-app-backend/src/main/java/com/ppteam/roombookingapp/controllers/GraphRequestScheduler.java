@@ -0,0 +1,410 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.microsoft.graph.http.GraphServiceException;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Планировщик исходящих запросов к Microsoft Graph. Для каждого пользователя (почтового ящика) запросы проходят через
+ * маркерную корзину и ограничение количества одновременных запросов, а ожидающие запросы отправляются в порядке
+ * {@link GraphRequestPriority}. Ответы 429, 503 и 504 приостанавливают запросы пользователя на время, указанное в
+ * заголовке Retry-After, а сами запросы повторяются с экспоненциальной задержкой со случайным разбросом.
+ * <p>
+ * Ожидание не блокирует потоки: запрос создается только тогда, когда планировщик разрешает его отправку. Очереди
+ * пользователей без ожидающих запросов и с полной корзиной удаляются, так как новая очередь ведет себя так же.
+ */
+@Component
+public class GraphRequestScheduler {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final int maxConcurrentRequests;
+    private final int maxAttempts;
+    private final long retryBaseDelayInMillis;
+    private final long retryMaxDelayInMillis;
+    private final Map<String, UserQueue> queueByUser = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "graph-request-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public GraphRequestScheduler(@Value("${graph-scheduler.permits-per-second}") double permitsPerSecond,
+                                 @Value("${graph-scheduler.burst}") int burst,
+                                 @Value("${graph-scheduler.max-concurrent-requests}") int maxConcurrentRequests,
+                                 @Value("${graph-scheduler.max-attempts}") int maxAttempts,
+                                 @Value("${graph-scheduler.retry-base-delay-ms}") long retryBaseDelayInMillis,
+                                 @Value("${graph-scheduler.retry-max-delay-ms}") long retryMaxDelayInMillis) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.maxConcurrentRequests = maxConcurrentRequests;
+        this.maxAttempts = maxAttempts;
+        this.retryBaseDelayInMillis = retryBaseDelayInMillis;
+        this.retryMaxDelayInMillis = retryMaxDelayInMillis;
+    }
+
+    /**
+     * Ставит запрос к Microsoft Graph в очередь пользователя. Запрос создается заново при каждой попытке.
+     *
+     * @param userId ID пользователя, от имени которого выполняется запрос
+     * @param priority Приоритет запроса
+     * @param request Создает и отправляет запрос
+     * @param <T> Тип результата запроса
+     * @return Результат последней попытки запроса
+     */
+    public <T> CompletableFuture<T> submit(String userId, GraphRequestPriority priority,
+                                           Supplier<CompletableFuture<T>> request) {
+        ScheduledRequest<T> scheduledRequest = new ScheduledRequest<>(priority, request);
+        while (true) {
+            UserQueue queue = queueByUser.computeIfAbsent(userId, UserQueue::new);
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
+                }
+                queue.add(scheduledRequest);
+            }
+            dispatch(queue);
+            return scheduledRequest.result;
+        }
+    }
+
+    /**
+     * Приостанавливает отправку запросов пользователя. Используется, когда Microsoft Graph ограничил запросы внутри
+     * batch запроса, который сам по себе выполнен успешно.
+     *
+     * @param userId ID пользователя
+     * @param delayInMillis Задержка в миллисекундах
+     */
+    public void pause(String userId, long delayInMillis) {
+        while (true) {
+            UserQueue queue = queueByUser.computeIfAbsent(userId, UserQueue::new);
+            synchronized (queue) {
+                if (queue.removed) {
+                    continue;
+                }
+                queue.notBeforeNanos = Math.max(queue.notBeforeNanos,
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayInMillis));
+            }
+            log.info("Запросы пользователя {} к Microsoft Graph приостановлены на {} мс", userId, delayInMillis);
+            scheduleDispatch(queue, delayInMillis);
+            return;
+        }
+    }
+
+    /**
+     * Удаляет очереди пользователей, у которых нет ожидающих, выполняемых и повторяемых запросов, запросы не
+     * приостановлены, а корзина заполнена полностью.
+     */
+    @Scheduled(fixedDelayString = "${graph-scheduler.idle-cleanup-interval-ms}")
+    public void evictIdleQueues() {
+        long nowNanos = System.nanoTime();
+        for (UserQueue queue : queueByUser.values()) {
+            synchronized (queue) {
+                if (queue.isIdle(nowNanos)) {
+                    queue.removed = true;
+                    queueByUser.remove(queue.userId, queue);
+                }
+            }
+        }
+    }
+
+    /**
+     * Возвращает количество очередей пользователей.
+     *
+     * @return Количество очередей
+     */
+    int getQueueCount() {
+        return queueByUser.size();
+    }
+
+    /**
+     * Возвращает OkHttp interceptor, который приостанавливает запросы пользователя при ответах 429, 503 и 504 на время
+     * из заголовка Retry-After.
+     *
+     * @param userId ID пользователя, для которого создается клиент Microsoft Graph
+     * @return OkHttp interceptor
+     */
+    public Interceptor getThrottlingInterceptor(String userId) {
+        return getThrottlingInterceptor(request -> userId);
+    }
+
+    /**
+     * Возвращает OkHttp interceptor для клиента, общего для всех пользователей. Пользователь определяется по адресу
+     * запроса, а ответы на запросы без пользователя в адресе не приостанавливают запросы.
+     *
+     * @param userIdResolver Определяет ID пользователя по запросу
+     * @return OkHttp interceptor
+     */
+    public Interceptor getThrottlingInterceptor(Function<Request, String> userIdResolver) {
+        return chain -> {
+            Response response = chain.proceed(chain.request());
+            String userId = userIdResolver.apply(chain.request());
+            if (isThrottled(response.code()) && userId != null) {
+                long retryAfterInSeconds = parseRetryAfter(response.header("Retry-After"));
+                pause(userId, retryAfterInSeconds >= 0
+                        ? TimeUnit.SECONDS.toMillis(retryAfterInSeconds) : retryBaseDelayInMillis);
+            }
+            return response;
+        };
+    }
+
+    /**
+     * Возвращает ID пользователя из адреса запроса вида /users/{id}/...
+     *
+     * @param request Запрос
+     * @return ID пользователя или null, если адрес не содержит пользователя
+     */
+    static String getUserIdFromRequest(Request request) {
+        List<String> segments = request.url().pathSegments();
+        for (int i = 0; i < segments.size() - 1; i++) {
+            if (segments.get(i).equalsIgnoreCase("users")) {
+                return segments.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Отправляет запросы пользователя, для которых есть маркеры и свободные места среди одновременных запросов. Если
+     * маркеров нет или запросы приостановлены, то повторяет отправку после ожидания.
+     */
+    private void dispatch(UserQueue queue) {
+        List<ScheduledRequest<?>> readyRequests = new ArrayList<>();
+        long waitInNanos;
+        synchronized (queue) {
+            waitInNanos = queue.takeReady(System.nanoTime(), readyRequests);
+        }
+        readyRequests.forEach(request -> start(queue, request));
+        if (waitInNanos > 0) {
+            scheduleDispatch(queue, TimeUnit.NANOSECONDS.toMillis(waitInNanos) + 1);
+        }
+    }
+
+    private void scheduleDispatch(UserQueue queue, long delayInMillis) {
+        synchronized (queue) {
+            if (queue.dispatchScheduled) {
+                return;
+            }
+            queue.dispatchScheduled = true;
+        }
+        timer.schedule(() -> {
+            synchronized (queue) {
+                queue.dispatchScheduled = false;
+            }
+            dispatch(queue);
+        }, delayInMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private <T> void start(UserQueue queue, ScheduledRequest<T> request) {
+        request.attempt++;
+        CompletableFuture<T> response;
+        try {
+            response = request.request.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        response.whenComplete((result, exception) -> {
+            long pauseInNanos;
+            synchronized (queue) {
+                queue.inFlight--;
+                pauseInNanos = queue.notBeforeNanos - System.nanoTime();
+            }
+            if (exception == null) {
+                request.result.complete(result);
+            } else if (isRetryable(exception) && request.attempt < maxAttempts) {
+                long delay = Math.max(getBackoffDelay(request.attempt), TimeUnit.NANOSECONDS.toMillis(pauseInNanos));
+                log.info("Повтор запроса пользователя {} к Microsoft Graph через {} мс (попытка {})", queue.userId,
+                        delay, request.attempt + 1);
+                synchronized (queue) {
+                    queue.pendingRetries++;
+                }
+                timer.schedule(() -> {
+                    synchronized (queue) {
+                        queue.pendingRetries--;
+                        queue.add(request);
+                    }
+                    dispatch(queue);
+                }, delay, TimeUnit.MILLISECONDS);
+            } else {
+                request.result.completeExceptionally(exception);
+            }
+            dispatch(queue);
+        });
+    }
+
+    /**
+     * Возвращает задержку перед повтором запроса. Задержка растет экспоненциально с каждой попыткой и выбирается
+     * случайно в пределах от половины до полного значения, чтобы повторные запросы не приходили одновременно.
+     */
+    private long getBackoffDelay(int attempt) {
+        long maxDelay = Math.min(retryMaxDelayInMillis, retryBaseDelayInMillis << Math.min(attempt - 1, 20));
+        return maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1);
+    }
+
+    /**
+     * Возвращает true, если запрос завершился ответом Microsoft Graph, после которого запрос стоит повторить.
+     *
+     * @param exception Ошибка запроса
+     * @return true, если запрос стоит повторить
+     */
+    static boolean isRetryable(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GraphServiceException) {
+                return isThrottled(((GraphServiceException) cause).getResponseCode());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Возвращает true, если запрос завершился ответом Microsoft Graph 404, то есть ресурс уже не существует.
+     *
+     * @param exception Ошибка запроса
+     * @return true, если ресурс не найден
+     */
+    static boolean isNotFound(Throwable exception) {
+        for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+            if (cause instanceof GraphServiceException) {
+                return ((GraphServiceException) cause).getResponseCode() == 404;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isThrottled(int status) {
+        return status == 429 || status == 503 || status == 504;
+    }
+
+    /**
+     * Разбирает значение заголовка Retry-After.
+     *
+     * @param retryAfter Значение заголовка
+     * @return Задержка в секундах или -1, если заголовок отсутствует или указан не в секундах
+     */
+    static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(retryAfter.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Очередь запросов одного пользователя с маркерной корзиной.
+     */
+    private class UserQueue {
+
+        private final String userId;
+        private final ArrayDeque<ScheduledRequest<?>>[] lanes;
+        private double tokens = burst;
+        private long refilledAtNanos = System.nanoTime();
+        private long notBeforeNanos = refilledAtNanos;
+        private int inFlight;
+        private int pendingRetries;
+        private boolean dispatchScheduled;
+        private boolean removed;
+
+        @SuppressWarnings("unchecked")
+        private UserQueue(String userId) {
+            this.userId = userId;
+            lanes = new ArrayDeque[GraphRequestPriority.values().length];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new ArrayDeque<>();
+            }
+        }
+
+        private void add(ScheduledRequest<?> request) {
+            lanes[request.priority.ordinal()].add(request);
+        }
+
+        /**
+         * Забирает запросы, которые можно отправить сейчас.
+         *
+         * @param nowNanos Текущее время
+         * @param readyRequests Запросы, которые можно отправить
+         * @return Время ожидания до следующей возможной отправки или 0, если ждать нечего
+         */
+        private long takeReady(long nowNanos, List<ScheduledRequest<?>> readyRequests) {
+            tokens = Math.min(burst, tokens + (nowNanos - refilledAtNanos) * permitsPerSecond / 1e9);
+            refilledAtNanos = nowNanos;
+            while (inFlight < maxConcurrentRequests) {
+                ScheduledRequest<?> request = peek();
+                if (request == null) {
+                    return 0;
+                }
+                if (nowNanos < notBeforeNanos) {
+                    return notBeforeNanos - nowNanos;
+                }
+                if (tokens < 1) {
+                    return (long) Math.ceil((1 - tokens) / permitsPerSecond * 1e9);
+                }
+                tokens--;
+                inFlight++;
+                lanes[request.priority.ordinal()].poll();
+                readyRequests.add(request);
+            }
+            return 0;
+        }
+
+        /**
+         * Возвращает true, если очередь можно удалить без изменения поведения планировщика.
+         *
+         * @param nowNanos Текущее время
+         * @return true, если очередь простаивает
+         */
+        private boolean isIdle(long nowNanos) {
+            return peek() == null && inFlight == 0 && pendingRetries == 0 && !dispatchScheduled
+                    && nowNanos >= notBeforeNanos
+                    && tokens + (nowNanos - refilledAtNanos) * permitsPerSecond / 1e9 >= burst;
+        }
+
+        private ScheduledRequest<?> peek() {
+            for (ArrayDeque<ScheduledRequest<?>> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.peek();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static class ScheduledRequest<T> {
+
+        private final GraphRequestPriority priority;
+        private final Supplier<CompletableFuture<T>> request;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private int attempt;
+
+        private ScheduledRequest(GraphRequestPriority priority, Supplier<CompletableFuture<T>> request) {
+            this.priority = priority;
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.ppteam.roombookingapp.controllers;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Выполняет задачи в общем пуле потоков так, что задачи с одинаковым ключом выполняются последовательно в порядке
+ * добавления, а задачи с разными ключами - параллельно. Используется, чтобы изменения и socket события одной комнаты
+ * не обгоняли друг друга при обработке несколькими потоками.
+ */
+public class KeyedExecutor {
+
+    private final Executor executor;
+    private final Map<String, CompletableFuture<?>> tailByKey = new ConcurrentHashMap<>();
+
+    public KeyedExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Добавляет задачу, которая будет выполнена после всех ранее добавленных задач с тем же ключом.
+     *
+     * @param key Ключ задачи
+     * @param task Задача
+     * @return Результат выполнения задачи
+     */
+    public CompletableFuture<Void> execute(String key, Runnable task) {
+        return submit(key, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Добавляет задачу, которая будет выполнена после всех ранее добавленных задач с тем же ключом.
+     *
+     * @param key Ключ задачи
+     * @param task Задача
+     * @param <T> Тип результата задачи
+     * @return Результат выполнения задачи
+     */
+    public <T> CompletableFuture<T> submit(String key, Supplier<T> task) {
+        // Задача запускается вне изменения карты, поэтому пул, выполняющий задачу в вызывающем потоке, и задача,
+        // добавляющая задачу с тем же ключом, не изменяют карту рекурсивно
+        CompletableFuture<T> next = new CompletableFuture<>();
+        CompletableFuture<?> tail = tailByKey.put(key, next);
+        if (tail == null) {
+            run(key, next, task);
+        } else {
+            tail.whenComplete((result, exception) -> run(key, next, task));
+        }
+        return next;
+    }
+
+    private <T> void run(String key, CompletableFuture<T> future, Supplier<T> task) {
+        try {
+            executor.execute(() -> {
+                T result;
+                try {
+                    result = task.get();
+                } catch (Throwable e) {
+                    fail(key, future, e);
+                    return;
+                }
+                // Ключ удаляется до завершения задачи, чтобы ожидающие ее результат уже не видели ключ в tailByKey
+                tailByKey.remove(key, future);
+                future.complete(result);
+            });
+        } catch (RejectedExecutionException e) {
+            fail(key, future, e);
+        }
+    }
+
+    private void fail(String key, CompletableFuture<?> future, Throwable exception) {
+        tailByKey.remove(key, future);
+        future.completeExceptionally(exception);
+    }
+
+    /**
+     * Возвращает количество ключей, у которых есть невыполненные задачи.
+     *
+     * @return Количество ключей
+     */
+    public int getPendingKeys() {
+        return tailByKey.size();
+    }
+
+    /**
+     * Останавливает пул потоков при остановке приложения.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+}
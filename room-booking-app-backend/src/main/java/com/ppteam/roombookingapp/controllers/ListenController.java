@@ -1,32 +1,27 @@
 package com.ppteam.roombookingapp.controllers;
 
-import com.corundumstudio.socketio.SocketIOServer;
-import com.google.gson.*;
-import com.microsoft.graph.http.GraphServiceException;
-import com.microsoft.graph.models.Event;
-import com.microsoft.graph.requests.GraphServiceClient;
+import com.google.gson.JsonSyntaxException;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
-import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 @RestController
 @CrossOrigin(origins = "http://localhost:4200")
 public class ListenController {
 
-    @Autowired
-    private SubscriptionStoreService subscriptionStoreService;
-    @Autowired
-    private AccessTokenStoreService accessTokenStoreService;
-    private final SocketIOServer socketIOServer;
+    static final int retryAfterInSeconds = 5;
 
     @Autowired
-    public ListenController(SocketIOServer socketIOServer) {
-        this.socketIOServer = socketIOServer;
-    }
+    private NotificationQueueService notificationQueueService;
+    @Autowired
+    private SubscriptionRenewalService subscriptionRenewalService;
 
     /**
      * Обрабатывает первичный запрос валидации, отправляемый Microsoft Graph при создании подписки.
@@ -34,77 +29,63 @@ public class ListenController {
      * @param validationToken Токен валидации запроса
      * @return 200 OK ответ сервера с токеном валидации в теле ответа
      */
-    @PostMapping(value = "/listen", headers = {"content-type=text/plain"})
+    @PostMapping(value = {"/listen", "/lifecycle"}, headers = {"content-type=text/plain"})
     @ResponseBody
     public ResponseEntity<String> handleValidation(@RequestParam(value = "validationToken") String validationToken) {
         return ResponseEntity.ok().contentType(MediaType.TEXT_PLAIN).body(validationToken);
     }
 
     /**
-     * Обрабатывает входящие уведомления Microsoft Graph об изменении расписания Outlook.
+     * Принимает входящие уведомления Microsoft Graph об изменении расписания Outlook в очередь обработки.
      *
      * @param jsonPayload Тело запроса
-     * @return 202 Accepted ответ сервера
+     * @return 202 Accepted ответ сервера или 503 Service Unavailable, если очередь обработки переполнена
      */
     @PostMapping("/listen")
-    public CompletableFuture<ResponseEntity<String>> handleNotification(@RequestBody String jsonPayload) {
-        JsonArray notifications = parseNotificationStringToJsonArray(jsonPayload);
-        if (notifications.isEmpty()) {
-            return CompletableFuture.completedFuture(ResponseEntity.noContent().build());
+    public ResponseEntity<String> handleNotification(@RequestBody byte[] jsonPayload) {
+        if (!notificationQueueService.enqueue(jsonPayload)) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterInSeconds)).body("");
         }
-        for (JsonElement notification : notifications) {
-            String subscriptionId = notification.getAsJsonObject().get("subscriptionId").getAsString();
-            if (!subscriptionStoreService.hasSubscriptionWithId(subscriptionId)) {
-                continue;
-            }
-            String calApiId = SubscriptionStoreService.getCalendarApiIdFromResource(
-                    subscriptionStoreService.getSubscription(subscriptionId).resource);
-            String changeType = notification.getAsJsonObject().get("changeType").getAsString();
-            String resource = notification.getAsJsonObject().get("resource").getAsString();
-            String userId = resource.split("/")[1];
-            if (accessTokenStoreService.hasAccessTokenForUserId(userId)) {
-                if (Objects.equals(changeType, "created")) {
-                    GraphServiceClient<okhttp3.Request> graphClient = GraphClientHelper.getGraphClient(
-                            accessTokenStoreService.getAccessTokenByUserId(userId));
-                    graphClient.customRequest("/" + resource + "/", Event.class).buildRequest().getAsync()
-                            .thenAccept(event -> {
-                                socketIOServer.getRoomOperations(calApiId)
-                                        .sendEvent("add_event", new NewEventNotification(event.id, event.subject,
-                                                event.start, event.end, event.organizer));
-                            });
-                } else if (Objects.equals(changeType, "updated")) {
-                    GraphServiceClient<okhttp3.Request> graphClient = GraphClientHelper.getGraphClient(
-                            accessTokenStoreService.getAccessTokenByUserId(userId));
-                    graphClient.customRequest("/" + resource + "/", Event.class).buildRequest().getAsync()
-                            .whenComplete((event, exception) -> {
-                                if (exception != null && exception.getCause() instanceof GraphServiceException) {
-                                    if (Objects.equals(((GraphServiceException) exception.getCause()).getError().error.code,
-                                            "ErrorItemNotFound")) {
-                                        String eventId = resource.split("/")[3];
-                                        socketIOServer.getRoomOperations(calApiId).sendEvent("delete_event", eventId);
-                                    }
-                                } else {
-                                    socketIOServer.getRoomOperations(calApiId)
-                                            .sendEvent("update_event", new NewEventNotification(event.id, event.subject,
-                                                    event.start, event.end, event.organizer));
-                                }
-                            });
-                } else {
-                    String eventId = resource.split("/")[3];
-                    socketIOServer.getRoomOperations(calApiId).sendEvent("delete_event", eventId);
-                }
+        return ResponseEntity.accepted().body("");
+    }
+
+    /**
+     * Обрабатывает уведомления Microsoft Graph о жизненном цикле подписок, которые отправляются подпискам с данными
+     * ресурса.
+     *
+     * @param jsonPayload Тело запроса
+     * @return 202 Accepted ответ сервера или 400 Bad Request, если тело запроса не является корректным Json
+     */
+    @PostMapping("/lifecycle")
+    public ResponseEntity<String> handleLifecycleNotification(@RequestBody byte[] jsonPayload) {
+        List<GraphNotification> notifications;
+        try {
+            notifications = NotificationDecoder.decode(jsonPayload);
+        } catch (JsonSyntaxException e) {
+            return ResponseEntity.badRequest().body("");
+        }
+        for (GraphNotification notification : notifications) {
+            if (notification.lifecycleEvent != null) {
+                subscriptionRenewalService.handleLifecycleNotification(notification.subscriptionId,
+                        notification.lifecycleEvent, notification.clientState);
             }
         }
-        return CompletableFuture.completedFuture(ResponseEntity.accepted().body(""));
+        return ResponseEntity.accepted().body("");
     }
 
     /**
-     * Преобразует уведомление из строки Json в массив объектов Json.
+     * Возвращает состояние очереди обработки уведомлений.
      *
-     * @param json Уведомление в виде строке Json
-     * @return Уведомление в виде массива объектов Json
+     * @return 200 OK ответ сервера с размером очереди, задержкой обработки и количеством потерянных уведомлений
      */
-    private static JsonArray parseNotificationStringToJsonArray(String json) {
-        return JsonParser.parseString(json).getAsJsonObject().get("value").getAsJsonArray();
+    @GetMapping("/listen/status")
+    public ResponseEntity<Map<String, Long>> getQueueStatus() {
+        Map<String, Long> status = new LinkedHashMap<>();
+        status.put("queueDepth", (long) notificationQueueService.getQueueDepth());
+        status.put("processingLagMillis", notificationQueueService.getProcessingLagMillis());
+        status.put("droppedNotifications", notificationQueueService.getDroppedNotifications());
+        status.put("rejectedNotifications", notificationQueueService.getRejectedNotifications());
+        return ResponseEntity.ok(status);
     }
 }
@@ -1,9 +1,20 @@
 package com.ppteam.roombookingapp.controllers;
 
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import com.microsoft.graph.models.DateTimeTimeZone;
 import com.microsoft.graph.models.Recipient;
 
-public class NewEventNotification {
+import java.io.Serializable;
+import java.util.Map;
+
+public class NewEventNotification implements Serializable {
+
+    /**
+     * Уведомления передаются между узлами кластера, поэтому версия сериализации задана явно и меняется только при
+     * несовместимом изменении полей.
+     */
+    private static final long serialVersionUID = 1L;
 
     public final String id;
     public final String subject;
@@ -18,4 +29,54 @@ public class NewEventNotification {
         this.end = end.dateTime;
         this.organizer = organizer.emailAddress.name;
     }
+
+    public NewEventNotification(String id, String subject, String start, String end, String organizer) {
+        this.id = id;
+        this.subject = subject;
+        this.start = start;
+        this.end = end;
+        this.organizer = organizer;
+    }
+
+    /**
+     * Создает уведомление о событии из события Microsoft Graph в формате Json.
+     *
+     * @param event Событие в формате Json
+     * @return Уведомление о событии
+     */
+    public static NewEventNotification fromJson(JsonObject event) {
+        JsonElement subject = event.get("subject");
+        JsonElement organizer = event.get("organizer");
+        return new NewEventNotification(event.get("id").getAsString(),
+                subject == null || subject.isJsonNull() ? null : subject.getAsString(),
+                event.getAsJsonObject("start").get("dateTime").getAsString(),
+                event.getAsJsonObject("end").get("dateTime").getAsString(),
+                organizer == null || organizer.isJsonNull() ? null
+                        : organizer.getAsJsonObject().getAsJsonObject("emailAddress").get("name").getAsString());
+    }
+
+    /**
+     * Создает уведомление о событии из данных ресурса, полученных в уведомлении Microsoft Graph. Свойства событий
+     * Outlook в данных ресурса могут быть названы с заглавной буквы, поэтому названия свойств приводятся к виду,
+     * используемому в Microsoft Graph.
+     *
+     * @param resourceData Расшифрованные данные ресурса
+     * @return Уведомление о событии
+     */
+    public static NewEventNotification fromResourceData(JsonObject resourceData) {
+        return fromJson(normalizePropertyNames(resourceData));
+    }
+
+    private static JsonObject normalizePropertyNames(JsonObject object) {
+        JsonObject normalized = new JsonObject();
+        for (Map.Entry<String, JsonElement> property : object.entrySet()) {
+            String name = property.getKey();
+            if (!name.isEmpty() && Character.isUpperCase(name.charAt(0))) {
+                name = Character.toLowerCase(name.charAt(0)) + name.substring(1);
+            }
+            JsonElement value = property.getValue();
+            normalized.add(name, value.isJsonObject() ? normalizePropertyNames(value.getAsJsonObject()) : value);
+        }
+        return normalized;
+    }
 }
@@ -0,0 +1,110 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Объединяет уведомления об изменении одного и того же события, пришедшие в течение короткого окна, в одно итоговое
+ * изменение. Изменения, окна которых истекли, передаются на обработку вместе, чтобы запросы событий к Microsoft Graph
+ * можно было объединить в batch запросы.
+ */
+@Service
+public class NotificationCoalescingService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private EventChangeService eventChangeService;
+    @Value("${notifications.coalescing-window-ms}")
+    private long coalescingWindowMillis;
+    @Value("${notifications.max-fetch-attempts}")
+    private int maxFetchAttempts;
+
+    private final Map<String, PendingChange> pendingChanges = new ConcurrentHashMap<>();
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    private void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "notification-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long flushIntervalMillis = Math.max(10, coalescingWindowMillis / 4);
+        scheduler.scheduleWithFixedDelay(this::flushDueChanges, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Добавляет изменение события в окно объединения. Первое изменение события открывает окно, по истечении которого
+     * итоговое изменение передается на обработку.
+     *
+     * @param change Изменение события
+     */
+    public void submit(EventChange change) {
+        long flushAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(coalescingWindowMillis);
+        pendingChanges.merge(change.resource, new PendingChange(change, flushAtNanos),
+                (pending, next) -> new PendingChange(pending.change.merge(next.change), pending.flushAtNanos));
+    }
+
+    /**
+     * Передает на обработку итоговые изменения событий, окна объединения которых истекли. Изменения, которые не удалось
+     * обработать из-за временной ошибки, повторно добавляются в окно объединения.
+     */
+    private void flushDueChanges() {
+        long now = System.nanoTime();
+        List<EventChange> dueChanges = new ArrayList<>();
+        for (Map.Entry<String, PendingChange> entry : pendingChanges.entrySet()) {
+            PendingChange pending = entry.getValue();
+            if (pending.flushAtNanos - now <= 0 && pendingChanges.remove(entry.getKey(), pending)) {
+                dueChanges.add(pending.change);
+            }
+        }
+        if (dueChanges.isEmpty()) {
+            return;
+        }
+        try {
+            eventChangeService.applyChanges(dueChanges).thenAccept(failedChanges -> {
+                for (EventChange failedChange : failedChanges) {
+                    if (failedChange.attempt < maxFetchAttempts) {
+                        submit(failedChange.nextAttempt());
+                    } else {
+                        log.warn("Не удалось получить событие {} после {} попыток", failedChange.eventId,
+                                failedChange.attempt);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("Не удалось обработать изменения событий", e);
+        }
+    }
+
+    private static class PendingChange {
+
+        private final EventChange change;
+        private final long flushAtNanos;
+
+        private PendingChange(EventChange change, long flushAtNanos) {
+            this.change = change;
+            this.flushAtNanos = flushAtNanos;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Потоковый разбор тела запроса с уведомлениями Microsoft Graph. Уведомления читаются из Json без построения дерева
+ * всего запроса: сохраняются только используемые приложением свойства, а остальные пропускаются. Деревом читаются
+ * только зашифрованные данные ресурса, если они есть в уведомлении.
+ * <p>
+ * Уведомление без ID подписки или с неизвестным путем ресурса пропускается, не прерывая разбор остальных уведомлений
+ * запроса.
+ */
+public final class NotificationDecoder {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationDecoder.class);
+
+    private NotificationDecoder() {
+    }
+
+    /**
+     * Разбирает тело запроса с уведомлениями Microsoft Graph.
+     *
+     * @param payload Тело запроса в кодировке UTF-8
+     * @return Уведомления
+     * @throws JsonSyntaxException если тело запроса не является корректным Json
+     */
+    public static List<GraphNotification> decode(byte[] payload) {
+        return decode(new InputStreamReader(new ByteArrayInputStream(payload), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Разбирает тело запроса с уведомлениями Microsoft Graph.
+     *
+     * @param payload Тело запроса
+     * @return Уведомления
+     * @throws JsonSyntaxException если тело запроса не является корректным Json
+     */
+    public static List<GraphNotification> decode(Reader payload) {
+        List<GraphNotification> notifications = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(payload)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("value") && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        GraphNotification notification = readNotification(reader);
+                        if (notification != null) {
+                            notifications.add(notification);
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        }
+        return notifications;
+    }
+
+    /**
+     * Читает уведомление из массива уведомлений.
+     *
+     * @return Уведомление или null, если уведомление не содержит ID подписки или его путь ресурса неизвестен
+     */
+    private static GraphNotification readNotification(JsonReader reader) throws IOException {
+        String subscriptionId = null;
+        String changeType = null;
+        String resource = null;
+        String lifecycleEvent = null;
+        JsonObject encryptedContent = null;
+        String clientState = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "subscriptionId":
+                    subscriptionId = nextStringOrNull(reader);
+                    break;
+                case "changeType":
+                    changeType = nextStringOrNull(reader);
+                    break;
+                case "resource":
+                    resource = nextStringOrNull(reader);
+                    break;
+                case "lifecycleEvent":
+                    lifecycleEvent = nextStringOrNull(reader);
+                    break;
+                case "clientState":
+                    clientState = nextStringOrNull(reader);
+                    break;
+                case "encryptedContent":
+                    JsonElement content = JsonParser.parseReader(reader);
+                    encryptedContent = content.isJsonObject() ? content.getAsJsonObject() : null;
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        if (subscriptionId == null) {
+            log.warn("Пропущено уведомление без ID подписки для ресурса {}", resource);
+            return null;
+        }
+        ResourcePath resourcePath = null;
+        if (resource != null) {
+            try {
+                resourcePath = ResourcePath.parse(resource);
+            } catch (IllegalArgumentException e) {
+                log.warn("Пропущено уведомление подписки {}: {}", subscriptionId, e.getMessage());
+                return null;
+            }
+        }
+        return new GraphNotification(subscriptionId, changeType, resourcePath, lifecycleEvent, encryptedContent,
+                clientState);
+    }
+
+    private static String nextStringOrNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+}
@@ -0,0 +1,145 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.*;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Objects;
+
+/**
+ * Управляет сертификатом шифрования уведомлений Microsoft Graph с данными ресурса и расшифровывает такие уведомления.
+ * Сертификат и закрытый ключ загружаются из локального хранилища ключей PKCS12.
+ */
+@Service
+public class NotificationEncryptionService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Value("${notifications.include-resource-data}")
+    private boolean includeResourceData;
+    @Value("${notifications.encryption.keystore-path}")
+    private String keystorePath;
+    @Value("${notifications.encryption.keystore-password}")
+    private String keystorePassword;
+    @Value("${notifications.encryption.key-alias}")
+    private String keyAlias;
+    @Value("${notifications.encryption.certificate-id}")
+    private String certificateId;
+
+    private PrivateKey privateKey;
+    private String encodedCertificate;
+
+    @PostConstruct
+    private void loadKeystore() throws IOException, GeneralSecurityException {
+        if (!includeResourceData) {
+            return;
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream keystoreStream = Files.newInputStream(Path.of(keystorePath))) {
+            keyStore.load(keystoreStream, keystorePassword.toCharArray());
+        }
+        privateKey = (PrivateKey) keyStore.getKey(keyAlias, keystorePassword.toCharArray());
+        Certificate certificate = keyStore.getCertificate(keyAlias);
+        if (privateKey == null || certificate == null) {
+            throw new KeyStoreException("Ключ " + keyAlias + " не найден в хранилище " + keystorePath);
+        }
+        encodedCertificate = Base64.getEncoder().encodeToString(certificate.getEncoded());
+        log.info("Загружен сертификат шифрования уведомлений {}", certificateId);
+    }
+
+    /**
+     * Возвращает true, если подписки создаются с получением данных ресурса в уведомлениях, иначе false.
+     *
+     * @return true, если уведомления содержат зашифрованные данные ресурса, иначе false
+     */
+    public boolean isEnabled() {
+        return includeResourceData;
+    }
+
+    /**
+     * Возвращает сертификат шифрования в кодировке Base64 для передачи при создании подписки.
+     *
+     * @return Сертификат шифрования
+     */
+    public String getEncodedCertificate() {
+        return encodedCertificate;
+    }
+
+    /**
+     * Возвращает ID сертификата шифрования, передаваемый при создании подписки.
+     *
+     * @return ID сертификата шифрования
+     */
+    public String getCertificateId() {
+        return certificateId;
+    }
+
+    /**
+     * Расшифровывает и проверяет данные ресурса из уведомления Microsoft Graph.
+     *
+     * @param encryptedContent Зашифрованные данные ресурса из уведомления
+     * @return Данные ресурса в формате Json
+     * @throws GeneralSecurityException если данные зашифрованы другим сертификатом или подпись данных неверна
+     */
+    public JsonObject decryptResourceData(JsonObject encryptedContent) throws GeneralSecurityException {
+        if (privateKey == null) {
+            throw new InvalidKeyException("Сертификат шифрования уведомлений не загружен");
+        }
+        String encryptionCertificateId = encryptedContent.get("encryptionCertificateId").getAsString();
+        if (!Objects.equals(encryptionCertificateId, certificateId)) {
+            throw new InvalidKeyException("Данные зашифрованы неизвестным сертификатом " + encryptionCertificateId);
+        }
+        String resourceData = decryptResourceData(privateKey, encryptedContent.get("dataKey").getAsString(),
+                encryptedContent.get("data").getAsString(), encryptedContent.get("dataSignature").getAsString());
+        return JsonParser.parseString(resourceData).getAsJsonObject();
+    }
+
+    /**
+     * Расшифровывает данные ресурса из уведомления Microsoft Graph. Симметричный ключ расшифровывается закрытым ключом
+     * сертификата, подпись HMAC-SHA256 зашифрованных данных проверяется этим ключом, после чего данные расшифровываются
+     * алгоритмом AES-CBC с вектором инициализации из первых 16 байт ключа.
+     *
+     * @param privateKey Закрытый ключ сертификата шифрования
+     * @param dataKey Зашифрованный симметричный ключ в кодировке Base64
+     * @param data Зашифрованные данные в кодировке Base64
+     * @param dataSignature Подпись зашифрованных данных в кодировке Base64
+     * @return Расшифрованные данные
+     * @throws GeneralSecurityException если подпись данных неверна или данные не удалось расшифровать
+     */
+    public static String decryptResourceData(PrivateKey privateKey, String dataKey, String data, String dataSignature)
+            throws GeneralSecurityException {
+        Cipher keyCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+        keyCipher.init(Cipher.DECRYPT_MODE, privateKey);
+        byte[] symmetricKey = keyCipher.doFinal(Base64.getDecoder().decode(dataKey));
+        byte[] encryptedData = Base64.getDecoder().decode(data);
+
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(symmetricKey, "HmacSHA256"));
+        byte[] actualSignature = mac.doFinal(encryptedData);
+        if (!MessageDigest.isEqual(actualSignature, Base64.getDecoder().decode(dataSignature))) {
+            throw new SignatureException("Подпись данных уведомления неверна");
+        }
+
+        Cipher dataCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        dataCipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(symmetricKey, "AES"),
+                new IvParameterSpec(Arrays.copyOf(symmetricKey, 16)));
+        return new String(dataCipher.doFinal(encryptedData), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,78 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.util.Objects;
+
+/**
+ * Разбирает уведомления Microsoft Graph об изменении расписания Outlook и передает изменения событий на объединение.
+ * Если уведомления содержат зашифрованные данные ресурса, то они расшифровываются и передаются вместе с изменением.
+ * Уведомления без секрета подписки (clientState) отбрасываются, так как их мог отправить не Microsoft Graph.
+ */
+@Service
+public class NotificationHandlerService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private SubscriptionStoreService subscriptionStoreService;
+    @Autowired
+    private NotificationCoalescingService notificationCoalescingService;
+    @Autowired
+    private NotificationEncryptionService notificationEncryptionService;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+
+    /**
+     * Обрабатывает тело запроса с уведомлениями Microsoft Graph об изменении расписания Outlook.
+     *
+     * @param jsonPayload Тело запроса в кодировке UTF-8
+     * @param receivedAtNanos Время получения запроса по {@link System#nanoTime()}
+     */
+    public void handleNotifications(byte[] jsonPayload, long receivedAtNanos) {
+        for (GraphNotification notification : NotificationDecoder.decode(jsonPayload)) {
+            SubscriptionRecord subscription = subscriptionStoreService.findSubscription(notification.subscriptionId);
+            if (subscription == null) {
+                pipelineMetrics.recordUnknownSubscription();
+                continue;
+            }
+            if (!subscription.hasClientState(notification.clientState)) {
+                log.warn("Пропущено уведомление подписки {} с неверным секретом подписки", notification.subscriptionId);
+                continue;
+            }
+            ResourcePath resource = notification.resource;
+            if (resource == null || resource.eventId == null) {
+                log.warn("Пропущено уведомление подписки {} без ID события: {}", notification.subscriptionId,
+                        resource == null ? null : resource.resource);
+                continue;
+            }
+            boolean deleted = Objects.equals(notification.changeType, "deleted");
+            NewEventNotification resourceData = deleted ? null : getResourceData(notification);
+            notificationCoalescingService.submit(new EventChange(subscription.calendarApiId, resource.userId,
+                    resource.resource, resource.eventId, Objects.equals(notification.changeType, "created"), deleted,
+                    resourceData, receivedAtNanos));
+        }
+    }
+
+    /**
+     * Извлекает состояние события из зашифрованных данных ресурса уведомления.
+     *
+     * @param notification Уведомление Microsoft Graph
+     * @return Состояние события или null, если уведомление не содержит данных ресурса или их не удалось расшифровать
+     */
+    private NewEventNotification getResourceData(GraphNotification notification) {
+        if (!notificationEncryptionService.isEnabled() || notification.encryptedContent == null) {
+            return null;
+        }
+        try {
+            return NewEventNotification.fromResourceData(
+                    notificationEncryptionService.decryptResourceData(notification.encryptedContent));
+        } catch (Exception e) {
+            log.warn("Не удалось получить данные ресурса из уведомления, событие будет запрошено у Microsoft Graph", e);
+            return null;
+        }
+    }
+}
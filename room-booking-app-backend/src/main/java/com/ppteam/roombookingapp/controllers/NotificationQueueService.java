@@ -0,0 +1,172 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограниченная очередь входящих уведомлений Microsoft Graph. Уведомления принимаются в очередь без обработки, а
+ * обрабатываются пулом рабочих потоков, поэтому ответ на запрос Microsoft Graph не зависит от скорости обработки.
+ */
+@Service
+public class NotificationQueueService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    /**
+     * Политика обработки уведомления, пришедшего при заполненной очереди.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Уведомление отклоняется, и Microsoft Graph повторно отправляет его позже.
+         */
+        REJECT,
+        /**
+         * Из очереди удаляется самое старое уведомление, а новое добавляется в очередь.
+         */
+        DROP_OLDEST,
+        /**
+         * Новое уведомление отбрасывается, но его получение подтверждается.
+         */
+        DROP_NEWEST
+    }
+
+    @Autowired
+    private NotificationHandlerService notificationHandlerService;
+    @Value("${notifications.queue-capacity}")
+    private int queueCapacity;
+    @Value("${notifications.worker-threads}")
+    private int workerThreads;
+    @Value("${notifications.overflow-policy}")
+    private OverflowPolicy overflowPolicy;
+
+    private BlockingQueue<QueuedNotification> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong droppedNotifications = new AtomicLong();
+    private final AtomicLong rejectedNotifications = new AtomicLong();
+    private volatile long lastProcessingLagNanos;
+
+    @PostConstruct
+    private void start() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < workerThreads; i++) {
+            Thread worker = new Thread(this::processQueue, "notification-worker-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    @PreDestroy
+    private void stop() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Добавляет тело запроса с уведомлениями в очередь обработки. Если очередь заполнена, то применяет настроенную
+     * политику переполнения.
+     *
+     * @param jsonPayload Тело запроса с уведомлениями в кодировке UTF-8
+     * @return true, если получение уведомлений можно подтвердить, иначе false
+     */
+    public boolean enqueue(byte[] jsonPayload) {
+        QueuedNotification notification = new QueuedNotification(jsonPayload, System.nanoTime());
+        if (queue.offer(notification)) {
+            return true;
+        }
+        switch (overflowPolicy) {
+            case DROP_OLDEST:
+                while (!queue.offer(notification)) {
+                    if (queue.poll() != null) {
+                        droppedNotifications.incrementAndGet();
+                    }
+                }
+                log.warn("Очередь уведомлений переполнена, самое старое уведомление отброшено");
+                return true;
+            case DROP_NEWEST:
+                droppedNotifications.incrementAndGet();
+                log.warn("Очередь уведомлений переполнена, новое уведомление отброшено");
+                return true;
+            default:
+                rejectedNotifications.incrementAndGet();
+                log.warn("Очередь уведомлений переполнена, уведомление отклонено");
+                return false;
+        }
+    }
+
+    /**
+     * Возвращает количество уведомлений, ожидающих обработки.
+     *
+     * @return Количество уведомлений в очереди
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Возвращает время ожидания в очереди последнего взятого в обработку уведомления.
+     *
+     * @return Задержка обработки в миллисекундах
+     */
+    public long getProcessingLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastProcessingLagNanos);
+    }
+
+    /**
+     * Возвращает количество уведомлений, отброшенных из-за переполнения очереди.
+     *
+     * @return Количество отброшенных уведомлений
+     */
+    public long getDroppedNotifications() {
+        return droppedNotifications.get();
+    }
+
+    /**
+     * Возвращает количество уведомлений, отклоненных из-за переполнения очереди.
+     *
+     * @return Количество отклоненных уведомлений
+     */
+    public long getRejectedNotifications() {
+        return rejectedNotifications.get();
+    }
+
+    private void processQueue() {
+        while (!Thread.currentThread().isInterrupted()) {
+            QueuedNotification notification;
+            try {
+                notification = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lastProcessingLagNanos = System.nanoTime() - notification.receivedAtNanos;
+            try {
+                notificationHandlerService.handleNotifications(notification.jsonPayload, notification.receivedAtNanos);
+            } catch (RuntimeException e) {
+                log.error("Не удалось обработать уведомление", e);
+            }
+        }
+    }
+
+    private static class QueuedNotification {
+
+        private final byte[] jsonPayload;
+        private final long receivedAtNanos;
+
+        private QueuedNotification(byte[] jsonPayload, long receivedAtNanos) {
+            this.jsonPayload = jsonPayload;
+            this.receivedAtNanos = receivedAtNanos;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.SocketIOServer;
+import io.micrometer.core.instrument.*;
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Метрики обработки уведомлений Microsoft Graph от получения уведомления до отправки socket события клиентам.
+ * Таймеры и счетчики создаются один раз и кэшируются по тегам, поэтому запись значения не требует поиска метрики в
+ * реестре. Метрики доступны в формате Prometheus по адресу /actuator/prometheus.
+ */
+@Component
+public class PipelineMetrics {
+
+    private final MeterRegistry meterRegistry;
+    private final SocketIOServer socketIOServer;
+
+    private final Map<String, Timer> deliveryTimerByEvent = new ConcurrentHashMap<>();
+    private final Map<String, Timer> graphTimerByTags = new ConcurrentHashMap<>();
+    private final Map<String, Counter> graphErrorCounterByTags = new ConcurrentHashMap<>();
+    private final Map<String, Counter> subscriptionChangeCounterByOperation = new ConcurrentHashMap<>();
+    private final Map<String, Counter> suppressedBroadcastCounterByEvent = new ConcurrentHashMap<>();
+    private final Map<String, Counter> droppedChangeCounterByReason = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> roomGauges = new ConcurrentHashMap<>();
+    private final Counter unknownSubscriptionCounter;
+    private final Timer renewalTimeToExpiryTimer;
+    private final Counter expiredBeforeRenewalCounter;
+    private final Interceptor graphRequestInterceptor = this::interceptGraphRequest;
+
+    @Autowired
+    public PipelineMetrics(MeterRegistry meterRegistry, SocketIOServer socketIOServer) {
+        this.meterRegistry = meterRegistry;
+        this.socketIOServer = socketIOServer;
+        unknownSubscriptionCounter = Counter.builder("roombooking.notifications.unknown.subscription")
+                .description("Уведомления, отброшенные из-за неизвестного ID подписки")
+                .register(meterRegistry);
+        renewalTimeToExpiryTimer = Timer.builder("roombooking.subscriptions.renewal.time.to.expiry")
+                .description("Время до окончания срока действия подписки в момент ее продления")
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofSeconds(1))
+                .maximumExpectedValue(Duration.ofHours(1))
+                .register(meterRegistry);
+        expiredBeforeRenewalCounter = Counter.builder("roombooking.subscriptions.expired.before.renewal")
+                .description("Подписки, срок действия которых истек до продления")
+                .register(meterRegistry);
+        if (socketIOServer != null) {
+            Gauge.builder("roombooking.socket.clients", socketIOServer, server -> server.getAllClients().size())
+                    .description("Подключенные socket клиенты")
+                    .register(meterRegistry);
+            Gauge.builder("roombooking.socket.rooms", roomGauges, rooms -> rooms.keySet().stream()
+                            .filter(room -> getRoomClients(room) > 0)
+                            .count())
+                    .description("Комнаты календарей, в которых есть socket клиенты")
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * Записывает время от получения уведомления до отправки socket события клиентам.
+     *
+     * @param receivedAtNanos Время получения уведомления по {@link System#nanoTime()}
+     * @param eventName Название socket события
+     */
+    public void recordDelivery(long receivedAtNanos, String eventName) {
+        long elapsedNanos = System.nanoTime() - receivedAtNanos;
+        deliveryTimerByEvent.computeIfAbsent(eventName, name -> Timer.builder("roombooking.notifications.delivery")
+                .description("Время от получения уведомления Microsoft Graph до отправки socket события")
+                .tag("event", name)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(10))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry)).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Учитывает уведомление, отброшенное из-за неизвестного ID подписки.
+     */
+    public void recordUnknownSubscription() {
+        unknownSubscriptionCounter.increment();
+    }
+
+    /**
+     * Записывает время, оставшееся до окончания срока действия подписки в момент ее продления. Чем меньше это время,
+     * тем сильнее продление отстает от срока действия подписки.
+     *
+     * @param timeToExpiry Время до окончания срока действия подписки
+     */
+    public void recordRenewal(Duration timeToExpiry) {
+        if (timeToExpiry.isNegative()) {
+            expiredBeforeRenewalCounter.increment();
+        } else {
+            renewalTimeToExpiryTimer.record(timeToExpiry);
+        }
+    }
+
+    /**
+     * Учитывает socket событие, которое не было разослано, так как отображаемые свойства события не изменились.
+     *
+     * @param eventName Название socket события
+     */
+    public void recordSuppressedBroadcast(String eventName) {
+        suppressedBroadcastCounterByEvent.computeIfAbsent(eventName,
+                name -> Counter.builder("roombooking.broadcasts.suppressed")
+                        .description("Socket события, не разосланные из-за неизменных отображаемых свойств события")
+                        .tag("event", name)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Учитывает неудачный запрос из batch запроса Microsoft Graph.
+     *
+     * @param operation Операция Microsoft Graph
+     * @param status HTTP статус ответа или -1, если ответа нет
+     */
+    public void recordGraphError(String operation, int status) {
+        String statusTag = String.valueOf(status);
+        graphErrorCounterByTags.computeIfAbsent(operation + " " + statusTag,
+                key -> Counter.builder("roombooking.graph.errors")
+                        .description("Неудачные запросы к Microsoft Graph")
+                        .tag("operation", operation)
+                        .tag("status", statusTag)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Учитывает изменение события, которое было отброшено без запроса к Microsoft Graph.
+     *
+     * @param reason Причина: no_token, если нет токена доступа пользователя подписки
+     */
+    public void recordDroppedChange(String reason) {
+        droppedChangeCounterByReason.computeIfAbsent(reason,
+                key -> Counter.builder("roombooking.changes.dropped")
+                        .description("Изменения событий, отброшенные без запроса к Microsoft Graph")
+                        .tag("reason", reason)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Учитывает созданную или удаленную подписку. Вместе с roombooking.rooms.linger.rejoined показывает, сколько
+     * пересозданий подписок удается избежать при быстром возврате клиентов в комнаты.
+     *
+     * @param operation Операция с подпиской: create или delete
+     */
+    public void recordSubscriptionChange(String operation) {
+        subscriptionChangeCounterByOperation.computeIfAbsent(operation,
+                key -> Counter.builder("roombooking.subscriptions.changes")
+                        .description("Созданные и удаленные подписки Microsoft Graph")
+                        .tag("operation", operation)
+                        .register(meterRegistry)).increment();
+    }
+
+    /**
+     * Регистрирует метрику количества клиентов в комнате календаря. Метрика регистрируется один раз для каждой
+     * просматриваемой комнаты и удаляется методом {@link #unwatchRoom(String)}, поэтому количество рядов метрики
+     * ограничено количеством просматриваемых переговорных.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void watchRoom(String calendarApiId) {
+        if (socketIOServer == null) {
+            return;
+        }
+        roomGauges.computeIfAbsent(calendarApiId,
+                room -> Gauge.builder("roombooking.socket.room.clients", this, metrics -> metrics.getRoomClients(room))
+                        .description("Socket клиенты в комнате календаря")
+                        .tag("calendar", room)
+                        .register(meterRegistry));
+    }
+
+    /**
+     * Удаляет метрику количества клиентов в комнате календаря, который больше не просматривается.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void unwatchRoom(String calendarApiId) {
+        Gauge gauge = roomGauges.remove(calendarApiId);
+        if (gauge != null) {
+            meterRegistry.remove(gauge);
+        }
+    }
+
+    /**
+     * Возвращает календари, для комнат которых зарегистрирована метрика количества клиентов.
+     *
+     * @return ID календарей Outlook
+     */
+    public Set<String> getWatchedRooms() {
+        return roomGauges.keySet();
+    }
+
+    /**
+     * Возвращает количество клиентов в комнате календаря, включая клиентов, подключенных к комнатам дней отображаемого
+     * периода. Такие клиенты всегда находятся в комнате всех периодов календаря.
+     */
+    private int getRoomClients(String calendarApiId) {
+        String allWindowsRoom = RoomBroadcastService.getAllWindowsRoom(calendarApiId);
+        return socketIOServer.getRoomOperations(calendarApiId).getClients().size()
+                + socketIOServer.getRoomOperations(allWindowsRoom).getClients().size();
+    }
+
+    /**
+     * Возвращает перехватчик OkHttp, измеряющий время запросов к Microsoft Graph с тегами операции и HTTP статуса.
+     *
+     * @return Перехватчик запросов Microsoft Graph
+     */
+    public Interceptor getGraphRequestInterceptor() {
+        return graphRequestInterceptor;
+    }
+
+    private Response interceptGraphRequest(Interceptor.Chain chain) throws IOException {
+        Request request = chain.request();
+        String operation = getGraphOperation(request.method(), request.url().encodedPath());
+        long startNanos = System.nanoTime();
+        try {
+            Response response = chain.proceed(request);
+            recordGraphRequest(operation, response.code(), System.nanoTime() - startNanos);
+            return response;
+        } catch (IOException e) {
+            recordGraphRequest(operation, -1, System.nanoTime() - startNanos);
+            throw e;
+        }
+    }
+
+    private void recordGraphRequest(String operation, int status, long elapsedNanos) {
+        String statusTag = String.valueOf(status);
+        graphTimerByTags.computeIfAbsent(operation + " " + statusTag, key -> Timer.builder("roombooking.graph.requests")
+                .description("Время запросов к Microsoft Graph")
+                .tag("operation", operation)
+                .tag("status", statusTag)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(Duration.ofMillis(10))
+                .maximumExpectedValue(Duration.ofSeconds(30))
+                .register(meterRegistry)).record(elapsedNanos, TimeUnit.NANOSECONDS);
+        if (status < 200 || status >= 300) {
+            recordGraphError(operation, status);
+        }
+    }
+
+    /**
+     * Определяет операцию Microsoft Graph по HTTP методу и пути запроса. Количество операций ограничено, чтобы
+     * ID ресурсов не попадали в теги метрик.
+     *
+     * @param method HTTP метод
+     * @param path Путь запроса
+     * @return Название операции
+     */
+    static String getGraphOperation(String method, String path) {
+        // Пути Microsoft Graph нечувствительны к регистру, а пути из уведомлений начинаются с Users и Events
+        String lowerCasePath = path.toLowerCase(Locale.ROOT);
+        if (lowerCasePath.endsWith("/$batch")) {
+            return "batch";
+        }
+        if (lowerCasePath.contains("/subscriptions")) {
+            return "subscriptions." + method.toLowerCase(Locale.ROOT);
+        }
+        if (lowerCasePath.endsWith("/calendarview/delta")) {
+            return "calendarView.delta";
+        }
+        if (lowerCasePath.endsWith("/calendarview")) {
+            return "calendarView";
+        }
+        if (lowerCasePath.contains("/events")) {
+            return "events." + method.toLowerCase(Locale.ROOT);
+        }
+        if (lowerCasePath.contains("/calendars")) {
+            return "calendars";
+        }
+        return "other";
+    }
+}
@@ -0,0 +1,88 @@
+package com.ppteam.roombookingapp.controllers;
+
+import java.util.Objects;
+
+/**
+ * Путь ресурса Microsoft Graph, разобранный на ID пользователя, календаря и события. Поддерживаются пути событий вида
+ * {@code Users/{userId}/Events/{eventId}} и пути событий календаря вида {@code Users/{userId}/calendars/{calendarId}/events},
+ * в том числе с параметрами запроса. Путь разбирается один раз, без разделения строки на массив частей.
+ */
+public final class ResourcePath {
+
+    private static final String calendars = "calendars";
+
+    public final String resource;
+    public final String userId;
+    /**
+     * ID календаря Outlook или null, если путь не указывает на календарь.
+     */
+    public final String calendarId;
+    /**
+     * ID события или null, если путь не указывает на событие.
+     */
+    public final String eventId;
+
+    private ResourcePath(String resource, String userId, String calendarId, String eventId) {
+        this.resource = resource;
+        this.userId = userId;
+        this.calendarId = calendarId;
+        this.eventId = eventId;
+    }
+
+    /**
+     * Разбирает путь ресурса Microsoft Graph.
+     *
+     * @param resource Путь ресурса
+     * @return Разобранный путь ресурса
+     * @throws IllegalArgumentException если путь не указывает на пользователя и его событие или календарь
+     */
+    public static ResourcePath parse(String resource) {
+        int end = resource.indexOf('?');
+        if (end < 0) {
+            end = resource.length();
+        }
+        int userStart = resource.indexOf('/') + 1;
+        int userEnd = userStart > 0 ? resource.indexOf('/', userStart) : -1;
+        int collectionEnd = userEnd >= 0 ? resource.indexOf('/', userEnd + 1) : -1;
+        if (collectionEnd < 0 || collectionEnd >= end) {
+            throw new IllegalArgumentException("Неизвестный путь ресурса: " + resource);
+        }
+        int idEnd = resource.indexOf('/', collectionEnd + 1);
+        if (idEnd < 0 || idEnd > end) {
+            idEnd = end;
+        }
+        String userId = resource.substring(userStart, userEnd);
+        String id = resource.substring(collectionEnd + 1, idEnd);
+        if (collectionEnd - userEnd - 1 == calendars.length()
+                && resource.regionMatches(true, userEnd + 1, calendars, 0, calendars.length())) {
+            String eventId = null;
+            int eventsEnd = idEnd < end ? resource.indexOf('/', idEnd + 1) : -1;
+            if (eventsEnd >= 0 && eventsEnd < end) {
+                eventId = resource.substring(eventsEnd + 1, end);
+            }
+            return new ResourcePath(resource, userId, id, eventId);
+        }
+        return new ResourcePath(resource, userId, null, id);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        return resource.equals(((ResourcePath) o).resource);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(resource);
+    }
+
+    @Override
+    public String toString() {
+        return resource;
+    }
+}
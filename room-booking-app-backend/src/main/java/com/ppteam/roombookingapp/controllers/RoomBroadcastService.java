@@ -0,0 +1,323 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.store.StoreFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Рассылает изменения расписания в socket комнаты календарей. Каждое socket событие комнаты получает порядковый номер,
+ * общий для всех узлов кластера, а последние события каждой комнаты хранятся в ограниченном буфере, чтобы
+ * переподключившийся клиент получил только пропущенные события.
+ * Socket события отправляются с аргументами: данные события, ID календаря Outlook и порядковый номер события.
+ * <p>
+ * Клиент, передавший отображаемый период, подключается не к комнате календаря, а к комнатам дней этого периода и к
+ * комнате всех периодов календаря. Изменение события рассылается в комнату календаря и в комнаты дней, которые событие
+ * занимало до и после изменения, поэтому клиенты не получают изменения событий за пределами своего периода. Если
+ * прежнее положение события неизвестно, то изменение рассылается в комнату всех периодов. Клиент может получить одно
+ * событие из нескольких комнат дней и отбрасывает повторы по порядковому номеру.
+ */
+@Service
+public class RoomBroadcastService {
+
+    private final SocketIOServer socketIOServer;
+
+    @Autowired
+    private StoreFactory storeFactory;
+    @Value("${broadcast.replay-buffer-size}")
+    private int replayBufferSize;
+    @Value("${broadcast.max-window-days}")
+    private int maxWindowDays;
+
+    private static final String roomSeparator = "#";
+    private static final String allWindowsRoomSuffix = roomSeparator + "*";
+    private static final long dayInMillis = TimeUnit.DAYS.toMillis(1);
+
+    private final Map<String, NavigableMap<Long, RoomEvent>> eventsByRoom = new ConcurrentHashMap<>();
+    private Map<String, Long> sequenceByRoom;
+    private String epoch;
+
+    @Autowired
+    public RoomBroadcastService(SocketIOServer socketIOServer) {
+        this.socketIOServer = socketIOServer;
+    }
+
+    /**
+     * Подключает общие для узлов кластера порядковые номера событий. Эпоха меняется, когда порядковые номера начинаются
+     * заново, например при перезапуске приложения без общего хранилища, и позволяет клиенту заметить это.
+     */
+    @PostConstruct
+    private void init() {
+        sequenceByRoom = storeFactory.createMap("room-sequences");
+        Map<String, String> epochs = storeFactory.createMap("room-epochs");
+        String newEpoch = UUID.randomUUID().toString();
+        String currentEpoch = epochs.putIfAbsent("epoch", newEpoch);
+        epoch = currentEpoch != null ? currentEpoch : newEpoch;
+    }
+
+    /**
+     * Отправляет socket событие всем клиентам календаря, независимо от отображаемых ими периодов, и сохраняет его в
+     * буфер комнаты календаря.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param eventName Название socket события
+     * @param payload Данные socket события
+     */
+    public void broadcast(String calendarApiId, String eventName, Object payload) {
+        broadcast(calendarApiId, List.of(calendarApiId, getAllWindowsRoom(calendarApiId)), eventName, payload);
+    }
+
+    /**
+     * Отправляет socket событие всем клиентам в переданных комнатах календаря и сохраняет его в буфер комнаты
+     * календаря. Событие получает один порядковый номер во всех комнатах.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param rooms Комнаты календаря, полученные из {@link #getRooms}
+     * @param eventName Название socket события
+     * @param payload Данные socket события
+     */
+    public void broadcast(String calendarApiId, Collection<String> rooms, String eventName, Object payload) {
+        long sequence = sequenceByRoom.merge(calendarApiId, 1L, Long::sum);
+        record(calendarApiId, eventName, payload, sequence);
+        for (String room : rooms) {
+            socketIOServer.getRoomOperations(room).sendEvent(eventName, payload, calendarApiId, sequence);
+        }
+    }
+
+    /**
+     * Возвращает комнаты, в которые нужно разослать изменение события: комнату календаря и комнаты дней, которые событие
+     * занимало до и после изменения. Если прежнее положение события неизвестно или у события некорректное время, то
+     * вместо комнат дней возвращается комната всех периодов календаря.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param event Событие после изменения или null, если событие удалено
+     * @param previousEvent Событие до изменения или null, если события не было
+     * @param previousEventKnown false, если неизвестно, было ли событие до изменения
+     * @return Комнаты, первой из которых идет комната календаря
+     */
+    public Set<String> getRooms(String calendarApiId, NewEventNotification event, NewEventNotification previousEvent,
+                                boolean previousEventKnown) {
+        Set<String> rooms = new LinkedHashSet<>();
+        rooms.add(calendarApiId);
+        Set<String> dayRooms = new LinkedHashSet<>();
+        if (!previousEventKnown || !addDayRooms(dayRooms, calendarApiId, previousEvent)
+                || !addDayRooms(dayRooms, calendarApiId, event)) {
+            rooms.add(getAllWindowsRoom(calendarApiId));
+        } else {
+            rooms.addAll(dayRooms);
+        }
+        return rooms;
+    }
+
+    /**
+     * Подключает клиента к комнатам календаря для отображаемого периода и отключает от комнат, которые больше не нужны.
+     * Если период не передан или длиннее broadcast.max-window-days дней, то клиент подключается к комнате календаря и
+     * получает все изменения календаря.
+     *
+     * @param client Socket клиент
+     * @param calendarApiId ID календаря Outlook
+     * @param from Начало отображаемого периода в миллисекундах или null
+     * @param to Окончание отображаемого периода в миллисекундах или null
+     * @return true, если клиент подключен к комнатам дней отображаемого периода
+     */
+    public boolean joinRooms(SocketIOClient client, String calendarApiId, Long from, Long to) {
+        Set<String> rooms = new HashSet<>();
+        boolean windowed = from != null && to != null && to > from
+                && Math.floorDiv(to - 1, dayInMillis) - Math.floorDiv(from, dayInMillis) < maxWindowDays;
+        if (windowed) {
+            rooms.add(getAllWindowsRoom(calendarApiId));
+            for (long day = Math.floorDiv(from, dayInMillis); day <= Math.floorDiv(to - 1, dayInMillis); day++) {
+                rooms.add(getDayRoom(calendarApiId, day));
+            }
+        } else {
+            rooms.add(calendarApiId);
+        }
+        for (String room : client.getAllRooms()) {
+            if (getCalendarApiId(room).equals(calendarApiId) && !rooms.contains(room)) {
+                client.leaveRoom(room);
+            }
+        }
+        rooms.forEach(client::joinRoom);
+        return windowed;
+    }
+
+    /**
+     * Отключает клиента от всех комнат календаря.
+     *
+     * @param client Socket клиент
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void leaveRooms(SocketIOClient client, String calendarApiId) {
+        for (String room : client.getAllRooms()) {
+            if (getCalendarApiId(room).equals(calendarApiId)) {
+                client.leaveRoom(room);
+            }
+        }
+    }
+
+    /**
+     * Возвращает комнату, в которую клиенты отображаемых периодов получают изменения, прежнее положение которых
+     * неизвестно.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return Комната всех периодов календаря
+     */
+    public static String getAllWindowsRoom(String calendarApiId) {
+        return calendarApiId + allWindowsRoomSuffix;
+    }
+
+    /**
+     * Возвращает ID календаря Outlook, к которому относится комната.
+     *
+     * @param room Комната календаря, дня или всех периодов календаря
+     * @return ID календаря Outlook
+     */
+    public static String getCalendarApiId(String room) {
+        int separatorIndex = room.indexOf(roomSeparator);
+        return separatorIndex < 0 ? room : room.substring(0, separatorIndex);
+    }
+
+    static String getDayRoom(String calendarApiId, long epochDay) {
+        return calendarApiId + roomSeparator + epochDay;
+    }
+
+    /**
+     * Добавляет комнаты дней, которые занимает событие.
+     *
+     * @return false, если у события некорректное время или событие длиннее broadcast.max-window-days дней
+     */
+    private boolean addDayRooms(Set<String> rooms, String calendarApiId, NewEventNotification event) {
+        if (event == null) {
+            return true;
+        }
+        if (event.start == null || event.end == null) {
+            return false;
+        }
+        long start;
+        long end;
+        try {
+            start = EventIntervalIndex.toEpochMillis(event.start);
+            end = Math.max(start + 1, EventIntervalIndex.toEpochMillis(event.end));
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+        long firstDay = Math.floorDiv(start, dayInMillis);
+        long lastDay = Math.floorDiv(end - 1, dayInMillis);
+        if (lastDay - firstDay >= maxWindowDays) {
+            return false;
+        }
+        for (long day = firstDay; day <= lastDay; day++) {
+            rooms.add(getDayRoom(calendarApiId, day));
+        }
+        return true;
+    }
+
+    /**
+     * Сохраняет в буфер комнаты socket событие, разосланное другим узлом кластера.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param eventName Название socket события
+     * @param payload Данные socket события
+     * @param sequence Порядковый номер события
+     */
+    public void record(String calendarApiId, String eventName, Object payload, long sequence) {
+        NavigableMap<Long, RoomEvent> events = eventsByRoom.computeIfAbsent(calendarApiId, room -> new TreeMap<>());
+        synchronized (events) {
+            events.put(sequence, new RoomEvent(eventName, payload));
+            while (events.size() > replayBufferSize) {
+                events.pollFirstEntry();
+            }
+        }
+    }
+
+    /**
+     * Удаляет буфер событий комнаты календаря, например после удаления подписки календаря. Порядковые номера событий
+     * сохраняются, поэтому переподключившийся клиент получит полное расписание, а не чужие события.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void clearReplayBuffer(String calendarApiId) {
+        eventsByRoom.remove(calendarApiId);
+    }
+
+    /**
+     * Возвращает календари, для которых хранятся буферы событий.
+     *
+     * @return ID календарей Outlook
+     */
+    public Set<String> getBufferedCalendars() {
+        return new HashSet<>(eventsByRoom.keySet());
+    }
+
+    /**
+     * Отправляет клиенту события комнаты, пропущенные им после события с указанным порядковым номером.
+     *
+     * @param client Socket клиент
+     * @param calendarApiId ID календаря Outlook
+     * @param lastEpoch Эпоха последнего полученного клиентом события
+     * @param lastSequence Порядковый номер последнего полученного клиентом события
+     * @return true, если клиент получил все пропущенные события, или false, если пропущенных событий уже нет в буфере
+     * и клиенту нужно полное расписание
+     */
+    public boolean replay(SocketIOClient client, String calendarApiId, String lastEpoch, long lastSequence) {
+        long currentSequence = getSequence(calendarApiId);
+        if (!epoch.equals(lastEpoch) || lastSequence > currentSequence) {
+            return false;
+        }
+        if (lastSequence == currentSequence) {
+            return true;
+        }
+        NavigableMap<Long, RoomEvent> events = eventsByRoom.get(calendarApiId);
+        if (events == null) {
+            return false;
+        }
+        synchronized (events) {
+            if (events.isEmpty() || events.firstKey() > lastSequence + 1) {
+                return false;
+            }
+            for (Map.Entry<Long, RoomEvent> event : events.tailMap(lastSequence, false).entrySet()) {
+                client.sendEvent(event.getValue().eventName, event.getValue().payload, calendarApiId, event.getKey());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Возвращает порядковый номер последнего события комнаты.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return Порядковый номер последнего события или 0, если событий еще не было
+     */
+    public long getSequence(String calendarApiId) {
+        Long sequence = sequenceByRoom.get(calendarApiId);
+        return sequence != null ? sequence : 0;
+    }
+
+    /**
+     * Возвращает эпоху порядковых номеров событий.
+     *
+     * @return Эпоха порядковых номеров
+     */
+    public String getEpoch() {
+        return epoch;
+    }
+
+    private static class RoomEvent {
+
+        private final String eventName;
+        private final Object payload;
+
+        private RoomEvent(String eventName, Object payload) {
+            this.eventName = eventName;
+            this.payload = payload;
+        }
+    }
+}
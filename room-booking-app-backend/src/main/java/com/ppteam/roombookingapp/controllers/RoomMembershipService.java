@@ -0,0 +1,167 @@
+package com.ppteam.roombookingapp.controllers;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+
+/**
+ * Счетчики socket клиентов данного узла в комнатах календарей. Счетчики изменяются при входе в комнату, выходе из нее
+ * и отключении клиента. Когда из комнаты выходит последний клиент, календарь еще в течение заданного времени считается
+ * просматриваемым, поэтому его подписка и кэшированное расписание сохраняются. Если клиент вернется в комнату в течение
+ * этого времени, то получит уже готовые подписку и расписание без повторного создания подписки.
+ */
+@Service
+public class RoomMembershipService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final long lingerInMillis;
+    private final Map<String, RoomMembers> membersByCalendar = new HashMap<>();
+    private final Map<UUID, Set<String>> calendarsBySession = new HashMap<>();
+    private final Counter lingerRejoinCounter;
+
+    @Autowired
+    public RoomMembershipService(@Value("${rooms.linger-ms}") long lingerInMillis, MeterRegistry meterRegistry) {
+        this.lingerInMillis = lingerInMillis;
+        lingerRejoinCounter = Counter.builder("roombooking.rooms.linger.rejoined")
+                .description("Возвраты клиентов в комнату, подписка которой сохранялась после выхода последнего клиента")
+                .register(meterRegistry);
+        Gauge.builder("roombooking.rooms.watched", this, membership -> membership.countRooms(false))
+                .description("Комнаты календарей, в которых есть клиенты данного узла")
+                .register(meterRegistry);
+        Gauge.builder("roombooking.rooms.lingering", this, membership -> membership.countRooms(true))
+                .description("Комнаты календарей без клиентов, подписки которых еще сохраняются")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Учитывает вход клиента в комнату календаря. Повторный вход того же клиента не учитывается.
+     *
+     * @param sessionId ID сессии socket клиента
+     * @param calendarApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook, от имени которого можно создать подписку
+     * @return true, если клиент вернулся в комнату, подписка которой еще сохраняется после выхода последнего клиента
+     */
+    public synchronized boolean join(UUID sessionId, String calendarApiId, String userId) {
+        if (!calendarsBySession.computeIfAbsent(sessionId, id -> new HashSet<>()).add(calendarApiId)) {
+            return false;
+        }
+        RoomMembers members = membersByCalendar.computeIfAbsent(calendarApiId, id -> new RoomMembers());
+        members.userId = userId;
+        members.count++;
+        boolean rejoined = members.count == 1 && members.lingerUntilInMillis > System.currentTimeMillis();
+        members.lingerUntilInMillis = 0;
+        if (rejoined) {
+            lingerRejoinCounter.increment();
+            log.info("Клиент вернулся в комнату календаря {}, подписка сохранена", calendarApiId);
+        }
+        return rejoined;
+    }
+
+    /**
+     * Учитывает выход клиента из комнаты календаря.
+     *
+     * @param sessionId ID сессии socket клиента
+     * @param calendarApiId ID календаря Outlook
+     */
+    public synchronized void leave(UUID sessionId, String calendarApiId) {
+        Set<String> calendars = calendarsBySession.get(sessionId);
+        if (calendars == null || !calendars.remove(calendarApiId)) {
+            return;
+        }
+        if (calendars.isEmpty()) {
+            calendarsBySession.remove(sessionId);
+        }
+        release(calendarApiId);
+    }
+
+    /**
+     * Учитывает выход отключившегося клиента из всех комнат.
+     *
+     * @param sessionId ID сессии socket клиента
+     */
+    public synchronized void disconnect(UUID sessionId) {
+        Set<String> calendars = calendarsBySession.remove(sessionId);
+        if (calendars != null) {
+            calendars.forEach(this::release);
+        }
+    }
+
+    /**
+     * Возвращает true, если клиент находится в комнате календаря.
+     *
+     * @param sessionId ID сессии socket клиента
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если клиент находится в комнате календаря
+     */
+    public synchronized boolean isMember(UUID sessionId, String calendarApiId) {
+        Set<String> calendars = calendarsBySession.get(sessionId);
+        return calendars != null && calendars.contains(calendarApiId);
+    }
+
+    /**
+     * Возвращает true, если в комнате календаря есть клиенты данного узла или последний клиент вышел из нее недавно.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если календарь просматривается
+     */
+    public synchronized boolean isWatched(String calendarApiId) {
+        RoomMembers members = membersByCalendar.get(calendarApiId);
+        return members != null && members.isWatched(System.currentTimeMillis());
+    }
+
+    /**
+     * Возвращает календари, просматриваемые клиентами данного узла, включая календари, из комнат которых последний
+     * клиент вышел недавно. Календари, время ожидания которых истекло, забываются.
+     *
+     * @return ID пользователя Outlook для каждого просматриваемого календаря
+     */
+    public synchronized Map<String, String> getWatchedCalendars() {
+        long now = System.currentTimeMillis();
+        Map<String, String> watchedCalendars = new HashMap<>();
+        Iterator<Map.Entry<String, RoomMembers>> iterator = membersByCalendar.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, RoomMembers> entry = iterator.next();
+            if (entry.getValue().isWatched(now)) {
+                watchedCalendars.put(entry.getKey(), entry.getValue().userId);
+            } else {
+                iterator.remove();
+            }
+        }
+        return watchedCalendars;
+    }
+
+    private void release(String calendarApiId) {
+        RoomMembers members = membersByCalendar.get(calendarApiId);
+        if (members != null && --members.count == 0) {
+            members.lingerUntilInMillis = System.currentTimeMillis() + lingerInMillis;
+            log.info("Последний клиент покинул комнату календаря {}, подписка сохраняется {} мс", calendarApiId,
+                    lingerInMillis);
+        }
+    }
+
+    private synchronized long countRooms(boolean lingering) {
+        long now = System.currentTimeMillis();
+        return membersByCalendar.values().stream()
+                .filter(members -> lingering ? members.count == 0 && members.isWatched(now) : members.count > 0)
+                .count();
+    }
+
+    private static class RoomMembers {
+
+        private int count;
+        private long lingerUntilInMillis;
+        private String userId;
+
+        private boolean isWatched(long now) {
+            return count > 0 || lingerUntilInMillis > now;
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.microsoft.graph.core.CustomRequestBuilder;
+import com.microsoft.graph.options.HeaderOption;
+import com.microsoft.graph.options.Option;
+import com.microsoft.graph.options.QueryOption;
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш расписаний календарей Outlook. Расписание каждого календаря загружается и обновляется с помощью delta запросов
+ * Microsoft Graph, а также дополняется событиями из уведомлений об изменении расписания. Для каждого расписания
+ * поддерживается индекс интервалов событий, по которому выполняются запросы занятости переговорных.
+ * <p>
+ * Расписание не привязано к пользователю, впервые запросившему его: пользователь, от имени которого выполняется
+ * синхронизация, выбирается заново перед каждой синхронизацией среди пользователей, для которых есть токен доступа.
+ * Если пользователь сменился, то расписание загружается заново, так как delta ссылка действительна только для
+ * пользователя, получившего ее. Расписания, которые не удалось синхронизировать schedule-cache.max-sync-failures раз
+ * подряд, удаляются из кэша. Также удаляются расписания, которые не запрашивались дольше schedule-cache.idle-minutes и
+ * которые не просматривают клиенты данного узла.
+ * <p>
+ * Расписание загружается за период относительно текущего дня UTC, поэтому в начале каждого дня UTC оно загружается
+ * заново за сдвинутый период. Изменения уже загруженного расписания, обнаруженные синхронизацией, передаются
+ * обработчикам {@link ScheduleChangeListener}, которые рассылают их клиентам. События, вышедшие за начало периода, не
+ * считаются удаленными, а события после окончания периода, добавленные из уведомлений, сохраняются при загрузке
+ * расписания заново.
+ */
+@Service
+public class ScheduleCacheService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private static final int maxPageSize = 100;
+
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Autowired
+    @Qualifier("storeUpdateExecutor")
+    private KeyedExecutor storeUpdateExecutor;
+    @Autowired
+    private SubscriptionStoreService subscriptionStoreService;
+    @Autowired
+    private RoomMembershipService roomMembershipService;
+    @Value("${schedule-cache.window-past-days}")
+    private int windowPastDays;
+    @Value("${schedule-cache.window-future-days}")
+    private int windowFutureDays;
+    @Value("${schedule-cache.max-sync-failures}")
+    private int maxSyncFailures;
+    @Value("${schedule-cache.idle-minutes}")
+    private long idleMinutes;
+
+    private final Map<String, RoomSchedule> scheduleByCalendar = new ConcurrentHashMap<>();
+    private final AtomicLong versionSequence = new AtomicLong();
+    /**
+     * Эпоха версий расписаний. Порядковые номера версий начинаются заново при перезапуске приложения и независимы на
+     * разных узлах кластера, поэтому версия расписания включает случайную эпоху узла.
+     */
+    private final String versionEpoch = UUID.randomUUID().toString();
+    private final List<ScheduleChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Возвращает расписание календаря Outlook, при необходимости загружая его из Microsoft Graph.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook, запрашивающего расписание. Используется для синхронизации, если у
+     *               календаря нет подписки и нет пользователя, от имени которого расписание уже синхронизировалось
+     * @return Расписание календаря или null, если расписание не удалось загрузить
+     */
+    public CompletableFuture<RoomSchedule> getSchedule(String calendarApiId, String userId) {
+        RoomSchedule schedule = scheduleByCalendar.computeIfAbsent(calendarApiId, RoomSchedule::new);
+        schedule.lastRequestedAtInMillis = System.currentTimeMillis();
+        if (userId != null) {
+            schedule.requestedByUserId = userId;
+        }
+        if (schedule.isLoaded()) {
+            return CompletableFuture.completedFuture(schedule);
+        }
+        return syncDelta(schedule).thenApply(synced -> schedule.isLoaded() ? schedule : null);
+    }
+
+    /**
+     * Возвращает загруженное расписание календаря Outlook без обращения к Microsoft Graph.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return Расписание календаря или null, если расписание еще не загружено
+     */
+    public RoomSchedule getCachedSchedule(String calendarApiId) {
+        RoomSchedule schedule = scheduleByCalendar.get(calendarApiId);
+        return schedule != null && schedule.isLoaded() ? schedule : null;
+    }
+
+    /**
+     * Возвращает все загруженные расписания календарей.
+     *
+     * @return Загруженные расписания
+     */
+    public List<RoomSchedule> getCachedSchedules() {
+        List<RoomSchedule> schedules = new ArrayList<>();
+        for (RoomSchedule schedule : scheduleByCalendar.values()) {
+            if (schedule.isLoaded()) {
+                schedules.add(schedule);
+            }
+        }
+        return schedules;
+    }
+
+    /**
+     * Добавляет или обновляет событие в расписании календаря, если расписание этого календаря кэшируется.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param event Событие
+     */
+    public void putEvent(String calendarApiId, NewEventNotification event) {
+        RoomSchedule schedule = scheduleByCalendar.get(calendarApiId);
+        if (schedule != null) {
+            schedule.events.put(event.id, event);
+            schedule.intervals.put(event);
+            schedule.version = nextVersion();
+        }
+    }
+
+    /**
+     * Удаляет событие из расписания календаря, если расписание этого календаря кэшируется.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @param eventId ID события
+     */
+    public void removeEvent(String calendarApiId, String eventId) {
+        RoomSchedule schedule = scheduleByCalendar.get(calendarApiId);
+        if (schedule != null && schedule.events.remove(eventId) != null) {
+            schedule.intervals.remove(eventId);
+            schedule.version = nextVersion();
+        }
+    }
+
+    /**
+     * Удаляет расписание календаря из кэша.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void evictSchedule(String calendarApiId) {
+        scheduleByCalendar.remove(calendarApiId);
+    }
+
+    /**
+     * Запускает внеочередную delta синхронизацию расписания календаря, если расписание этого календаря кэшируется.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void refreshSchedule(String calendarApiId) {
+        RoomSchedule schedule = scheduleByCalendar.get(calendarApiId);
+        if (schedule != null) {
+            syncDelta(schedule);
+        }
+    }
+
+    /**
+     * Добавляет обработчик изменений событий, обнаруженных delta синхронизацией загруженного расписания. Обработчик
+     * вызывается в storeUpdateExecutor после применения изменений к расписанию.
+     *
+     * @param listener Обработчик изменений
+     */
+    public void addChangeListener(ScheduleChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    /**
+     * Синхронизирует все кэшированные расписания с Microsoft Graph с помощью delta запросов и удаляет из кэша
+     * расписания, которые не запрашивались дольше schedule-cache.idle-minutes и не просматриваются клиентами.
+     */
+    @Scheduled(fixedDelayString = "${schedule-cache.delta-sync-interval-ms}")
+    public void syncAllSchedules() {
+        long idleSince = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(idleMinutes);
+        for (RoomSchedule schedule : scheduleByCalendar.values()) {
+            if (schedule.lastRequestedAtInMillis < idleSince
+                    && !roomMembershipService.isWatched(schedule.calendarApiId)) {
+                if (scheduleByCalendar.remove(schedule.calendarApiId, schedule)) {
+                    log.debug("Расписание календаря {} удалено из кэша, так как не используется",
+                            schedule.calendarApiId);
+                }
+            } else {
+                syncDelta(schedule);
+            }
+        }
+    }
+
+    /**
+     * Запускает delta синхронизацию расписания. Если синхронизация этого расписания уже выполняется, то возвращает ее.
+     *
+     * @param schedule Расписание календаря
+     * @return Результат синхронизации
+     */
+    private CompletableFuture<Void> syncDelta(RoomSchedule schedule) {
+        synchronized (schedule) {
+            if (schedule.pendingSync != null) {
+                return schedule.pendingSync;
+            }
+            String userId = getSyncUserId(schedule);
+            // Токен выбранного пользователя может быть удален между выбором пользователя и получением клиента
+            GraphServiceClient<Request> graphClient = userId != null ? graphClientHelper.getGraphClient(userId) : null;
+            if (graphClient == null) {
+                log.warn("Нет пользователя с токеном доступа для синхронизации расписания календаря {}",
+                        schedule.calendarApiId);
+                onSyncFailed(schedule);
+                return CompletableFuture.completedFuture(null);
+            }
+            LocalDate today = LocalDate.now(ZoneOffset.UTC);
+            boolean fullSync = schedule.deltaLink == null || schedule.reseedRequired
+                    || !userId.equals(schedule.deltaUserId) || !today.equals(schedule.seededOn);
+            CompletableFuture<Void> sync;
+            if (fullSync) {
+                String url = graphClient.getServiceRoot() + "/users/" + userId + "/calendars/"
+                        + schedule.calendarApiId + "/calendarView/delta";
+                List<Option> options = new ArrayList<>(getRequestOptions());
+                OffsetDateTime todayStart = today.atStartOfDay().atOffset(ZoneOffset.UTC);
+                options.add(new QueryOption("startDateTime",
+                        todayStart.minusDays(windowPastDays).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+                options.add(new QueryOption("endDateTime",
+                        todayStart.plusDays(windowFutureDays).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME)));
+                sync = fetchDeltaPage(graphClient, schedule, userId, today, url, options, new ArrayList<>());
+            } else {
+                sync = fetchDeltaPage(graphClient, schedule, userId, null, schedule.deltaLink, getRequestOptions(),
+                        new ArrayList<>());
+            }
+            schedule.pendingSync = sync.whenComplete((result, exception) -> {
+                synchronized (schedule) {
+                    schedule.pendingSync = null;
+                }
+                if (exception != null) {
+                    log.warn("Не удалось синхронизировать расписание календаря {} от имени пользователя {}",
+                            schedule.calendarApiId, userId, exception);
+                    onSyncFailed(schedule);
+                }
+            });
+            return schedule.pendingSync;
+        }
+    }
+
+    /**
+     * Выбирает пользователя, от имени которого синхронизируется расписание: владельца подписки на календарь,
+     * пользователя, от имени которого расписание синхронизировалось ранее, или последнего запросившего расписание
+     * пользователя. Выбирается первый из них, для которого есть клиент Microsoft Graph.
+     *
+     * @param schedule Расписание календаря
+     * @return ID пользователя Outlook или null, если ни для одного из пользователей нет токена доступа
+     */
+    private String getSyncUserId(RoomSchedule schedule) {
+        SubscriptionRecord subscription = subscriptionStoreService.getSubscriptionForCalendarId(schedule.calendarApiId);
+        for (String userId : Arrays.asList(subscription != null ? subscription.userId : null, schedule.deltaUserId,
+                schedule.requestedByUserId)) {
+            if (userId != null && graphClientHelper.getGraphClient(userId) != null) {
+                return userId;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Учитывает неудачную синхронизацию расписания. Следующая синхронизация загружает расписание заново, так как
+     * delta ссылка могла стать недействительной, а после schedule-cache.max-sync-failures неудач подряд расписание
+     * удаляется из кэша.
+     *
+     * @param schedule Расписание календаря
+     */
+    private void onSyncFailed(RoomSchedule schedule) {
+        schedule.reseedRequired = true;
+        if (++schedule.failedSyncs >= maxSyncFailures && scheduleByCalendar.remove(schedule.calendarApiId, schedule)) {
+            log.warn("Расписание календаря {} удалено из кэша после {} неудачных синхронизаций подряд",
+                    schedule.calendarApiId, schedule.failedSyncs);
+        }
+    }
+
+    /**
+     * Загружает страницу delta запроса и все следующие за ней страницы, после чего применяет полученные изменения к
+     * расписанию.
+     *
+     * @param graphClient Клиент Microsoft Graph
+     * @param schedule Расписание календаря
+     * @param userId ID пользователя Outlook, от имени которого выполняется запрос
+     * @param seededOn День UTC, относительно которого расписание загружается заново, или null для delta запроса по
+     *                 delta ссылке
+     * @param url Адрес страницы
+     * @param options Параметры запроса
+     * @param changes Изменения, полученные на предыдущих страницах
+     * @return Результат загрузки
+     */
+    private CompletableFuture<Void> fetchDeltaPage(GraphServiceClient<Request> graphClient, RoomSchedule schedule,
+                                                   String userId, LocalDate seededOn, String url, List<Option> options,
+                                                   List<JsonObject> changes) {
+        return graphRequestScheduler.submit(userId, GraphRequestPriority.SYNC,
+                        () -> new CustomRequestBuilder<>(url, graphClient, options, JsonObject.class).buildRequest().getAsync())
+                .thenComposeAsync(page -> {
+                    for (JsonElement item : page.getAsJsonArray("value")) {
+                        changes.add(item.getAsJsonObject());
+                    }
+                    if (page.has("@odata.nextLink")) {
+                        return fetchDeltaPage(graphClient, schedule, userId, seededOn,
+                                page.get("@odata.nextLink").getAsString(), getRequestOptions(), changes);
+                    }
+                    String deltaLink = page.get("@odata.deltaLink").getAsString();
+                    return storeUpdateExecutor.execute(schedule.calendarApiId,
+                            () -> applyChanges(schedule, changes, deltaLink, userId, seededOn));
+                }, graphCallbackExecutor);
+    }
+
+    /**
+     * Применяет изменения, полученные delta запросом, к расписанию календаря. Выполняется в storeUpdateExecutor, чтобы
+     * не пересекаться с изменениями расписания из уведомлений.
+     *
+     * Если расписание загружено заново, то полученные события заменяют все события расписания в периоде загрузки.
+     * События, закончившиеся до начала периода, удаляются без уведомления, а события, начинающиеся после окончания
+     * периода, сохраняются, так как delta запрос их не возвращает.
+     * <p>
+     * Изменения уже загруженного расписания передаются обработчикам изменений: созданные события и события, у которых
+     * изменились отображаемые свойства, а также удаленные события периода загрузки. При первой загрузке расписания
+     * обработчики не вызываются.
+     *
+     * @param schedule Расписание календаря
+     * @param changes Измененные и удаленные события
+     * @param deltaLink Ссылка для следующего delta запроса
+     * @param userId ID пользователя Outlook, от имени которого получены изменения
+     * @param seededOn День UTC, относительно которого расписание загружено заново, или null, если получены только
+     *                 изменения по delta ссылке
+     */
+    void applyChanges(RoomSchedule schedule, List<JsonObject> changes, String deltaLink, String userId,
+                      LocalDate seededOn) {
+        boolean fullSync = seededOn != null;
+        boolean loaded = schedule.isLoaded();
+        List<Runnable> notifications = new ArrayList<>();
+        Map<String, NewEventNotification> loadedEvents = new HashMap<>();
+        for (JsonObject change : changes) {
+            String eventId = change.get("id").getAsString();
+            if (change.has("@removed")) {
+                NewEventNotification previousEvent = schedule.events.remove(eventId);
+                if (loaded && previousEvent != null) {
+                    notifications.add(() -> notifyListeners(schedule, eventId, null, previousEvent));
+                }
+            } else {
+                NewEventNotification event = NewEventNotification.fromJson(change);
+                NewEventNotification previousEvent = schedule.events.put(eventId, event);
+                loadedEvents.put(eventId, event);
+                if (loaded && (previousEvent == null || EventFingerprintService.getFingerprint(previousEvent)
+                        != EventFingerprintService.getFingerprint(event))) {
+                    notifications.add(() -> notifyListeners(schedule, eventId, event, previousEvent));
+                }
+            }
+        }
+        if (fullSync) {
+            long windowStartInMillis = seededOn.minusDays(windowPastDays).atStartOfDay(ZoneOffset.UTC).toInstant()
+                    .toEpochMilli();
+            long windowEndInMillis = seededOn.plusDays(windowFutureDays).atStartOfDay(ZoneOffset.UTC).toInstant()
+                    .toEpochMilli();
+            Iterator<NewEventNotification> iterator = schedule.events.values().iterator();
+            while (iterator.hasNext()) {
+                NewEventNotification previousEvent = iterator.next();
+                if (loadedEvents.containsKey(previousEvent.id) || startsAfter(previousEvent, windowEndInMillis)) {
+                    continue;
+                }
+                iterator.remove();
+                if (loaded && !endsBefore(previousEvent, windowStartInMillis)) {
+                    notifications.add(() -> notifyListeners(schedule, previousEvent.id, null, previousEvent));
+                }
+            }
+            schedule.seededOn = seededOn;
+        }
+        if (!changes.isEmpty() || fullSync) {
+            schedule.intervals.rebuild(schedule.events.values());
+            schedule.version = nextVersion();
+        }
+        schedule.deltaLink = deltaLink;
+        schedule.deltaUserId = userId;
+        schedule.reseedRequired = false;
+        schedule.failedSyncs = 0;
+        notifications.forEach(Runnable::run);
+        log.debug("Расписание календаря {} синхронизировано, изменений: {}", schedule.calendarApiId, changes.size());
+    }
+
+    private String nextVersion() {
+        return versionEpoch + "-" + versionSequence.incrementAndGet();
+    }
+
+    private void notifyListeners(RoomSchedule schedule, String eventId, NewEventNotification event,
+                                 NewEventNotification previousEvent) {
+        changeListeners.forEach(listener -> listener.onEventChanged(schedule.calendarApiId, eventId, event,
+                previousEvent));
+    }
+
+    private static boolean endsBefore(NewEventNotification event, long timeInMillis) {
+        try {
+            return EventIntervalIndex.toEpochMillis(event.end) <= timeInMillis;
+        } catch (DateTimeParseException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    private static boolean startsAfter(NewEventNotification event, long timeInMillis) {
+        try {
+            return EventIntervalIndex.toEpochMillis(event.start) >= timeInMillis;
+        } catch (DateTimeParseException | NullPointerException e) {
+            return false;
+        }
+    }
+
+    private static List<Option> getRequestOptions() {
+        List<Option> options = new ArrayList<>();
+        options.add(new HeaderOption("Prefer", "odata.maxpagesize=" + maxPageSize));
+        return options;
+    }
+
+    /**
+     * Обработчик изменений событий, обнаруженных delta синхронизацией расписания.
+     */
+    public interface ScheduleChangeListener {
+
+        /**
+         * Вызывается после применения изменения события к расписанию.
+         *
+         * @param calendarApiId ID календаря Outlook
+         * @param eventId ID события
+         * @param event Событие после изменения или null, если событие удалено
+         * @param previousEvent Событие до изменения или null, если события не было в расписании
+         */
+        void onEventChanged(String calendarApiId, String eventId, NewEventNotification event,
+                            NewEventNotification previousEvent);
+    }
+
+    /**
+     * Кэшированное расписание календаря Outlook.
+     */
+    public static class RoomSchedule {
+
+        private final String calendarApiId;
+        private final Map<String, NewEventNotification> events = new ConcurrentHashMap<>();
+        private final EventIntervalIndex intervals = new EventIntervalIndex();
+        private volatile String deltaLink;
+        private volatile String deltaUserId;
+        private volatile String requestedByUserId;
+        private volatile LocalDate seededOn;
+        private volatile boolean reseedRequired;
+        private volatile int failedSyncs;
+        private volatile String version;
+        private volatile long lastRequestedAtInMillis;
+        private CompletableFuture<Void> pendingSync;
+
+        private RoomSchedule(String calendarApiId) {
+            this.calendarApiId = calendarApiId;
+        }
+
+        private boolean isLoaded() {
+            return deltaLink != null;
+        }
+
+        /**
+         * Возвращает ID календаря Outlook.
+         *
+         * @return ID календаря Outlook
+         */
+        public String getCalendarApiId() {
+            return calendarApiId;
+        }
+
+        /**
+         * Возвращает индекс интервалов событий расписания.
+         *
+         * @return Индекс интервалов событий
+         */
+        public EventIntervalIndex getIntervals() {
+            return intervals;
+        }
+
+        /**
+         * Возвращает события расписания.
+         *
+         * @return События расписания
+         */
+        public Collection<NewEventNotification> getEvents() {
+            return new ArrayList<>(events.values());
+        }
+
+        /**
+         * Возвращает событие расписания по ID.
+         *
+         * @param eventId ID события
+         * @return Событие или null, если события нет в расписании
+         */
+        public NewEventNotification getEvent(String eventId) {
+            return events.get(eventId);
+        }
+
+        /**
+         * Возвращает версию расписания, которая меняется при каждом изменении расписания. Версии не повторяются после
+         * перезапуска приложения и на разных узлах кластера.
+         *
+         * @return Версия расписания
+         */
+        public String getVersion() {
+            return version;
+        }
+    }
+}
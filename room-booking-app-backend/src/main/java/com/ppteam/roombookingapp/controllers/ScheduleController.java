@@ -0,0 +1,105 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+@RestController
+@CrossOrigin(origins = "http://localhost:4200", exposedHeaders = "ETag")
+public class ScheduleController {
+
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private CalendarDirectoryService calendarDirectoryService;
+    @Autowired
+    private CallerIdentityService callerIdentityService;
+
+    /**
+     * Возвращает список календарей Outlook пользователя из кэша сервера. Пользователь определяется по токену доступа
+     * Microsoft Graph из заголовка Authorization, поэтому возвращается только его собственный список. Если список не
+     * изменился с момента предыдущего запроса клиента (по If-None-Match, а при его отсутствии по If-Modified-Since),
+     * возвращает 304 Not Modified.
+     *
+     * @param requestHeaders Заголовки запроса
+     * @return 200 OK ответ сервера с календарями пользователя, 304 Not Modified, если список не изменился,
+     * 401 Unauthorized, если токен доступа не передан или не принят, или 404 Not Found, если список не удалось загрузить
+     */
+    @GetMapping("/calendars")
+    public CompletableFuture<ResponseEntity<List<CalendarDirectoryService.CalendarEntry>>> getCalendars(
+            @RequestHeader HttpHeaders requestHeaders) {
+        return callerIdentityService.getCallerId(requestHeaders.getFirst(HttpHeaders.AUTHORIZATION))
+                .thenCompose(userId -> {
+                    if (userId == null) {
+                        return completedStatus(HttpStatus.UNAUTHORIZED);
+                    }
+                    return calendarDirectoryService.getDirectory(userId).thenApply(directory -> {
+                        if (directory == null) {
+                            return ResponseEntity.notFound().build();
+                        }
+                        String eTag = "\"" + directory.getVersion() + "\"";
+                        List<String> ifNoneMatch = requestHeaders.getIfNoneMatch();
+                        boolean notModified = ifNoneMatch.isEmpty()
+                                ? directory.getLastModifiedInMillis() <= requestHeaders.getIfModifiedSince()
+                                : ifNoneMatch.contains(eTag) || ifNoneMatch.contains("*");
+                        if (notModified) {
+                            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag)
+                                    .lastModified(directory.getLastModifiedInMillis()).build();
+                        }
+                        return ResponseEntity.ok().eTag(eTag).lastModified(directory.getLastModifiedInMillis())
+                                .cacheControl(CacheControl.noCache()).body(directory.getCalendars());
+                    });
+                });
+    }
+
+    /**
+     * Возвращает расписание календаря Outlook из кэша сервера. Пользователь определяется по токену доступа Microsoft
+     * Graph из заголовка Authorization, а расписание возвращается, только если календарь есть в списке его календарей.
+     * Если расписание не изменилось с момента предыдущего запроса клиента, возвращает 304 Not Modified.
+     *
+     * @param calApiId ID календаря Outlook
+     * @param authorization Заголовок Authorization с токеном доступа пользователя
+     * @param ifNoneMatch Версия расписания, имеющаяся у клиента
+     * @return 200 OK ответ сервера с событиями календаря, 304 Not Modified, если расписание не изменилось,
+     * 401 Unauthorized, если токен доступа не передан или не принят, 403 Forbidden, если календарь недоступен
+     * пользователю, или 404 Not Found, если расписание не удалось загрузить
+     */
+    @GetMapping("/calendars/{calApiId}/events")
+    public CompletableFuture<ResponseEntity<Collection<NewEventNotification>>> getEvents(
+            @PathVariable String calApiId,
+            @RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization,
+            @RequestHeader(value = "If-None-Match", required = false) String ifNoneMatch) {
+        return callerIdentityService.getCallerId(authorization).thenCompose(userId -> {
+            if (userId == null) {
+                return completedStatus(HttpStatus.UNAUTHORIZED);
+            }
+            return calendarDirectoryService.hasCalendar(userId, calApiId).thenCompose(hasCalendar -> {
+                if (!hasCalendar) {
+                    return completedStatus(HttpStatus.FORBIDDEN);
+                }
+                return scheduleCacheService.getSchedule(calApiId, userId).thenApply(schedule -> {
+                    if (schedule == null) {
+                        return ResponseEntity.notFound().build();
+                    }
+                    String eTag = "\"" + schedule.getVersion() + "\"";
+                    if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+                        return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).build();
+                    }
+                    return ResponseEntity.ok().eTag(eTag).cacheControl(CacheControl.noCache())
+                            .body(schedule.getEvents());
+                });
+            });
+        });
+    }
+
+    private static <T> CompletableFuture<ResponseEntity<T>> completedStatus(HttpStatus status) {
+        return CompletableFuture.completedFuture(ResponseEntity.status(status).build());
+    }
+}
@@ -1,9 +1,11 @@
 package com.ppteam.roombookingapp.controllers;
 
 import com.corundumstudio.socketio.AckRequest;
+import com.corundumstudio.socketio.HandshakeData;
 import com.corundumstudio.socketio.SocketIOClient;
 import com.corundumstudio.socketio.SocketIOServer;
 import com.corundumstudio.socketio.listener.DataListener;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.microsoft.graph.models.ChangeType;
@@ -12,14 +14,25 @@ import com.microsoft.graph.requests.GraphServiceClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.web.bind.annotation.*;
 
+import java.security.SecureRandom;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 @RestController
 @CrossOrigin(origins = "http://localhost:4200")
@@ -30,120 +43,424 @@ public class SubscriptionController {
     @Autowired
     private SubscriptionStoreService subscriptionStoreService;
     @Autowired
-    private AccessTokenStoreService accessTokenStoreService;
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private NotificationEncryptionService notificationEncryptionService;
+    @Autowired
+    private ClusterService clusterService;
+    @Autowired
+    private RoomBroadcastService roomBroadcastService;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+    @Autowired
+    private RoomMembershipService roomMembershipService;
+    @Autowired
+    private EventFingerprintService eventFingerprintService;
+    @Autowired
+    private CalendarDirectoryService calendarDirectoryService;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    private CallerIdentityService callerIdentityService;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Autowired
+    @Qualifier("storeUpdateExecutor")
+    private KeyedExecutor storeUpdateExecutor;
+    @Autowired
+    @Qualifier("socketFanoutExecutor")
+    private KeyedExecutor socketFanoutExecutor;
+    private static final SecureRandom secureRandom = new SecureRandom();
     static final String notificationHost = "https://d10c-185-42-144-194.eu.ngrok.io";
-    static final int subscriptionLifetimeInMinutes = 1;
-    static final int handicapInSeconds = 3;
+    @Value("${subscriptions.lifetime-minutes}")
+    private long subscriptionLifetimeInMinutes;
+    @Value("${persistence.reconnect-grace-ms}")
+    private long reconnectGraceInMillis;
+    private final long startedAtInMillis = System.currentTimeMillis();
     private final SocketIOServer socketIOServer;
+    private final Map<UUID, CompletableFuture<String>> callerIdBySession = new ConcurrentHashMap<>();
+    private final Set<String> deletingSubscriptions = ConcurrentHashMap.newKeySet();
 
     public SubscriptionController(SocketIOServer socketIOServer) {
         this.socketIOServer = socketIOServer;
+        this.socketIOServer.addConnectListener(client -> callerIdBySession.put(client.getSessionId(), resolveCallerId(client)));
         this.socketIOServer.addEventListener("join_calendar_room", String.class, new DataListener<String>() {
             @Override
             public void onData(SocketIOClient client, String request, AckRequest ackRequest) throws Exception {
                 JsonObject requestJson = JsonParser.parseString(request).getAsJsonObject();
-                String userId = requestJson.get("userId").getAsString().substring(19, 36).replace("-", "");
                 String calApiId = requestJson.get("calApiId").getAsString();
-                log.info("Клиент {} создал комнату для календаря {}", client.getSessionId(), calApiId);
-                client.joinRoom(calApiId);
-                createSubForCalendarIfNotExists(calApiId, userId);
+                authorize(client, calApiId).thenAccept(userId -> {
+                    if (userId != null) {
+                        joinCalendarRoom(client, requestJson, calApiId, userId, ackRequest);
+                    }
+                }).exceptionally(exception -> {
+                    log.warn("Не удалось подключить клиента {} к комнате календаря {}", client.getSessionId(), calApiId,
+                            exception);
+                    return null;
+                });
             }
         });
         this.socketIOServer.addEventListener("leave_calendar_room", String.class, new DataListener<String>() {
             @Override
             public void onData(SocketIOClient client, String calApiId, AckRequest ackRequest) throws Exception {
                 log.info("Клиент {} покинул комнату для календаря {}", client.getSessionId(), calApiId);
-                client.leaveRoom(calApiId);
+                roomBroadcastService.leaveRooms(client, calApiId);
+                roomMembershipService.leave(client.getSessionId(), calApiId);
+            }
+        });
+        this.socketIOServer.addEventListener("update_calendar_window", String.class, new DataListener<String>() {
+            @Override
+            public void onData(SocketIOClient client, String request, AckRequest ackRequest) throws Exception {
+                JsonObject requestJson = JsonParser.parseString(request).getAsJsonObject();
+                String calApiId = requestJson.get("calApiId").getAsString();
+                authorize(client, calApiId).thenAccept(userId -> {
+                    if (userId == null || !roomMembershipService.isMember(client.getSessionId(), calApiId)) {
+                        return;
+                    }
+                    String epoch = roomBroadcastService.getEpoch();
+                    long sequence = roomBroadcastService.getSequence(calApiId);
+                    Long windowStart = getLongOrNull(requestJson, "start");
+                    Long windowEnd = getLongOrNull(requestJson, "end");
+                    if (roomBroadcastService.joinRooms(client, calApiId, windowStart, windowEnd)) {
+                        sendSnapshot(client, calApiId, userId, epoch, sequence, windowStart, windowEnd);
+                    } else {
+                        sendSnapshot(client, calApiId, userId, epoch, sequence, null, null);
+                    }
+                }).exceptionally(exception -> {
+                    log.warn("Не удалось обновить период комнаты календаря {} для клиента {}", calApiId,
+                            client.getSessionId(), exception);
+                    return null;
+                });
             }
         });
+        this.socketIOServer.addDisconnectListener(client -> {
+            callerIdBySession.remove(client.getSessionId());
+            roomMembershipService.disconnect(client.getSessionId());
+        });
+    }
+
+    /**
+     * Подключает клиента к комнатам календаря, создает подписку календаря и отправляет клиенту пропущенные события или
+     * расписание календаря.
+     *
+     * @param client Socket клиент
+     * @param requestJson Запрос клиента
+     * @param calApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook, подключившего клиента
+     * @param ackRequest Запрос подтверждения
+     */
+    private void joinCalendarRoom(SocketIOClient client, JsonObject requestJson, String calApiId, String userId,
+                                  AckRequest ackRequest) {
+        log.info("Клиент {} создал комнату для календаря {}", client.getSessionId(), calApiId);
+        String epoch = roomBroadcastService.getEpoch();
+        long sequence = roomBroadcastService.getSequence(calApiId);
+        Long windowStart = getLongOrNull(requestJson, "start");
+        Long windowEnd = getLongOrNull(requestJson, "end");
+        if (!roomBroadcastService.joinRooms(client, calApiId, windowStart, windowEnd)) {
+            windowStart = null;
+            windowEnd = null;
+        }
+        pipelineMetrics.watchRoom(calApiId);
+        roomMembershipService.join(client.getSessionId(), calApiId, userId);
+        clusterService.addLocalWatcher(calApiId, userId);
+        createSubForCalendarIfNotExists(calApiId, userId);
+        JsonElement lastSequence = requestJson.get("lastSeq");
+        if (lastSequence == null || lastSequence.isJsonNull()) {
+            scheduleCacheService.getSchedule(calApiId, userId);
+        } else {
+            JsonElement lastEpoch = requestJson.get("lastEpoch");
+            boolean replayed = roomBroadcastService.replay(client, calApiId,
+                    lastEpoch == null || lastEpoch.isJsonNull() ? null : lastEpoch.getAsString(),
+                    lastSequence.getAsLong());
+            if (!replayed) {
+                sendSnapshot(client, calApiId, userId, epoch, sequence, windowStart, windowEnd);
+            }
+        }
+        if (ackRequest.isAckRequested()) {
+            Map<String, Object> position = new LinkedHashMap<>();
+            position.put("epoch", epoch);
+            position.put("seq", sequence);
+            ackRequest.sendAckData(position);
+        }
+    }
+
+    /**
+     * Определяет пользователя, подключившего socket клиента, по токену доступа Microsoft Graph из параметра
+     * access_token адреса подключения или из заголовка Authorization.
+     *
+     * @param client Socket клиент
+     * @return ID пользователя Outlook или null, если токен не передан или не принят
+     */
+    private CompletableFuture<String> resolveCallerId(SocketIOClient client) {
+        HandshakeData handshakeData = client.getHandshakeData();
+        String authorization = handshakeData.getHttpHeaders().get(HttpHeaders.AUTHORIZATION);
+        return authorization != null
+                ? callerIdentityService.getCallerId(authorization)
+                : callerIdentityService.getCallerIdByToken(handshakeData.getSingleUrlParam("access_token"));
+    }
+
+    /**
+     * Возвращает пользователя, подключившего socket клиента.
+     *
+     * @param client Socket клиент
+     * @return ID пользователя Outlook или null, если клиент подключился без действительного токена доступа
+     */
+    private CompletableFuture<String> getCallerId(SocketIOClient client) {
+        CompletableFuture<String> callerId = callerIdBySession.get(client.getSessionId());
+        if (callerId == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return callerId.thenApply(userId -> {
+            if (userId == null) {
+                log.warn("Запрос клиента {} без действительного токена доступа отклонен", client.getSessionId());
+            }
+            return userId;
+        });
+    }
+
+    /**
+     * Проверяет, что календарь есть в списке календарей пользователя, подключившего socket клиента.
+     *
+     * @param client Socket клиент
+     * @param calendarApiId ID календаря Outlook
+     * @return ID пользователя Outlook или null, если клиент подключился без действительного токена доступа или
+     * календарь ему недоступен
+     */
+    private CompletableFuture<String> authorize(SocketIOClient client, String calendarApiId) {
+        return getCallerId(client).thenCompose(userId -> {
+            if (userId == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return calendarDirectoryService.hasCalendar(userId, calendarApiId).thenApply(hasCalendar -> {
+                if (!hasCalendar) {
+                    log.warn("Клиенту {} отказано в доступе к календарю {}", client.getSessionId(), calendarApiId);
+                    return null;
+                }
+                return userId;
+            });
+        });
+    }
+
+    private static Long getLongOrNull(JsonObject json, String name) {
+        JsonElement value = json.get(name);
+        return value == null || value.isJsonNull() ? null : value.getAsLong();
+    }
+
+    /**
+     * Отправляет клиенту расписание календаря из кэша. Используется, когда пропущенных клиентом событий уже нет в буфере
+     * комнаты, и при смене отображаемого клиентом периода. Расписание отправляется в пуле рассылки, чтобы не обгонять
+     * socket события этого календаря.
+     *
+     * @param client Socket клиент
+     * @param calendarApiId ID календаря Outlook
+     * @param userId ID пользователя Outlook
+     * @param epoch Эпоха порядковых номеров событий на момент запроса
+     * @param sequence Порядковый номер последнего события комнаты на момент запроса
+     * @param windowStart Начало отображаемого периода в миллисекундах или null, если нужно все расписание
+     * @param windowEnd Окончание отображаемого периода в миллисекундах или null, если нужно все расписание
+     */
+    private void sendSnapshot(SocketIOClient client, String calendarApiId, String userId, String epoch, long sequence,
+                              Long windowStart, Long windowEnd) {
+        scheduleCacheService.getSchedule(calendarApiId, userId).thenAccept(schedule -> {
+            if (schedule == null) {
+                return;
+            }
+            socketFanoutExecutor.execute(calendarApiId, () -> {
+                Map<String, Object> snapshot = new LinkedHashMap<>();
+                snapshot.put("calApiId", calendarApiId);
+                snapshot.put("epoch", epoch);
+                snapshot.put("seq", sequence);
+                snapshot.put("events", windowStart == null || windowEnd == null
+                        ? schedule.getEvents()
+                        : getEvents(schedule, windowStart, windowEnd));
+                client.sendEvent("calendar_snapshot", snapshot);
+                log.info("Клиенту {} отправлено расписание календаря {}", client.getSessionId(), calendarApiId);
+            });
+        });
+    }
+
+    private static List<NewEventNotification> getEvents(ScheduleCacheService.RoomSchedule schedule, long windowStart,
+                                                        long windowEnd) {
+        List<NewEventNotification> events = new ArrayList<>();
+        for (EventIntervalIndex.Interval interval : schedule.getIntervals().getBusyIntervals(windowStart, windowEnd)) {
+            NewEventNotification event = schedule.getEvent(interval.eventId);
+            if (event != null) {
+                events.add(event);
+            }
+        }
+        return events;
     }
 
     /**
      * Создает подписку для указанного ID календаря Outlook и пользователя, если для данного ID календаря не существует
-     * подписки.
+     * подписки. Если включено получение данных ресурса, то подписка создается с шифрованием данных событий в
+     * уведомлениях. Подписка создается, только если календарь принадлежит данному узлу кластера.
      *
      * @param calendarApiId ID календаря Outlook
      * @param userId ID пользователя Outlook
      */
     public void createSubForCalendarIfNotExists(String calendarApiId, String userId) {
-        if (subscriptionStoreService.hasActiveSubscriptionForCalendarId(calendarApiId) ||
-                !accessTokenStoreService.hasAccessTokenForUserId(userId)) {
+        if (!clusterService.isOwner(calendarApiId) || !subscriptionStoreService.tryReserveCalendar(calendarApiId)) {
+            return;
+        }
+        GraphServiceClient graphClient = graphClientHelper.getGraphClient(userId);
+        if (graphClient == null) {
+            subscriptionStoreService.releaseCalendarReservation(calendarApiId);
             return;
         }
-        GraphServiceClient graphClient = GraphClientHelper.getGraphClient(accessTokenStoreService.getAccessTokenByUserId(userId));
         Subscription subscriptionRequest = new Subscription();
         subscriptionRequest.changeType = ChangeType.CREATED + ", " + ChangeType.UPDATED + ", " + ChangeType.DELETED;
         subscriptionRequest.notificationUrl = notificationHost + "/listen";
-        subscriptionRequest.resource = "Users/" + userId + "/calendars/" + calendarApiId + "/events";
-        subscriptionRequest.expirationDateTime = OffsetDateTime.now().plusMinutes(subscriptionLifetimeInMinutes);
-        CompletableFuture<Subscription> subscriptionFuture =
-                graphClient.subscriptions().buildRequest().postAsync(subscriptionRequest);
-        subscriptionFuture.thenAccept(subscription -> {
-            subscriptionStoreService.addSubscription(subscription.id, subscription.resource,
-                    subscription.expirationDateTime, userId);
+        String clientState = newClientState();
+        subscriptionRequest.clientState = clientState;
+        ResourcePath resourcePath = calendarDirectoryService.getSubscriptionResource(calendarApiId, userId);
+        subscriptionRequest.resource = resourcePath.resource;
+        subscriptionRequest.expirationDateTime = OffsetDateTime.now(ZoneOffset.UTC).plusMinutes(subscriptionLifetimeInMinutes);
+        if (notificationEncryptionService.isEnabled()) {
+            subscriptionRequest.includeResourceData = true;
+            subscriptionRequest.encryptionCertificate = notificationEncryptionService.getEncodedCertificate();
+            subscriptionRequest.encryptionCertificateId = notificationEncryptionService.getCertificateId();
+            subscriptionRequest.lifecycleNotificationUrl = notificationHost + "/lifecycle";
+        }
+        CompletableFuture<Subscription> subscriptionFuture = graphRequestScheduler.submit(userId,
+                GraphRequestPriority.SUBSCRIPTION, () -> graphClient.subscriptions().buildRequest().postAsync(subscriptionRequest));
+        subscriptionFuture.whenCompleteAsync((subscription, exception) -> storeUpdateExecutor.execute(calendarApiId, () -> {
+            if (exception != null) {
+                subscriptionStoreService.releaseCalendarReservation(calendarApiId);
+                log.warn("Не удалось создать подписку для календаря {}", calendarApiId, exception);
+                return;
+            }
+            SubscriptionRecord replacedSubscription = subscriptionStoreService.addSubscription(subscription.id,
+                    resourcePath, subscription.expirationDateTime, userId, clientState);
+            pipelineMetrics.recordSubscriptionChange("create");
             log.info("Создана подписка: {} для ресурса: {}", subscription.id, subscription.resource);
-        });
+            if (replacedSubscription != null) {
+                deleteReplacedSubscription(replacedSubscription);
+            }
+        }), graphCallbackExecutor);
     }
 
     /**
-     * Обновляет подписку для указанного ID календаря Outlook, используя переданный клиент Microsoft Graph.
+     * Удаляет в Microsoft Graph подписку, замененную в хранилище новой подпиской того же календаря, чтобы она не
+     * отправляла уведомления до окончания срока действия.
      *
-     * @param subscriptionId ID календаря Outlook
-     * @param graphClient Клиент Microsoft Graph
+     * @param subscription Замененная подписка
      */
-    public void updateSubscription(String subscriptionId, GraphServiceClient graphClient) {
-
-        OffsetDateTime newExpirationDateTime = OffsetDateTime.now(ZoneOffset.UTC).plusMinutes(subscriptionLifetimeInMinutes);
-        Subscription subscriptionToUpdate = new Subscription();
-        subscriptionToUpdate.expirationDateTime = newExpirationDateTime;
-        graphClient.subscriptions(subscriptionId).buildRequest().patchAsync(subscriptionToUpdate).thenAccept(subscription -> {
-            log.info("Обновлена подписка: {}", subscription.id);
-            subscriptionStoreService.updateSubscriptionExpirationDateTime(subscriptionId, newExpirationDateTime);
-        });
+    private void deleteReplacedSubscription(SubscriptionRecord subscription) {
+        GraphServiceClient graphClient = graphClientHelper.getGraphClient(subscription.userId);
+        if (graphClient == null) {
+            log.warn("Нет токена доступа для удаления замененной подписки {}", subscription.subscriptionId);
+            return;
+        }
+        graphRequestScheduler.submit(subscription.userId, GraphRequestPriority.SUBSCRIPTION,
+                () -> graphClient.subscriptions(subscription.subscriptionId).buildRequest().deleteAsync())
+                .whenComplete((result, exception) -> {
+                    if (exception != null && !GraphRequestScheduler.isNotFound(exception)) {
+                        log.warn("Не удалось удалить замененную подписку {}", subscription.subscriptionId, exception);
+                    } else {
+                        pipelineMetrics.recordSubscriptionChange("delete");
+                        log.info("Удалена замененная подписка: {}", subscription.subscriptionId);
+                    }
+                });
     }
 
     /**
-     * Обновляет все подписки, удаляя те, чей календарь не просматривается каким-либо пользователем.
+     * Создает случайный секрет подписки, по которому уведомления Microsoft Graph отличаются от поддельных.
+     *
+     * @return Секрет подписки
      */
-    @Scheduled(fixedRate = subscriptionLifetimeInMinutes * 60 * 1000 - handicapInSeconds * 1000)
-    public void updateSubscriptions() {
-        log.info("Начато обновление подписок");
-        List<SubscriptionRecord> subscriptions = subscriptionStoreService.getAllSubscriptions();
-        if (!subscriptions.isEmpty()) {
-            for (SubscriptionRecord subscription : subscriptions) {
-                String userId = subscription.resource.split("/")[1];
-                if (accessTokenStoreService.hasAccessTokenForUserId(userId)) {
-                    GraphServiceClient graphClient = GraphClientHelper
-                            .getGraphClient(accessTokenStoreService.getAccessTokenByUserId(userId));
-                    String calendarApiId = SubscriptionStoreService.getCalendarApiIdFromResource(subscription.resource);
-                    if (!socketIOServer.getRoomOperations(calendarApiId).getClients().isEmpty()) {
-                        updateSubscription(subscription.subscriptionId, graphClient);
-                    } else {
-                        deleteSubscription(calendarApiId, graphClient);
-                    }
+    private static String newClientState() {
+        byte[] secret = new byte[32];
+        secureRandom.nextBytes(secret);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+    }
+
+    /**
+     * Удаляет подписки тех календарей, которые не просматриваются каким-либо пользователем ни на одном узле кластера,
+     * а также буферы событий и метрики комнат таких календарей.
+     * Подписка календаря, из комнаты которого вышел последний клиент, удаляется только после rooms.linger-ms, чтобы
+     * клиент, быстро вернувшийся в комнату, не вызывал повторное создание подписки. Сразу после запуска
+     * приложения подписки не удаляются, чтобы клиенты успели переподключиться к комнатам загруженных из журнала подписок.
+     */
+    @Scheduled(fixedDelayString = "${subscriptions.cleanup-interval-ms}")
+    public void deleteUnwatchedSubscriptions() {
+        if (System.currentTimeMillis() - startedAtInMillis < reconnectGraceInMillis) {
+            return;
+        }
+        for (SubscriptionRecord subscription : subscriptionStoreService.getAllSubscriptions()) {
+            if (!clusterService.isWatched(subscription.calendarApiId)) {
+                GraphServiceClient graphClient = graphClientHelper.getGraphClient(subscription.userId);
+                if (graphClient != null) {
+                    deleteSubscription(subscription.calendarApiId, graphClient);
                 }
             }
         }
+        // Буферы календарей других узлов кластера удаляются здесь, когда календарь перестают просматривать
+        for (String calendarApiId : roomBroadcastService.getBufferedCalendars()) {
+            if (!clusterService.isWatched(calendarApiId)
+                    && subscriptionStoreService.getSubscriptionForCalendarId(calendarApiId) == null) {
+                roomBroadcastService.clearReplayBuffer(calendarApiId);
+            }
+        }
+        for (String calendarApiId : pipelineMetrics.getWatchedRooms()) {
+            if (!clusterService.isWatched(calendarApiId)) {
+                pipelineMetrics.unwatchRoom(calendarApiId);
+            }
+        }
+    }
+
+    /**
+     * Создает подписки для просматриваемых календарей данного узла, у которых еще нет подписки. Так подписки создаются
+     * для календарей, просматриваемых клиентами других узлов кластера, а также повторно создаются после неудачных
+     * попыток.
+     */
+    @Scheduled(fixedDelayString = "${cluster.heartbeat-interval-ms}")
+    public void createSubscriptionsForWatchedCalendars() {
+        for (Map.Entry<String, String> watchedCalendar : clusterService.getWatchedCalendars().entrySet()) {
+            if (!subscriptionStoreService.hasActiveSubscriptionForCalendarId(watchedCalendar.getKey())) {
+                createSubForCalendarIfNotExists(watchedCalendar.getKey(), watchedCalendar.getValue());
+            }
+        }
     }
 
     /**
-     * Удаляет подписку для указанного ID календаря Outlook, используя переданный клиент Microsoft Graph.
+     * Удаляет подписку для указанного ID календаря Outlook, используя переданный клиент Microsoft Graph. Повторный
+     * вызов, пока запрос на удаление той же подписки еще выполняется, ничего не делает. Подписка, которой уже нет в
+     * Microsoft Graph (ответ 404), считается удаленной.
      *
      * @param calendarApiId ID календаря Outlook
      * @param graphClient Microsoft Graph клиент
      */
     public void deleteSubscription(String calendarApiId, GraphServiceClient graphClient) {
-        List<SubscriptionRecord> subscriptions = subscriptionStoreService.getAllSubscriptions();
-        for (SubscriptionRecord subscription : subscriptions) {
-            String subscriptionCalendarApiId = SubscriptionStoreService.getCalendarApiIdFromResource(subscription.resource);
-            if (Objects.equals(subscriptionCalendarApiId, calendarApiId)) {
-                graphClient.subscriptions(subscription.subscriptionId)
-                        .buildRequest().deleteAsync().thenRun( () -> {
+        SubscriptionRecord subscription = subscriptionStoreService.getSubscriptionForCalendarId(calendarApiId);
+        if (subscription == null || !deletingSubscriptions.add(subscription.subscriptionId)) {
+            return;
+        }
+        graphRequestScheduler.submit(subscription.userId, GraphRequestPriority.SUBSCRIPTION,
+                () -> graphClient.subscriptions(subscription.subscriptionId).buildRequest().deleteAsync())
+                .whenCompleteAsync((result, exception) -> {
+                    if (exception != null && !GraphRequestScheduler.isNotFound(exception)) {
+                        deletingSubscriptions.remove(subscription.subscriptionId);
+                        log.warn("Не удалось удалить подписку {}", subscription.subscriptionId, exception);
+                        return;
+                    }
+                    storeUpdateExecutor.execute(calendarApiId, () -> {
+                        try {
+                            pipelineMetrics.recordSubscriptionChange("delete");
                             log.info("Удалена подписка: {}", subscription.subscriptionId);
                             subscriptionStoreService.deleteSubscription(subscription.subscriptionId);
-                });
-            }
-        }
+                            scheduleCacheService.evictSchedule(calendarApiId);
+                            eventFingerprintService.clear(calendarApiId);
+                            roomBroadcastService.clearReplayBuffer(calendarApiId);
+                            pipelineMetrics.unwatchRoom(calendarApiId);
+                        } finally {
+                            deletingSubscriptions.remove(subscription.subscriptionId);
+                        }
+                    });
+                }, graphCallbackExecutor);
     }
 
 }
@@ -1,5 +1,7 @@
 package com.ppteam.roombookingapp.controllers;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.time.OffsetDateTime;
 
 public class SubscriptionRecord {
@@ -8,12 +10,38 @@ public class SubscriptionRecord {
     public final String resource;
     public final OffsetDateTime expirationDateTime;
     public final String userId;
+    public final String calendarApiId;
+    /**
+     * Секрет подписки, который Microsoft Graph передает в каждом уведомлении подписки, или null для подписок, созданных
+     * без него.
+     */
+    public final String clientState;
 
-    public SubscriptionRecord(String subscriptionId, String resource, OffsetDateTime expirationDateTime, String userId) {
+    public SubscriptionRecord(String subscriptionId, String resource, OffsetDateTime expirationDateTime, String userId,
+                              String clientState) {
+        this(subscriptionId, ResourcePath.parse(resource), expirationDateTime, userId, clientState);
+    }
+
+    public SubscriptionRecord(String subscriptionId, ResourcePath resourcePath, OffsetDateTime expirationDateTime,
+                              String userId, String clientState) {
         this.subscriptionId = subscriptionId;
-        this.resource = resource;
+        this.resource = resourcePath.resource;
         this.expirationDateTime = expirationDateTime;
         this.userId = userId;
+        this.calendarApiId = resourcePath.calendarId;
+        this.clientState = clientState;
+    }
+
+    /**
+     * Проверяет, что уведомление содержит секрет подписки, то есть отправлено Microsoft Graph.
+     *
+     * @param notificationClientState Секрет из уведомления
+     * @return true, если секрет совпадает с секретом подписки
+     */
+    public boolean hasClientState(String notificationClientState) {
+        return clientState != null && notificationClientState != null
+                && MessageDigest.isEqual(clientState.getBytes(StandardCharsets.UTF_8),
+                notificationClientState.getBytes(StandardCharsets.UTF_8));
     }
 
 }
@@ -0,0 +1,278 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonElement;
+import com.microsoft.graph.content.BatchRequestContent;
+import com.microsoft.graph.content.BatchResponseContent;
+import com.microsoft.graph.content.BatchResponseStep;
+import com.microsoft.graph.http.HttpMethod;
+import com.microsoft.graph.models.Subscription;
+import com.microsoft.graph.requests.GraphServiceClient;
+import okhttp3.Request;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Продлевает подписки незадолго до окончания срока действия каждой из них. Подписки выбираются из индекса хранилища,
+ * упорядоченного по дате окончания, и продлеваются JSON batch запросами Microsoft Graph. Неудачные продления
+ * повторяются с экспоненциальной задержкой со случайным разбросом.
+ */
+@Service
+public class SubscriptionRenewalService {
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    @Autowired
+    private SubscriptionStoreService subscriptionStoreService;
+    @Autowired
+    private GraphClientHelper graphClientHelper;
+    @Autowired
+    private SubscriptionController subscriptionController;
+    @Autowired
+    private ClusterService clusterService;
+    @Autowired
+    private ScheduleCacheService scheduleCacheService;
+    @Autowired
+    private PipelineMetrics pipelineMetrics;
+    @Autowired
+    private GraphRequestScheduler graphRequestScheduler;
+    @Autowired
+    @Qualifier("graphCallbackExecutor")
+    private Executor graphCallbackExecutor;
+    @Autowired
+    @Qualifier("storeUpdateExecutor")
+    private KeyedExecutor storeUpdateExecutor;
+    @Value("${subscriptions.lifetime-minutes}")
+    private long subscriptionLifetimeInMinutes;
+    @Value("${subscriptions.renew-before-seconds}")
+    private long renewBeforeInSeconds;
+    @Value("${subscriptions.retry-base-delay-ms}")
+    private long retryBaseDelayInMillis;
+    @Value("${subscriptions.retry-max-delay-ms}")
+    private long retryMaxDelayInMillis;
+
+    private final Set<String> renewalsInProgress = ConcurrentHashMap.newKeySet();
+    private final Map<String, RetryState> retryStateBySubscription = new ConcurrentHashMap<>();
+
+    /**
+     * Продлевает подписки, срок действия которых скоро истекает. Подписки, срок действия которых уже истек, удаляются
+     * из хранилища.
+     */
+    @Scheduled(fixedDelayString = "${subscriptions.renewal-check-interval-ms}")
+    public void renewExpiringSubscriptions() {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        long nowInMillis = System.currentTimeMillis();
+        Map<String, List<SubscriptionRecord>> dueSubscriptionsByUser = new HashMap<>();
+        for (SubscriptionRecord subscription :
+                subscriptionStoreService.getSubscriptionsExpiringBefore(now.plusSeconds(renewBeforeInSeconds))) {
+            if (!subscription.expirationDateTime.isAfter(now)) {
+                log.warn("Подписка {} истекла до продления", subscription.subscriptionId);
+                pipelineMetrics.recordRenewal(Duration.between(now, subscription.expirationDateTime));
+                forgetSubscription(subscription.subscriptionId);
+                continue;
+            }
+            RetryState retryState = retryStateBySubscription.get(subscription.subscriptionId);
+            if (retryState != null && retryState.notBeforeInMillis > nowInMillis) {
+                continue;
+            }
+            if (renewalsInProgress.add(subscription.subscriptionId)) {
+                dueSubscriptionsByUser.computeIfAbsent(subscription.userId, userId -> new ArrayList<>())
+                        .add(subscription);
+            }
+        }
+        for (Map.Entry<String, List<SubscriptionRecord>> userSubscriptions : dueSubscriptionsByUser.entrySet()) {
+            GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient(userSubscriptions.getKey());
+            if (graphClient == null) {
+                userSubscriptions.getValue().forEach(subscription -> scheduleRetry(subscription.subscriptionId, -1));
+                continue;
+            }
+            for (List<SubscriptionRecord> batch : GraphBatchHelper.partition(userSubscriptions.getValue())) {
+                renewBatch(graphClient, batch);
+            }
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        clusterService.setLifecycleNotificationHandler(this::applyLifecycleNotification);
+    }
+
+    /**
+     * Обрабатывает уведомление Microsoft Graph о жизненном цикле подписки, полученное любым узлом кластера. Подписка
+     * ищется в общем хранилище подписок кластера, а уведомление передается узлу-владельцу календаря подписки.
+     *
+     * @param subscriptionId ID подписки
+     * @param lifecycleEvent Тип уведомления о жизненном цикле подписки
+     * @param clientState Секрет подписки из уведомления
+     */
+    public void handleLifecycleNotification(String subscriptionId, String lifecycleEvent, String clientState) {
+        SubscriptionRecord subscription = subscriptionStoreService.findSubscription(subscriptionId);
+        if (subscription == null) {
+            return;
+        }
+        if (!subscription.hasClientState(clientState)) {
+            log.warn("Пропущено уведомление {} подписки {} с неверным секретом подписки", lifecycleEvent,
+                    subscriptionId);
+            return;
+        }
+        if (clusterService.isOwner(subscription.calendarApiId)) {
+            applyLifecycleNotification(subscriptionId, lifecycleEvent);
+        } else {
+            clusterService.forwardLifecycleNotification(subscriptionId, lifecycleEvent);
+        }
+    }
+
+    /**
+     * Применяет уведомление о жизненном цикле подписки на узле-владельце календаря. Подписка, требующая повторной
+     * авторизации, продлевается сразу, удаленная подписка пересоздается, а после пропущенных уведомлений расписание
+     * календаря синхронизируется заново.
+     *
+     * @param subscriptionId ID подписки
+     * @param lifecycleEvent Тип уведомления о жизненном цикле подписки
+     */
+    private void applyLifecycleNotification(String subscriptionId, String lifecycleEvent) {
+        SubscriptionRecord subscription = subscriptionStoreService.getSubscription(subscriptionId);
+        if (subscription == null) {
+            return;
+        }
+        log.info("Уведомление {} для подписки {}", lifecycleEvent, subscriptionId);
+        switch (lifecycleEvent) {
+            case "reauthorizationRequired":
+                GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient(subscription.userId);
+                if (graphClient != null && renewalsInProgress.add(subscriptionId)) {
+                    retryStateBySubscription.remove(subscriptionId);
+                    renewBatch(graphClient, List.of(subscription));
+                }
+                break;
+            case "subscriptionRemoved":
+                forgetSubscription(subscriptionId);
+                break;
+            case "missed":
+                scheduleCacheService.refreshSchedule(subscription.calendarApiId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Продлевает подписки одним batch запросом Microsoft Graph.
+     *
+     * @param graphClient Клиент Microsoft Graph
+     * @param subscriptions Подписки, не более {@link GraphBatchHelper#maxBatchSize}
+     */
+    private void renewBatch(GraphServiceClient<Request> graphClient, List<SubscriptionRecord> subscriptions) {
+        OffsetDateTime newExpirationDateTime = OffsetDateTime.now(ZoneOffset.UTC).plusMinutes(subscriptionLifetimeInMinutes);
+        Subscription subscriptionToUpdate = new Subscription();
+        subscriptionToUpdate.expirationDateTime = newExpirationDateTime;
+        BatchRequestContent batchRequestContent = new BatchRequestContent();
+        Map<String, SubscriptionRecord> subscriptionByStepId = new HashMap<>();
+        for (SubscriptionRecord subscription : subscriptions) {
+            String stepId = batchRequestContent.addBatchRequestStep(
+                    graphClient.subscriptions(subscription.subscriptionId).buildRequest(), HttpMethod.PATCH,
+                    subscriptionToUpdate);
+            subscriptionByStepId.put(stepId, subscription);
+        }
+        CompletableFuture<BatchResponseContent> batchResponse = graphRequestScheduler.submit(subscriptions.get(0).userId,
+                GraphRequestPriority.SUBSCRIPTION, () -> graphClient.batch().buildRequest().postAsync(batchRequestContent));
+        batchResponse.whenCompleteAsync((response, exception) -> {
+            if (exception != null) {
+                log.warn("Не удалось выполнить batch запрос продления подписок", exception);
+                subscriptionByStepId.values().forEach(subscription -> scheduleRetry(subscription.subscriptionId, -1));
+                return;
+            }
+            subscriptionByStepId.forEach((stepId, subscription) ->
+                    storeUpdateExecutor.execute(subscription.calendarApiId, () -> handleRenewalResponse(
+                            subscription.subscriptionId, response, stepId, newExpirationDateTime)));
+        }, graphCallbackExecutor);
+    }
+
+    private void handleRenewalResponse(String subscriptionId, BatchResponseContent response, String stepId,
+                                       OffsetDateTime newExpirationDateTime) {
+        BatchResponseStep<JsonElement> step = response.getResponseById(stepId);
+        if (GraphBatchHelper.isSuccessful(step)) {
+            SubscriptionRecord subscription = subscriptionStoreService.getSubscription(subscriptionId);
+            if (subscription != null) {
+                pipelineMetrics.recordRenewal(Duration.between(OffsetDateTime.now(ZoneOffset.UTC),
+                        subscription.expirationDateTime));
+            }
+            subscriptionStoreService.updateSubscriptionExpirationDateTime(subscriptionId, newExpirationDateTime);
+            retryStateBySubscription.remove(subscriptionId);
+            renewalsInProgress.remove(subscriptionId);
+            log.info("Обновлена подписка: {}", subscriptionId);
+        } else if (GraphBatchHelper.isRetryable(step)) {
+            pipelineMetrics.recordGraphError("subscriptions.patch", step != null ? step.status : -1);
+            long retryAfterInSeconds = GraphBatchHelper.getRetryAfterSeconds(step);
+            SubscriptionRecord subscription = subscriptionStoreService.getSubscription(subscriptionId);
+            if (retryAfterInSeconds > 0 && subscription != null) {
+                graphRequestScheduler.pause(subscription.userId, retryAfterInSeconds * 1000);
+            }
+            scheduleRetry(subscriptionId, retryAfterInSeconds);
+        } else {
+            pipelineMetrics.recordGraphError("subscriptions.patch", step.status);
+            log.warn("Подписка {} не может быть продлена: {} {}", subscriptionId, step.status,
+                    GraphBatchHelper.getErrorCode(step));
+            forgetSubscription(subscriptionId);
+        }
+    }
+
+    /**
+     * Откладывает повторное продление подписки. Задержка растет экспоненциально с каждой попыткой и выбирается случайно
+     * в пределах от половины до полного значения, чтобы повторные запросы не приходили одновременно.
+     *
+     * @param subscriptionId ID подписки
+     * @param retryAfterInSeconds Задержка, запрошенная Microsoft Graph, или -1, если задержка не указана
+     */
+    private void scheduleRetry(String subscriptionId, long retryAfterInSeconds) {
+        RetryState retryState = retryStateBySubscription.compute(subscriptionId, (id, current) -> {
+            int attempt = current == null ? 1 : current.attempt + 1;
+            long maxDelay = Math.min(retryMaxDelayInMillis, retryBaseDelayInMillis << Math.min(attempt - 1, 20));
+            long delay = maxDelay / 2 + ThreadLocalRandom.current().nextLong(maxDelay / 2 + 1);
+            delay = Math.max(delay, retryAfterInSeconds * 1000);
+            return new RetryState(attempt, System.currentTimeMillis() + delay);
+        });
+        renewalsInProgress.remove(subscriptionId);
+        log.info("Повторное продление подписки {} (попытка {})", subscriptionId, retryState.attempt);
+    }
+
+    /**
+     * Удаляет из хранилища подписку, которую невозможно продлить. Если календарь подписки все еще просматривается, то
+     * для него создается новая подписка.
+     *
+     * @param subscriptionId ID подписки
+     */
+    private void forgetSubscription(String subscriptionId) {
+        SubscriptionRecord subscription = subscriptionStoreService.getSubscription(subscriptionId);
+        subscriptionStoreService.deleteSubscription(subscriptionId);
+        retryStateBySubscription.remove(subscriptionId);
+        renewalsInProgress.remove(subscriptionId);
+        if (subscription != null && clusterService.isWatched(subscription.calendarApiId)) {
+            subscriptionController.createSubForCalendarIfNotExists(subscription.calendarApiId, subscription.userId);
+        }
+    }
+
+    private static class RetryState {
+
+        private final int attempt;
+        private final long notBeforeInMillis;
+
+        private RetryState(int attempt, long notBeforeInMillis) {
+            this.attempt = attempt;
+            this.notBeforeInMillis = notBeforeInMillis;
+        }
+    }
+}
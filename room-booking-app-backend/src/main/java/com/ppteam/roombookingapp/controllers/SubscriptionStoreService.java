@@ -1,33 +1,185 @@
 package com.ppteam.roombookingapp.controllers;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
+/**
+ * Потокобезопасное хранилище подписок с индексами по ID календаря Outlook, ID пользователя и дате окончания подписки.
+ * Изменения хранилища выполняются под блокировкой, чтобы индексы всегда были согласованы, а чтение выполняется без
+ * блокировки.
+ * Если включено сохранение состояния, то изменения подписок записываются в журнал, а при запуске приложения
+ * действующие подписки загружаются из журнала, поэтому их не нужно создавать в Microsoft Graph заново.
+ * При работе в кластере подписки всех узлов также записываются в общее хранилище, чтобы любой узел мог определить
+ * подписку входящего уведомления, а новый владелец календаря - принять подписки узла, покинувшего кластер.
+ */
 @Service
 public class SubscriptionStoreService {
 
-    private static final Map<String, SubscriptionRecord> subscriptions = new HashMap<>();
-    private static final Set<String> currentlyUsedCalendars = new HashSet<>();
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private static final Comparator<SubscriptionRecord> byExpirationDateTime =
+            Comparator.comparing((SubscriptionRecord record) -> record.expirationDateTime)
+                    .thenComparing(record -> record.subscriptionId);
+
+    private final Object lock = new Object();
+    private final Map<String, SubscriptionRecord> subscriptions = new ConcurrentHashMap<>();
+    private final Map<String, SubscriptionRecord> subscriptionByCalendar = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> subscriptionIdsByUser = new ConcurrentHashMap<>();
+    private final NavigableSet<SubscriptionRecord> subscriptionsByExpiration =
+            new ConcurrentSkipListSet<>(byExpirationDateTime);
+    private final Set<String> reservedCalendars = ConcurrentHashMap.newKeySet();
+
+    @Value("${persistence.enabled}")
+    private boolean persistenceEnabled;
+    @Value("${persistence.directory}")
+    private String persistenceDirectory;
+    @Value("${persistence.compaction-threshold}")
+    private int compactionThreshold;
+    private AppendOnlyJournal journal;
+    private volatile Map<String, String> sharedSubscriptions;
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (persistenceEnabled) {
+            restore(new AppendOnlyJournal(Path.of(persistenceDirectory, "subscriptions.journal"), compactionThreshold));
+        }
+    }
+
+    /**
+     * Загружает подписки из журнала и далее записывает в него все изменения подписок. Истекшие подписки и подписки без
+     * секрета, уведомления которых нельзя проверить, удаляются из журнала.
+     *
+     * @param subscriptionJournal Журнал подписок
+     * @throws IOException если журнал не удалось прочитать
+     */
+    void restore(AppendOnlyJournal subscriptionJournal) throws IOException {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        synchronized (lock) {
+            for (Map.Entry<String, String> entry : subscriptionJournal.load().entrySet()) {
+                SubscriptionRecord record = decodeRecord(entry.getKey(), entry.getValue());
+                if (record.expirationDateTime.isAfter(now) && record.clientState != null
+                        && !subscriptionByCalendar.containsKey(record.calendarApiId)) {
+                    putRecord(record);
+                } else {
+                    subscriptionJournal.remove(entry.getKey());
+                }
+            }
+            journal = subscriptionJournal;
+        }
+        log.info("Загружено подписок из журнала: {}", subscriptions.size());
+    }
+
+    /**
+     * Подключает общее хранилище подписок кластера и записывает в него подписки данного узла.
+     *
+     * @param clusterSubscriptions Общее хранилище подписок кластера
+     */
+    public void shareSubscriptions(Map<String, String> clusterSubscriptions) {
+        synchronized (lock) {
+            for (SubscriptionRecord subscription : subscriptions.values()) {
+                clusterSubscriptions.put(subscription.subscriptionId, encodeRecord(subscription));
+            }
+            sharedSubscriptions = clusterSubscriptions;
+        }
+    }
+
+    @PreDestroy
+    private void closeJournal() throws IOException {
+        synchronized (lock) {
+            if (journal != null) {
+                journal.close();
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * Резервирует создание подписки для указанного ID календаря Outlook. Резервирование успешно, только если для
+     * календаря нет подписки и ее создание еще не зарезервировано, поэтому для календаря создается не более одной
+     * подписки.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return true, если создание подписки зарезервировано, иначе false
+     */
+    public boolean tryReserveCalendar(String calendarApiId) {
+        synchronized (lock) {
+            if (subscriptionByCalendar.containsKey(calendarApiId)) {
+                return false;
+            }
+            return reservedCalendars.add(calendarApiId);
+        }
+    }
+
+    /**
+     * Снимает резервирование создания подписки для указанного ID календаря Outlook.
+     *
+     * @param calendarApiId ID календаря Outlook
+     */
+    public void releaseCalendarReservation(String calendarApiId) {
+        reservedCalendars.remove(calendarApiId);
+    }
 
     /**
      * Добавляет в хранилище подписок подписку с указанным ID, ресурсом и датой окончания подписки, если подписки с
-     * указанным ID нет в хранилище.
+     * указанным ID нет в хранилище. Прежняя подписка того же календаря удаляется из хранилища и возвращается, чтобы ее
+     * можно было удалить в Microsoft Graph. Снимает резервирование календаря подписки.
      *
      * @param id ID подписки
      * @param resource Ресурс подписки
      * @param expirationDateTime Дата истечения подписки
+     * @param userId ID пользователя, создавшего подписку
+     * @param clientState Секрет подписки
+     * @return Прежняя подписка календаря, замененная добавленной, или null, если прежней подписки не было или подписка
+     * не была добавлена
+     */
+    public SubscriptionRecord addSubscription(String id, String resource, OffsetDateTime expirationDateTime,
+                                              String userId, String clientState) {
+        return addSubscription(id, ResourcePath.parse(resource), expirationDateTime, userId, clientState);
+    }
+
+    /**
+     * Добавляет в хранилище подписок подписку с уже разобранным путем ресурса.
+     *
+     * @param id ID подписки
+     * @param resourcePath Путь ресурса подписки
+     * @param expirationDateTime Дата истечения подписки
+     * @param userId ID пользователя, создавшего подписку
+     * @param clientState Секрет подписки
+     * @return Прежняя подписка календаря, замененная добавленной, или null, если прежней подписки не было или подписка
+     * не была добавлена
      */
-    public void addSubscription(String id, String resource, OffsetDateTime expirationDateTime, String userId) {
-        if (subscriptions.containsKey(id)) {
-            return;
+    public SubscriptionRecord addSubscription(String id, ResourcePath resourcePath, OffsetDateTime expirationDateTime,
+                                              String userId, String clientState) {
+        synchronized (lock) {
+            if (subscriptions.containsKey(id)) {
+                return null;
+            }
+            SubscriptionRecord newRecord = new SubscriptionRecord(id, resourcePath, expirationDateTime, userId,
+                    clientState);
+            SubscriptionRecord previousRecord = subscriptionByCalendar.get(newRecord.calendarApiId);
+            if (previousRecord != null) {
+                // Прежняя подписка календаря больше не продлевается и не используется, поэтому удаляется из всех индексов
+                log.warn("Подписка {} календаря {} заменена подпиской {}", previousRecord.subscriptionId,
+                        newRecord.calendarApiId, id);
+                deleteSubscription(previousRecord.subscriptionId);
+            }
+            putRecord(newRecord);
+            reservedCalendars.remove(newRecord.calendarApiId);
+            persistRecord(newRecord);
+            return previousRecord;
         }
-        SubscriptionRecord newRecord =
-                new SubscriptionRecord(id, resource, expirationDateTime, userId);
-        subscriptions.put(id, newRecord);
-        String calendarApiId = getCalendarApiIdFromResource(resource);
-        currentlyUsedCalendars.add(calendarApiId);
     }
 
     /**
@@ -38,34 +190,96 @@ public class SubscriptionStoreService {
      * @return true, если дата подписки была обновлена, иначе false
      */
     public boolean updateSubscriptionExpirationDateTime(String subscriptionId, OffsetDateTime newExpirationDateTime) {
-        if (subscriptions.containsKey(subscriptionId)) {
+        synchronized (lock) {
             SubscriptionRecord oldSubscription = subscriptions.get(subscriptionId);
+            if (oldSubscription == null) {
+                return false;
+            }
             SubscriptionRecord newSubscription = new SubscriptionRecord(oldSubscription.subscriptionId,
-                    oldSubscription.resource, newExpirationDateTime, oldSubscription.userId);
+                    oldSubscription.resource, newExpirationDateTime, oldSubscription.userId, oldSubscription.clientState);
+            subscriptionsByExpiration.remove(oldSubscription);
             subscriptions.put(subscriptionId, newSubscription);
+            subscriptionByCalendar.put(newSubscription.calendarApiId, newSubscription);
+            subscriptionsByExpiration.add(newSubscription);
+            persistRecord(newSubscription);
             return true;
         }
-        return false;
     }
 
     /**
-     * Возвращает ID календаря Outlook по ресурсу подписки.
+     * Возвращает подписку по ID.
      *
-     * @param resource Ресурс подписки
-     * @return ID календаря Outlook
+     * @param subscriptionId ID подписки
+     * @return Подписка с указанным ID
      */
-    public static String getCalendarApiIdFromResource(String resource) {
-        return resource.split("/")[3];
+    public SubscriptionRecord getSubscription(String subscriptionId) {
+        return subscriptions.get(subscriptionId);
     }
 
     /**
-     * Возвращает подписку по ID.
+     * Ищет подписку по ID в хранилище данного узла, а затем в общем хранилище подписок кластера.
      *
      * @param subscriptionId ID подписки
-     * @return Подписка с указанным ID
+     * @return Подписка с указанным ID или null, если подписка не найдена
      */
-    public SubscriptionRecord getSubscription(String subscriptionId) {
-        return subscriptions.get(subscriptionId);
+    public SubscriptionRecord findSubscription(String subscriptionId) {
+        SubscriptionRecord subscription = subscriptions.get(subscriptionId);
+        Map<String, String> clusterSubscriptions = sharedSubscriptions;
+        if (subscription == null && clusterSubscriptions != null) {
+            String value = clusterSubscriptions.get(subscriptionId);
+            if (value != null) {
+                subscription = decodeRecord(subscriptionId, value);
+            }
+        }
+        return subscription;
+    }
+
+    /**
+     * Возвращает подписку для указанного ID календаря Outlook.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return Подписка или null, если для календаря нет подписки
+     */
+    public SubscriptionRecord getSubscriptionForCalendarId(String calendarApiId) {
+        return subscriptionByCalendar.get(calendarApiId);
+    }
+
+    /**
+     * Возвращает подписки, созданные указанным пользователем.
+     *
+     * @param userId ID пользователя
+     * @return Подписки пользователя
+     */
+    public List<SubscriptionRecord> getSubscriptionsForUserId(String userId) {
+        Set<String> subscriptionIds = subscriptionIdsByUser.get(userId);
+        if (subscriptionIds == null) {
+            return Collections.emptyList();
+        }
+        List<SubscriptionRecord> userSubscriptions = new ArrayList<>(subscriptionIds.size());
+        for (String subscriptionId : subscriptionIds) {
+            SubscriptionRecord subscription = subscriptions.get(subscriptionId);
+            if (subscription != null) {
+                userSubscriptions.add(subscription);
+            }
+        }
+        return userSubscriptions;
+    }
+
+    /**
+     * Возвращает подписки, истекающие не позднее указанной даты, в порядке возрастания даты окончания.
+     *
+     * @param dateTime Дата
+     * @return Подписки, истекающие не позднее указанной даты
+     */
+    public List<SubscriptionRecord> getSubscriptionsExpiringBefore(OffsetDateTime dateTime) {
+        List<SubscriptionRecord> expiringSubscriptions = new ArrayList<>();
+        for (SubscriptionRecord subscription : subscriptionsByExpiration) {
+            if (subscription.expirationDateTime.isAfter(dateTime)) {
+                break;
+            }
+            expiringSubscriptions.add(subscription);
+        }
+        return expiringSubscriptions;
     }
 
     /**
@@ -82,10 +296,79 @@ public class SubscriptionStoreService {
      * Удаляет подписку с указанным ID.
      *
      * @param subscriptionId ID подписки
+     * @return true, если подписка была удалена, иначе false
      */
-    public void deleteSubscription(String subscriptionId) {
-        currentlyUsedCalendars.remove(getCalendarApiIdFromResource(subscriptions.get(subscriptionId).resource));
-        subscriptions.remove(subscriptionId);
+    public boolean deleteSubscription(String subscriptionId) {
+        synchronized (lock) {
+            if (!removeRecord(subscriptionId)) {
+                return false;
+            }
+            if (sharedSubscriptions != null) {
+                sharedSubscriptions.remove(subscriptionId);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Удаляет подписку с указанным ID только из хранилища данного узла, оставляя ее в общем хранилище кластера. Используется,
+     * когда календарь подписки переходит к другому узлу кластера.
+     *
+     * @param subscriptionId ID подписки
+     * @return true, если подписка была удалена, иначе false
+     */
+    public boolean releaseSubscription(String subscriptionId) {
+        synchronized (lock) {
+            return removeRecord(subscriptionId);
+        }
+    }
+
+    private boolean removeRecord(String subscriptionId) {
+        SubscriptionRecord subscription = subscriptions.remove(subscriptionId);
+        if (subscription == null) {
+            return false;
+        }
+        subscriptionByCalendar.remove(subscription.calendarApiId, subscription);
+        Set<String> userSubscriptionIds = subscriptionIdsByUser.get(subscription.userId);
+        if (userSubscriptionIds != null) {
+            userSubscriptionIds.remove(subscriptionId);
+            if (userSubscriptionIds.isEmpty()) {
+                subscriptionIdsByUser.remove(subscription.userId);
+            }
+        }
+        subscriptionsByExpiration.remove(subscription);
+        if (journal != null) {
+            journal.remove(subscriptionId);
+        }
+        return true;
+    }
+
+    private void putRecord(SubscriptionRecord record) {
+        subscriptions.put(record.subscriptionId, record);
+        subscriptionByCalendar.put(record.calendarApiId, record);
+        subscriptionIdsByUser.computeIfAbsent(record.userId, user -> ConcurrentHashMap.newKeySet())
+                .add(record.subscriptionId);
+        subscriptionsByExpiration.add(record);
+    }
+
+    private void persistRecord(SubscriptionRecord record) {
+        if (journal != null) {
+            journal.put(record.subscriptionId, encodeRecord(record));
+        }
+        if (sharedSubscriptions != null) {
+            sharedSubscriptions.put(record.subscriptionId, encodeRecord(record));
+        }
+    }
+
+    static String encodeRecord(SubscriptionRecord record) {
+        return record.resource + "\t" + record.expirationDateTime + "\t" + record.userId
+                + (record.clientState != null ? "\t" + record.clientState : "");
+    }
+
+    static SubscriptionRecord decodeRecord(String subscriptionId, String value) {
+        String[] values = value.split("\t");
+        return new SubscriptionRecord(subscriptionId, values[0], OffsetDateTime.parse(values[1]), values[2],
+                values.length > 3 ? values[3] : null);
     }
 
     /**
@@ -97,6 +380,28 @@ public class SubscriptionStoreService {
         return new ArrayList<>(subscriptions.values());
     }
 
+    /**
+     * Возвращает количество подписок данного узла.
+     *
+     * @return Количество подписок
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Возвращает подписку, срок действия которой истекает раньше остальных.
+     *
+     * @return Подписка или null, если подписок нет
+     */
+    public SubscriptionRecord getEarliestExpiringSubscription() {
+        try {
+            return subscriptionsByExpiration.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
     /**
      * Возвращает true, если для указанного ID календаря Outlook уже существует подписка, иначе false.
      *
@@ -104,9 +409,7 @@ public class SubscriptionStoreService {
      * @return true, если для указанного ID календаря Outlook уже существует подписка, иначе false
      */
     public boolean hasActiveSubscriptionForCalendarId(String calendarApiId) {
-        if (currentlyUsedCalendars.contains(calendarApiId))
-            return true;
-        return false;
+        return subscriptionByCalendar.containsKey(calendarApiId);
     }
 
 }
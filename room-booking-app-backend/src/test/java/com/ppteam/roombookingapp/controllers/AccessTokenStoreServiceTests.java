@@ -0,0 +1,139 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.store.MemoryStoreFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessTokenStoreServiceTests {
+
+	@TempDir
+	Path directory;
+	private AccessTokenStoreService accessTokenStoreService;
+
+	@BeforeEach
+	void setUp() {
+		accessTokenStoreService = new AccessTokenStoreService();
+		ReflectionTestUtils.setField(accessTokenStoreService, "maxTokens", 2);
+		ReflectionTestUtils.setField(accessTokenStoreService, "opaqueTokenLifetimeInMinutes", 60L);
+	}
+
+	@Test
+	void expirationIsReadFromJwt() {
+		assertEquals(1700000000000L, AccessTokenStoreService.getJwtExpirationInMillis(jwt(1700000000L)));
+		assertEquals(-1, AccessTokenStoreService.getJwtExpirationInMillis("EwBwA8l6BAAU"));
+		assertEquals(-1, AccessTokenStoreService.getJwtExpirationInMillis("header.%%%.signature"));
+	}
+
+	@Test
+	void userIdIsTakenFromValidAccountIdOnly() {
+		assertEquals("9a1b2c3d4e5f6071",
+				AccessTokenStoreService.getUserIdFromAccountId("00000000-0000-0000-9a1b-2c3d4e5f6071"));
+		assertEquals("9a1b2c3d4e5f6071", AccessTokenStoreService.getUserIdFromAccountId(
+				"00000000-0000-0000-9a1b-2c3d4e5f6071.9188040d-6c67-4c5b-b112-36a304b66dad"));
+		assertThrows(IllegalArgumentException.class, () -> AccessTokenStoreService.getUserIdFromAccountId("short"));
+		assertThrows(IllegalArgumentException.class,
+				() -> AccessTokenStoreService.getUserIdFromAccountId("00000000-0000-0000-9a1b-2c3d4e5f607z"));
+		assertThrows(IllegalArgumentException.class, () -> AccessTokenStoreService.getUserIdFromAccountId(null));
+	}
+
+	@Test
+	void expiredTokensAreNotReturned() {
+		long now = System.currentTimeMillis() / 1000;
+		accessTokenStoreService.setAccessTokenByUserId("expired", jwt(now - 60));
+		accessTokenStoreService.setAccessTokenByUserId("valid", jwt(now + 3600));
+
+		assertNull(accessTokenStoreService.getAccessTokenByUserId("expired"));
+		assertFalse(accessTokenStoreService.hasAccessTokenForUserId("expired"));
+		assertEquals(jwt(now + 3600), accessTokenStoreService.getAccessTokenByUserId("valid"));
+	}
+
+	@Test
+	void expiredSharedTokensAreEvicted() {
+		long now = System.currentTimeMillis() / 1000;
+		Map<String, String> sharedTokens = new ConcurrentHashMap<>(
+				Map.of("expired", jwt(now - 60), "valid", jwt(now + 3600)));
+		ReflectionTestUtils.setField(accessTokenStoreService, "accessTokenByUser", sharedTokens);
+
+		accessTokenStoreService.evictExpiredTokens();
+
+		assertEquals(Map.of("valid", jwt(now + 3600)), sharedTokens);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void journalDoesNotReplaceNewerSharedTokens() throws Exception {
+		AppendOnlyJournal journal = new AppendOnlyJournal(directory.resolve("tokens.journal"), 10);
+		journal.load();
+		journal.put("user", "old-token");
+		journal.put("other", "other-token");
+		journal.close();
+		Map<String, String> sharedTokens = new ConcurrentHashMap<>(Map.of("user", "new-token"));
+		ReflectionTestUtils.setField(accessTokenStoreService, "storeFactory", new MemoryStoreFactory() {
+			@Override
+			public <K, V> Map<K, V> createMap(String name) {
+				return (Map<K, V>) sharedTokens;
+			}
+		});
+		ReflectionTestUtils.setField(accessTokenStoreService, "persistenceEnabled", true);
+		ReflectionTestUtils.setField(accessTokenStoreService, "storeTokens", true);
+		ReflectionTestUtils.setField(accessTokenStoreService, "persistenceDirectory", directory.toString());
+		ReflectionTestUtils.setField(accessTokenStoreService, "compactionThreshold", 10);
+
+		ReflectionTestUtils.invokeMethod(accessTokenStoreService, "init");
+		ReflectionTestUtils.invokeMethod(accessTokenStoreService, "closeJournal");
+
+		assertEquals(Map.of("user", "new-token", "other", "other-token"), sharedTokens);
+	}
+
+	@Test
+	void removalListenersAreNotifiedOfEvictedTokens() {
+		List<String> removedUsers = new ArrayList<>();
+		accessTokenStoreService.addRemovalListener(removedUsers::add);
+		long now = System.currentTimeMillis() / 1000;
+		Map<String, String> sharedTokens = new ConcurrentHashMap<>(Map.of("expired", jwt(now - 60)));
+		ReflectionTestUtils.setField(accessTokenStoreService, "accessTokenByUser", sharedTokens);
+
+		accessTokenStoreService.evictExpiredTokens();
+		accessTokenStoreService.setAccessTokenByUserId("first", "first-token");
+		accessTokenStoreService.setAccessTokenByUserId("second", "second-token");
+		accessTokenStoreService.setAccessTokenByUserId("third", "third-token");
+
+		assertEquals(List.of("expired"), removedUsers);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	void leastRecentlyUsedTokenIsEvictedFromLocalCacheOnly() {
+		accessTokenStoreService.setAccessTokenByUserId("first", "first-token");
+		accessTokenStoreService.setAccessTokenByUserId("second", "second-token");
+		accessTokenStoreService.getAccessTokenByUserId("first");
+		accessTokenStoreService.setAccessTokenByUserId("third", "third-token");
+
+		Map<String, ?> cachedTokens = (Map<String, ?>) ReflectionTestUtils.getField(accessTokenStoreService,
+				"cachedTokenByUser");
+		assertEquals(Set.of("first", "third"), cachedTokens.keySet());
+		assertEquals("second-token", accessTokenStoreService.getAccessTokenByUserId("second"));
+		assertEquals("first-token", accessTokenStoreService.getAccessTokenByUserId("first"));
+		assertEquals("third-token", accessTokenStoreService.getAccessTokenByUserId("third"));
+	}
+
+	private static String jwt(long expiration) {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		String payload = "{\"aud\":\"https://graph.microsoft.com\",\"exp\":" + expiration + "}";
+		return encoder.encodeToString("{\"alg\":\"RS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+				+ encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".signature";
+	}
+}
@@ -0,0 +1,53 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.azure.core.credential.AccessToken;
+import com.azure.core.credential.TokenCredential;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+
+import java.net.URL;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppOnlyAuthenticationProviderTests {
+
+	private final AtomicInteger tokenRequests = new AtomicInteger();
+
+	@Test
+	void tokenIsRequestedOnceWhileValid() throws Exception {
+		AppOnlyAuthenticationProvider provider = new AppOnlyAuthenticationProvider(
+				credential(Duration.ofHours(1)), Duration.ofMinutes(5));
+		URL url = new URL("https://graph.microsoft.com/v1.0/subscriptions");
+
+		assertEquals("token-1", provider.getAuthorizationTokenAsync(url).get(5, TimeUnit.SECONDS));
+		assertEquals("token-1", provider.getAuthorizationTokenAsync(url).get(5, TimeUnit.SECONDS));
+		provider.refreshIfExpiring();
+
+		assertEquals(1, tokenRequests.get());
+	}
+
+	@Test
+	void expiringTokenIsRefreshedInAdvance() throws Exception {
+		AppOnlyAuthenticationProvider provider = new AppOnlyAuthenticationProvider(
+				credential(Duration.ofMinutes(3)), Duration.ofMinutes(5));
+		URL url = new URL("https://graph.microsoft.com/v1.0/subscriptions");
+
+		assertEquals("token-1", provider.getAuthorizationTokenAsync(url).get(5, TimeUnit.SECONDS));
+		provider.refreshIfExpiring();
+
+		assertEquals(2, tokenRequests.get());
+		assertEquals("token-2", provider.getAuthorizationTokenAsync(url).get(5, TimeUnit.SECONDS));
+	}
+
+	private TokenCredential credential(Duration lifetime) {
+		return request -> {
+			assertTrue(request.getScopes().contains(AppOnlyAuthenticationProvider.graphScope));
+			return Mono.just(new AccessToken("token-" + tokenRequests.incrementAndGet(),
+					OffsetDateTime.now().plus(lifetime)));
+		};
+	}
+}
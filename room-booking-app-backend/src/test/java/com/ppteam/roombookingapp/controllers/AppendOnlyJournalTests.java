@@ -0,0 +1,72 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AppendOnlyJournalTests {
+
+	@TempDir
+	Path directory;
+
+	@Test
+	void reloadsLatestValues() throws Exception {
+		Path path = directory.resolve("test.journal");
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 100)) {
+			assertTrue(journal.load().isEmpty());
+			journal.put("first", "1");
+			journal.put("second", "2\tс табуляцией");
+			journal.put("first", "3");
+			journal.remove("second");
+			journal.put("third", "4");
+		}
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 100)) {
+			assertEquals(Map.of("first", "3", "third", "4"), journal.load());
+			assertEquals(2, journal.getRecordCount());
+		}
+	}
+
+	@Test
+	void compactsWhenStaleRecordsAccumulate() throws Exception {
+		Path path = directory.resolve("test.journal");
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 10)) {
+			journal.load();
+			for (int i = 0; i < 1000; i++) {
+				journal.put("key" + (i % 5), String.valueOf(i));
+			}
+			assertTrue(journal.getRecordCount() <= 15);
+			assertTrue(Files.readAllLines(path).size() <= 15);
+		}
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 10)) {
+			Map<String, String> entries = journal.load();
+			assertEquals(5, entries.size());
+			assertEquals("999", entries.get("key4"));
+		}
+	}
+
+	@Test
+	void skipsCorruptedAndTruncatedRecords() throws Exception {
+		Path path = directory.resolve("test.journal");
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 100)) {
+			journal.load();
+			journal.put("first", "1");
+			journal.put("second", "2");
+		}
+		String content = Files.readString(path).replace("P\tsecond\t2", "P\tsecond\t5");
+		Files.writeString(path, content + "P\tthird\t3", StandardCharsets.UTF_8, StandardOpenOption.TRUNCATE_EXISTING);
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 100)) {
+			assertEquals(Map.of("first", "1"), journal.load());
+			journal.put("fourth", "4");
+		}
+		try (AppendOnlyJournal journal = new AppendOnlyJournal(path, 100)) {
+			assertEquals(Map.of("first", "1", "fourth", "4"), journal.load());
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CalendarDirectoryServiceTests {
+
+	private NotificationEncryptionService encryptionService;
+	private CalendarDirectoryService calendarDirectoryService;
+
+	@BeforeEach
+	void setUp() {
+		encryptionService = new NotificationEncryptionService();
+		calendarDirectoryService = new CalendarDirectoryService();
+		ReflectionTestUtils.setField(calendarDirectoryService, "notificationEncryptionService", encryptionService);
+	}
+
+	@Test
+	void versionChangesOnlyWhenCalendarsChange() {
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+		CalendarDirectoryService.CalendarDirectory directory = calendarDirectoryService.getCachedDirectory("user");
+		String version = directory.getVersion();
+		long lastModified = directory.getLastModifiedInMillis();
+
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+		assertEquals(version, directory.getVersion());
+		assertEquals(lastModified, directory.getLastModifiedInMillis());
+
+		calendarDirectoryService.applyCalendars("user",
+				List.of(calendar("room-1", "Переговорная 1"), calendar("room-2", "Переговорная 2")));
+		assertNotEquals(version, directory.getVersion());
+		assertTrue(directory.getLastModifiedInMillis() > lastModified);
+		assertEquals(0, directory.getLastModifiedInMillis() % 1000);
+		assertEquals(2, directory.getCalendars().size());
+		assertNull(calendarDirectoryService.getCachedDirectory("other"));
+	}
+
+	@Test
+	void versionDependsOnlyOnCalendars() {
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+		String version = calendarDirectoryService.getCachedDirectory("user").getVersion();
+
+		CalendarDirectoryService otherNode = new CalendarDirectoryService();
+		ReflectionTestUtils.setField(otherNode, "notificationEncryptionService", encryptionService);
+		otherNode.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+
+		assertEquals(version, otherNode.getCachedDirectory("user").getVersion());
+	}
+
+	@Test
+	void calendarAccessIsCheckedAgainstUserDirectory() {
+		GraphClientHelper graphClientHelper = new GraphClientHelper();
+		ReflectionTestUtils.setField(graphClientHelper, "accessTokenStoreService", new AccessTokenStoreService());
+		ReflectionTestUtils.setField(calendarDirectoryService, "graphClientHelper", graphClientHelper);
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+
+		assertTrue(calendarDirectoryService.hasCalendar("user", "room-1").join());
+		assertFalse(calendarDirectoryService.hasCalendar("user", "room-2").join());
+		assertFalse(calendarDirectoryService.hasCalendar("other", "room-1").join());
+	}
+
+	@Test
+	void subscriptionResourcesArePrecomputed() {
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+
+		ResourcePath resourcePath = calendarDirectoryService.getSubscriptionResource("room-1", "user");
+		assertEquals("Users/user/calendars/room-1/events", resourcePath.resource);
+		assertEquals("room-1", resourcePath.calendarId);
+		assertSame(resourcePath, calendarDirectoryService.getSubscriptionResource("room-1", "user"));
+
+		ResourcePath otherUserPath = calendarDirectoryService.getSubscriptionResource("room-1", "other");
+		assertEquals("Users/other/calendars/room-1/events", otherUserPath.resource);
+	}
+
+	@Test
+	void subscriptionResourcesAreRemovedWithEvictedDirectory() {
+		calendarDirectoryService.applyCalendars("user", List.of(calendar("room-1", "Переговорная 1")));
+		ResourcePath directoryPath = calendarDirectoryService.getSubscriptionResource("room-1", "user");
+		ResourcePath otherPath = calendarDirectoryService.getSubscriptionResource("room-2", "user");
+
+		calendarDirectoryService.refreshDirectories();
+
+		assertNull(calendarDirectoryService.getCachedDirectory("user"));
+		assertNotSame(directoryPath, calendarDirectoryService.getSubscriptionResource("room-1", "user"));
+		assertSame(otherPath, calendarDirectoryService.getSubscriptionResource("room-2", "user"));
+	}
+
+	@Test
+	void subscriptionResourceSelectsPropertiesWhenResourceDataIsIncluded() {
+		ReflectionTestUtils.setField(encryptionService, "includeResourceData", true);
+
+		ResourcePath resourcePath = calendarDirectoryService.getSubscriptionResource("room-1", "user");
+
+		assertEquals("Users/user/calendars/room-1/events?$select=" + CalendarDirectoryService.resourceDataProperties,
+				resourcePath.resource);
+		assertEquals("room-1", resourcePath.calendarId);
+	}
+
+	private static JsonObject calendar(String id, String name) {
+		return JsonParser.parseString("{\"id\":\"" + id + "\",\"name\":\"" + name + "\",\"isDefaultCalendar\":false}")
+				.getAsJsonObject();
+	}
+}
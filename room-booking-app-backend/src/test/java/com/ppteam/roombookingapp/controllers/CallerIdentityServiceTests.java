@@ -0,0 +1,83 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CallerIdentityServiceTests {
+
+	private final Map<String, CompletableFuture<String>> verificationByToken = new HashMap<>();
+	private final AtomicInteger verifications = new AtomicInteger();
+	private AccessTokenStoreService accessTokenStoreService;
+	private CallerIdentityService callerIdentityService;
+
+	@BeforeEach
+	void setUp() {
+		accessTokenStoreService = new AccessTokenStoreService();
+		ReflectionTestUtils.setField(accessTokenStoreService, "maxTokens", 10);
+		ReflectionTestUtils.setField(accessTokenStoreService, "opaqueTokenLifetimeInMinutes", 60L);
+		callerIdentityService = new CallerIdentityService() {
+			@Override
+			CompletableFuture<String> verifyToken(String accessToken) {
+				verifications.incrementAndGet();
+				return verificationByToken.computeIfAbsent(accessToken, token -> new CompletableFuture<>());
+			}
+		};
+		ReflectionTestUtils.setField(callerIdentityService, "accessTokenStoreService", accessTokenStoreService);
+		ReflectionTestUtils.setField(callerIdentityService, "graphCallbackExecutor", (Executor) Runnable::run);
+		ReflectionTestUtils.setField(callerIdentityService, "cacheMinutes", 5L);
+		ReflectionTestUtils.setField(callerIdentityService, "maxEntries", 1);
+	}
+
+	@Test
+	void requestsWithoutBearerTokenHaveNoCaller() {
+		assertNull(callerIdentityService.getCallerId(null).join());
+		assertNull(callerIdentityService.getCallerId("Basic dXNlcjpwYXNz").join());
+		assertNull(callerIdentityService.getCallerId("Bearer  ").join());
+		assertNull(callerIdentityService.getCallerIdByToken(null).join());
+		assertEquals(0, verifications.get());
+	}
+
+	@Test
+	void verifiedCallerIsCachedAndTokenIsStored() {
+		CompletableFuture<String> first = callerIdentityService.getCallerId("Bearer token");
+		CompletableFuture<String> second = callerIdentityService.getCallerId("bearer token");
+		assertFalse(first.isDone());
+
+		verificationByToken.get("token").complete("user");
+
+		assertEquals("user", first.join());
+		assertEquals("user", second.join());
+		assertEquals("user", callerIdentityService.getCallerId("Bearer token").join());
+		assertEquals(1, verifications.get());
+		assertEquals("token", accessTokenStoreService.getAccessTokenByUserId("user"));
+	}
+
+	@Test
+	void rejectedTokenIsNotCached() {
+		verificationByToken.put("bad", CompletableFuture.failedFuture(new IllegalStateException("401")));
+
+		assertNull(callerIdentityService.getCallerId("Bearer bad").join());
+		assertNull(callerIdentityService.getCallerId("Bearer bad").join());
+		assertEquals(2, verifications.get());
+	}
+
+	@Test
+	void leastRecentlyUsedCallerIsEvicted() {
+		verificationByToken.put("first", CompletableFuture.completedFuture("user-1"));
+		verificationByToken.put("second", CompletableFuture.completedFuture("user-2"));
+
+		assertEquals("user-1", callerIdentityService.getCallerId("Bearer first").join());
+		assertEquals("user-2", callerIdentityService.getCallerId("Bearer second").join());
+		assertEquals("user-1", callerIdentityService.getCallerId("Bearer first").join());
+		assertEquals(3, verifications.get());
+	}
+}
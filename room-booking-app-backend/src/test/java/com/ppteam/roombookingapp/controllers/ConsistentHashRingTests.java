@@ -0,0 +1,57 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConsistentHashRingTests {
+
+	private static final int calendarCount = 10000;
+
+	@Test
+	void emptyRingHasNoOwner() {
+		assertNull(new ConsistentHashRing(List.of(), 128).getNode("calendar"));
+	}
+
+	@Test
+	void ringsWithSameNodesAgreeOnOwners() {
+		ConsistentHashRing first = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+		ConsistentHashRing second = new ConsistentHashRing(List.of("c", "a", "b"), 128);
+		for (int i = 0; i < calendarCount; i++) {
+			assertEquals(first.getNode("calendar" + i), second.getNode("calendar" + i));
+		}
+	}
+
+	@Test
+	void calendarsAreSpreadAcrossNodes() {
+		ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c", "d"), 128);
+		Map<String, Integer> calendarsByNode = new HashMap<>();
+		for (int i = 0; i < calendarCount; i++) {
+			calendarsByNode.merge(ring.getNode("calendar" + i), 1, Integer::sum);
+		}
+		assertEquals(4, calendarsByNode.size());
+		for (int calendars : calendarsByNode.values()) {
+			assertTrue(calendars > calendarCount / 4 * 0.7 && calendars < calendarCount / 4 * 1.3);
+		}
+	}
+
+	@Test
+	void addingNodeMovesCalendarsOnlyToNewNode() {
+		ConsistentHashRing ring = new ConsistentHashRing(List.of("a", "b", "c"), 128);
+		ConsistentHashRing grownRing = new ConsistentHashRing(List.of("a", "b", "c", "d"), 128);
+		int movedCalendars = 0;
+		for (int i = 0; i < calendarCount; i++) {
+			String owner = ring.getNode("calendar" + i);
+			String newOwner = grownRing.getNode("calendar" + i);
+			if (!owner.equals(newOwner)) {
+				assertEquals("d", newOwner);
+				movedCalendars++;
+			}
+		}
+		assertTrue(movedCalendars < calendarCount / 4 * 1.3);
+	}
+}
@@ -0,0 +1,189 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверяет получение событий batch запросами на локальном сервере, имитирующем Microsoft Graph.
+ */
+class EventChangeServiceTests {
+
+	private HttpServer fakeGraph;
+	private final AtomicInteger batchRequests = new AtomicInteger();
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+	private final List<String> broadcasts = Collections.synchronizedList(new ArrayList<>());
+	private EventChangeService eventChangeService;
+	private SimpleMeterRegistry meterRegistry;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		fakeGraph = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		fakeGraph.createContext("/v1.0/$batch", this::handleBatch);
+		fakeGraph.start();
+
+		meterRegistry = new SimpleMeterRegistry();
+		PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry, null);
+		GraphRequestScheduler graphRequestScheduler = new GraphRequestScheduler(100, 100, 4, 3, 10, 100);
+		AccessTokenStoreService accessTokenStoreService = new AccessTokenStoreService();
+		ReflectionTestUtils.setField(accessTokenStoreService, "maxTokens", 10);
+		ReflectionTestUtils.setField(accessTokenStoreService, "opaqueTokenLifetimeInMinutes", 60L);
+		accessTokenStoreService.setAccessTokenByUserId("user", "token");
+		GraphClientHelper graphClientHelper = new GraphClientHelper();
+		ReflectionTestUtils.setField(graphClientHelper, "accessTokenStoreService", accessTokenStoreService);
+		ReflectionTestUtils.setField(graphClientHelper, "pipelineMetrics", pipelineMetrics);
+		ReflectionTestUtils.setField(graphClientHelper, "graphRequestScheduler", graphRequestScheduler);
+		ReflectionTestUtils.setField(graphClientHelper, "serviceRoot",
+				"http://127.0.0.1:" + fakeGraph.getAddress().getPort() + "/v1.0");
+		ReflectionTestUtils.setField(graphClientHelper, "maxIdleConnections", 5);
+		ReflectionTestUtils.setField(graphClientHelper, "keepAliveMinutes", 1L);
+		ReflectionTestUtils.setField(graphClientHelper, "maxRequests", 16);
+		ReflectionTestUtils.setField(graphClientHelper, "maxRequestsPerHost", 16);
+		ReflectionTestUtils.invokeMethod(graphClientHelper, "init");
+
+		RoomBroadcastService roomBroadcastService = new RoomBroadcastService(null) {
+			@Override
+			public void broadcast(String calendarApiId, Collection<String> rooms, String eventName, Object payload) {
+				String id = payload instanceof NewEventNotification ? ((NewEventNotification) payload).id : (String) payload;
+				broadcasts.add(calendarApiId + " " + eventName + " " + id);
+			}
+		};
+		eventChangeService = new EventChangeService();
+		ReflectionTestUtils.setField(eventChangeService, "graphClientHelper", graphClientHelper);
+		ReflectionTestUtils.setField(eventChangeService, "scheduleCacheService", new ScheduleCacheService());
+		ReflectionTestUtils.setField(eventChangeService, "roomBroadcastService", roomBroadcastService);
+		ReflectionTestUtils.setField(eventChangeService, "eventFingerprintService", new EventFingerprintService());
+		ReflectionTestUtils.setField(eventChangeService, "pipelineMetrics", pipelineMetrics);
+		ReflectionTestUtils.setField(eventChangeService, "graphRequestScheduler", graphRequestScheduler);
+		ReflectionTestUtils.setField(eventChangeService, "graphCallbackExecutor", (Executor) Runnable::run);
+		ReflectionTestUtils.setField(eventChangeService, "storeUpdateExecutor", new KeyedExecutor(Runnable::run));
+		ReflectionTestUtils.setField(eventChangeService, "socketFanoutExecutor", new KeyedExecutor(Runnable::run));
+	}
+
+	@AfterEach
+	void tearDown() {
+		fakeGraph.stop(0);
+	}
+
+	@Test
+	void fetchesAreGroupedIntoBatchesOfTwenty() throws Exception {
+		List<EventChange> changes = new ArrayList<>();
+		for (int i = 0; i < 25; i++) {
+			changes.add(change("event" + i, i % 2 == 0, false));
+		}
+		List<EventChange> failed = eventChangeService.applyChanges(changes).get(10, TimeUnit.SECONDS);
+		assertTrue(failed.isEmpty());
+		assertEquals(2, batchRequests.get());
+		assertEquals(List.of(5, 20), sorted(batchSizes));
+		assertEquals(25, broadcasts.size());
+		assertTrue(broadcasts.contains("calendar add_event event0"));
+		assertTrue(broadcasts.contains("calendar update_event event1"));
+	}
+
+	@Test
+	void partialFailuresAreHandledPerItem() throws Exception {
+		List<EventChange> changes = List.of(
+				change("event", false, false),
+				change("missing", false, false),
+				change("throttled", true, false),
+				change("deleted", false, true));
+		List<EventChange> failed = eventChangeService.applyChanges(changes).get(10, TimeUnit.SECONDS);
+		assertEquals(1, batchRequests.get());
+		assertEquals(List.of(3), batchSizes);
+		assertEquals(1, failed.size());
+		assertEquals("throttled", failed.get(0).eventId);
+		assertEquals(3, broadcasts.size());
+		assertTrue(broadcasts.contains("calendar update_event event"));
+		assertTrue(broadcasts.contains("calendar delete_event missing"));
+		assertTrue(broadcasts.contains("calendar delete_event deleted"));
+		assertEquals(1, meterRegistry.get("roombooking.graph.requests").tag("operation", "batch").timer().count());
+		assertEquals(1, meterRegistry.get("roombooking.graph.errors").tag("status", "429").counter().count());
+		assertEquals(2, meterRegistry.get("roombooking.notifications.delivery").tag("event", "delete_event").timer()
+				.count());
+	}
+
+	@Test
+	void unchangedUpdatesAreNotBroadcast() throws Exception {
+		eventChangeService.applyChanges(List.of(change("event", false, false))).get(10, TimeUnit.SECONDS);
+		eventChangeService.applyChanges(List.of(change("event", false, false))).get(10, TimeUnit.SECONDS);
+		eventChangeService.applyChanges(List.of(change("event", false, true))).get(10, TimeUnit.SECONDS);
+		eventChangeService.applyChanges(List.of(change("event", true, false))).get(10, TimeUnit.SECONDS);
+
+		assertEquals(List.of("calendar update_event event", "calendar delete_event event", "calendar add_event event"),
+				broadcasts);
+		assertEquals(1, meterRegistry.get("roombooking.broadcasts.suppressed").tag("event", "update_event").counter()
+				.count());
+	}
+
+	private static EventChange change(String eventId, boolean created, boolean deleted) {
+		return new EventChange("calendar", "user", "Users/user/Events/" + eventId, eventId, created, deleted);
+	}
+
+	private static List<Integer> sorted(List<Integer> values) {
+		List<Integer> sortedValues = new ArrayList<>(values);
+		Collections.sort(sortedValues);
+		return sortedValues;
+	}
+
+	private void handleBatch(HttpExchange exchange) throws IOException {
+		batchRequests.incrementAndGet();
+		JsonArray requests = JsonParser.parseString(new String(exchange.getRequestBody().readAllBytes(),
+				StandardCharsets.UTF_8)).getAsJsonObject().getAsJsonArray("requests");
+		batchSizes.add(requests.size());
+		JsonArray responses = new JsonArray();
+		for (JsonElement request : requests) {
+			String id = request.getAsJsonObject().get("id").getAsString();
+			String url = request.getAsJsonObject().get("url").getAsString();
+			String eventId = url.substring(url.lastIndexOf('/') + 1);
+			JsonObject response = new JsonObject();
+			response.addProperty("id", id);
+			if (eventId.equals("missing")) {
+				response.addProperty("status", 404);
+				response.add("body", JsonParser.parseString("{\"error\":{\"code\":\"ErrorItemNotFound\"}}"));
+			} else if (eventId.equals("throttled")) {
+				response.addProperty("status", 429);
+				response.add("headers", JsonParser.parseString("{\"Retry-After\":\"1\"}"));
+				response.add("body", JsonParser.parseString("{\"error\":{\"code\":\"TooManyRequests\"}}"));
+			} else {
+				response.addProperty("status", 200);
+				response.add("headers", JsonParser.parseString("{\"Content-Type\":\"application/json\"}"));
+				response.add("body", JsonParser.parseString("{\"id\":\"" + eventId + "\",\"subject\":\"Встреча\","
+						+ "\"start\":{\"dateTime\":\"2022-10-10T10:00:00.0000000\",\"timeZone\":\"UTC\"},"
+						+ "\"end\":{\"dateTime\":\"2022-10-10T11:00:00.0000000\",\"timeZone\":\"UTC\"},"
+						+ "\"organizer\":{\"emailAddress\":{\"name\":\"Организатор\"}}}"));
+			}
+			responses.add(response);
+		}
+		JsonObject body = new JsonObject();
+		body.add("responses", responses);
+		byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, bytes.length);
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(bytes);
+		}
+	}
+
+}
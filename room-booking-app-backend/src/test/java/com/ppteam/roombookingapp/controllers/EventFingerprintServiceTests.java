@@ -0,0 +1,37 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventFingerprintServiceTests {
+
+	@Test
+	void onlyDisplayedPropertiesChangeFingerprint() {
+		EventFingerprintService eventFingerprintService = new EventFingerprintService();
+		NewEventNotification event = new NewEventNotification("event", "Встреча", "2022-10-10T10:00:00.0000000",
+				"2022-10-10T11:00:00.0000000", "Организатор");
+
+		assertTrue(eventFingerprintService.update("calendar", event));
+		assertFalse(eventFingerprintService.update("calendar", new NewEventNotification("event", "Встреча",
+				"2022-10-10T10:00:00.0000000", "2022-10-10T11:00:00.0000000", "Организатор")));
+		assertTrue(eventFingerprintService.update("calendar", new NewEventNotification("event", "Встреча",
+				"2022-10-10T10:30:00.0000000", "2022-10-10T11:00:00.0000000", "Организатор")));
+		assertTrue(eventFingerprintService.update("other", event));
+
+		eventFingerprintService.remove("other", "event");
+		assertTrue(eventFingerprintService.update("other", event));
+		eventFingerprintService.clear("calendar");
+		assertTrue(eventFingerprintService.update("calendar", event));
+	}
+
+	@Test
+	void adjacentPropertiesDoNotMix() {
+		assertNotEquals(
+				EventFingerprintService.getFingerprint(new NewEventNotification("event", "ab", "c", "d", null)),
+				EventFingerprintService.getFingerprint(new NewEventNotification("event", "a", "bc", "d", null)));
+		assertNotEquals(
+				EventFingerprintService.getFingerprint(new NewEventNotification("event", "", "c", "d", "e")),
+				EventFingerprintService.getFingerprint(new NewEventNotification("event", null, "c", "d", "e")));
+	}
+}
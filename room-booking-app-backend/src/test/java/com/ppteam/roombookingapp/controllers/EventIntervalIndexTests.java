@@ -0,0 +1,98 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventIntervalIndexTests {
+
+	@Test
+	void busyIntervalsOverlapRequestedPeriod() {
+		EventIntervalIndex index = new EventIntervalIndex();
+		index.put(event("long", "2022-11-01T08:00:00.0000000", "2022-11-01T18:00:00.0000000"));
+		index.put(event("morning", "2022-11-01T09:00:00.0000000", "2022-11-01T10:00:00.0000000"));
+		index.put(event("afternoon", "2022-11-01T14:00:00.0000000", "2022-11-01T15:00:00.0000000"));
+		long from = EventIntervalIndex.toEpochMillis("2022-11-01T10:00:00");
+		long to = EventIntervalIndex.toEpochMillis("2022-11-01T14:00:00");
+
+		List<EventIntervalIndex.Interval> busy = index.getBusyIntervals(from, to);
+
+		assertEquals(1, busy.size());
+		assertEquals("long", busy.get(0).eventId);
+		assertTrue(index.isBusy(from, to));
+		index.remove("long");
+		assertFalse(index.isBusy(from, to));
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	void updatedEventMovesInterval() {
+		EventIntervalIndex index = new EventIntervalIndex();
+		index.put(event("event", "2022-11-01T09:00:00", "2022-11-01T10:00:00"));
+		index.put(event("event", "2022-11-01T12:00:00", "2022-11-01T13:00:00"));
+
+		assertEquals(1, index.size());
+		assertFalse(index.isBusy(EventIntervalIndex.toEpochMillis("2022-11-01T09:00:00"),
+				EventIntervalIndex.toEpochMillis("2022-11-01T10:00:00")));
+		assertTrue(index.isBusy(EventIntervalIndex.toEpochMillis("2022-11-01T12:30:00"),
+				EventIntervalIndex.toEpochMillis("2022-11-01T12:45:00")));
+	}
+
+	@Test
+	void matchesLinearScanOnRandomEvents() {
+		Random random = new Random(42);
+		EventIntervalIndex index = new EventIntervalIndex();
+		Map<String, long[]> expected = new HashMap<>();
+		List<NewEventNotification> events = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			int startMinute = random.nextInt(7 * 24 * 60);
+			int duration = 15 + random.nextInt(240);
+			NewEventNotification event = event("event-" + i, minute(startMinute), minute(startMinute + duration));
+			events.add(event);
+			expected.put(event.id, new long[]{EventIntervalIndex.toEpochMillis(event.start),
+					EventIntervalIndex.toEpochMillis(event.end)});
+		}
+		index.rebuild(events.subList(0, 250));
+		events.subList(250, 500).forEach(index::put);
+		for (int i = 0; i < 100; i++) {
+			String eventId = "event-" + random.nextInt(500);
+			index.remove(eventId);
+			expected.remove(eventId);
+		}
+
+		for (int i = 0; i < 1000; i++) {
+			long from = EventIntervalIndex.toEpochMillis(minute(random.nextInt(7 * 24 * 60)));
+			long to = from + (1 + random.nextInt(180)) * 60_000L;
+			Set<String> overlapping = new HashSet<>();
+			expected.forEach((eventId, interval) -> {
+				if (interval[0] < to && interval[1] > from) {
+					overlapping.add(eventId);
+				}
+			});
+			Set<String> actual = new HashSet<>();
+			index.getBusyIntervals(from, to).forEach(interval -> actual.add(interval.eventId));
+			assertEquals(overlapping, actual);
+			assertEquals(!overlapping.isEmpty(), index.isBusy(from, to));
+		}
+	}
+
+	@Test
+	void eventsWithoutValidTimeAreSkipped() {
+		EventIntervalIndex index = new EventIntervalIndex();
+		index.put(event("event", "2022-11-01T09:00:00", "2022-11-01T10:00:00"));
+		index.put(event("event", "invalid", "2022-11-01T10:00:00"));
+
+		assertEquals(0, index.size());
+	}
+
+	private static String minute(int minute) {
+		return LocalDateTime.of(2022, 11, 1, 0, 0).plusMinutes(minute).toString();
+	}
+
+	private static NewEventNotification event(String id, String start, String end) {
+		return new NewEventNotification(id, "subject", start, end, "organizer");
+	}
+}
@@ -0,0 +1,204 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.microsoft.graph.models.Subscription;
+import com.microsoft.graph.requests.GraphServiceClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import okhttp3.Request;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Проверяет планировщик запросов на локальном сервере, имитирующем ограничение запросов Microsoft Graph.
+ */
+class GraphRequestSchedulerTests {
+
+	private HttpServer fakeGraph;
+	private final AtomicInteger patchRequests = new AtomicInteger();
+	private GraphRequestScheduler graphRequestScheduler;
+	private GraphClientHelper graphClientHelper;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		fakeGraph = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		fakeGraph.createContext("/v1.0/subscriptions/", this::handleSubscription);
+		fakeGraph.start();
+
+		graphRequestScheduler = new GraphRequestScheduler(100, 100, 4, 5, 10, 100);
+		AccessTokenStoreService accessTokenStoreService = new AccessTokenStoreService();
+		ReflectionTestUtils.setField(accessTokenStoreService, "maxTokens", 10);
+		ReflectionTestUtils.setField(accessTokenStoreService, "opaqueTokenLifetimeInMinutes", 60L);
+		accessTokenStoreService.setAccessTokenByUserId("user", "token");
+		graphClientHelper = new GraphClientHelper();
+		ReflectionTestUtils.setField(graphClientHelper, "accessTokenStoreService", accessTokenStoreService);
+		ReflectionTestUtils.setField(graphClientHelper, "pipelineMetrics",
+				new PipelineMetrics(new SimpleMeterRegistry(), null));
+		ReflectionTestUtils.setField(graphClientHelper, "graphRequestScheduler", graphRequestScheduler);
+		ReflectionTestUtils.setField(graphClientHelper, "serviceRoot",
+				"http://127.0.0.1:" + fakeGraph.getAddress().getPort() + "/v1.0");
+		ReflectionTestUtils.setField(graphClientHelper, "maxIdleConnections", 5);
+		ReflectionTestUtils.setField(graphClientHelper, "keepAliveMinutes", 1L);
+		ReflectionTestUtils.setField(graphClientHelper, "maxRequests", 16);
+		ReflectionTestUtils.setField(graphClientHelper, "maxRequestsPerHost", 16);
+		ReflectionTestUtils.invokeMethod(graphClientHelper, "init");
+	}
+
+	@AfterEach
+	void tearDown() {
+		fakeGraph.stop(0);
+	}
+
+	@Test
+	void throttledRequestIsRetriedAfterRetryAfter() throws Exception {
+		GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient("user");
+		Subscription subscription = new Subscription();
+		subscription.expirationDateTime = OffsetDateTime.now(ZoneOffset.UTC).plusHours(1);
+		long startNanos = System.nanoTime();
+
+		Subscription renewed = graphRequestScheduler.submit("user", GraphRequestPriority.SUBSCRIPTION,
+				() -> graphClient.subscriptions("subscription").buildRequest().patchAsync(subscription))
+				.get(10, TimeUnit.SECONDS);
+
+		assertEquals("subscription", renewed.id);
+		assertEquals(3, patchRequests.get());
+		assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(1900));
+	}
+
+	@Test
+	void higherPriorityRequestsAreSentFirst() throws Exception {
+		GraphRequestScheduler scheduler = new GraphRequestScheduler(1000, 1000, 1, 1, 10, 100);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		CompletableFuture<String> blocker = new CompletableFuture<>();
+		scheduler.submit("user", GraphRequestPriority.SYNC, () -> blocker);
+		List<CompletableFuture<String>> requests = new ArrayList<>();
+		requests.add(scheduler.submit("user", GraphRequestPriority.SYNC, () -> record(order, "sync")));
+		requests.add(scheduler.submit("user", GraphRequestPriority.EVENT_FETCH, () -> record(order, "fetch")));
+		requests.add(scheduler.submit("user", GraphRequestPriority.SUBSCRIPTION, () -> record(order, "renewal")));
+		requests.add(scheduler.submit("user", GraphRequestPriority.INTERACTIVE, () -> record(order, "caller")));
+
+		blocker.complete("done");
+		CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+		assertEquals(List.of("caller", "renewal", "fetch", "sync"), order);
+	}
+
+	@Test
+	void requestsAreLimitedByTokenBucket() throws Exception {
+		GraphRequestScheduler scheduler = new GraphRequestScheduler(10, 2, 100, 1, 10, 100);
+		List<CompletableFuture<String>> requests = new ArrayList<>();
+		long startNanos = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			requests.add(scheduler.submit("user", GraphRequestPriority.EVENT_FETCH,
+					() -> CompletableFuture.completedFuture("done")));
+		}
+		requests.add(scheduler.submit("other", GraphRequestPriority.EVENT_FETCH,
+				() -> CompletableFuture.completedFuture("done")));
+
+		assertTrue(requests.get(5).isDone());
+		CompletableFuture.allOf(requests.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+		assertTrue(System.nanoTime() - startNanos >= TimeUnit.MILLISECONDS.toNanos(250));
+	}
+
+	@Test
+	void idleQueuesAreEvicted() throws Exception {
+		GraphRequestScheduler scheduler = new GraphRequestScheduler(1000, 1, 1, 1, 10, 100);
+		CompletableFuture<String> pendingResponse = new CompletableFuture<>();
+		CompletableFuture<String> pending = scheduler.submit("busy", GraphRequestPriority.SYNC, () -> pendingResponse);
+		scheduler.submit("idle", GraphRequestPriority.SYNC, () -> CompletableFuture.completedFuture("done"))
+				.get(5, TimeUnit.SECONDS);
+		Thread.sleep(20);
+
+		scheduler.evictIdleQueues();
+		assertEquals(1, scheduler.getQueueCount());
+
+		pendingResponse.complete("done");
+		assertEquals("done", pending.get(5, TimeUnit.SECONDS));
+		Thread.sleep(20);
+		scheduler.evictIdleQueues();
+		assertEquals(0, scheduler.getQueueCount());
+		assertEquals("done", scheduler.submit("idle", GraphRequestPriority.SYNC,
+				() -> CompletableFuture.completedFuture("done")).get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void nonRetryableErrorsAreNotRetried() {
+		AtomicInteger attempts = new AtomicInteger();
+		CompletableFuture<String> request = graphRequestScheduler.submit("user", GraphRequestPriority.EVENT_FETCH, () -> {
+			attempts.incrementAndGet();
+			return CompletableFuture.failedFuture(new IllegalStateException("test"));
+		});
+
+		assertThrows(ExecutionException.class, () -> request.get(5, TimeUnit.SECONDS));
+		assertEquals(1, attempts.get());
+		assertEquals(-1, GraphRequestScheduler.parseRetryAfter("Wed, 21 Oct 2015 07:28:00 GMT"));
+		assertEquals(3, GraphRequestScheduler.parseRetryAfter(" 3"));
+	}
+
+	@Test
+	void missingResourceIsNotRetried() {
+		GraphServiceClient<Request> graphClient = graphClientHelper.getGraphClient("user");
+		CompletableFuture<Subscription> request = graphRequestScheduler.submit("user", GraphRequestPriority.SUBSCRIPTION,
+				() -> graphClient.subscriptions("missing").buildRequest().deleteAsync());
+
+		ExecutionException exception = assertThrows(ExecutionException.class, () -> request.get(5, TimeUnit.SECONDS));
+		assertTrue(GraphRequestScheduler.isNotFound(exception));
+		assertFalse(GraphRequestScheduler.isRetryable(exception));
+		assertEquals(1, patchRequests.get());
+	}
+
+	@Test
+	void sharedClientResolvesUserFromRequestPath() {
+		assertEquals("user", GraphRequestScheduler.getUserIdFromRequest(new Request.Builder()
+				.url("https://graph.microsoft.com/v1.0/Users/user/calendars/calendar/calendarView/delta").build()));
+		assertNull(GraphRequestScheduler.getUserIdFromRequest(new Request.Builder()
+				.url("https://graph.microsoft.com/v1.0/$batch").build()));
+	}
+
+	private static CompletableFuture<String> record(List<String> order, String name) {
+		order.add(name);
+		return CompletableFuture.completedFuture(name);
+	}
+
+	private void handleSubscription(HttpExchange exchange) throws IOException {
+		exchange.getRequestBody().readAllBytes();
+		byte[] bytes;
+		if (exchange.getRequestURI().getPath().endsWith("/missing")) {
+			patchRequests.incrementAndGet();
+			bytes = "{\"error\":{\"code\":\"ResourceNotFound\",\"message\":\"Not found\"}}"
+					.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(404, bytes.length);
+		} else if (patchRequests.incrementAndGet() < 3) {
+			bytes = "{\"error\":{\"code\":\"TooManyRequests\",\"message\":\"Throttled\"}}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Retry-After", "1");
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(429, bytes.length);
+		} else {
+			bytes = "{\"id\":\"subscription\"}".getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, bytes.length);
+		}
+		try (OutputStream responseBody = exchange.getResponseBody()) {
+			responseBody.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyedExecutorTests {
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	private final KeyedExecutor keyedExecutor = new KeyedExecutor(pool);
+
+	@AfterEach
+	void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	void tasksWithSameKeyRunInOrder() throws Exception {
+		List<Integer> expected = new ArrayList<>();
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			int number = i;
+			expected.add(number);
+			tasks.add(keyedExecutor.execute("room", () -> order.add(number)));
+		}
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+
+		assertEquals(expected, order);
+		assertEquals(0, keyedExecutor.getPendingKeys());
+	}
+
+	@Test
+	void tasksWithDifferentKeysRunConcurrently() throws Exception {
+		CountDownLatch bothStarted = new CountDownLatch(2);
+		CompletableFuture<Boolean> first = keyedExecutor.submit("first", () -> awaitQuietly(bothStarted));
+		CompletableFuture<Boolean> second = keyedExecutor.submit("second", () -> awaitQuietly(bothStarted));
+
+		assertTrue(first.get(5, TimeUnit.SECONDS));
+		assertTrue(second.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void failedTaskDoesNotBlockNextTask() throws Exception {
+		CompletableFuture<Void> failed = keyedExecutor.execute("room", () -> {
+			throw new IllegalStateException("test");
+		});
+		CompletableFuture<String> next = keyedExecutor.submit("room", () -> "done");
+
+		assertEquals("done", next.get(5, TimeUnit.SECONDS));
+		assertTrue(failed.isCompletedExceptionally());
+	}
+
+	@Test
+	void taskCanSubmitToSameKeyWhenRunInCallerThread() throws Exception {
+		KeyedExecutor callerRunsExecutor = new KeyedExecutor(Runnable::run);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		List<CompletableFuture<Void>> inner = new ArrayList<>();
+
+		CompletableFuture<Void> outer = callerRunsExecutor.execute("room", () -> {
+			order.add("outer");
+			inner.add(callerRunsExecutor.execute("room", () -> order.add("inner")));
+			order.add("outer done");
+		});
+
+		outer.get(5, TimeUnit.SECONDS);
+		inner.get(0).get(5, TimeUnit.SECONDS);
+		assertEquals(List.of("outer", "outer done", "inner"), order);
+		assertEquals(0, callerRunsExecutor.getPendingKeys());
+	}
+
+	@Test
+	void rejectedTaskCompletesExceptionally() {
+		pool.shutdown();
+
+		CompletableFuture<String> rejected = keyedExecutor.submit("room", () -> "done");
+
+		assertTrue(rejected.isCompletedExceptionally());
+		assertEquals(0, keyedExecutor.getPendingKeys());
+	}
+
+	private static boolean awaitQuietly(CountDownLatch latch) {
+		latch.countDown();
+		try {
+			return latch.await(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonSyntaxException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotificationDecoderTests {
+
+	@Test
+	void decodesOnlyUsedProperties() {
+		String payload = "{\"value\":[{\"subscriptionId\":\"subscription\",\"subscriptionExpirationDateTime\":"
+				+ "\"2022-11-20T18:23:45.9356913+00:00\",\"changeType\":\"created\",\"resource\":\"Users/user/Events/event\","
+				+ "\"resourceData\":{\"@odata.type\":\"#Microsoft.Graph.Event\",\"id\":\"event\"},\"clientState\":\"secret\","
+				+ "\"encryptedContent\":{\"data\":\"data\",\"dataKey\":\"key\"},\"tenantId\":\"tenant\"},"
+				+ "{\"subscriptionId\":\"other\",\"changeType\":\"deleted\",\"resource\":\"Users/user/Events/deleted\"}]}";
+
+		List<GraphNotification> notifications = NotificationDecoder.decode(payload.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(2, notifications.size());
+		GraphNotification notification = notifications.get(0);
+		assertEquals("subscription", notification.subscriptionId);
+		assertEquals("created", notification.changeType);
+		assertEquals("user", notification.resource.userId);
+		assertEquals("event", notification.resource.eventId);
+		assertEquals("data", notification.encryptedContent.get("data").getAsString());
+		assertEquals("secret", notification.clientState);
+		assertNull(notifications.get(1).encryptedContent);
+		assertNull(notifications.get(1).clientState);
+		assertEquals("deleted", notifications.get(1).resource.eventId);
+	}
+
+	@Test
+	void decodesLifecycleNotifications() {
+		String payload = "{\"value\":[{\"subscriptionId\":\"subscription\",\"lifecycleEvent\":\"missed\","
+				+ "\"resource\":null,\"organizationId\":\"tenant\"}]}";
+
+		GraphNotification notification = NotificationDecoder.decode(payload.getBytes(StandardCharsets.UTF_8)).get(0);
+
+		assertEquals("missed", notification.lifecycleEvent);
+		assertNull(notification.resource);
+	}
+
+	@Test
+	void malformedPayloadIsRejected() {
+		assertThrows(JsonSyntaxException.class,
+				() -> NotificationDecoder.decode("{\"value\":[{\"subscriptionId\":".getBytes(StandardCharsets.UTF_8)));
+		assertThrows(JsonSyntaxException.class,
+				() -> NotificationDecoder.decode("[]".getBytes(StandardCharsets.UTF_8)));
+	}
+
+	@Test
+	void invalidNotificationsAreSkipped() {
+		String payload = "{\"value\":[{\"changeType\":\"created\",\"resource\":\"Users/user/Events/missing\"},"
+				+ "{\"subscriptionId\":\"unknown\",\"changeType\":\"created\",\"resource\":\"Users/user\"},"
+				+ "{\"subscriptionId\":\"subscription\",\"changeType\":\"updated\",\"resource\":\"Users/user/Events/event\"}]}";
+
+		List<GraphNotification> notifications = NotificationDecoder.decode(payload.getBytes(StandardCharsets.UTF_8));
+
+		assertEquals(1, notifications.size());
+		assertEquals("subscription", notifications.get(0).subscriptionId);
+		assertEquals("event", notifications.get(0).resource.eventId);
+	}
+
+	@Test
+	void resourcePathsAreParsedOnce() {
+		ResourcePath event = ResourcePath.parse("Users/user/Events/event");
+		assertEquals("user", event.userId);
+		assertNull(event.calendarId);
+		assertEquals("event", event.eventId);
+
+		ResourcePath calendar = ResourcePath.parse("Users/user/calendars/calendar/events?$select=subject,start");
+		assertEquals("user", calendar.userId);
+		assertEquals("calendar", calendar.calendarId);
+		assertNull(calendar.eventId);
+
+		ResourcePath calendarEvent = ResourcePath.parse("users/user/Calendars/calendar/events/event");
+		assertEquals("calendar", calendarEvent.calendarId);
+		assertEquals("event", calendarEvent.eventId);
+
+		assertThrows(IllegalArgumentException.class, () -> ResourcePath.parse("Users/user"));
+	}
+}
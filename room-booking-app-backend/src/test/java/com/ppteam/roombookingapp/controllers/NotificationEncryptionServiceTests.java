@@ -0,0 +1,126 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotificationEncryptionServiceTests {
+
+	private static final String certificateId = "test-certificate";
+	private static final String resourceData = "{\"@odata.type\":\"#Microsoft.OutlookServices.Event\","
+			+ "\"Id\":\"event\",\"Subject\":\"Планерка\","
+			+ "\"Start\":{\"DateTime\":\"2022-11-01T10:00:00.0000000\",\"TimeZone\":\"UTC\"},"
+			+ "\"End\":{\"DateTime\":\"2022-11-01T11:00:00.0000000\",\"TimeZone\":\"UTC\"},"
+			+ "\"Organizer\":{\"EmailAddress\":{\"Name\":\"Иван\",\"Address\":\"ivan@example.com\"}}}";
+
+	private KeyPair keyPair;
+	private NotificationEncryptionService encryptionService;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+		encryptionService = new NotificationEncryptionService();
+		ReflectionTestUtils.setField(encryptionService, "includeResourceData", true);
+		ReflectionTestUtils.setField(encryptionService, "certificateId", certificateId);
+		ReflectionTestUtils.setField(encryptionService, "privateKey", keyPair.getPrivate());
+	}
+
+	@Test
+	void decryptsResourceDataIntoEventNotification() throws Exception {
+		JsonObject decrypted = encryptionService.decryptResourceData(encrypt(resourceData, certificateId));
+		NewEventNotification event = NewEventNotification.fromResourceData(decrypted);
+
+		assertEquals("event", event.id);
+		assertEquals("Планерка", event.subject);
+		assertEquals("2022-11-01T10:00:00.0000000", event.start);
+		assertEquals("2022-11-01T11:00:00.0000000", event.end);
+		assertEquals("Иван", event.organizer);
+	}
+
+	@Test
+	void rejectsTamperedSignature() throws Exception {
+		JsonObject encryptedContent = encrypt(resourceData, certificateId);
+		byte[] signature = Base64.getDecoder().decode(encryptedContent.get("dataSignature").getAsString());
+		signature[0] ^= 1;
+		encryptedContent.addProperty("dataSignature", Base64.getEncoder().encodeToString(signature));
+
+		assertThrows(GeneralSecurityException.class, () -> encryptionService.decryptResourceData(encryptedContent));
+	}
+
+	@Test
+	void rejectsTamperedData() throws Exception {
+		JsonObject encryptedContent = encrypt(resourceData, certificateId);
+		byte[] data = Base64.getDecoder().decode(encryptedContent.get("data").getAsString());
+		data[data.length - 1] ^= 1;
+		encryptedContent.addProperty("data", Base64.getEncoder().encodeToString(data));
+
+		assertThrows(GeneralSecurityException.class, () -> encryptionService.decryptResourceData(encryptedContent));
+	}
+
+	@Test
+	void rejectsDataEncryptedForAnotherCertificate() throws Exception {
+		JsonObject encryptedContent = encrypt(resourceData, "another-certificate");
+
+		assertThrows(GeneralSecurityException.class, () -> encryptionService.decryptResourceData(encryptedContent));
+	}
+
+	@Test
+	void parsesEventWithoutSubjectAndOrganizer() throws Exception {
+		String data = "{\"id\":\"event\",\"start\":{\"dateTime\":\"2022-11-01T10:00:00\"},"
+				+ "\"end\":{\"dateTime\":\"2022-11-01T11:00:00\"}}";
+		JsonObject decrypted = encryptionService.decryptResourceData(encrypt(data, certificateId));
+		NewEventNotification event = NewEventNotification.fromResourceData(decrypted);
+
+		assertEquals("event", event.id);
+		assertNull(event.subject);
+		assertNull(event.organizer);
+		assertEquals(JsonParser.parseString(data), decrypted);
+	}
+
+	/**
+	 * Шифрует данные так же, как Microsoft Graph шифрует данные ресурса в уведомлениях.
+	 */
+	private JsonObject encrypt(String data, String encryptionCertificateId) throws Exception {
+		byte[] symmetricKey = new byte[32];
+		new SecureRandom().nextBytes(symmetricKey);
+
+		Cipher dataCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		dataCipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(symmetricKey, "AES"),
+				new IvParameterSpec(Arrays.copyOf(symmetricKey, 16)));
+		byte[] encryptedData = dataCipher.doFinal(data.getBytes(StandardCharsets.UTF_8));
+
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(symmetricKey, "HmacSHA256"));
+		byte[] signature = mac.doFinal(encryptedData);
+
+		Cipher keyCipher = Cipher.getInstance("RSA/ECB/OAEPWithSHA-1AndMGF1Padding");
+		keyCipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+		byte[] encryptedKey = keyCipher.doFinal(symmetricKey);
+
+		JsonObject encryptedContent = new JsonObject();
+		encryptedContent.addProperty("data", Base64.getEncoder().encodeToString(encryptedData));
+		encryptedContent.addProperty("dataSignature", Base64.getEncoder().encodeToString(signature));
+		encryptedContent.addProperty("dataKey", Base64.getEncoder().encodeToString(encryptedKey));
+		encryptedContent.addProperty("encryptionCertificateId", encryptionCertificateId);
+		encryptedContent.addProperty("encryptionCertificateThumbprint", "thumbprint");
+		return encryptedContent;
+	}
+}
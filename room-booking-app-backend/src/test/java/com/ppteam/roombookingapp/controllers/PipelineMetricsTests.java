@@ -0,0 +1,76 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipelineMetricsTests {
+
+	@Test
+	void graphOperationsDoNotContainResourceIds() {
+		assertEquals("batch", PipelineMetrics.getGraphOperation("POST", "/v1.0/$batch"));
+		assertEquals("subscriptions.patch", PipelineMetrics.getGraphOperation("PATCH", "/v1.0/subscriptions/id"));
+		assertEquals("calendarView.delta",
+				PipelineMetrics.getGraphOperation("GET", "/v1.0/users/user/calendars/calendar/calendarView/delta"));
+		assertEquals("events.get", PipelineMetrics.getGraphOperation("GET", "/v1.0/Users/user/Events/event"));
+		assertEquals("calendars", PipelineMetrics.getGraphOperation("GET", "/v1.0/users/user/calendars"));
+	}
+
+	@Test
+	void lateRenewalsAreCountedSeparately() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry, null);
+
+		pipelineMetrics.recordRenewal(Duration.ofMinutes(9));
+		pipelineMetrics.recordRenewal(Duration.ofSeconds(-5));
+
+		assertEquals(1, meterRegistry.get("roombooking.subscriptions.renewal.time.to.expiry").timer().count());
+		assertEquals(1, meterRegistry.get("roombooking.subscriptions.expired.before.renewal").counter().count());
+	}
+
+	@Test
+	void droppedChangesAreCountedByReason() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry, null);
+
+		pipelineMetrics.recordDroppedChange("no_token");
+		pipelineMetrics.recordDroppedChange("no_token");
+
+		assertEquals(2, meterRegistry.get("roombooking.changes.dropped").tag("reason", "no_token").counter().count());
+		assertNull(meterRegistry.find("roombooking.graph.errors").counter());
+	}
+
+	@Test
+	void deliveryLatencyIsRecordedPerEvent() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry, null);
+
+		pipelineMetrics.recordDelivery(System.nanoTime(), "add_event");
+		pipelineMetrics.recordDelivery(System.nanoTime(), "add_event");
+		pipelineMetrics.recordDelivery(System.nanoTime(), "delete_event");
+
+		assertEquals(2, meterRegistry.get("roombooking.notifications.delivery").tag("event", "add_event").timer().count());
+		assertEquals(1, meterRegistry.get("roombooking.notifications.delivery").tag("event", "delete_event").timer()
+				.count());
+	}
+
+	@Test
+	void roomGaugeIsRemovedWhenRoomIsUnwatched() {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		PipelineMetrics pipelineMetrics = new PipelineMetrics(meterRegistry, new SocketIOServer(new Configuration()));
+
+		pipelineMetrics.watchRoom("room-1");
+		pipelineMetrics.watchRoom("room-1");
+		assertNotNull(meterRegistry.find("roombooking.socket.room.clients").tag("calendar", "room-1").gauge());
+		assertEquals(1, pipelineMetrics.getWatchedRooms().size());
+
+		pipelineMetrics.unwatchRoom("room-1");
+		assertNull(meterRegistry.find("roombooking.socket.room.clients").tag("calendar", "room-1").gauge());
+		assertTrue(pipelineMetrics.getWatchedRooms().isEmpty());
+	}
+}
@@ -0,0 +1,181 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.store.MemoryStoreFactory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomBroadcastServiceTests {
+
+	private static final int replayBufferSize = 4;
+
+	private RoomBroadcastService roomBroadcastService;
+	private final List<String> sentEvents = new ArrayList<>();
+	private SocketIOClient client;
+	private final Set<String> clientRooms = new TreeSet<>();
+
+	@BeforeEach
+	void setUp() {
+		MemoryStoreFactory storeFactory = new MemoryStoreFactory();
+		Configuration configuration = new Configuration();
+		configuration.setStoreFactory(storeFactory);
+		roomBroadcastService = new RoomBroadcastService(new SocketIOServer(configuration));
+		ReflectionTestUtils.setField(roomBroadcastService, "storeFactory", storeFactory);
+		ReflectionTestUtils.setField(roomBroadcastService, "replayBufferSize", replayBufferSize);
+		ReflectionTestUtils.setField(roomBroadcastService, "maxWindowDays", 7);
+		ReflectionTestUtils.invokeMethod(roomBroadcastService, "init");
+		client = (SocketIOClient) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{SocketIOClient.class}, (proxy, method, args) -> {
+					switch (method.getName()) {
+						case "sendEvent":
+							Object[] eventArgs = (Object[]) args[1];
+							sentEvents.add(args[0] + " " + eventArgs[0] + " " + eventArgs[1] + " " + eventArgs[2]);
+							return null;
+						case "joinRoom":
+							clientRooms.add((String) args[0]);
+							return null;
+						case "leaveRoom":
+							clientRooms.remove((String) args[0]);
+							return null;
+						case "getAllRooms":
+							return new HashSet<>(clientRooms);
+						default:
+							return null;
+					}
+				});
+	}
+
+	@Test
+	void sequencesAreIncreasingPerRoom() {
+		roomBroadcastService.broadcast("first", "delete_event", "a");
+		roomBroadcastService.broadcast("first", "delete_event", "b");
+		roomBroadcastService.broadcast("second", "delete_event", "c");
+
+		assertEquals(2, roomBroadcastService.getSequence("first"));
+		assertEquals(1, roomBroadcastService.getSequence("second"));
+		assertEquals(0, roomBroadcastService.getSequence("third"));
+	}
+
+	@Test
+	void replaysOnlyMissedEventsInOrder() {
+		roomBroadcastService.broadcast("calendar", "delete_event", "a");
+		roomBroadcastService.broadcast("calendar", "delete_event", "b");
+		roomBroadcastService.broadcast("calendar", "delete_event", "c");
+
+		assertTrue(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 1));
+		assertEquals(List.of("delete_event b calendar 2", "delete_event c calendar 3"), sentEvents);
+	}
+
+	@Test
+	void upToDateClientReceivesNothing() {
+		roomBroadcastService.broadcast("calendar", "delete_event", "a");
+
+		assertTrue(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 1));
+		assertTrue(sentEvents.isEmpty());
+	}
+
+	@Test
+	void overrunBufferRequiresSnapshot() {
+		for (int i = 0; i < replayBufferSize + 2; i++) {
+			roomBroadcastService.broadcast("calendar", "delete_event", "event" + i);
+		}
+
+		assertFalse(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 1));
+		assertTrue(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 2));
+		assertEquals(replayBufferSize, sentEvents.size());
+	}
+
+	@Test
+	void clearedBufferRequiresSnapshot() {
+		roomBroadcastService.broadcast("calendar", "delete_event", "a");
+		roomBroadcastService.broadcast("calendar", "delete_event", "b");
+
+		roomBroadcastService.clearReplayBuffer("calendar");
+
+		assertTrue(roomBroadcastService.getBufferedCalendars().isEmpty());
+		assertFalse(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 1));
+		assertEquals(2, roomBroadcastService.getSequence("calendar"));
+	}
+
+	@Test
+	void unknownEpochOrFutureSequenceRequiresSnapshot() {
+		roomBroadcastService.broadcast("calendar", "delete_event", "a");
+
+		assertFalse(roomBroadcastService.replay(client, "calendar", "previous-epoch", 0));
+		assertFalse(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 5));
+		assertTrue(sentEvents.isEmpty());
+	}
+
+	@Test
+	void eventsRecordedFromOtherNodesAreReplayed() {
+		roomBroadcastService.broadcast("calendar", "delete_event", "a");
+		Map<String, Long> sequenceByRoom = getSequences();
+		sequenceByRoom.put("calendar", 2L);
+		roomBroadcastService.record("calendar", "delete_event", "b", 2);
+		roomBroadcastService.broadcast("calendar", "delete_event", "c");
+
+		assertTrue(roomBroadcastService.replay(client, "calendar", roomBroadcastService.getEpoch(), 1));
+		assertEquals(List.of("delete_event b calendar 2", "delete_event c calendar 3"), sentEvents);
+	}
+
+	@Test
+	void changesAreSentToDaysBeforeAndAfterChange() {
+		long day = getEpochDay("2022-10-10T00:00:00");
+		NewEventNotification event = event("2022-10-10T23:00:00.0000000", "2022-10-11T01:00:00.0000000");
+		NewEventNotification movedEvent = event("2022-10-13T10:00:00.0000000", "2022-10-13T11:00:00.0000000");
+
+		assertEquals(List.of("calendar", "calendar#" + day, "calendar#" + (day + 1)),
+				new ArrayList<>(roomBroadcastService.getRooms("calendar", event, null, true)));
+		assertEquals(List.of("calendar", "calendar#" + day, "calendar#" + (day + 1), "calendar#" + (day + 3)),
+				new ArrayList<>(roomBroadcastService.getRooms("calendar", movedEvent, event, true)));
+		assertEquals(List.of("calendar", "calendar#" + (day + 3)),
+				new ArrayList<>(roomBroadcastService.getRooms("calendar", null, movedEvent, true)));
+		assertEquals(List.of("calendar", "calendar#*"),
+				new ArrayList<>(roomBroadcastService.getRooms("calendar", movedEvent, null, false)));
+		assertEquals(List.of("calendar", "calendar#*"), new ArrayList<>(roomBroadcastService.getRooms("calendar",
+				event("2022-10-01T00:00:00.0000000", "2022-10-31T00:00:00.0000000"), null, true)));
+	}
+
+	@Test
+	void clientJoinsRoomsOfVisibleDays() {
+		long day = getEpochDay("2022-10-10T00:00:00");
+		long dayStart = day * 86400000L;
+
+		assertTrue(roomBroadcastService.joinRooms(client, "calendar", dayStart + 3600000L, dayStart + 86400000L * 2));
+		assertEquals(Set.of("calendar#*", "calendar#" + day, "calendar#" + (day + 1)), clientRooms);
+
+		assertTrue(roomBroadcastService.joinRooms(client, "calendar", dayStart + 86400000L, dayStart + 86400000L * 2));
+		assertEquals(Set.of("calendar#*", "calendar#" + (day + 1)), clientRooms);
+
+		assertFalse(roomBroadcastService.joinRooms(client, "calendar", dayStart, dayStart + 86400000L * 30));
+		assertEquals(Set.of("calendar"), clientRooms);
+
+		roomBroadcastService.joinRooms(client, "other", null, null);
+		roomBroadcastService.leaveRooms(client, "calendar");
+		assertEquals(Set.of("other"), clientRooms);
+		assertEquals("calendar", RoomBroadcastService.getCalendarApiId("calendar#" + day));
+	}
+
+	private static NewEventNotification event(String start, String end) {
+		return new NewEventNotification("event", "Встреча", start, end, "Организатор");
+	}
+
+	private static long getEpochDay(String dateTime) {
+		return LocalDateTime.parse(dateTime).toLocalDate().toEpochDay();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Long> getSequences() {
+		return (Map<String, Long>) ReflectionTestUtils.getField(roomBroadcastService, "sequenceByRoom");
+	}
+}
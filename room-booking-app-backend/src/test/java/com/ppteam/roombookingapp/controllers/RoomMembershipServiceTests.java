@@ -0,0 +1,70 @@
+package com.ppteam.roombookingapp.controllers;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RoomMembershipServiceTests {
+
+	@Test
+	void roomIsWatchedUntilLastClientLeaves() {
+		RoomMembershipService membership = new RoomMembershipService(0, new SimpleMeterRegistry());
+		UUID first = UUID.randomUUID();
+		UUID second = UUID.randomUUID();
+
+		membership.join(first, "calendar", "user");
+		membership.join(first, "calendar", "user");
+		membership.join(second, "calendar", "user");
+		membership.leave(first, "calendar");
+
+		assertTrue(membership.isWatched("calendar"));
+
+		membership.disconnect(second);
+
+		assertFalse(membership.isWatched("calendar"));
+		assertEquals(Map.of(), membership.getWatchedCalendars());
+	}
+
+	@Test
+	void disconnectReleasesAllRoomsOfClient() {
+		RoomMembershipService membership = new RoomMembershipService(0, new SimpleMeterRegistry());
+		UUID client = UUID.randomUUID();
+
+		membership.join(client, "first", "user");
+		membership.join(client, "second", "user");
+		membership.disconnect(client);
+		membership.leave(client, "first");
+
+		assertFalse(membership.isWatched("first"));
+		assertFalse(membership.isWatched("second"));
+	}
+
+	@Test
+	void rejoinWithinLingerKeepsRoomWatched() throws InterruptedException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		RoomMembershipService membership = new RoomMembershipService(200, meterRegistry);
+		UUID client = UUID.randomUUID();
+
+		membership.join(client, "calendar", "user");
+		membership.disconnect(client);
+
+		assertTrue(membership.isWatched("calendar"));
+		assertEquals(Map.of("calendar", "user"), membership.getWatchedCalendars());
+		assertEquals(1, meterRegistry.get("roombooking.rooms.lingering").gauge().value());
+
+		UUID reconnected = UUID.randomUUID();
+		assertTrue(membership.join(reconnected, "calendar", "user"));
+		assertEquals(1, meterRegistry.get("roombooking.rooms.linger.rejoined").counter().count());
+
+		membership.leave(reconnected, "calendar");
+		Thread.sleep(300);
+
+		assertFalse(membership.isWatched("calendar"));
+		assertFalse(membership.join(reconnected, "calendar", "user"));
+		assertEquals(1, meterRegistry.get("roombooking.rooms.linger.rejoined").counter().count());
+	}
+}
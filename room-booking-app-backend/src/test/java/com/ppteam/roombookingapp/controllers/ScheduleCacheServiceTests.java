@@ -0,0 +1,165 @@
+package com.ppteam.roombookingapp.controllers;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ScheduleCacheServiceTests {
+
+	private static final LocalDate seededOn = LocalDate.of(2030, 1, 10);
+
+	private final List<String> changes = new ArrayList<>();
+	private RoomMembershipService roomMembershipService;
+	private ScheduleCacheService scheduleCacheService;
+
+	@BeforeEach
+	void setUp() {
+		roomMembershipService = new RoomMembershipService(0, new SimpleMeterRegistry());
+		scheduleCacheService = new ScheduleCacheService();
+		ReflectionTestUtils.setField(scheduleCacheService, "roomMembershipService", roomMembershipService);
+		GraphClientHelper graphClientHelper = new GraphClientHelper();
+		ReflectionTestUtils.setField(graphClientHelper, "accessTokenStoreService", new AccessTokenStoreService());
+		ReflectionTestUtils.setField(scheduleCacheService, "graphClientHelper", graphClientHelper);
+		ReflectionTestUtils.setField(scheduleCacheService, "subscriptionStoreService", new SubscriptionStoreService());
+		ReflectionTestUtils.setField(scheduleCacheService, "storeUpdateExecutor", new KeyedExecutor(Runnable::run));
+		ReflectionTestUtils.setField(scheduleCacheService, "maxSyncFailures", 3);
+		ReflectionTestUtils.setField(scheduleCacheService, "windowPastDays", 31);
+		ReflectionTestUtils.setField(scheduleCacheService, "windowFutureDays", 92);
+		ReflectionTestUtils.setField(scheduleCacheService, "idleMinutes", 60L);
+		scheduleCacheService.addChangeListener((calendarApiId, eventId, event, previousEvent) -> changes.add(
+				(event == null ? "delete" : previousEvent == null ? "add" : "update") + ":" + eventId));
+	}
+
+	@Test
+	void fullSyncReplacesScheduleEvents() {
+		ScheduleCacheService.RoomSchedule schedule = createSchedule("room");
+
+		scheduleCacheService.applyChanges(schedule,
+				List.of(event("event-1", "2030-01-10T10:00"), event("event-2", "2030-01-10T11:00")),
+				"delta-1", "user", seededOn);
+		assertEquals(List.of(), changes);
+
+		scheduleCacheService.applyChanges(schedule, List.of(removed("event-1"), event("event-3", "2030-01-10T12:00"),
+				event("event-2", "2030-01-10T11:00")), "delta-2", "user", null);
+		assertEquals(List.of("event-2", "event-3"), getEventIds(schedule));
+		assertEquals(List.of("delete:event-1", "add:event-3"), changes);
+
+		scheduleCacheService.applyChanges(schedule, List.of(event("event-2", "2030-01-10T11:00")), "delta-3", "other",
+				seededOn);
+		assertEquals(List.of("event-2"), getEventIds(schedule));
+		assertEquals(List.of("delete:event-1", "add:event-3", "delete:event-3"), changes);
+		assertSame(schedule, scheduleCacheService.getCachedSchedule("room"));
+	}
+
+	@Test
+	void dailyReseedDropsEventsBeforeWindowSilently() {
+		ScheduleCacheService.RoomSchedule schedule = createSchedule("room");
+		scheduleCacheService.applyChanges(schedule,
+				List.of(event("old", "2029-12-10T10:00"), event("event", "2030-01-10T10:00")),
+				"delta-1", "user", seededOn);
+
+		scheduleCacheService.applyChanges(schedule, List.of(event("event", "2030-01-10T11:00")), "delta-2", "user",
+				seededOn.plusDays(1));
+
+		assertEquals(List.of("event"), getEventIds(schedule));
+		assertEquals(List.of("update:event"), changes);
+	}
+
+	@Test
+	void reseedKeepsEventsAfterWindowEnd() {
+		ScheduleCacheService.RoomSchedule schedule = createSchedule("room");
+		scheduleCacheService.applyChanges(schedule, List.of(event("event", "2030-01-10T10:00")), "delta-1", "user",
+				seededOn);
+		scheduleCacheService.putEvent("room", NewEventNotification.fromJson(event("future", "2030-06-10T10:00")));
+
+		scheduleCacheService.applyChanges(schedule, List.of(event("event", "2030-01-10T10:00")), "delta-2", "user",
+				seededOn.plusDays(1));
+
+		assertEquals(List.of("event", "future"), getEventIds(schedule));
+		assertEquals(List.of(), changes);
+	}
+
+	@Test
+	void scheduleVersionDiffersAfterRestart() {
+		ScheduleCacheService.RoomSchedule schedule = createSchedule("room");
+		scheduleCacheService.applyChanges(schedule, List.of(event("event", "2030-01-10T10:00")), "delta-1", "user",
+				seededOn);
+		String version = schedule.getVersion();
+
+		setUp();
+		ScheduleCacheService.RoomSchedule restartedSchedule = createSchedule("room");
+		scheduleCacheService.applyChanges(restartedSchedule, List.of(event("event", "2030-01-10T10:00")), "delta-1",
+				"user", seededOn);
+
+		assertNotNull(version);
+		assertNotEquals(version, restartedSchedule.getVersion());
+	}
+
+	@Test
+	void scheduleIsEvictedAfterRepeatedSyncFailures() {
+		assertNull(scheduleCacheService.getSchedule("room", "user").join());
+		assertNull(scheduleCacheService.getSchedule("room", "user").join());
+		assertNotNull(getSchedules().get("room"));
+
+		assertNull(scheduleCacheService.getSchedule("room", "user").join());
+		assertNull(getSchedules().get("room"));
+	}
+
+	@Test
+	void idleSchedulesAreEvictedUnlessWatched() {
+		ScheduleCacheService.RoomSchedule idle = createSchedule("idle");
+		ScheduleCacheService.RoomSchedule watched = createSchedule("watched");
+		ScheduleCacheService.RoomSchedule requested = createSchedule("requested");
+		ReflectionTestUtils.setField(idle, "lastRequestedAtInMillis", 0L);
+		ReflectionTestUtils.setField(watched, "lastRequestedAtInMillis", 0L);
+		roomMembershipService.join(UUID.randomUUID(), "watched", "user");
+
+		scheduleCacheService.syncAllSchedules();
+
+		assertNull(getSchedules().get("idle"));
+		assertSame(watched, getSchedules().get("watched"));
+		assertSame(requested, getSchedules().get("requested"));
+	}
+
+	private ScheduleCacheService.RoomSchedule createSchedule(String calendarApiId) {
+		scheduleCacheService.getSchedule(calendarApiId, "user");
+		return getSchedules().get(calendarApiId);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, ScheduleCacheService.RoomSchedule> getSchedules() {
+		return (Map<String, ScheduleCacheService.RoomSchedule>) ReflectionTestUtils.getField(scheduleCacheService,
+				"scheduleByCalendar");
+	}
+
+	private static List<String> getEventIds(ScheduleCacheService.RoomSchedule schedule) {
+		List<String> eventIds = new ArrayList<>();
+		for (NewEventNotification event : schedule.getEvents()) {
+			eventIds.add(event.id);
+		}
+		eventIds.sort(null);
+		return eventIds;
+	}
+
+	private static JsonObject event(String id, String start) {
+		return JsonParser.parseString("{\"id\":\"" + id + "\",\"subject\":\"Встреча\","
+				+ "\"start\":{\"dateTime\":\"" + start + ":00.0000000\"},"
+				+ "\"end\":{\"dateTime\":\"" + start.substring(0, 14) + "30:00.0000000\"}}")
+				.getAsJsonObject();
+	}
+
+	private static JsonObject removed(String id) {
+		return JsonParser.parseString("{\"id\":\"" + id + "\",\"@removed\":{\"reason\":\"deleted\"}}").getAsJsonObject();
+	}
+}
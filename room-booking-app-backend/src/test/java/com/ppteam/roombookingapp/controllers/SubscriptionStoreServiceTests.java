@@ -0,0 +1,209 @@
+package com.ppteam.roombookingapp.controllers;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SubscriptionStoreServiceTests {
+
+	private static final int threads = 16;
+	private static final OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+
+	private SubscriptionStoreService store;
+	@TempDir
+	Path directory;
+
+	@BeforeEach
+	void setUp() {
+		store = new SubscriptionStoreService();
+	}
+
+	@Test
+	void onlyOneConcurrentReservationPerCalendarSucceeds() throws Exception {
+		for (int round = 0; round < 200; round++) {
+			String calendarApiId = "calendar" + round;
+			AtomicInteger reservations = new AtomicInteger();
+			runConcurrently(threads, thread -> {
+				if (store.tryReserveCalendar(calendarApiId)) {
+					reservations.incrementAndGet();
+				}
+			});
+			assertEquals(1, reservations.get());
+		}
+	}
+
+	@Test
+	void calendarWithSubscriptionCannotBeReserved() {
+		assertTrue(store.tryReserveCalendar("calendar"));
+		store.addSubscription("subscription", resource("user", "calendar"), now, "user", "client-state");
+		assertFalse(store.tryReserveCalendar("calendar"));
+		store.deleteSubscription("subscription");
+		assertTrue(store.tryReserveCalendar("calendar"));
+	}
+
+	@Test
+	void releasedReservationCanBeTakenAgain() {
+		assertTrue(store.tryReserveCalendar("calendar"));
+		store.releaseCalendarReservation("calendar");
+		assertTrue(store.tryReserveCalendar("calendar"));
+	}
+
+	@Test
+	void concurrentAddsAndDeletesKeepIndexesConsistent() throws Exception {
+		int subscriptionsPerThread = 500;
+		runConcurrently(threads, thread -> {
+			for (int i = 0; i < subscriptionsPerThread; i++) {
+				String id = thread + "-" + i;
+				String userId = "user" + (i % 7);
+				store.addSubscription(id, resource(userId, "calendar" + id), now.plusSeconds(i), userId, "client-state");
+				if (i % 2 == 0) {
+					store.deleteSubscription(id);
+				}
+			}
+		});
+		List<SubscriptionRecord> subscriptions = store.getAllSubscriptions();
+		assertEquals(threads * subscriptionsPerThread / 2, subscriptions.size());
+		for (SubscriptionRecord subscription : subscriptions) {
+			assertSame(subscription, store.getSubscriptionForCalendarId(subscription.calendarApiId));
+			assertTrue(store.getSubscriptionsForUserId(subscription.userId).contains(subscription));
+		}
+		int userSubscriptions = 0;
+		for (int user = 0; user < 7; user++) {
+			userSubscriptions += store.getSubscriptionsForUserId("user" + user).size();
+		}
+		assertEquals(subscriptions.size(), userSubscriptions);
+		assertEquals(subscriptions.size(), store.getSubscriptionsExpiringBefore(now.plusDays(1)).size());
+	}
+
+	@Test
+	void concurrentExpirationUpdatesKeepOneOrderedEntryPerSubscription() throws Exception {
+		int subscriptionCount = 100;
+		for (int i = 0; i < subscriptionCount; i++) {
+			store.addSubscription("subscription" + i, resource("user", "calendar" + i), now, "user", "client-state");
+		}
+		runConcurrently(threads, thread -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < 2000; i++) {
+				store.updateSubscriptionExpirationDateTime("subscription" + random.nextInt(subscriptionCount),
+						now.plusSeconds(random.nextInt(3600)));
+			}
+		});
+		List<SubscriptionRecord> expiring = store.getSubscriptionsExpiringBefore(now.plusHours(2));
+		assertEquals(subscriptionCount, expiring.size());
+		for (int i = 1; i < expiring.size(); i++) {
+			assertFalse(expiring.get(i).expirationDateTime.isBefore(expiring.get(i - 1).expirationDateTime));
+		}
+		for (SubscriptionRecord subscription : expiring) {
+			assertSame(store.getSubscription(subscription.subscriptionId), subscription);
+		}
+	}
+
+	@Test
+	void replacedSubscriptionIsRemovedFromAllIndexes() {
+		assertNull(store.addSubscription("old", resource("user", "calendar"), now.plusMinutes(5), "user",
+				"client-state"));
+		SubscriptionRecord replaced = store.addSubscription("new", resource("other", "calendar"), now.plusMinutes(30),
+				"other", "client-state");
+
+		assertEquals("old", replaced.subscriptionId);
+		assertFalse(store.hasSubscriptionWithId("old"));
+		assertEquals("new", store.getSubscriptionForCalendarId("calendar").subscriptionId);
+		assertTrue(store.getSubscriptionsForUserId("user").isEmpty());
+		assertEquals(List.of("new"), store.getSubscriptionsExpiringBefore(now.plusHours(1)).stream()
+				.map(subscription -> subscription.subscriptionId)
+				.collect(Collectors.toList()));
+	}
+
+	@Test
+	void expiringSubscriptionsAreReturnedUpToGivenDate() {
+		store.addSubscription("late", resource("user", "late"), now.plusMinutes(30), "user", "client-state");
+		store.addSubscription("early", resource("user", "early"), now.plusMinutes(5), "user", "client-state");
+		List<SubscriptionRecord> expiring = store.getSubscriptionsExpiringBefore(now.plusMinutes(10));
+		assertEquals(1, expiring.size());
+		assertEquals("early", expiring.get(0).subscriptionId);
+	}
+
+	@Test
+	void restoredStoreContainsOnlyValidSubscriptions() throws Exception {
+		Path journalPath = directory.resolve("subscriptions.journal");
+		store.restore(new AppendOnlyJournal(journalPath, 10));
+		store.addSubscription("renewed", resource("user", "renewed"), now.plusMinutes(1), "user", "client-state");
+		store.updateSubscriptionExpirationDateTime("renewed", now.plusHours(1));
+		store.addSubscription("deleted", resource("user", "deleted"), now.plusHours(1), "user", "client-state");
+		store.deleteSubscription("deleted");
+		store.addSubscription("expired", resource("user", "expired"), now.minusMinutes(1), "user", "client-state");
+
+		SubscriptionStoreService restoredStore = new SubscriptionStoreService();
+		restoredStore.restore(new AppendOnlyJournal(journalPath, 10));
+
+		assertEquals(1, restoredStore.getAllSubscriptions().size());
+		SubscriptionRecord renewed = restoredStore.getSubscriptionForCalendarId("renewed");
+		assertEquals("renewed", renewed.subscriptionId);
+		assertTrue(renewed.expirationDateTime.isEqual(now.plusHours(1)));
+		assertEquals(List.of(renewed), restoredStore.getSubscriptionsForUserId("user"));
+		assertFalse(restoredStore.tryReserveCalendar("renewed"));
+		assertTrue(renewed.hasClientState("client-state"));
+	}
+
+	@Test
+	void subscriptionsWithoutClientStateAreNotRestored() throws Exception {
+		Path journalPath = directory.resolve("subscriptions.journal");
+		AppendOnlyJournal journal = new AppendOnlyJournal(journalPath, 10);
+		journal.load();
+		journal.put("legacy", resource("user", "legacy") + "\t" + now.plusHours(1) + "\tuser");
+		journal.close();
+
+		store.restore(new AppendOnlyJournal(journalPath, 10));
+
+		assertNull(store.getSubscription("legacy"));
+	}
+
+	@Test
+	void notificationClientStateMustMatchSubscription() {
+		store.addSubscription("subscription", resource("user", "calendar"), now, "user", "client-state");
+		SubscriptionRecord subscription = store.getSubscription("subscription");
+
+		assertTrue(subscription.hasClientState("client-state"));
+		assertFalse(subscription.hasClientState("forged"));
+		assertFalse(subscription.hasClientState(null));
+	}
+
+	private static String resource(String userId, String calendarApiId) {
+		return "Users/" + userId + "/calendars/" + calendarApiId + "/events";
+	}
+
+	private static void runConcurrently(int threadCount, ThreadTask task) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < threadCount; i++) {
+			int thread = i;
+			futures.add(executor.submit(() -> {
+				start.await();
+				task.run(thread);
+				return null;
+			}));
+		}
+		start.countDown();
+		for (Future<?> future : futures) {
+			future.get(30, TimeUnit.SECONDS);
+		}
+		executor.shutdown();
+	}
+
+	private interface ThreadTask {
+		void run(int thread);
+	}
+
+}
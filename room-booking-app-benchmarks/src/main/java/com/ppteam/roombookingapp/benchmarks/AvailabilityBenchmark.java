@@ -0,0 +1,99 @@
+package com.ppteam.roombookingapp.benchmarks;
+
+import com.ppteam.roombookingapp.controllers.EventIntervalIndex;
+import com.ppteam.roombookingapp.controllers.NewEventNotification;
+import org.openjdk.jmh.annotations.*;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запросы занятости по индексам интервалов событий 500 переговорных: проверка занятости одной переговорной, список
+ * событий одной переговорной в периоде, поиск свободных переговорных среди всех и изменение события.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class AvailabilityBenchmark {
+
+    private static final int windowMinutes = 60 * 24 * 60;
+    private static final LocalDateTime windowStart = LocalDateTime.of(2022, 11, 1, 0, 0);
+
+    @Param({"500"})
+    private int rooms;
+
+    @Param({"20", "10000"})
+    private int eventsPerRoom;
+
+    private EventIntervalIndex[] indexes;
+    private long windowStartMillis;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(42);
+        windowStartMillis = EventIntervalIndex.toEpochMillis(windowStart.toString());
+        indexes = new EventIntervalIndex[rooms];
+        for (int room = 0; room < rooms; room++) {
+            List<NewEventNotification> events = new ArrayList<>(eventsPerRoom);
+            for (int i = 0; i < eventsPerRoom; i++) {
+                events.add(randomEvent(random, "room-" + room + "-event-" + i));
+            }
+            indexes[room] = new EventIntervalIndex();
+            indexes[room].rebuild(events);
+        }
+    }
+
+    @Benchmark
+    public boolean isBusy() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long from = randomPeriodStart(random);
+        return indexes[random.nextInt(rooms)].isBusy(from, from + TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Benchmark
+    public List<EventIntervalIndex.Interval> busyIntervals() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long from = randomPeriodStart(random);
+        return indexes[random.nextInt(rooms)].getBusyIntervals(from, from + TimeUnit.HOURS.toMillis(1));
+    }
+
+    @Benchmark
+    public List<Integer> findFreeRooms() {
+        long from = randomPeriodStart(ThreadLocalRandom.current());
+        long to = from + TimeUnit.HOURS.toMillis(1);
+        List<Integer> freeRooms = new ArrayList<>();
+        for (int room = 0; room < rooms; room++) {
+            if (!indexes[room].isBusy(from, to)) {
+                freeRooms.add(room);
+            }
+        }
+        return freeRooms;
+    }
+
+    @Benchmark
+    public int updateEvent() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int room = random.nextInt(rooms);
+        EventIntervalIndex index = indexes[room];
+        index.put(randomEvent(new SplittableRandom(random.nextLong()),
+                "room-" + room + "-event-" + random.nextInt(eventsPerRoom)));
+        return index.size();
+    }
+
+    private long randomPeriodStart(ThreadLocalRandom random) {
+        return windowStartMillis + TimeUnit.MINUTES.toMillis(random.nextInt(windowMinutes));
+    }
+
+    private static NewEventNotification randomEvent(SplittableRandom random, String id) {
+        LocalDateTime start = windowStart.plusMinutes(random.nextInt(windowMinutes / 15) * 15L);
+        LocalDateTime end = start.plusMinutes(30 + random.nextInt(4) * 15L);
+        return new NewEventNotification(id, "subject", start.toString(), end.toString(), "organizer");
+    }
+}
@@ -0,0 +1,74 @@
+package com.ppteam.roombookingapp.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.ppteam.roombookingapp.controllers.GraphNotification;
+import com.ppteam.roombookingapp.controllers.NotificationDecoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор тела запроса с уведомлениями Microsoft Graph: построение дерева Json всего запроса с разделением ресурса
+ * каждого уведомления на части, как это делал обработчик уведомлений раньше, и потоковый разбор
+ * {@link NotificationDecoder}. Выделение памяти сравнивается запуском с профилировщиком {@code -prof gc}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Benchmark)
+public class NotificationParsingBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int notificationsPerRequest;
+
+    private byte[] payloadBytes;
+
+    @Setup
+    public void setUp() {
+        StringBuilder payload = new StringBuilder("{\"value\":[");
+        for (int i = 0; i < notificationsPerRequest; i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append("{\"subscriptionId\":\"subscription-").append(i).append('"')
+                    .append(",\"subscriptionExpirationDateTime\":\"2022-11-20T18:23:45.9356913+00:00\"")
+                    .append(",\"changeType\":\"updated\"")
+                    .append(",\"resource\":\"Users/user-").append(i).append("/Events/AAMkAGUwNjQ4ZjIxLTQ3Y2YtNDViMi1iZjc4LTMA")
+                    .append(i).append('"')
+                    .append(",\"resourceData\":{\"@odata.type\":\"#Microsoft.Graph.Event\",\"id\":\"event-").append(i)
+                    .append("\"},\"clientState\":null,\"tenantId\":\"tenant\"}");
+        }
+        payloadBytes = payload.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public void treeDecode(Blackhole blackhole) {
+        String body = new String(payloadBytes, StandardCharsets.UTF_8);
+        JsonArray notifications = JsonParser.parseString(body).getAsJsonObject().get("value").getAsJsonArray();
+        for (JsonElement notificationElement : notifications) {
+            JsonObject notification = notificationElement.getAsJsonObject();
+            blackhole.consume(notification.get("subscriptionId").getAsString());
+            blackhole.consume(notification.get("changeType").getAsString());
+            String[] resourceParts = notification.get("resource").getAsString().split("/");
+            blackhole.consume(resourceParts[1]);
+            blackhole.consume(resourceParts[3]);
+        }
+    }
+
+    @Benchmark
+    public void streamingDecode(Blackhole blackhole) {
+        for (GraphNotification notification : NotificationDecoder.decode(payloadBytes)) {
+            blackhole.consume(notification.subscriptionId);
+            blackhole.consume(notification.changeType);
+            blackhole.consume(notification.resource.userId);
+            blackhole.consume(notification.resource.eventId);
+        }
+    }
+}
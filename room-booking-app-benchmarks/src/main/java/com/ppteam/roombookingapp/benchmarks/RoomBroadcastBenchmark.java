@@ -0,0 +1,125 @@
+package com.ppteam.roombookingapp.benchmarks;
+
+import com.corundumstudio.socketio.Configuration;
+import com.corundumstudio.socketio.SocketIOServer;
+import com.corundumstudio.socketio.store.MemoryStoreFactory;
+import com.google.gson.JsonParser;
+import com.ppteam.roombookingapp.controllers.NewEventNotification;
+import com.ppteam.roombookingapp.controllers.RoomBroadcastService;
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Рассылка socket событий в комнаты календарей: каждый вызов отправляет одно событие в каждую из N комнат, в каждой из
+ * которых M подключенных клиентов. Клиенты подключаются к локальному socket серверу по websocket, а после каждой
+ * итерации измерения бенчмарк дожидается доставки всех событий, чтобы неотправленные события не накапливались между
+ * итерациями.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomBroadcastBenchmark {
+
+    private static final long deliveryTimeoutInSeconds = 60;
+
+    @Param({"10", "100"})
+    private int rooms;
+
+    @Param({"1", "10"})
+    private int clientsPerRoom;
+
+    @Param("4455")
+    private int port;
+
+    private SocketIOServer socketIOServer;
+    private RoomBroadcastService roomBroadcastService;
+    private final List<Socket> clients = new ArrayList<>();
+    private final AtomicLong receivedEvents = new AtomicLong();
+    private long sentEvents;
+    private String[] roomIds;
+    private NewEventNotification payload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        MemoryStoreFactory storeFactory = new MemoryStoreFactory();
+        Configuration configuration = new Configuration();
+        configuration.setHostname("localhost");
+        configuration.setPort(port);
+        configuration.setStoreFactory(storeFactory);
+        socketIOServer = new SocketIOServer(configuration);
+        CountDownLatch joined = new CountDownLatch(rooms * clientsPerRoom);
+        socketIOServer.addEventListener("join", String.class, (client, room, ackRequest) -> {
+            client.joinRoom(room);
+            joined.countDown();
+        });
+        socketIOServer.start();
+
+        roomBroadcastService = new RoomBroadcastService(socketIOServer);
+        Fields.set(roomBroadcastService, "storeFactory", storeFactory);
+        Fields.set(roomBroadcastService, "replayBufferSize", 256);
+        Fields.invoke(roomBroadcastService, "init");
+
+        roomIds = new String[rooms];
+        IO.Options options = new IO.Options();
+        options.transports = new String[]{"websocket"};
+        options.forceNew = true;
+        options.reconnection = false;
+        for (int i = 0; i < rooms; i++) {
+            roomIds[i] = "calendar-" + i;
+            for (int j = 0; j < clientsPerRoom; j++) {
+                String room = roomIds[i];
+                Socket client = IO.socket("http://localhost:" + port, options);
+                client.on(Socket.EVENT_CONNECT, args -> client.emit("join", room));
+                client.on("update_event", args -> receivedEvents.incrementAndGet());
+                clients.add(client);
+                client.connect();
+            }
+        }
+        if (!joined.await(deliveryTimeoutInSeconds, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Клиенты не подключились к комнатам: " + joined.getCount());
+        }
+        payload = NewEventNotification.fromJson(JsonParser.parseString("{\"id\":\"event\",\"subject\":\"Планерка\","
+                + "\"start\":{\"dateTime\":\"2022-11-21T09:00:00.0000000\"},"
+                + "\"end\":{\"dateTime\":\"2022-11-21T10:00:00.0000000\"},"
+                + "\"organizer\":{\"emailAddress\":{\"name\":\"Организатор\"}}}").getAsJsonObject());
+    }
+
+    @TearDown(Level.Iteration)
+    public void awaitDelivery() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(deliveryTimeoutInSeconds);
+        long expectedEvents = sentEvents * clientsPerRoom;
+        while (receivedEvents.get() < expectedEvents) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("Доставлено " + receivedEvents.get() + " из " + expectedEvents + " событий");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clients.forEach(Socket::close);
+        socketIOServer.stop();
+    }
+
+    /**
+     * Отправляет по одному событию в каждую комнату.
+     */
+    @Benchmark
+    public void broadcastToAllRooms() {
+        for (String roomId : roomIds) {
+            roomBroadcastService.broadcast(roomId, "update_event", payload);
+        }
+        sentEvents += roomIds.length;
+    }
+}
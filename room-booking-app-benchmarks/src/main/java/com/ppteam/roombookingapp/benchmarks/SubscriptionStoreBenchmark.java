@@ -0,0 +1,89 @@
+package com.ppteam.roombookingapp.benchmarks;
+
+import com.ppteam.roombookingapp.controllers.SubscriptionRecord;
+import com.ppteam.roombookingapp.controllers.SubscriptionStoreService;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Поиск и продление подписок в хранилище подписок при одновременном обращении нескольких потоков: потоки обработки
+ * уведомлений ищут подписки по ID, а поток продления обновляет даты окончания подписок.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Group)
+public class SubscriptionStoreBenchmark {
+
+    @Param({"100", "10000"})
+    private int subscriptionCount;
+
+    @Param({"false", "true"})
+    private boolean journaled;
+
+    private SubscriptionStoreService subscriptionStoreService;
+    private String[] subscriptionIds;
+    private OffsetDateTime expirationDateTime;
+    private Path journalDirectory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        subscriptionStoreService = new SubscriptionStoreService();
+        if (journaled) {
+            journalDirectory = Files.createTempDirectory("subscription-journal");
+            Fields.set(subscriptionStoreService, "persistenceEnabled", true);
+            Fields.set(subscriptionStoreService, "persistenceDirectory", journalDirectory.toString());
+            Fields.set(subscriptionStoreService, "compactionThreshold", 1000);
+            Fields.invoke(subscriptionStoreService, "init");
+        }
+        expirationDateTime = OffsetDateTime.now(ZoneOffset.UTC).plusDays(1);
+        subscriptionIds = new String[subscriptionCount];
+        for (int i = 0; i < subscriptionCount; i++) {
+            subscriptionIds[i] = "subscription-" + i;
+            subscriptionStoreService.addSubscription(subscriptionIds[i], "Users/user-" + (i % 50) + "/calendars/calendar-"
+                    + i + "/events", expirationDateTime.plusSeconds(i), "user-" + (i % 50), "client-state");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (journaled) {
+            Fields.invoke(subscriptionStoreService, "closeJournal");
+            Fields.deleteRecursively(journalDirectory);
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public SubscriptionRecord lookup() {
+        return subscriptionStoreService.findSubscription(nextSubscriptionId());
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public boolean renew() {
+        return subscriptionStoreService.updateSubscriptionExpirationDateTime(nextSubscriptionId(),
+                expirationDateTime.plusSeconds(ThreadLocalRandom.current().nextInt(86400)));
+    }
+
+    @Benchmark
+    @Group("uncontended")
+    @GroupThreads(1)
+    public SubscriptionRecord lookupOnly() {
+        return subscriptionStoreService.findSubscription(nextSubscriptionId());
+    }
+
+    private String nextSubscriptionId() {
+        return subscriptionIds[ThreadLocalRandom.current().nextInt(subscriptionIds.length)];
+    }
+}
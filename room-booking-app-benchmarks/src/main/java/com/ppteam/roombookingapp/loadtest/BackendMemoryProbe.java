@@ -0,0 +1,102 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Снимает показатели памяти бекэнда: занятую кучу и прямые буферы из метрик Prometheus бекэнда и, если известен PID
+ * процесса бекэнда, запущенного на той же машине, резидентную память процесса из /proc. Разница показателей до и после
+ * подключения клиентов, деленная на число клиентов, дает оценку памяти на одно соединение.
+ */
+public class BackendMemoryProbe {
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final String backendUrl;
+    private final String backendPid;
+
+    /**
+     * @param backendUrl Адрес бекэнда
+     * @param backendPid PID процесса бекэнда или пустая строка, если резидентная память не снимается
+     */
+    public BackendMemoryProbe(String backendUrl, String backendPid) {
+        this.backendUrl = backendUrl;
+        this.backendPid = backendPid;
+    }
+
+    public Sample sample() throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder(URI.create(backendUrl + "/actuator/prometheus"))
+                .GET()
+                .build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Бекэнд не вернул метрики: " + response.statusCode());
+        }
+        long heapBytes = 0;
+        long directBytes = 0;
+        for (String line : response.body().split("\n")) {
+            if (line.startsWith("jvm_memory_used_bytes{") && line.contains("area=\"heap\"")) {
+                heapBytes += getValue(line);
+            } else if (line.startsWith("jvm_buffer_memory_used_bytes{") && line.contains("id=\"direct\"")) {
+                directBytes += getValue(line);
+            }
+        }
+        return new Sample(heapBytes, directBytes, getResidentBytes());
+    }
+
+    private static long getValue(String line) {
+        return (long) Double.parseDouble(line.substring(line.lastIndexOf(' ') + 1));
+    }
+
+    /**
+     * Читает резидентную память процесса бекэнда (VmRSS) из /proc.
+     *
+     * @return Резидентная память в байтах или -1, если PID не указан или /proc недоступен
+     */
+    private long getResidentBytes() throws IOException {
+        if (backendPid.isEmpty()) {
+            return -1;
+        }
+        Path status = Path.of("/proc", backendPid, "status");
+        if (!Files.exists(status)) {
+            return -1;
+        }
+        for (String line : Files.readAllLines(status)) {
+            if (line.startsWith("VmRSS:")) {
+                return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+            }
+        }
+        return -1;
+    }
+
+    public static class Sample {
+
+        private final long heapBytes;
+        private final long directBytes;
+        private final long residentBytes;
+
+        private Sample(long heapBytes, long directBytes, long residentBytes) {
+            this.heapBytes = heapBytes;
+            this.directBytes = directBytes;
+            this.residentBytes = residentBytes;
+        }
+
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        public long getDirectBytes() {
+            return directBytes;
+        }
+
+        /**
+         * @return Резидентная память в байтах или -1, если она не снималась
+         */
+        public long getResidentBytes() {
+            return residentBytes;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Локальная замена Microsoft Graph для нагрузочного теста. Поддерживает создание, продление и удаление подписок,
+ * получение событий, delta запросы расписания, профиль и список календарей пользователя и JSON batch запросы. Каждый ответ задерживается на заданное время, а
+ * заданная доля запросов отклоняется с HTTP статусом 429, как при ограничении запросов Microsoft Graph.
+ */
+public class FakeGraphServer {
+
+    private static final String servicePath = "/v1.0";
+
+    private final int port;
+    private final long latencyInMillis;
+    private final double throttleRatio;
+    private final int retryAfterInSeconds;
+
+    private final Map<String, String> resourceBySubscription = new ConcurrentHashMap<>();
+    private final Map<String, String> clientStateBySubscription = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong throttledRequests = new AtomicLong();
+    private volatile String userId;
+    private volatile List<String> calendarApiIds = List.of();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Создает замену Microsoft Graph.
+     *
+     * @param port Порт сервера
+     * @param latencyInMillis Задержка каждого ответа в миллисекундах
+     * @param throttleRatio Доля запросов, отклоняемых с HTTP статусом 429, от 0 до 1
+     * @param retryAfterInSeconds Значение заголовка Retry-After отклоненных запросов
+     */
+    public FakeGraphServer(int port, long latencyInMillis, double throttleRatio, int retryAfterInSeconds) {
+        this.port = port;
+        this.latencyInMillis = latencyInMillis;
+        this.throttleRatio = throttleRatio;
+        this.retryAfterInSeconds = retryAfterInSeconds;
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext(servicePath + "/", this::handle);
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * Возвращает адрес сервера, который нужно указать бекэнду в graph-client.service-root.
+     *
+     * @return Адрес сервера
+     */
+    public String getServiceRoot() {
+        return "http://127.0.0.1:" + port + servicePath;
+    }
+
+    /**
+     * Возвращает ID подписки календаря.
+     *
+     * @param calendarApiId ID календаря Outlook
+     * @return ID подписки или null, если подписка календаря не создана
+     */
+    public String getSubscriptionForCalendar(String calendarApiId) {
+        for (Map.Entry<String, String> subscription : resourceBySubscription.entrySet()) {
+            if (subscription.getValue().split("/")[3].equals(calendarApiId)) {
+                return subscription.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Задает пользователя, которому принадлежит любой токен доступа, и его календари.
+     *
+     * @param userId ID пользователя Outlook
+     * @param calendarApiIds ID календарей Outlook, доступных пользователю
+     */
+    public void setUser(String userId, List<String> calendarApiIds) {
+        this.userId = userId;
+        this.calendarApiIds = List.copyOf(calendarApiIds);
+    }
+
+    /**
+     * Возвращает секрет, переданный бекэндом при создании подписки.
+     *
+     * @param subscriptionId ID подписки
+     * @return Секрет подписки или null, если он не был передан
+     */
+    public String getClientState(String subscriptionId) {
+        return clientStateBySubscription.get(subscriptionId);
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getThrottledRequests() {
+        return throttledRequests.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath().substring(servicePath.length());
+            byte[] requestBody = exchange.getRequestBody().readAllBytes();
+            JsonElement body = requestBody.length == 0 ? null
+                    : JsonParser.parseString(new String(requestBody, StandardCharsets.UTF_8));
+            Response response;
+            if (path.equals("/$batch")) {
+                response = handleBatch(body.getAsJsonObject());
+            } else {
+                response = handleRequest(exchange.getRequestMethod(), path, body);
+            }
+            delay();
+            byte[] responseBody = response.body == null ? new byte[0]
+                    : response.body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            response.headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+            exchange.sendResponseHeaders(response.status, responseBody.length == 0 ? -1 : responseBody.length);
+            if (responseBody.length > 0) {
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(responseBody);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private Response handleBatch(JsonObject batch) {
+        JsonArray responses = new JsonArray();
+        for (JsonElement stepElement : batch.getAsJsonArray("requests")) {
+            JsonObject step = stepElement.getAsJsonObject();
+            String url = step.get("url").getAsString();
+            String path = url.startsWith("/") ? url : "/" + url;
+            int queryIndex = path.indexOf('?');
+            Response response = handleRequest(step.get("method").getAsString(),
+                    queryIndex < 0 ? path : path.substring(0, queryIndex), step.get("body"));
+            JsonObject stepResponse = new JsonObject();
+            stepResponse.addProperty("id", step.get("id").getAsString());
+            stepResponse.addProperty("status", response.status);
+            JsonObject headers = new JsonObject();
+            response.headers.forEach(headers::addProperty);
+            stepResponse.add("headers", headers);
+            if (response.body != null) {
+                stepResponse.add("body", response.body);
+            }
+            responses.add(stepResponse);
+        }
+        JsonObject body = new JsonObject();
+        body.add("responses", responses);
+        return new Response(200, body);
+    }
+
+    private Response handleRequest(String method, String path, JsonElement body) {
+        requests.incrementAndGet();
+        if (throttleRatio > 0 && ThreadLocalRandom.current().nextDouble() < throttleRatio) {
+            throttledRequests.incrementAndGet();
+            Response response = new Response(429, error("TooManyRequests"));
+            response.headers.put("Retry-After", String.valueOf(retryAfterInSeconds));
+            return response;
+        }
+        String[] parts = path.substring(1).split("/");
+        String collection = parts[0].toLowerCase();
+        if (collection.equals("subscriptions")) {
+            return handleSubscriptionRequest(method, parts.length > 1 ? parts[1] : null, body);
+        }
+        if (collection.equals("me") && parts.length == 1 && userId != null) {
+            JsonObject user = new JsonObject();
+            user.addProperty("id", userId);
+            return new Response(200, user);
+        }
+        if (collection.equals("users") && parts.length == 3 && parts[2].equalsIgnoreCase("calendars")) {
+            JsonArray calendars = new JsonArray();
+            if (parts[1].equals(userId)) {
+                for (String calendarApiId : calendarApiIds) {
+                    JsonObject calendar = new JsonObject();
+                    calendar.addProperty("id", calendarApiId);
+                    calendar.addProperty("name", calendarApiId);
+                    calendar.addProperty("isDefaultCalendar", false);
+                    calendars.add(calendar);
+                }
+            }
+            JsonObject page = new JsonObject();
+            page.add("value", calendars);
+            return new Response(200, page);
+        }
+        if (collection.equals("users") && parts.length == 4 && parts[2].equalsIgnoreCase("events")) {
+            return new Response(200, event(parts[3]));
+        }
+        if (collection.equals("users") && path.endsWith("/calendarView/delta")) {
+            JsonObject page = new JsonObject();
+            page.add("value", new JsonArray());
+            page.addProperty("@odata.deltaLink", getServiceRoot() + path + "?$deltatoken=" + UUID.randomUUID());
+            return new Response(200, page);
+        }
+        return new Response(404, error("ResourceNotFound"));
+    }
+
+    private Response handleSubscriptionRequest(String method, String subscriptionId, JsonElement body) {
+        switch (method) {
+            case "POST": {
+                JsonObject subscription = body.getAsJsonObject().deepCopy();
+                String id = UUID.randomUUID().toString();
+                subscription.addProperty("id", id);
+                resourceBySubscription.put(id, subscription.get("resource").getAsString());
+                if (subscription.has("clientState")) {
+                    clientStateBySubscription.put(id, subscription.get("clientState").getAsString());
+                }
+                return new Response(201, subscription);
+            }
+            case "PATCH": {
+                String resource = resourceBySubscription.get(subscriptionId);
+                if (resource == null) {
+                    return new Response(404, error("ResourceNotFound"));
+                }
+                JsonObject subscription = new JsonObject();
+                subscription.addProperty("id", subscriptionId);
+                subscription.addProperty("resource", resource);
+                JsonElement expirationDateTime = body.getAsJsonObject().get("expirationDateTime");
+                subscription.addProperty("expirationDateTime", expirationDateTime != null
+                        ? expirationDateTime.getAsString() : OffsetDateTime.now(ZoneOffset.UTC).plusDays(1).toString());
+                return new Response(200, subscription);
+            }
+            case "DELETE":
+                clientStateBySubscription.remove(subscriptionId);
+                return resourceBySubscription.remove(subscriptionId) != null ? new Response(204, null)
+                        : new Response(404, error("ResourceNotFound"));
+            default:
+                return new Response(405, error("MethodNotAllowed"));
+        }
+    }
+
+    private static JsonObject event(String eventId) {
+        OffsetDateTime start = OffsetDateTime.now(ZoneOffset.UTC).plusHours(1);
+        JsonObject event = new JsonObject();
+        event.addProperty("id", eventId);
+        event.addProperty("subject", "Нагрузочный тест");
+        event.add("start", dateTimeTimeZone(start));
+        event.add("end", dateTimeTimeZone(start.plusMinutes(30)));
+        JsonObject emailAddress = new JsonObject();
+        emailAddress.addProperty("name", "Нагрузочный тест");
+        JsonObject organizer = new JsonObject();
+        organizer.add("emailAddress", emailAddress);
+        event.add("organizer", organizer);
+        return event;
+    }
+
+    private static JsonObject dateTimeTimeZone(OffsetDateTime dateTime) {
+        JsonObject value = new JsonObject();
+        value.addProperty("dateTime", dateTime.toLocalDateTime().toString());
+        value.addProperty("timeZone", "UTC");
+        return value;
+    }
+
+    private static JsonObject error(String code) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", code);
+        JsonObject body = new JsonObject();
+        body.add("error", error);
+        return body;
+    }
+
+    private void delay() {
+        if (latencyInMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(latencyInMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Response {
+
+        private final int status;
+        private final JsonElement body;
+        private final Map<String, String> headers = new HashMap<>();
+
+        private Response(int status, JsonElement body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+}
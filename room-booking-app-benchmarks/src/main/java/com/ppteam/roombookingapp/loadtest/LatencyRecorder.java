@@ -0,0 +1,78 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Записывает время от отправки уведомления на бекэнд до получения socket события о нем каждым клиентом.
+ */
+public class LatencyRecorder {
+
+    private final Map<String, Long> sentAtNanosByEvent = new ConcurrentHashMap<>();
+    private final AtomicLong unknownReceipts = new AtomicLong();
+    private long[] latenciesInNanos = new long[1024];
+    private int size;
+
+    /**
+     * Отмечает отправку уведомления о событии.
+     *
+     * @param eventId ID события
+     */
+    public void recordSent(String eventId) {
+        sentAtNanosByEvent.put(eventId, System.nanoTime());
+    }
+
+    /**
+     * Отмечает получение клиентом socket события.
+     *
+     * @param eventId ID события
+     */
+    public void recordReceived(String eventId) {
+        long receivedAtNanos = System.nanoTime();
+        Long sentAtNanos = sentAtNanosByEvent.get(eventId);
+        if (sentAtNanos == null) {
+            unknownReceipts.incrementAndGet();
+            return;
+        }
+        synchronized (this) {
+            if (size == latenciesInNanos.length) {
+                latenciesInNanos = Arrays.copyOf(latenciesInNanos, size * 2);
+            }
+            latenciesInNanos[size++] = receivedAtNanos - sentAtNanos;
+        }
+    }
+
+    public synchronized int getReceivedCount() {
+        return size;
+    }
+
+    public int getSentCount() {
+        return sentAtNanosByEvent.size();
+    }
+
+    public long getUnknownReceipts() {
+        return unknownReceipts.get();
+    }
+
+    /**
+     * Возвращает перцентили задержки.
+     *
+     * @param percentiles Перцентили от 0 до 100
+     * @return Задержка для каждого перцентиля в миллисекундах или пустой массив, если событий не было получено
+     */
+    public synchronized double[] getPercentilesInMillis(double... percentiles) {
+        if (size == 0) {
+            return new double[0];
+        }
+        long[] sorted = Arrays.copyOf(latenciesInNanos, size);
+        Arrays.sort(sorted);
+        double[] result = new double[percentiles.length];
+        for (int i = 0; i < percentiles.length; i++) {
+            int index = (int) Math.ceil(percentiles[i] / 100 * size) - 1;
+            result[i] = sorted[Math.max(0, Math.min(index, size - 1))] / 1_000_000.0;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,176 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import com.google.gson.JsonObject;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Нагрузочный тест бекэнда. Запускает локальную замену Microsoft Graph, подключает к комнатам календарей имитацию
+ * экранов переговорных, ждет создания подписок и отправляет на бекэнд пачки уведомлений, после чего выводит пропускную
+ * способность, перцентили задержки от отправки уведомления до получения socket события клиентом и оценку памяти
+ * бекэнда на одно соединение.
+ * <p>
+ * Бекэнд запускается отдельно с адресом замены Microsoft Graph, например
+ * {@code --graph-client.service-root=http://127.0.0.1:8089/v1.0}. Параметры теста передаются аргументами вида
+ * {@code --rooms=100}, значения по умолчанию указаны в {@link #defaults()}.
+ */
+public class LoadTest {
+
+    private static final String accountId = "00000000-0000-0000-0000-00000000cafe.9188040d-6c67-4c5b-b112-36a304b66dad";
+    private static final String userId = accountId.substring(19, 36).replace("-", "");
+    private static final String accessToken = "load-test";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = defaults();
+        for (String arg : args) {
+            int separatorIndex = arg.indexOf('=');
+            if (!arg.startsWith("--") || separatorIndex < 0) {
+                throw new IllegalArgumentException("Неизвестный аргумент: " + arg);
+            }
+            options.put(arg.substring(2, separatorIndex), arg.substring(separatorIndex + 1));
+        }
+        String backendUrl = options.get("backend-url");
+        int rooms = Integer.parseInt(options.get("rooms"));
+        int clientsPerRoom = Integer.parseInt(options.get("clients-per-room"));
+        int notificationsPerSecond = Integer.parseInt(options.get("notifications-per-second"));
+        int burstSize = Integer.parseInt(options.get("burst-size"));
+        long durationInSeconds = Long.parseLong(options.get("duration-seconds"));
+        long timeoutInSeconds = Long.parseLong(options.get("timeout-seconds"));
+
+        FakeGraphServer fakeGraph = new FakeGraphServer(Integer.parseInt(options.get("graph-port")),
+                Long.parseLong(options.get("graph-latency-ms")), Double.parseDouble(options.get("graph-throttle-ratio")),
+                Integer.parseInt(options.get("graph-retry-after-seconds")));
+        fakeGraph.start();
+        LatencyRecorder latencyRecorder = new LatencyRecorder();
+        SimulatedScreens screens = new SimulatedScreens(options.get("socket-url"), latencyRecorder);
+        BackendMemoryProbe memoryProbe = new BackendMemoryProbe(backendUrl, options.get("backend-pid"));
+        try {
+            System.out.println("Замена Microsoft Graph: " + fakeGraph.getServiceRoot());
+            List<String> calendarApiIds = new ArrayList<>();
+            for (int i = 0; i < rooms; i++) {
+                calendarApiIds.add("load-test-room-" + i);
+            }
+            fakeGraph.setUser(userId, calendarApiIds);
+            saveAccessToken(backendUrl);
+            BackendMemoryProbe.Sample memoryBefore = memoryProbe.sample();
+
+            if (!screens.connect(accessToken, calendarApiIds, clientsPerRoom, timeoutInSeconds)) {
+                throw new IllegalStateException("Не все клиенты подключились к socket серверу");
+            }
+            System.out.println("Подключено клиентов: " + rooms * clientsPerRoom);
+            List<WebhookDriver.SimulatedRoom> simulatedRooms = awaitSubscriptions(fakeGraph, calendarApiIds,
+                    timeoutInSeconds);
+            System.out.println("Создано подписок: " + simulatedRooms.size());
+            reportMemory(memoryBefore, memoryProbe.sample(), rooms * clientsPerRoom);
+
+            WebhookDriver driver = new WebhookDriver(backendUrl, latencyRecorder);
+            long startNanos = System.nanoTime();
+            driver.run(simulatedRooms, notificationsPerSecond, burstSize, durationInSeconds);
+            long expectedReceipts = (long) latencyRecorder.getSentCount() * clientsPerRoom;
+            long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+            while (latencyRecorder.getReceivedCount() < expectedReceipts && System.nanoTime() < deadlineNanos) {
+                Thread.sleep(100);
+            }
+            double elapsedInSeconds = (System.nanoTime() - startNanos) / 1e9;
+            report(latencyRecorder, driver, fakeGraph, expectedReceipts, elapsedInSeconds);
+        } finally {
+            screens.close();
+            fakeGraph.stop();
+        }
+    }
+
+    private static Map<String, String> defaults() {
+        Map<String, String> options = new HashMap<>();
+        options.put("backend-url", "http://localhost:8080");
+        options.put("socket-url", "http://localhost:4444");
+        options.put("graph-port", "8089");
+        options.put("graph-latency-ms", "50");
+        options.put("graph-throttle-ratio", "0");
+        options.put("graph-retry-after-seconds", "1");
+        options.put("rooms", "100");
+        options.put("clients-per-room", "10");
+        options.put("notifications-per-second", "200");
+        options.put("burst-size", "10");
+        options.put("duration-seconds", "60");
+        options.put("timeout-seconds", "60");
+        options.put("backend-pid", "");
+        return options;
+    }
+
+    /**
+     * Сохраняет на бекэнде токен доступа пользователя, от имени которого создаются подписки. Замена Microsoft Graph
+     * принимает любой токен.
+     *
+     * @param backendUrl Адрес бекэнда
+     */
+    private static void saveAccessToken(String backendUrl) throws Exception {
+        JsonObject body = new JsonObject();
+        body.addProperty("userId", accountId);
+        body.addProperty("accessToken", accessToken);
+        HttpResponse<Void> response = HttpClient.newHttpClient().send(HttpRequest.newBuilder(URI.create(backendUrl + "/token"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException("Бекэнд не принял токен доступа: " + response.statusCode());
+        }
+    }
+
+    private static List<WebhookDriver.SimulatedRoom> awaitSubscriptions(FakeGraphServer fakeGraph,
+                                                                        List<String> calendarApiIds,
+                                                                        long timeoutInSeconds) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutInSeconds);
+        List<WebhookDriver.SimulatedRoom> rooms = new ArrayList<>();
+        for (String calendarApiId : calendarApiIds) {
+            String subscriptionId;
+            while ((subscriptionId = fakeGraph.getSubscriptionForCalendar(calendarApiId)) == null) {
+                if (System.nanoTime() > deadlineNanos) {
+                    throw new IllegalStateException("Бекэнд не создал подписку для календаря " + calendarApiId);
+                }
+                Thread.sleep(100);
+            }
+            rooms.add(new WebhookDriver.SimulatedRoom(calendarApiId, userId, subscriptionId,
+                    fakeGraph.getClientState(subscriptionId)));
+        }
+        return rooms;
+    }
+
+    /**
+     * Выводит прирост памяти бекэнда после подключения клиентов в пересчете на одно соединение. Куча включает еще не
+     * собранный мусор, поэтому оценка по куче приблизительна и сравнивается между запусками с одинаковыми параметрами.
+     */
+    private static void reportMemory(BackendMemoryProbe.Sample before, BackendMemoryProbe.Sample after, int connections) {
+        System.out.printf("Память на соединение, КБ: куча %.1f, прямые буферы %.1f%n",
+                (after.getHeapBytes() - before.getHeapBytes()) / 1024.0 / connections,
+                (after.getDirectBytes() - before.getDirectBytes()) / 1024.0 / connections);
+        if (before.getResidentBytes() >= 0 && after.getResidentBytes() >= 0) {
+            System.out.printf("Резидентная память процесса на соединение, КБ: %.1f (всего %d МБ)%n",
+                    (after.getResidentBytes() - before.getResidentBytes()) / 1024.0 / connections,
+                    after.getResidentBytes() / 1024 / 1024);
+        }
+    }
+
+    private static void report(LatencyRecorder latencyRecorder, WebhookDriver driver, FakeGraphServer fakeGraph,
+                               long expectedReceipts, double elapsedInSeconds) {
+        System.out.printf("Отправлено уведомлений: %d (запросов принято: %d, отклонено: %d)%n",
+                latencyRecorder.getSentCount(), driver.getAcceptedRequests(), driver.getRejectedRequests());
+        System.out.printf("Получено socket событий: %d из %d%n", latencyRecorder.getReceivedCount(), expectedReceipts);
+        System.out.printf("Пропускная способность: %.1f уведомлений/с, %.1f socket событий/с%n",
+                latencyRecorder.getSentCount() / elapsedInSeconds, latencyRecorder.getReceivedCount() / elapsedInSeconds);
+        System.out.printf("Запросов к Microsoft Graph: %d (отклонено с 429: %d)%n", fakeGraph.getRequests(),
+                fakeGraph.getThrottledRequests());
+        double[] percentiles = latencyRecorder.getPercentilesInMillis(50, 90, 99, 100);
+        if (percentiles.length > 0) {
+            System.out.printf("Задержка, мс: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f%n",
+                    percentiles[0], percentiles[1], percentiles[2], percentiles[3]);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Socket клиенты, имитирующие экраны переговорных: каждый клиент подключается к socket серверу бекэнда, входит в
+ * комнату календаря и отмечает получение socket событий о новых и измененных событиях.
+ */
+public class SimulatedScreens {
+
+    private final String socketUrl;
+    private final LatencyRecorder latencyRecorder;
+    private final List<Socket> clients = new ArrayList<>();
+
+    public SimulatedScreens(String socketUrl, LatencyRecorder latencyRecorder) {
+        this.socketUrl = socketUrl;
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * Подключает клиентов к комнатам календарей.
+     *
+     * @param accessToken Токен доступа пользователя, от имени которого клиенты входят в комнаты
+     * @param calendarApiIds ID календарей Outlook
+     * @param clientsPerRoom Количество клиентов в каждой комнате
+     * @param timeoutInSeconds Время ожидания подключения всех клиентов в секундах
+     * @return true, если все клиенты подключились, иначе false
+     */
+    public boolean connect(String accessToken, List<String> calendarApiIds, int clientsPerRoom, long timeoutInSeconds)
+            throws URISyntaxException, InterruptedException, JSONException {
+        CountDownLatch connected = new CountDownLatch(calendarApiIds.size() * clientsPerRoom);
+        IO.Options options = new IO.Options();
+        options.transports = new String[]{"websocket"};
+        options.forceNew = true;
+        options.query = "access_token=" + accessToken;
+        for (String calendarApiId : calendarApiIds) {
+            String joinRequest = new JSONObject()
+                    .put("calApiId", calendarApiId)
+                    .toString();
+            for (int i = 0; i < clientsPerRoom; i++) {
+                Socket client = IO.socket(socketUrl, options);
+                client.on(Socket.EVENT_CONNECT, args -> {
+                    client.emit("join_calendar_room", joinRequest);
+                    connected.countDown();
+                });
+                client.on("add_event", this::recordEvent);
+                client.on("update_event", this::recordEvent);
+                clients.add(client);
+                client.connect();
+            }
+        }
+        return connected.await(timeoutInSeconds, TimeUnit.SECONDS);
+    }
+
+    public void close() {
+        clients.forEach(Socket::close);
+    }
+
+    private void recordEvent(Object... args) {
+        if (args.length > 0 && args[0] instanceof JSONObject) {
+            try {
+                latencyRecorder.recordReceived(((JSONObject) args[0]).getString("id"));
+            } catch (JSONException e) {
+                // событие без ID не относится к нагрузочному тесту
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.ppteam.roombookingapp.loadtest;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Отправляет на адрес /listen бекэнда пачки уведомлений Microsoft Graph об изменении событий в календарях комнат.
+ * Каждое уведомление относится к новому событию, поэтому уведомления не объединяются бекэндом, и задержку каждого из
+ * них можно измерить отдельно.
+ */
+public class WebhookDriver {
+
+    private final HttpClient httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(5)).build();
+    private final URI listenUri;
+    private final LatencyRecorder latencyRecorder;
+    private final AtomicLong eventCounter = new AtomicLong();
+    private final AtomicLong acceptedRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    public WebhookDriver(String backendUrl, LatencyRecorder latencyRecorder) {
+        this.listenUri = URI.create(backendUrl + "/listen");
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * Отправляет уведомления пачками с заданной частотой в течение заданного времени.
+     *
+     * @param rooms Комнаты, о событиях в которых отправляются уведомления
+     * @param notificationsPerSecond Количество уведомлений в секунду
+     * @param burstSize Количество уведомлений в одном запросе
+     * @param durationInSeconds Длительность отправки в секундах
+     */
+    public void run(List<SimulatedRoom> rooms, int notificationsPerSecond, int burstSize, long durationInSeconds)
+            throws InterruptedException {
+        long intervalInNanos = TimeUnit.SECONDS.toNanos(1) * burstSize / notificationsPerSecond;
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationInSeconds);
+        long nextNanos = System.nanoTime();
+        int roomIndex = 0;
+        while (nextNanos < endNanos) {
+            JsonArray notifications = new JsonArray();
+            for (int i = 0; i < burstSize; i++) {
+                notifications.add(notification(rooms.get(roomIndex)));
+                roomIndex = (roomIndex + 1) % rooms.size();
+            }
+            send(notifications);
+            nextNanos += intervalInNanos;
+            long sleepNanos = nextNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(sleepNanos);
+            }
+        }
+    }
+
+    public long getAcceptedRequests() {
+        return acceptedRequests.get();
+    }
+
+    public long getRejectedRequests() {
+        return rejectedRequests.get();
+    }
+
+    private JsonObject notification(SimulatedRoom room) {
+        String eventId = "load-test-event-" + eventCounter.incrementAndGet();
+        JsonObject resourceData = new JsonObject();
+        resourceData.addProperty("@odata.type", "#Microsoft.Graph.Event");
+        resourceData.addProperty("id", eventId);
+        JsonObject notification = new JsonObject();
+        notification.addProperty("subscriptionId", room.subscriptionId);
+        notification.addProperty("clientState", room.clientState);
+        notification.addProperty("changeType", "created");
+        notification.addProperty("resource", "Users/" + room.userId + "/Events/" + eventId);
+        notification.add("resourceData", resourceData);
+        latencyRecorder.recordSent(eventId);
+        return notification;
+    }
+
+    private CompletableFuture<Void> send(JsonArray notifications) {
+        JsonObject body = new JsonObject();
+        body.add("value", notifications);
+        HttpRequest request = HttpRequest.newBuilder(listenUri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, exception) -> {
+            if (exception == null && response.statusCode() / 100 == 2) {
+                acceptedRequests.incrementAndGet();
+            } else {
+                rejectedRequests.incrementAndGet();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Комната, для которой бекэнд создал подписку.
+     */
+    public static class SimulatedRoom {
+
+        private final String calendarApiId;
+        private final String userId;
+        private final String subscriptionId;
+        private final String clientState;
+
+        public SimulatedRoom(String calendarApiId, String userId, String subscriptionId, String clientState) {
+            this.calendarApiId = calendarApiId;
+            this.userId = userId;
+            this.subscriptionId = subscriptionId;
+            this.clientState = clientState;
+        }
+
+        public String getCalendarApiId() {
+            return calendarApiId;
+        }
+    }
+}
@@ -32,13 +32,14 @@ export function MSALInstanceFactory(): IPublicClientApplication {
 export function MSALInterceptorConfigFactory(): MsalInterceptorConfiguration {
   const protectedResourceMap = new Map<string, Array<string>>();
   protectedResourceMap.set('https://graph.microsoft.com/v1.0/me', ['user.read', 'calendars.read']);
+  protectedResourceMap.set(ScheduleComponent.backendNotificationHandlerUrl + '/calendars', ['user.read', 'calendars.read']);
   return {
     interactionType: InteractionType.Popup,
     protectedResourceMap
   };
 }
 
-const socketIoConfig: SocketIoConfig = { url: 'http://localhost:4444', options: {} };
+const socketIoConfig: SocketIoConfig = { url: 'http://localhost:4444', options: { autoConnect: false } };
 //const socketIoConfig: SocketIoConfig = { url: 'room-booking-app.run-eu-central1.goorm.io', options: {} };
 
 @NgModule({
@@ -6,6 +6,7 @@ import { HttpClient } from '@angular/common/http';
 import { MsalService } from '@azure/msal-angular';
 import { Socket } from 'ngx-socket-io';
 import { IDropdownSettings } from 'ng-multiselect-dropdown';
+import { addDays, endOfMonth, endOfWeek, startOfDay, startOfMonth, startOfWeek } from 'date-fns';
 
 @Component({
   selector: 'app-schedule',
@@ -41,6 +42,10 @@ export class ScheduleComponent implements OnInit {
   static readonly backendNotificationHandlerUrl = "http://localhost:8080";
 
   events: CalendarEvent[] = [];
+  /**
+   * Эпоха и порядковый номер последнего полученного socket события каждой комнаты календаря.
+   */
+  roomPositions = new Map<string, {epoch: string, seq: number}>();
   updated: Subject<void> = new Subject<void>();
   calendarsList = [];
   selectedCalendars = [];
@@ -65,23 +70,25 @@ export class ScheduleComponent implements OnInit {
   }
 
   ngOnInit(): void {
-    this.callCalendars();
-    this.postToken();
-    this.socket.on("add_event", e => {
-      const calendarEvent: CalendarEvent = ScheduleComponent.getCalendarEventFromSocketNotification(e);
-      this.events.push(calendarEvent);
+    this.postToken(() => this.callCalendars());
+    this.socket.on("add_event", (e, calApiId, seq) => {
+      if (!this.updateRoomPosition(calApiId, seq)) {
+        return;
+      }
+      this.upsertEvent(ScheduleComponent.getCalendarEventFromSocketNotification(e, calApiId));
       this.updateEvents();
     });
-    this.socket.on("update_event", e => {
-      const calendarEvent: CalendarEvent = ScheduleComponent.getCalendarEventFromSocketNotification(e);
-      for (let i = 0; i < this.events.length; i++) {
-        if (this.events[i].id == calendarEvent.id) {
-          this.events[i] = calendarEvent;
-        }
+    this.socket.on("update_event", (e, calApiId, seq) => {
+      if (!this.updateRoomPosition(calApiId, seq)) {
+        return;
       }
+      this.upsertEvent(ScheduleComponent.getCalendarEventFromSocketNotification(e, calApiId));
       this.updateEvents();
     })
-    this.socket.on("delete_event", eventId => {
+    this.socket.on("delete_event", (eventId, calApiId, seq) => {
+      if (!this.updateRoomPosition(calApiId, seq)) {
+        return;
+      }
       for (let i = 0; i < this.events.length; i++) {
         if (this.events[i].id == eventId) {
           this.events.splice(i, 1);
@@ -89,6 +96,13 @@ export class ScheduleComponent implements OnInit {
         }
       }
     });
+    this.socket.on("calendar_snapshot", snapshot => {
+      const calApiId = snapshot["calApiId"];
+      this.roomPositions.set(calApiId, {epoch: snapshot["epoch"], seq: snapshot["seq"]});
+      this.events = this.events.filter(event => event.meta.calApiId != calApiId);
+      this.processEventsResponse(snapshot["events"], calApiId);
+      this.updateEvents();
+    });
     this.socket.on("reconnect", () => {
       this.selectedCalendars.forEach(cal => {
         const calendarApiId = this.getSelectedCalendarApiId(cal);
@@ -99,9 +113,12 @@ export class ScheduleComponent implements OnInit {
   }
 
   /**
-   * Обновляет токен доступа на сервере.
+   * Обновляет токен доступа на сервере и передает его SocketIO соединению, по которому сервер определяет пользователя
+   * при подключении и переподключении.
+   *
+   * @param onSaved - Вызывается после сохранения токена на сервере
    */
-  postToken() {
+  postToken(onSaved?: () => void) {
     const accessTokenRequest = {
       scopes: ["user.read", "calendars.read"],
       account: this.msalService.instance.getActiveAccount(),
@@ -109,7 +126,13 @@ export class ScheduleComponent implements OnInit {
     };
     this.msalService.acquireTokenSilent(accessTokenRequest)
     .pipe(map(authResult => this.httpClient.post(ScheduleComponent.backendNotificationHandlerUrl + "/token", 
-    {userId: authResult.account.localAccountId, accessToken: authResult.accessToken}).subscribe()))
+    {userId: authResult.account.localAccountId, accessToken: authResult.accessToken}).subscribe(() => {
+      this.socket.ioSocket.io.opts.query = {access_token: authResult.accessToken};
+      if (!this.socket.ioSocket.connected) {
+        this.socket.connect();
+      }
+      onSaved?.();
+    })))
     .subscribe();
   }
 
@@ -133,6 +156,58 @@ export class ScheduleComponent implements OnInit {
         break;
       }
     }
+    this.updateCalendarWindows();
+  }
+
+  /**
+   * Меняет дату для отображения расписания.
+   *
+   * @param viewDate - Новая дата
+   */
+  setViewDate(viewDate: Date) {
+    this.viewDate = viewDate;
+    this.updateCalendarWindows();
+  }
+
+  /**
+   * Возвращает отображаемый период расписания в миллисекундах. Сервер присылает изменения только тех событий, которые
+   * попадают в этот период.
+   *
+   * @returns Начало и окончание отображаемого периода
+   */
+  getVisibleWindow(): {start: number, end: number} {
+    const options = {weekStartsOn: this.weekStartsOn as 0 | 1 | 2 | 3 | 4 | 5 | 6};
+    switch (this.view) {
+      case CalendarView.Day: {
+        const dayStart = startOfDay(this.viewDate);
+        return {start: dayStart.getTime(), end: addDays(dayStart, 1).getTime()};
+      }
+      case CalendarView.Week: {
+        const weekStart = startOfWeek(this.viewDate, options);
+        return {start: weekStart.getTime(), end: addDays(weekStart, 7).getTime()};
+      }
+      default: {
+        const monthViewStart = startOfWeek(startOfMonth(this.viewDate), options);
+        const monthViewEnd = endOfWeek(endOfMonth(this.viewDate), options);
+        return {start: monthViewStart.getTime(), end: monthViewEnd.getTime() + 1};
+      }
+    }
+  }
+
+  /**
+   * Сообщает серверу новый отображаемый период для всех выбранных календарей. В ответ сервер присылает расписание
+   * календаря за этот период.
+   */
+  updateCalendarWindows() {
+    const window = this.getVisibleWindow();
+    this.selectedCalendars.forEach(cal => {
+      const data = {
+        calApiId: this.getSelectedCalendarApiId(cal),
+        start: window.start,
+        end: window.end,
+      };
+      this.socket.emit("update_calendar_window", JSON.stringify(data));
+    });
   }
 
   /**
@@ -148,16 +223,16 @@ export class ScheduleComponent implements OnInit {
   }
 
   /**
-   * Запрашивает список событий из выбранных календарей Outlook и по получении обрабатывает их, после чего обновляет текущее
-   * расписание на экране.
+   * Запрашивает список событий выбранных календарей Outlook из кэша сервера и по получении обрабатывает их, после чего
+   * обновляет текущее расписание на экране.
    */
   callEvents() {
     this.clearEvents();
     const calendarsTasks = [];
     this.selectedCalendars.forEach(selectedCal => {
       const calendarApiId = this.getSelectedCalendarApiId(selectedCal);
-      const destinationUrl = `https://graph.microsoft.com/v1.0/me/calendars/${calendarApiId}/events?$select=subject,organizer,start,end`;
-      calendarsTasks.push(this.httpClient.get(destinationUrl).pipe(map(response => this.processEventsResponse(response))));
+      const destinationUrl = `${ScheduleComponent.backendNotificationHandlerUrl}/calendars/${calendarApiId}/events`;
+      calendarsTasks.push(this.httpClient.get(destinationUrl).pipe(map(response => this.processEventsResponse(response, calendarApiId))));
     });
     forkJoin(calendarsTasks).pipe(defaultIfEmpty(null)).subscribe(() => this.updateEvents());
   }
@@ -177,18 +252,53 @@ export class ScheduleComponent implements OnInit {
   }
 
   /**
-   * Преобразовывает ответ с полученными событиями из Outlook в нужный формат и сохраняет их.
+   * Преобразовывает ответ с полученными событиями из кэша сервера в нужный формат и сохраняет их.
    *
-   * @param response - Ответ от Microsoft Graph с событиями из Outlook
+   * @param response - Ответ сервера с событиями календаря
+   * @param calApiId - ID календаря Outlook
    */
-  processEventsResponse(response) {
-    const rawEvents: [] = response.value;
+  processEventsResponse(response, calApiId: string) {
+    const rawEvents: [] = response;
     rawEvents.forEach(rawEvent => {
-      const calendarEvent: CalendarEvent = ScheduleComponent.getCalendarEventFromOutlookRawEvent(rawEvent);
+      const calendarEvent: CalendarEvent = ScheduleComponent.getCalendarEventFromSocketNotification(rawEvent, calApiId);
       this.events.push(calendarEvent);
     });
   }
 
+  /**
+   * Добавляет событие в текущий список событий или заменяет событие с тем же ID.
+   *
+   * @param calendarEvent - Событие в календаре
+   */
+  upsertEvent(calendarEvent: CalendarEvent) {
+    const index = this.events.findIndex(event => event.id == calendarEvent.id);
+    if (index >= 0) {
+      this.events[index] = calendarEvent;
+    } else {
+      this.events.push(calendarEvent);
+    }
+  }
+
+  /**
+   * Запоминает порядковый номер последнего полученного socket события комнаты календаря. Одно событие может прийти из
+   * нескольких комнат дней отображаемого периода, поэтому повторно полученные события отбрасываются.
+   *
+   * @param calApiId - ID календаря Outlook
+   * @param seq - Порядковый номер socket события
+   * @returns false, если событие уже было получено
+   */
+  updateRoomPosition(calApiId: string, seq: number): boolean {
+    const position = this.roomPositions.get(calApiId);
+    if (!position) {
+      return true;
+    }
+    if (seq <= position.seq) {
+      return false;
+    }
+    position.seq = seq;
+    return true;
+  }
+
   /**
    * Преобразует ответ с полученным событием из Outlook и возвращает его в нужном формате.
    *
@@ -212,9 +322,10 @@ export class ScheduleComponent implements OnInit {
    * Преобразует socket событие и возвращает его в нужном формате.
    * 
    * @param socketEventNotification Socket событие
+   * @param calApiId ID календаря Outlook, к которому относится событие
    * @returns Событие в календаре
    */
-  static getCalendarEventFromSocketNotification(socketEventNotification): CalendarEvent {
+  static getCalendarEventFromSocketNotification(socketEventNotification, calApiId?: string): CalendarEvent {
     const calendarEvent: CalendarEvent = {
       id: socketEventNotification["id"],
       title: socketEventNotification["subject"],
@@ -222,6 +333,7 @@ export class ScheduleComponent implements OnInit {
       end: new Date(socketEventNotification["end"] + "Z"),
       meta: {
         organizer: socketEventNotification["organizer"],
+        calApiId: calApiId,
       }
     };
     return calendarEvent;
@@ -235,14 +347,28 @@ export class ScheduleComponent implements OnInit {
   }
 
   /**
-   * Присоединяется к SocketIO комнате, соответствующей указанному ID календаря.
+   * Присоединяется к SocketIO комнате, соответствующей указанному ID календаря, и получает изменения событий только
+   * отображаемого периода. Если клиент уже получал события этой комнаты, то сервер повторно отправит только пропущенные
+   * события или расписание календаря.
    *
    * @param calApiId ID календаря Outlook
    */
   joinRoomByCalendarId(calApiId: string) {
-    const data = {userId: this.msalService.instance.getActiveAccount().localAccountId, calApiId: calApiId};
-    this.socket.emit("join_calendar_room", JSON.stringify(data));
-
+    const position = this.roomPositions.get(calApiId);
+    const window = this.getVisibleWindow();
+    const data = {
+      calApiId: calApiId,
+      lastEpoch: position ? position.epoch : null,
+      lastSeq: position ? position.seq : null,
+      start: window.start,
+      end: window.end,
+    };
+    this.socket.emit("join_calendar_room", JSON.stringify(data), ack => {
+      const currentPosition = this.roomPositions.get(calApiId);
+      if (!currentPosition || currentPosition.epoch != ack["epoch"]) {
+        this.roomPositions.set(calApiId, {epoch: ack["epoch"], seq: ack["seq"]});
+      }
+    });
   }
 
     /**
@@ -251,25 +377,26 @@ export class ScheduleComponent implements OnInit {
    * @param calApiId ID календаря Outlook
    */
   leaveRoomByCalendarId(calApiId: string) {
+    this.roomPositions.delete(calApiId);
     this.socket.emit("leave_calendar_room", calApiId);
   }
 
 
   /**
-   * Запрашивает Outlook календари пользователя, после чего обрабатывает их.
+   * Запрашивает Outlook календари пользователя из кэша сервера, после чего обрабатывает их.
    */
   callCalendars() {
-    this.httpClient.get('https://graph.microsoft.com/v1.0/me/calendars')
+    this.httpClient.get(`${ScheduleComponent.backendNotificationHandlerUrl}/calendars`)
       .subscribe(response => this.processCalendarsResponse(response));
   }
 
   /**
    * Преобразует ответ с полученными календарями Outlook, после чего сохраняет их и обновляет список календарей для выбора.
    *
-   * @param response Ответ от Microsoft Graph с календарями Outlook
+   * @param response Ответ сервера с календарями Outlook
    */
   processCalendarsResponse(response) {
-    const rawCalendars: [] = response.value;
+    const rawCalendars: [] = response;
     this.calendarsList.length = 0;
     let i = 0;
     rawCalendars.forEach(rawCalendar => {